@@ -0,0 +1,30 @@
+package net.i2p.util;
+
+import java.math.BigInteger;
+
+/**
+ * A modular exponentiation back end for {@link NativeBigInteger}. The JNI
+ * jbigi calls and BigInteger.modPow are built in; other engines (such as
+ * the Foreign Function &amp; Memory binding in src/java22) are found by
+ * reflection so that this package still compiles on old JDKs.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface ModPowEngine {
+    /**
+     * @return a short name for logging, e.g. "ffm"
+     */
+    public String getName();
+
+    /**
+     * calculate (base ^ exponent) % m. The exponent is non-negative and
+     * 0 &lt;= base &lt; m. m is odd.
+     */
+    public BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger m);
+
+    /**
+     * calculate (bases[i] ^ exponents[i]) % m for all i, with the same
+     * restrictions as {@link #modPow(BigInteger, BigInteger, BigInteger)}.
+     */
+    public BigInteger[] modPow(BigInteger[] bases, BigInteger[] exponents, BigInteger m);
+}
@@ -34,11 +34,14 @@ import freenet.support.CPUInformation.UnknownCPUException;
  * GMP library - a collection of insanely efficient routines for dealing with 
  * big numbers.</p>
  *
- * There are three environmental properties for configuring this component: <ul>
+ * There are four environmental properties for configuring this component: <ul>
  * <li><b>jbigi.enable</b>: whether to use the native library (defaults to "true")</li>
  * <li><b>jbigi.impl</b>: select which resource to use as the native implementation</li>
  * <li><b>jbigi.ref</b>: the file specified in this parameter may contain a resource
  *                       name to override jbigi.impl (defaults to "jbigi.cfg")</li>
+ * <li><b>jbigi.foreign</b>: whether to call GMP through the Foreign Function &amp; Memory 
+ *                       API when net.i2p.util.ForeignBigInteger (src/java22) is on the
+ *                       classpath (defaults to "true")</li>
  * </ul>
  *
  * <p>If jbigi.enable is set to false, this class won't even attempt to use the 
@@ -86,6 +89,10 @@ import freenet.support.CPUInformation.UnknownCPUException;
 public class NativeBigInteger extends BigInteger {
     /** did we load the native lib correctly? */
     private static boolean _nativeOk = false;
+    /** does the native lib have the batch entry points (nativeModPowBatch, nativeMultiExp)? */
+    private static boolean _batchOk = false;
+    /** the Foreign Function & Memory engine from src/java22, if it is on the classpath and found GMP */
+    private static ModPowEngine _foreign = null;
     /** 
      * do we want to dump some basic success/failure info to stderr during 
      * initialization?  this would otherwise use the Log component, but this makes
@@ -122,6 +129,33 @@ public class NativeBigInteger extends BigInteger {
             sCPUType = resolveCPUType();
             System.out.println("sCPUType: " + sCPUType);
         loadNative();
+        if (_nativeOk)
+            _batchOk = probeBatch();
+        _foreign = loadForeign();
+    }
+
+    /**
+     * Looks for net.i2p.util.ForeignBigInteger by reflection. It is compiled 
+     * separately (it needs JDK 22, or JDK 21 with --enable-preview) so it 
+     * may be missing, compiled for a newer 
+     * JVM, or unable to find GMP; all of these leave the JNI and pure Java 
+     * paths in place.
+     */
+    private static ModPowEngine loadForeign() {
+        try {
+            Class<?> c = Class.forName("net.i2p.util.ForeignBigInteger");
+            ModPowEngine engine = (ModPowEngine)c.getMethod("getInstance").invoke(null);
+            if (_doLog && engine != null)
+                System.err.println("INFO: Foreign Function & Memory engine available"
+                                   + (_nativeOk ? " (JNI stays the default)" : ""));
+            return engine;
+        } catch (ClassNotFoundException cnfe) {
+            return null;
+        } catch (Throwable t) {
+            if (_doLog)
+                System.err.println("INFO: Foreign Function & Memory engine not loaded, reason: '" + t + "'");
+            return null;
+        }
     }
     
      /** Tries to resolve the best type of CPU that we have an optimized jbigi-dll/so for.
@@ -183,6 +217,23 @@ public class NativeBigInteger extends BigInteger {
      */
     public native static double nativeDoubleValue(byte ba[]);
 
+    /**
+     * calculate (bases[i] ^ exponents[i]) % modulus for all i in one JNI call.
+     * All numbers are in the same representation as for {@link #nativeModPow} 
+     * and must be non-negative. Only in jbigi builds that include jbigi_batch.c
+     * (see src/native).
+     *
+     * @return the big endian twos complement representations of the results
+     */
+    public native static byte[][] nativeModPowBatch(byte bases[][], byte exponents[][], byte modulus[]);
+
+    /**
+     * calculate prod{bases[i] ^ exponents[i]} % modulus in one JNI call. Same
+     * conventions as {@link #nativeModPowBatch}. From three terms on, the 
+     * exponents are scanned together (Straus) so the squarings are shared.
+     */
+    public native static byte[] nativeMultiExp(byte bases[][], byte exponents[][], byte modulus[]);
+
     private byte[] cachedBa;
 
     public NativeBigInteger(byte[] val) {
@@ -218,11 +269,23 @@ public class NativeBigInteger extends BigInteger {
     }
 
     public BigInteger modPow(BigInteger exponent, BigInteger m) {
-        if (_nativeOk)
+        ModPowEngine engine = getEngine(operationClass(exponent, m));
+        if (engine == _foreign && !(m.testBit(0) && exponent.signum() >= 0 
+                                    && signum() >= 0 && compareTo(m) < 0))
+            engine = _nativeOk ? JNI_ENGINE : JAVA_ENGINE;
+        if (engine == JAVA_ENGINE)
+            return super.modPow(exponent, m);
+        else if (engine == JNI_ENGINE)
             return new NativeBigInteger(nativeModPow(toByteArray(), exponent.toByteArray(), m.toByteArray()));
         else
-            return super.modPow(exponent, m);
+            return new NativeBigInteger(engine.modPow(this, exponent, m));
     }
+
+    /** BigInteger.modPow, bypassing the engine selection */
+    private BigInteger javaModPow(BigInteger exponent, BigInteger m) {
+        return super.modPow(exponent, m);
+    }
+
     public byte[] toByteArray(){
         if(cachedBa == null) //Since we are immutable it is safe to never update the cached ba after it has initially been generated
             cachedBa = super.toByteArray();
@@ -242,6 +305,254 @@ public class NativeBigInteger extends BigInteger {
     public static boolean isNative(){
         return _nativeOk;
     }
+
+    /**
+     * @return True iff {@link #modPow(BigInteger[], BigInteger[], BigInteger)} and 
+     *         {@link #multiExp} go to native code in a single call per batch for 
+     *         full length exponents
+     */
+    public static boolean isNativeBatch(){
+        return isNativeBatch(FULL_EXPONENT);
+    }
+
+    /**
+     * @return True iff the batch methods go to native code in a single call 
+     *         for exponents of the given operation class. Only the JNI library
+     *         has a native multi-exponentiation; the FFM engine would do one
+     *         mpz_powm per base, which is slower than a Java multi-exponentiation.
+     */
+    public static boolean isNativeBatch(int operationClass){
+        return _batchOk && getEngine(operationClass) == JNI_ENGINE;
+    }
+
+    /**
+     * @return the Foreign Function &amp; Memory engine, or null if it is not loaded
+     */
+    public static ModPowEngine getForeignEngine(){
+        return _foreign;
+    }
+
+    /** operation class of exponents longer than half the modulus, e.g. in a safe prime group */
+    public static final int FULL_EXPONENT = 0;
+    /** operation class of exponents of at most half the modulus, e.g. in a Schnorr group */
+    public static final int SHORT_EXPONENT = 1;
+
+    /**
+     * @return the operation class of exponent e modulo m, see {@link #setEngine}
+     */
+    public static int operationClass(BigInteger e, BigInteger m) {
+        return e.bitLength() > m.bitLength() / 2 ? FULL_EXPONENT : SHORT_EXPONENT;
+    }
+
+    /** BigInteger.modPow. Always available. */
+    public static final ModPowEngine JAVA_ENGINE = new ModPowEngine() {
+        public String getName() {
+            return "java";
+        }
+        public BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger m) {
+            if (base instanceof NativeBigInteger)
+                return ((NativeBigInteger)base).javaModPow(exponent, m);
+            return base.modPow(exponent, m);
+        }
+        public BigInteger[] modPow(BigInteger[] bases, BigInteger[] exponents, BigInteger m) {
+            BigInteger[] r = new BigInteger[bases.length];
+            for (int i = 0; i < bases.length; i++)
+                r[i] = modPow(bases[i], exponents[i], m);
+            return r;
+        }
+    };
+
+    /** jbigi's nativeModPow, and nativeModPowBatch if the library has it. Only usable if {@link #isNative}. */
+    public static final ModPowEngine JNI_ENGINE = new ModPowEngine() {
+        public String getName() {
+            return _batchOk ? "jni-batch" : "jni";
+        }
+        public BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger m) {
+            return new NativeBigInteger(nativeModPow(base.toByteArray(), exponent.toByteArray(), 
+                                                     modulusBytes(m)));
+        }
+        public BigInteger[] modPow(BigInteger[] bases, BigInteger[] exponents, BigInteger m) {
+            int n = bases.length;
+            byte[] mb = modulusBytes(m);
+            byte[][] bb = new byte[n][];
+            byte[][] eb = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                bb[i] = bases[i].toByteArray();
+                eb[i] = exponents[i].toByteArray();
+            }
+            BigInteger[] result = new BigInteger[n];
+            if (_batchOk) {
+                byte[][] rb = nativeModPowBatch(bb, eb, mb);
+                for (int i = 0; i < n; i++)
+                    result[i] = new NativeBigInteger(rb[i]);
+            } else {
+                for (int i = 0; i < n; i++)
+                    result[i] = new NativeBigInteger(nativeModPow(bb[i], eb[i], mb));
+            }
+            return result;
+        }
+    };
+
+    /** the engine chosen for each operation class, null for the default */
+    private static volatile ModPowEngine _fullEngine = null;
+    private static volatile ModPowEngine _shortEngine = null;
+
+    /**
+     * @return the engines that work on this host in order of preference 
+     *         without measuring: jni, ffm, java. The Foreign Function &amp; 
+     *         Memory engine has not been shown to beat JNI, so it is only 
+     *         the default when the native library is missing; 
+     *         p4p.crypto.Calibration may choose it after measuring.
+     */
+    public static ModPowEngine[] getEngines() {
+        java.util.List<ModPowEngine> engines = new java.util.ArrayList<ModPowEngine>();
+        if (_nativeOk)
+            engines.add(JNI_ENGINE);
+        if (_foreign != null)
+            engines.add(_foreign);
+        engines.add(JAVA_ENGINE);
+        return engines.toArray(new ModPowEngine[engines.size()]);
+    }
+
+    /**
+     * @return the engine used for the given operation class: the one set by 
+     *         {@link #setEngine}, or else the first of {@link #getEngines}
+     */
+    public static ModPowEngine getEngine(int operationClass) {
+        ModPowEngine engine = operationClass == SHORT_EXPONENT ? _shortEngine : _fullEngine;
+        if (engine != null)
+            return engine;
+        return _nativeOk ? JNI_ENGINE : _foreign != null ? _foreign : JAVA_ENGINE;
+    }
+
+    /**
+     * Use the given engine for one operation class, e.g. after measuring 
+     * them (see p4p.crypto.Calibration). null restores the default.
+     */
+    public static void setEngine(int operationClass, ModPowEngine engine) {
+        if (engine == JNI_ENGINE && !_nativeOk)
+            throw new IllegalArgumentException("The native library is not loaded!");
+        if (operationClass == SHORT_EXPONENT)
+            _shortEngine = engine;
+        else if (operationClass == FULL_EXPONENT)
+            _fullEngine = engine;
+        else
+            throw new IllegalArgumentException("Unknown operation class " + operationClass);
+    }
+
+    /**
+     * The loaded library may predate the batch entry points. Check that they 
+     * are there and work: 2^3 % 11 = 8.
+     */
+    private static boolean probeBatch() {
+        try {
+            byte[][] r = nativeModPowBatch(new byte[][] {{2}}, new byte[][] {{3}}, new byte[] {11});
+            return r.length == 1 && new BigInteger(r[0]).intValue() == 8
+                && new BigInteger(nativeMultiExp(new byte[][] {{2}, {3}}, new byte[][] {{3}, {2}}, 
+                                                 new byte[] {11})).intValue() == 6;
+        } catch (UnsatisfiedLinkError ule) {
+            if (_doLog)
+                System.err.println("INFO: Native BigInteger library has no batch entry points");
+            return false;
+        }
+    }
+
+    /** the last modulus passed to the batch methods and its byte array. p rarely changes. */
+    private static volatile Object[] _lastModulus = null;
+
+    private static byte[] modulusBytes(BigInteger m) {
+        Object[] last = _lastModulus;
+        if (last != null && last[0].equals(m))
+            return (byte[])last[1];
+        byte[] ba = m.toByteArray();
+        _lastModulus = new Object[] {m, ba};
+        return ba;
+    }
+
+    /**
+     * calculate (bases[i] ^ exponents[i]) % m for all i with the engine chosen 
+     * for the longest exponent. If the native library has the batch entry point 
+     * the whole batch is a single JNI call and the modulus is converted once. 
+     * With the Foreign Function &amp; Memory engine the modulus stays off-heap 
+     * and nothing is copied through JNI. Negative exponents are allowed.
+     */
+    public static BigInteger[] modPow(BigInteger[] bases, BigInteger[] exponents, BigInteger m) {
+        if (bases.length != exponents.length)
+            throw new IllegalArgumentException("Number of bases and exponents do not agree!");
+        int n = bases.length;
+        ModPowEngine engine = getEngine(operationClass(longest(exponents), m));
+        if (engine == _foreign && !m.testBit(0))
+            engine = _nativeOk ? JNI_ENGINE : JAVA_ENGINE;
+        if (engine == JAVA_ENGINE)
+            return JAVA_ENGINE.modPow(bases, exponents, m);
+
+        BigInteger[] bb = new BigInteger[n];
+        BigInteger[] eb = new BigInteger[n];
+        normalize(bases, exponents, m, bb, eb);
+        BigInteger[] result = engine.modPow(bb, eb, m);
+        if (engine != JNI_ENGINE) {
+            for (int i = 0; i < n; i++)
+                result[i] = new NativeBigInteger(result[i]);
+        }
+        return result;
+    }
+
+    /**
+     * calculate prod{bases[i] ^ exponents[i]} % m with a single JNI call if the 
+     * native library has the batch entry points. Otherwise multiplies the 
+     * results of {@link #modPow(BigInteger[], BigInteger[], BigInteger)}; callers 
+     * that have a faster pure Java method should check {@link #isNativeBatch} 
+     * first. Negative exponents are allowed.
+     */
+    public static BigInteger multiExp(BigInteger[] bases, BigInteger[] exponents, BigInteger m) {
+        if (bases.length != exponents.length)
+            throw new IllegalArgumentException("Number of bases and exponents do not agree!");
+        if (!_batchOk || getEngine(operationClass(longest(exponents), m)) != JNI_ENGINE) {
+            BigInteger[] r = modPow(bases, exponents, m);
+            BigInteger prod = BigInteger.ONE.mod(m);
+            for (int i = 0; i < r.length; i++)
+                prod = prod.multiply(r[i]).mod(m);
+            return prod;
+        }
+
+        int n = bases.length;
+        BigInteger[] b = new BigInteger[n];
+        BigInteger[] e = new BigInteger[n];
+        normalize(bases, exponents, m, b, e);
+        byte[][] bb = new byte[n][];
+        byte[][] eb = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            bb[i] = b[i].toByteArray();
+            eb[i] = e[i].toByteArray();
+        }
+        return new NativeBigInteger(nativeMultiExp(bb, eb, modulusBytes(m)));
+    }
+
+    /**
+     * Makes the exponents non-negative (by inverting the base) and reduces 
+     * the bases mod m, as GMP expects.
+     */
+    private static void normalize(BigInteger[] bases, BigInteger[] exponents, BigInteger m,
+                                  BigInteger[] b, BigInteger[] e) {
+        for (int i = 0; i < bases.length; i++) {
+            b[i] = bases[i];
+            e[i] = exponents[i];
+            if (e[i].signum() < 0) {
+                b[i] = b[i].modInverse(m);
+                e[i] = e[i].negate();
+            } else if (b[i].signum() < 0 || b[i].compareTo(m) >= 0)
+                b[i] = b[i].mod(m);
+        }
+    }
+
+    private static BigInteger longest(BigInteger[] exponents) {
+        BigInteger longest = BigInteger.ZERO;
+        for (int i = 0; i < exponents.length; i++) {
+            if (exponents[i].bitLength() > longest.bitLength())
+                longest = exponents[i];
+        }
+        return longest;
+    }
  
     /**
      * <p>Compare the BigInteger.modPow/doubleValue vs the NativeBigInteger.modPow/doubleValue of some 
@@ -252,6 +563,7 @@ public class NativeBigInteger extends BigInteger {
     public static void main(String args[]) {
         runModPowTest(100);
         runDoubleValueTest(100);
+        runBatchTest(100);
     }
 
     /* the sample numbers are elG generator/prime so we can test with reasonable numbers */
@@ -322,6 +634,45 @@ public class NativeBigInteger extends BigInteger {
         }
     }
     
+    private static void runBatchTest(int numRuns) {
+        SecureRandom rand = new SecureRandom();
+        BigInteger p = new BigInteger(_samplePrime);
+        BigInteger[] bases = new BigInteger[numRuns];
+        BigInteger[] exps = new BigInteger[numRuns];
+        for (int i = 0; i < numRuns; i++) {
+            bases[i] = new BigInteger(2040, rand);
+            exps[i] = new BigInteger(256, rand);
+            if (i % 10 == 0)
+                exps[i] = exps[i].negate();
+        }
+
+        long start = System.currentTimeMillis();
+        BigInteger[] r = modPow(bases, exps, p);
+        BigInteger prod = multiExp(bases, exps, p);
+        long batchTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        BigInteger jprod = BigInteger.ONE;
+        int errors = 0;
+        for (int i = 0; i < numRuns; i++) {
+            BigInteger jval = bases[i].modPow(exps[i], p);
+            if (!jval.equals(r[i]))
+                errors++;
+            jprod = jprod.multiply(jval).mod(p);
+        }
+        long javaTime = System.currentTimeMillis() - start;
+        if (!jprod.equals(prod))
+            errors++;
+
+        if (errors == 0)
+            System.out.println("INFO: batch of " + numRuns + " complete without any errors");
+        else
+            System.err.println("ERROR: " + errors + " batch results differ from java");
+        System.out.println("batch run time (" + getEngine(SHORT_EXPONENT).getName() 
+                           + "): \t" + batchTime + "ms");
+        System.out.println("java run time:   \t" + javaTime + "ms");
+    }
+    
     private static void runDoubleValueTest(int numRuns) {
         System.out.println("DEBUG: Warming up the random number generator...");
         SecureRandom rand = new SecureRandom();
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Modular multiplication with Barrett reduction for a fixed modulus. 
+ * <p>
+ * <code>BigInteger.mod</code> does a full long division on every call. When
+ * the modulus never changes (our p), we can precompute 
+ * mu = floor(2^(2k)/m) once and replace the division with two 
+ * multiplications and a couple of subtractions. See
+ * <p>
+ *    <i>Alfred J. Menezes, Paul C. van Oorschot and Scott A. Vanstone,
+ *    Handbook of Applied Cryptography, CRC Press, 1996, Algorithm 14.42.</i>
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+
+public final class Barrett {
+    private final BigInteger m;
+    private final BigInteger mu;
+    private final int k;
+    
+    public Barrett(BigInteger modulus) {
+        if(modulus.signum() <= 0)
+            throw new IllegalArgumentException("Modulus must be positive!");
+        
+        this.m = modulus;
+        this.k = modulus.bitLength();
+        this.mu = BigInteger.ONE.shiftLeft(2*k).divide(modulus);
+    }
+
+    public BigInteger getModulus() {
+        return m;
+    }
+    
+    /**
+     * Reduces x modulo m. x must be in [0, m^2).
+     */
+    public BigInteger reduce(BigInteger x) {
+        if(x.bitLength() <= k) 
+            return x.compareTo(m) >= 0 ? x.subtract(m) : x;
+        
+        BigInteger q3 = x.shiftRight(k-1).multiply(mu).shiftRight(k+1);
+        BigInteger r = x.subtract(q3.multiply(m));
+        while(r.compareTo(m) >= 0)   // At most twice
+            r = r.subtract(m);
+        
+        return r;
+    }
+    
+    /**
+     * Computes a*b mod m. Both a and b must be in [0, m).
+     */
+    public BigInteger mulMod(BigInteger a, BigInteger b) {
+        return reduce(a.multiply(b));
+    }
+    
+    /**
+     * Computes a^2 mod m. a must be in [0, m).
+     */
+    public BigInteger squareMod(BigInteger a) {
+        return reduce(a.multiply(a));
+    }
+}
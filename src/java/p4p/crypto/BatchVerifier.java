@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import p4p.util.Util;
+import p4p.util.P4PParameters;
+
+/**
+ * 
+ * Batch verification of the exponentiation equations of many ZKPs. Each 
+ * verification equation
+ * <p>
+ *     prod{a_i^x_i} = prod{b_j^y_j} mod p
+ * <p>
+ * is raised to a small random power d (a {@link #getSecurityBits()}-bit 
+ * number chosen independently for each equation) and all the equations 
+ * are multiplied together. Exponents of the same base are added up so that
+ * e.g. all the g and h terms of a whole round collapse into one fixed-base
+ * exponentiation each, and the remaining bases are evaluated with one 
+ * {@link Group#multiExp multi-exponentiation} per side. The technique is the 
+ * small exponent test from
+ * <p>
+ *    <i>Mihir Bellare, Juan A. Garay and Tal Rabin, Fast Batch Verification 
+ *    for Modular Exponentiation and Digital Signatures, EUROCRYPT 98, 
+ *    Lecture Notes in Computer Science, Volume 1403, 1998, Page 236.</i>
+ * <p>
+ * If all the equations hold, so does the product. If any of them does not,
+ * the product holds with probability at most 2^-securityBits, provided all 
+ * the bases are in the order q subgroup. The equations are contributed by the
+ * <code>batchVerify</code> methods of the commitment classes, which also 
+ * check that the prover-supplied elements are group elements with 
+ * {@link #isGroupElement}. The batch is evaluated by {@link #verify}. 
+ * Batches can be combined with {@link #add} e.g. to verify all users of a 
+ * round at once and, if that fails, to find the bad ones by bisection.
+ * <p>
+ * This class is not thread-safe.
+ *
+ */
+
+public class BatchVerifier extends P4PParameters {
+    private static int securityBits = 
+        Integer.getInteger("p4p.batch.securityBits", 64).intValue();
+    
+    /**
+     * base -> accumulated exponent, for each side of the equation.
+     */
+    private HashMap<BigInteger, BigInteger> lhs = 
+        new HashMap<BigInteger, BigInteger>();
+    private HashMap<BigInteger, BigInteger> rhs = 
+        new HashMap<BigInteger, BigInteger>();
+    
+    /**
+     * The elements already known to be in the group.
+     */
+    private HashSet<BigInteger> members = new HashSet<BigInteger>();
+    
+    private int nEquations = 0;
+    
+    public BatchVerifier() {}
+    
+    public static int getSecurityBits() {
+        return securityBits;
+    }
+    
+    /**
+     * Returns the number of equations in this batch.
+     */
+    public int size() {
+        return nEquations;
+    }
+    
+    /**
+     * Adds the equation prod{a[i]^x[i]} = prod{b[j]^y[j]} mod p to the batch.
+     * All the bases must be elements of the order q subgroup.
+     */
+    public void addEquation(BigInteger[] a, BigInteger[] x, 
+                            BigInteger[] b, BigInteger[] y) {
+        if(a.length != x.length || b.length != y.length)
+            throw new IllegalArgumentException("Number of bases and exponents" 
+                                               + " do not agree!");
+        BigInteger d;
+        do {
+            d = new BigInteger(securityBits, Util.rand);
+        } while(d.signum() == 0);
+        
+        for(int i = 0; i < a.length; i++)
+            accumulate(lhs, a[i], d.multiply(x[i]));
+        for(int j = 0; j < b.length; j++)
+            accumulate(rhs, b[j], d.multiply(y[j]));
+        nEquations++;
+    }
+    
+    private void accumulate(HashMap<BigInteger, BigInteger> side, 
+                            BigInteger base, BigInteger e) {
+        BigInteger old = side.get(base);
+        if(old != null)
+            e = e.add(old);
+        if(e.signum() < 0 || e.compareTo(q) >= 0)
+            e = e.mod(q);
+        side.put(base, e);
+    }
+    
+    /**
+     * Adds all the equations in <code>other</code> to this batch.
+     */
+    public void add(BatchVerifier other) {
+        Iterator<Map.Entry<BigInteger, BigInteger>> it = 
+            other.lhs.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<BigInteger, BigInteger> e = it.next();
+            accumulate(lhs, e.getKey(), e.getValue());
+        }
+        it = other.rhs.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<BigInteger, BigInteger> e = it.next();
+            accumulate(rhs, e.getKey(), e.getValue());
+        }
+        members.addAll(other.members);
+        nEquations += other.nEquations;
+    }
+    
+    /**
+     * Checks that x is in the order q group. See {@link Group#isElement}. 
+     * Results are remembered so each element is only checked once per batch.
+     */
+    public boolean isGroupElement(BigInteger x) {
+        if(members.contains(x))
+            return true;
+        boolean ok = group.isElement(x);
+        if(ok)
+            members.add(x);
+        return ok;
+    }
+    
+    /**
+     * Evaluates the batch. 
+     * 
+     * @return <code>true</code> if all the equations in the batch (very 
+     *         likely) hold.
+     */
+    public boolean verify() {
+        // Bases that appear on both sides only need to be exponentiated once:
+        HashMap<BigInteger, BigInteger> left = 
+            new HashMap<BigInteger, BigInteger>(lhs);
+        HashMap<BigInteger, BigInteger> right = 
+            new HashMap<BigInteger, BigInteger>();
+        Iterator<Map.Entry<BigInteger, BigInteger>> it = 
+            rhs.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<BigInteger, BigInteger> e = it.next();
+            BigInteger x = left.get(e.getKey());
+            if(x == null)
+                right.put(e.getKey(), e.getValue());
+            else
+                left.put(e.getKey(), x.subtract(e.getValue()).mod(q));
+        }
+        
+        return evaluate(left).equals(evaluate(right));
+    }
+    
+    /**
+     * Computes prod{base^exponent} over the given map. The bases with short 
+     * (i.e. the random multiplier only) exponents are evaluated separately 
+     * so that they don't pay for the squarings of the long ones.
+     */
+    private BigInteger evaluate(HashMap<BigInteger, BigInteger> side) {
+        int nShort = 0;
+        Iterator<BigInteger> it = side.values().iterator();
+        while(it.hasNext()) {
+            if(it.next().bitLength() <= 2*securityBits)
+                nShort++;
+        }
+        
+        BigInteger[] sb = new BigInteger[nShort];
+        BigInteger[] se = new BigInteger[nShort];
+        BigInteger[] lb = new BigInteger[side.size() - nShort];
+        BigInteger[] le = new BigInteger[side.size() - nShort];
+        int i = 0;
+        int j = 0;
+        Iterator<Map.Entry<BigInteger, BigInteger>> eit = 
+            side.entrySet().iterator();
+        while(eit.hasNext()) {
+            Map.Entry<BigInteger, BigInteger> e = eit.next();
+            if(e.getValue().bitLength() <= 2*securityBits) {
+                sb[i] = e.getKey();
+                se[i++] = e.getValue();
+            }
+            else {
+                lb[j] = e.getKey();
+                le[j++] = e.getValue();
+            }
+        }
+        
+        return group.mul(group.multiExp(sb, se), group.multiExp(lb, le));
+    }
+}
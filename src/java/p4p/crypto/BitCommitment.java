@@ -77,7 +77,7 @@ public class BitCommitment extends Commitment {
             throw new IllegalArgumentException("BitCommitment.commit can only" 
                                        + "be invoked with 0 or 1!");
         
-        return super.commit(new BigInteger(String.valueOf(val)));
+        return super.commit(BigInteger.valueOf(val));
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
@@ -87,7 +87,7 @@ public class BitCommitment extends Commitment {
             throw new IllegalArgumentException("BitCommitment.commit can only" 
                                        + "be invoked with 0 or 1!");
         
-        return super.commit(new BigInteger(String.valueOf(val)), r);
+        return super.commit(BigInteger.valueOf(val), r);
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
@@ -106,6 +106,34 @@ public class BitCommitment extends Commitment {
         return commit(val ? 1 : 0, r);
     }
     
+    /**
+     * Commits to a bit without changing the state of this object. See 
+     * {@link Commitment#open(BigInteger)}.
+     */
+    public CommitmentScheme.Opening open(BigInteger val) {
+        checkBit(val);
+        return super.open(val);
+    }
+    
+    public CommitmentScheme.Opening open(BigInteger val, BigInteger r) {
+        checkBit(val);
+        return super.open(val, r);
+    }
+    
+    public CommitmentScheme.Opening open(boolean val) {
+        return open(val ? BigInteger.ONE : BigInteger.ZERO);
+    }
+    
+    public CommitmentScheme.Opening open(boolean val, BigInteger r) {
+        return open(val ? BigInteger.ONE : BigInteger.ZERO, r);
+    }
+    
+    private static void checkBit(BigInteger val) {
+        if(!val.equals(BigInteger.ZERO) && !val.equals(BigInteger.ONE))
+            throw new IllegalArgumentException("BitCommitment.open can only" 
+                                               + "be invoked with 0 or 1!");
+    }
+    
     // The verifier:
     /**
      * Verify if the given bit <code>val</code> is contained in the commitment
@@ -124,10 +152,31 @@ public class BitCommitment extends Commitment {
         proof.construct();
         return proof;
     }
+    
+    /**
+     * Constructs the proof for the given opening. This only reads the 
+     * parameters of this commitment so several threads can use the same 
+     * object.
+     */
+    public BitCommitmentProof getProof(CommitmentScheme.Opening opening) {
+        return getProof(opening, Transcript.BIT);
+    }
+    
+    /**
+     * Constructs the proof as part of a larger proof which uses 
+     * <code>label</code> for domain separation. It must be verified with
+     * the same label.
+     */
+    BitCommitmentProof getProof(CommitmentScheme.Opening opening, 
+                                String label) {
+        BitCommitmentProof proof = new BitCommitmentProof();
+        proof.construct(opening.getValue(), opening.getRandomness(), label);
+        return proof;
+    }
 
     // f(r) = h^r. The onw way group homomorphism
     public BigInteger f(BigInteger i){
-        return h.modPow(i, p);
+        return hPow(i);
     }
     
     
@@ -147,9 +196,14 @@ public class BitCommitment extends Commitment {
             if(val == null)
                 throw new RuntimeException("Must commit to a bit first" 
                                            + "before constructing the proof!");
-            
+            construct(val, r, Transcript.BIT);
+        }
+        
+        // Construct the ZKP that the commitment to val with randomness r 
+        // contains a bit
+        void construct(BigInteger val, BigInteger r, String label) {
             commitment = new BigInteger[3];
-            commitment[0] = new NativeBigInteger(commit(val, r)); 
+            commitment[0] = new NativeBigInteger(computeCommitment(val, r)); 
             /**
              * The first element is the commitment itself. Note we must use our 
              * own randomness here since we already committed to a bit. 
@@ -174,27 +228,16 @@ public class BitCommitment extends Commitment {
                 m0 = f(v);
                 
                 /**
-                 * Note: NativeBigInteger seems to be unable to handle negative 
-                 * exponents properly. We should avoid using 
-                 * modPow(e1.negate(), p) before we fix the implementation.
+                 * m1 = f(z1) * c ^ (-e1) * g ^ e1. Since c = h^r, this is
+                 * g^e1 * h^(z1 - r*e1) which needs no inversion.
                  */
-                BigInteger t = (commitment[0].modInverse(p)).modPow(e1, p); 
-                // c^ -e1 
-                t = t.multiply(g.modPow(e1, p));
-                m1 = (t.multiply(f(z1))).mod(p); // f(z1) * c ^ (-e1) * g ^ e1
+                m1 = pow2(g, e1, h, z1.subtract(r.multiply(e1)).mod(q));
                 
                 commitment[1] = m0;
                 commitment[2] = m1;
                 // Get challenge which should be a hash of the commitment:
-                BigInteger s = null;
-                try {
-                    s = Util.secureHash(commitment, q);
-                    challenge[0] = s;
-                }
-                catch(GeneralSecurityException e) {
-                    System.err.println("Can't compute hash!");
-                    e.printStackTrace();
-                }
+                BigInteger s = Transcript.hash(label, commitment, q);
+                challenge[0] = s;
                 // Compute response:
                 e0 = (s.subtract(e1)).mod(q); //e0 = s - e1;
                 z0 = v.add(e0.multiply(r)).mod(q); // v + e0 * r;
@@ -205,21 +248,15 @@ public class BitCommitment extends Commitment {
                 
                 // calculate m0, m1:
                 m1 = f(v);
-                m0 = f(z0).multiply((commitment[0].modInverse(p)).modPow(e0, p)); 
-                // f(z0) * c ^ (-e0)
+                m0 = pow2(g, e0.negate().mod(q), 
+                          h, z0.subtract(r.multiply(e0)).mod(q));
+                // f(z0) * c ^ (-e0) = g^(-e0) * h^(z0 - r*e0) as c = g*h^r
                 
                 commitment[1] = m0;
                 commitment[2] = m1;
                 // Get challenge which should be a hash of the commitment:
-                BigInteger s = null;
-                try {
-                    s = Util.secureHash(commitment, q);
-                    challenge[0] = s;
-                }
-                catch(GeneralSecurityException e) {
-                    System.err.println("Can't compute hash!");
-                    e.printStackTrace();
-                }
+                BigInteger s = Transcript.hash(label, commitment, q);
+                challenge[0] = s;
                 e1 = s.subtract(e0).mod(q); //e1 = s - e0;
                 z1 = v.add(e1.multiply(r)).mod(q); // v + e1 * r;
             }
@@ -243,6 +280,13 @@ public class BitCommitment extends Commitment {
      */
 
     public boolean verify(Proof proof) {
+        return verify(proof, Transcript.BIT);
+    }
+    
+    /**
+     * Verifies a proof constructed with the given domain separation label.
+     */
+    boolean verify(Proof proof, String label) {
         BigInteger[] c = proof.getCommitment();
         BigInteger[] s = proof.getChallenge();
         BigInteger[] r = proof.getResponse();
@@ -250,29 +294,70 @@ public class BitCommitment extends Commitment {
         if(c.length != 3 || s.length != 1 || r.length != 4)
             return false;
         
-        return verify(c[0], c[1], c[2], s[0], r[0], r[1], r[2], r[3]);
+        if(!group.isElement(c[0]) || !group.isElement(c[1])
+           || !group.isElement(c[2])) {
+            System.out.println("Commitment is not a group element!");
+            return false;
+        }
+        
+        return verify(label, c[0], c[1], c[2], s[0], r[0], r[1], r[2], r[3]);
     }
     
 
-    private boolean verify(BigInteger c, BigInteger m0, BigInteger m1, 
-                           BigInteger s, BigInteger e0, BigInteger e1, 
-                           BigInteger z0, BigInteger z1) {
-
+    private boolean verify(String label, BigInteger c, BigInteger m0, 
+                           BigInteger m1, BigInteger s, BigInteger e0, 
+                           BigInteger e1, BigInteger z0, BigInteger z1) {
+        if(!verifyChallenge(label, c, m0, m1, s, e0, e1))
+            return false;
+        
+        // Pass 2:
+        BigInteger vv = group.mul(m0, group.exp(c, e0));  // m0*c ^ e0
+        if(!f(z0).equals(vv)) {
+            System.out.println("Verification failed 2");
+            return false;
+        }
+        
+        // Pass 3. f(z1) = m1 * (c/g)^e1, multiplied by g^e1 so that no 
+        // inversion is needed:
+        vv = group.mul(m1, group.exp(c, e1));  // m1 * c^e1
+        BigInteger ff = pow2(h, z1, g, e1);     // f(z1) * g^e1
+        if(!ff.equals(vv)) {
+            System.out.println("Verification failed 3. f(z1)*g^e1 = " + ff 
+                               + ", vv = " + vv);
+            return false;
+            
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Checks the hash and pass 1, i.e. the parts of the verification that 
+     * need no exponentiation.
+     */
+    private boolean verifyChallenge(String label, BigInteger c, 
+                                    BigInteger m0, BigInteger m1,
+                                    BigInteger s, BigInteger e0, 
+                                    BigInteger e1) {
         // Also need to verify the hash
         BigInteger[] msg = new BigInteger[3];
         msg[0] = c;
         msg[1] = m0;
         msg[2] = m1;
         
+        // The callers check that the commitments are group elements. In case
+        // one of them is still too wide for the transcript, reject the proof
+        // rather than throwing at the verifier:
+        BigInteger hash;
         try {
-            if(!s.equals(Util.secureHash(msg, q))) {
-                System.out.println("Challenge is not equal to the hash!");
-                return false;
-            }
+            hash = Transcript.hash(label, msg, q);
         }
-        catch(GeneralSecurityException e) {
-            System.out.println("GeneralSecurityException!");
-            e.printStackTrace();
+        catch(IllegalArgumentException e) {
+            System.out.println("Bad message: " + e.getMessage());
+            return false;
+        }
+        if(!s.equals(hash)) {
+            System.out.println("Challenge is not equal to the hash!");
             return false;
         }
         
@@ -282,26 +367,52 @@ public class BitCommitment extends Commitment {
             return false;
         }
         
-        // Pass 2:
-        BigInteger vv = (m0.multiply(c.modPow(e0, p))).mod(p);  // m0*c ^ e0
-        if(!f(z0).equals(vv)) {
-            System.out.println("Verification failed 2");
+        return true;
+    }
+    
+    /**
+     * Like {@link #verify(Proof)} but only performs the checks that need no
+     * exponentiation. Passes 2 and 3, i.e.
+     * <p>
+     *     h^z0 = m0*c^e0 and h^z1*g^e1 = m1*c^e1 mod p
+     * <p>
+     * are added to <code>batch</code> and will be checked when the batch is 
+     * verified.
+     *
+     * @return <code>false</code> if the proof is already known to be invalid.
+     */
+    public boolean batchVerify(Proof proof, BatchVerifier batch) {
+        return batchVerify(proof, batch, Transcript.BIT);
+    }
+    
+    /**
+     * Like {@link #batchVerify(Proof, BatchVerifier)} for a proof 
+     * constructed with the given domain separation label.
+     */
+    boolean batchVerify(Proof proof, BatchVerifier batch, String label) {
+        BigInteger[] c = proof.getCommitment();
+        BigInteger[] s = proof.getChallenge();
+        BigInteger[] r = proof.getResponse();
+        
+        if(c.length != 3 || s.length != 1 || r.length != 4)
             return false;
-        }
         
-        // Pass 3;
-        //NativeBigInteger nvv = new NativeBigInteger(bit_c.multiply(g.modInverse(p)));
-        NativeBigInteger nvv = 
-            new NativeBigInteger(c.multiply(g.modInverse(p)).mod(p));
-        vv = nvv.modPow(e1, p); //m1 * (c/y)^e1
-        vv = (vv.multiply(m1)).mod(p);
-        if(!f(z1).equals(vv)) {
-            System.out.println("Verification failed 3. f(z1) = " + f(z1) 
-                               + ", vv = " + vv);
+        if(!batch.isGroupElement(c[0]) || !batch.isGroupElement(c[1])
+           || !batch.isGroupElement(c[2])) {
+            System.out.println("Commitment is not a group element!");
             return false;
-            
         }
         
+        if(!verifyChallenge(label, c[0], c[1], c[2], s[0], r[0], r[1]))
+            return false;
+        
+        batch.addEquation(new BigInteger[] {h}, new BigInteger[] {r[2]}, 
+                          new BigInteger[] {c[1], c[0]}, 
+                          new BigInteger[] {BigInteger.ONE, r[0]});
+        batch.addEquation(new BigInteger[] {h, g}, 
+                          new BigInteger[] {r[3], r[1]}, 
+                          new BigInteger[] {c[2], c[0]}, 
+                          new BigInteger[] {BigInteger.ONE, r[1]});
         return true;
     }
     
@@ -412,6 +523,24 @@ public class BitCommitment extends Commitment {
             else
                 System.out.println(" passed");
             verifierWatch.pause();
+            
+            // A commitment outside the group must be rejected before it is
+            // used (or hashed):
+            BigInteger[] c1 = proof.getCommitment();
+            BigInteger m0 = c1[1];
+            c1[1] = p;    // Not in Z_p^*
+            if(verifier.verify(proof))
+                System.out.println("ZKP passed for test " + j 
+                                   + " with a non-member. Should have failed.");
+            // Nor may one too wide for the transcript throw:
+            c1[1] = BigInteger.ONE.shiftLeft(4000);
+            BatchVerifier batch = new BatchVerifier();
+            if(verifier.verify(proof) 
+               || (verifier.batchVerify(proof, batch) && batch.verify()))
+                System.out.println("ZKP passed for test " + j 
+                                   + " with an oversized commitment. " 
+                                   + "Should have failed.");
+            c1[1] = m0;
         }
         long end = System.currentTimeMillis();
         verifierWatch.stop();
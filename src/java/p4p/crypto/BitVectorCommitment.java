@@ -26,10 +26,44 @@ public class BitVectorCommitment extends VectorCommitment {
     // The bit vector
     boolean[] bitVec = null;
     
+    // The bit planes and randomness of the last commitColumns call:
+    long[][] planes = null;
+    BigInteger[] columnRandomness = null;
+    
+    /**
+     * The window width (in generators) over which commitColumns shares
+     * products of generators among the columns.
+     */
+    private static final int COLUMN_WINDOW = 8;
+    
+    /**
+     * The smallest dimension for which the shared {@link SubsetProductTable}
+     * is used. Below it, the few multiplications saved don't pay for 
+     * looking the table up.
+     */
+    private static final int MIN_TABLE_DIMENSION = 
+        Integer.getInteger("p4p.subsetTable.minDimension", 32).intValue();
+    
+    private SubsetProductTable products = null;
+    private boolean productsRequested = false;
+    
     public BitVectorCommitment(NativeBigInteger g[], NativeBigInteger h) {
         super(g, h);
     }
     
+    /**
+     * Returns the shared subset product table for g, or null if the 
+     * dimension is too small or there is no room for one.
+     */
+    private SubsetProductTable products() {
+        if(!productsRequested) {
+            if(N >= MIN_TABLE_DIMENSION)
+                products = SubsetProductTable.getInstance(group, g);
+            productsRequested = true;
+        }
+        return products;
+    }
+    
     /**
      * Override this method to prevent users from using a BitVectorCommitment 
      * object to commit to non-bit vectors. Since all commit calls in 
@@ -40,17 +74,15 @@ public class BitVectorCommitment extends VectorCommitment {
         if(vals.length != N) 
             throw new RuntimeException("Incorrect dimension!");
         
-        BigInteger c = h.modPow(r, p);
+        boolean[] bits = new boolean[N];
         for(int i = 0; i < N; i++) {
-            if(vals[i].equals(BigInteger.ZERO))
-                continue;
-            else if(vals[i].equals(BigInteger.ONE))
-                c = c.multiply(g[i]).mod(p);
-            else
+            if(vals[i].equals(BigInteger.ONE))
+                bits[i] = true;
+            else if(!vals[i].equals(BigInteger.ZERO))
                 throw new RuntimeException("Can only commit to bits!");
         }
         
-        return c;
+        return group.mul(hPow(r), product(bits));
     }
     
     /**
@@ -76,18 +108,10 @@ public class BitVectorCommitment extends VectorCommitment {
         
         bitVec = new boolean[N];   // Number of rows is the size of the bit vector
         
-        BigInteger c = h.modPow(r, p);
-        for(int i = 0; i < N; i++) {
-            if((bits[i][byteIndex] & (1<<offset)) > 0) {
-                bitVec[i] = true;   // This bit is 1
-                c = c.multiply(g[i]).mod(p);
-            }
-            else
-                bitVec[i] = false;
-            // Nothing to do if the bit is 0
-        }
+        for(int i = 0; i < N; i++)
+            bitVec[i] = (bits[i][byteIndex] & (1<<offset)) > 0;
         
-        return c;
+        return group.mul(hPow(r), product(bitVec));
     }
     
     
@@ -99,21 +123,138 @@ public class BitVectorCommitment extends VectorCommitment {
      */
     
     public BigInteger commit(long[] vals, int col) {
-        boolean[] bits = new boolean[vals.length];
+        r = Util.randomBigInteger(q);
+        return commit(vals, col, r);
+    }
+    
+    /**
+     * Commits to the bit vectors of all the columns 0, ..., nBits - 1 of 
+     * the given longs at once, with fresh randomness. Returns the nBits 
+     * commitments; the randomness is returned by 
+     * {@link #getColumnRandomness}. See 
+     * {@link #commitColumns(long[], int, BigInteger[])}.
+     */
+    public BigInteger[] commitColumns(long[] vals, int nBits) {
+        BigInteger[] r = new BigInteger[nBits];
+        for(int col = 0; col < nBits; col++)
+            r[col] = Util.randomBigInteger(q);
+        return commitColumns(vals, nBits, r);
+    }
+    
+    /**
+     * Commits to the bit vectors of all the columns 0, ..., nBits - 1 of 
+     * the given longs at once, using r[col] as the randomness of column col.
+     * The result is the same as calling {@link #commit(long[], int)} for 
+     * every column, but:
+     * <ul>
+     * <li> The longs are transposed into bit planes with word operations 
+     *      once ({@link Util#bitPlanes}) instead of testing every bit of 
+     *      every column.</li>
+     * <li> The generators are walked in windows. In each window the 
+     *      product of the generators selected by a column's bits is looked
+     *      up in a table that is filled in lazily and shared by all the 
+     *      columns, so a product that several columns need is only computed
+     *      once, and each column needs at most one multiplication per 
+     *      window instead of one per 1 bit. The table is the shared 
+     *      {@link SubsetProductTable} if there is one, or else a table of 
+     *      windows of 8 that lives only during this call.</li>
+     * </ul>
+     * Use {@link #getColumnProof} for the proofs.
+     */
+    public BigInteger[] commitColumns(long[] vals, int nBits, BigInteger[] r) {
+        if(vals.length != N) 
+            throw new RuntimeException("Incorrect dimension! N = " + N
+                                       + ", vector size = " + vals.length);
+        if(r.length < nBits)
+            throw new IllegalArgumentException("Need randomness for " + nBits 
+                                               + " columns!");
+        
+        planes = Util.bitPlanes(vals, nBits);
+        columnRandomness = new BigInteger[nBits];
+        BigInteger[] c = new BigInteger[nBits];
+        for(int col = 0; col < nBits; col++) {
+            columnRandomness[col] = r[col].mod(q);
+            c[col] = hPow(columnRandomness[col]);
+        }
         
-        for(int i = 0; i < vals.length; i++) {
-            String bs = Long.toBinaryString(vals[i]);
-            int len = bs.length();
-            if(len <= col)
-                bits[i] = false;   // It is a 0
-            else 
-                bits[i] = (bs.charAt(len-col-1) == '1');
+        SubsetProductTable t = products();
+        if(t != null) {
+            for(int col = 0; col < nBits; col++)
+                c[col] = group.mul(c[col], t.product(planes[col]));
+            return c;
         }
         
-        return commit(bits);
+        // No shared table. Share products within this call only:
+        int tableSize = 1<<COLUMN_WINDOW;
+        BigInteger[] products = new BigInteger[tableSize];
+        for(int start = 0; start < N; start += COLUMN_WINDOW) {
+            java.util.Arrays.fill(products, null);
+            for(int col = 0; col < nBits; col++) {
+                int mask = (int)(planes[col][start >>> 6] 
+                                 >>> (start & 63)) & (tableSize - 1);
+                if(mask != 0)
+                    c[col] = group.mul(c[col], product(products, start, mask));
+            }
+        }
+        
+        return c;
+    }
+    
+    /**
+     * Returns prod{g[start + j] : bit j of mask is set}, filling in the 
+     * products of the sub-masks it needs.
+     */
+    private BigInteger product(BigInteger[] products, int start, int mask) {
+        BigInteger p = products[mask];
+        if(p == null) {
+            int low = Integer.numberOfTrailingZeros(mask);
+            int rest = mask & (mask - 1);
+            p = rest == 0 ? g[start + low] 
+                : group.mul(product(products, start, rest), g[start + low]);
+            products[mask] = p;
+        }
+        return p;
+    }
+    
+    /**
+     * Returns the randomness used for each column by the last 
+     * {@link #commitColumns} call.
+     */
+    public BigInteger[] getColumnRandomness() {
+        return columnRandomness;
+    }
+    
+    /**
+     * Returns the ZKP that commitment col of the last {@link #commitColumns}
+     * call contains a bit vector. This also makes col the current bit vector
+     * and randomness, as if <code>commit(vals, col)</code> had been called.
+     */
+    public Proof getColumnProof(int col) {
+        if(planes == null || col < 0 || col >= planes.length)
+            throw new IllegalArgumentException("No column " + col + " committed!");
+        boolean[] bits = new boolean[N];
+        long[] plane = planes[col];
+        for(int i = 0; i < N; i++)
+            bits[i] = ((plane[i >>> 6] >>> (i & 63)) & 1) != 0;
+        bitVec = bits;
+        r = columnRandomness[col];
+        return getProof();
     }
     
     
+    /**
+     * Commit to the col-th bits of the given longs using the given 
+     * randomness.
+     */
+    public BigInteger commit(long[] vals, int col, BigInteger r) {
+        boolean[] bits = new boolean[vals.length];
+        if(col >= 0 && col < 64) {
+            for(int i = 0; i < vals.length; i++)
+                bits[i] = ((vals[i] >>> col) & 1) != 0;
+        }
+        return commit(bits, r);
+    }
+    
     /**
      * Commit to a bit vector.
      */
@@ -128,14 +269,24 @@ public class BitVectorCommitment extends VectorCommitment {
             throw new RuntimeException("Incorrect dimension! N = " + N
                                        + ", vector size = " + bits.length);
         bitVec = bits;
-        BigInteger c = h.modPow(r, p);
+        return group.mul(hPow(r), product(bits));
+    }
+    
+    /**
+     * Returns prod{g[i] : bits[i]}, using the shared subset product table 
+     * if there is one.
+     */
+    private BigInteger product(boolean[] bits) {
+        SubsetProductTable t = products();
+        if(t != null)
+            return t.product(bits);
+        
+        BigInteger c = group.identity();
         for(int i = 0; i < N; i++) {
-            if(bits[i]) {
-                c = c.multiply(g[i]).mod(p);
-            }
+            if(bits[i])
+                c = group.mul(c, g[i]);
             // Nothing to do if the bit is 0
         }
-        
         return c;
     }
     
@@ -205,7 +356,7 @@ public class BitVectorCommitment extends VectorCommitment {
         BitVectorCommitmentProof bvProof = (BitVectorCommitmentProof)proof;
         BitCommitment.BitCommitmentProof[] bitProofs = bvProof.getBitProofs();
         
-        BigInteger c = BigInteger.ONE;
+        BigInteger c = group.identity();
         BitCommitment bc;
         
         for(int i = 0; i < N; i++) {
@@ -213,7 +364,7 @@ public class BitVectorCommitment extends VectorCommitment {
             if(!bc.verify(bitProofs[i])) {
                 return false;
             }
-            c = c.multiply(bitProofs[i].getCommitment()[0]).mod(p);
+            c = group.mul(c, bitProofs[i].getCommitment()[0]);
             // The first element in the proof's commitment is the 
             // bit commitment itself,            
         }
@@ -340,6 +491,28 @@ public class BitVectorCommitment extends VectorCommitment {
                 System.out.println("ZKP failed for test " + i + ". Should have passed.");
             else
                 System.out.println(" passed");
+            
+            // All the columns of some longs at once:
+            System.out.print("Testing column commitments ...");
+            long[] vals = new long[N];
+            for(int j = 0; j < N; j++)
+                vals[j] = rand.nextLong() >>> rand.nextInt(64);
+            int nBits = 1 + rand.nextInt(64);
+            BigInteger[] cc = bvc.commitColumns(vals, nBits);
+            BigInteger[] rr = bvc.getColumnRandomness();
+            boolean ok = true;
+            for(int col = 0; col < nBits; col++) {
+                if(!cc[col].equals(bvc.commit(vals, col, rr[col])))
+                    ok = false;
+            }
+            int col = rand.nextInt(nBits);
+            if(!bvc.verify(bvc.getColumnProof(col)))
+                ok = false;
+            if(ok)
+                System.out.println(" passed");
+            else
+                System.out.println("Column commitments failed for test " + i 
+                                   + ". Should have passed.");
         }
         long end = System.currentTimeMillis();
         System.out.println("Total time: " + (end-start) + " ms. Average: " 
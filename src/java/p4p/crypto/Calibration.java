@@ -0,0 +1,495 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.i2p.util.ModPowEngine;
+import net.i2p.util.NativeBigInteger;
+
+import p4p.util.P4PParameters;
+
+/**
+ * Picks the fastest modular exponentiation engine for the group in use. 
+ * Whether jbigi (or GMP through the Foreign Function &amp; Memory API) beats
+ * <code>BigInteger.modPow</code> depends on the JVM, the jbigi build and 
+ * the operand sizes: recent JVMs have Montgomery multiplication intrinsics
+ * that sometimes win, while the JNI call overhead hurts short exponents 
+ * most. So instead of preferring native code whenever it loads, we time 
+ * each engine once for the modulus size in use and three operation classes:
+ * <ul>
+ * <li> full exponents, |e| = |p| (safe prime groups),</li>
+ * <li> short exponents, |e| = |q| &lt;= |p|/2 (Schnorr groups, challenges),</li>
+ * <li> fixed bases: the {@link FixedBaseExp} tables against the best engine
+ *      for |q|-bit exponents.</li>
+ * </ul>
+ * The winners are installed with {@link NativeBigInteger#setEngine} and 
+ * {@link FixedBaseExp#setEnabled}, and the measurements are kept in a 
+ * {@link Result} that can be logged (see {@link #getResult}).
+ * <p>
+ * Results are cached for the life of the JVM. If a file is given they are
+ * also saved to it so that later runs reuse them without measuring. The entries are keyed by |p|, 
+ * the three exponent lengths and the set of engines available, so a new 
+ * jbigi build or a JVM that can use the FFM engine is measured again. The
+ * file is <code>p4p.calibrate.file</code> if that is set (empty disables 
+ * saving), else the parameter file (<code>p4p.params.file</code>) with 
+ * ".calibration" appended. Without either nothing is saved. The time spent measuring is about 
+ * <code>p4p.calibrate.ms</code> (default 600) milliseconds. If only the 
+ * pure Java engine is available there is nothing to choose between and 
+ * nothing is measured. Set <code>p4p.calibrate</code> to false to keep 
+ * the default engines.
+ */
+
+public final class Calibration {
+    public static final boolean ENABLED = 
+        !"false".equalsIgnoreCase(System.getProperty("p4p.calibrate", "true"));
+    private static final long BUDGET_MS = 
+        Long.getLong("p4p.calibrate.ms", 600).longValue();
+    private static final String SUFFIX = ".calibration";
+    
+    /** Operation classes measured. The first two are NativeBigInteger's. */
+    public static final int FULL_EXPONENT = NativeBigInteger.FULL_EXPONENT;
+    public static final int SHORT_EXPONENT = NativeBigInteger.SHORT_EXPONENT;
+    public static final int FIXED_BASE = 2;
+    private static final String[] CLASS_NAMES = {"full", "short", "fixed"};
+    
+    private static final ConcurrentHashMap<String, Result> cache = 
+        new ConcurrentHashMap<String, Result>();
+    private static volatile Result current = null;
+    
+    private Calibration() {}
+    
+    /**
+     * The outcome of a calibration for one modulus size.
+     */
+    public static final class Result {
+        private final int pBits;
+        private final int qBits;
+        private final ModPowEngine[] engines;
+        /** nanoseconds per operation for [class][engine], -1 if not measured */
+        private final long[][] nanos;
+        private final ModPowEngine[] chosen = new ModPowEngine[2];
+        private long tableNanos = -1;
+        private long tableEngineNanos = -1;
+        private boolean useTables = true;
+        private File fromFile = null;
+        
+        Result(int pBits, int qBits, ModPowEngine[] engines) {
+            this.pBits = pBits;
+            this.qBits = qBits;
+            this.engines = engines;
+            this.chosen[FULL_EXPONENT] = engines[0];
+            this.chosen[SHORT_EXPONENT] = engines[0];
+            nanos = new long[2][engines.length];
+            for(int i = 0; i < 2; i++)
+                java.util.Arrays.fill(nanos[i], -1);
+        }
+        
+        /**
+         * Returns the engine chosen for FULL_EXPONENT or SHORT_EXPONENT.
+         */
+        public ModPowEngine getEngine(int operationClass) {
+            return chosen[operationClass];
+        }
+        
+        /**
+         * Returns true if the fixed-base tables beat the engine.
+         */
+        public boolean useTables() {
+            return useTables;
+        }
+        
+        /**
+         * Returns the measured nanoseconds per modPow of the given engine 
+         * (see {@link NativeBigInteger#getEngines}) for FULL_EXPONENT or 
+         * SHORT_EXPONENT, or -1 if it wasn't measured.
+         */
+        public long getNanos(int operationClass, int engine) {
+            return nanos[operationClass][engine];
+        }
+        
+        /**
+         * Returns the measured nanoseconds per fixed-base table 
+         * exponentiation, or -1.
+         */
+        public long getTableNanos() {
+            return tableNanos;
+        }
+        
+        public String toString() {
+            StringBuffer sb = new StringBuffer();
+            sb.append("calibration |p| = " + pBits + ", |q| = " + qBits);
+            if(fromFile != null)
+                sb.append(" (from " + fromFile + ")");
+            else if(engines.length == 1)
+                sb.append(" (one engine, not measured)");
+            sb.append(":");
+            for(int c = 0; c < 2; c++) {
+                sb.append(" " + CLASS_NAMES[c] + "=" + chosen[c].getName());
+                String sep = " [";
+                for(int i = 0; i < engines.length; i++) {
+                    if(nanos[c][i] >= 0) {
+                        sb.append(sep + engines[i].getName() + " " 
+                                  + nanos[c][i]/1000 + "us");
+                        sep = ", ";
+                    }
+                }
+                if(!sep.equals(" ["))
+                    sb.append("]");
+            }
+            sb.append(" " + CLASS_NAMES[FIXED_BASE] + "=" 
+                      + (useTables ? "tables" : "modPow"));
+            if(tableNanos >= 0)
+                sb.append(" [tables " + tableNanos/1000 + "us, engine " 
+                          + tableEngineNanos/1000 + "us]");
+            return sb.toString();
+        }
+        
+        /**
+         * |p|, the exponent lengths of the three operation classes and the
+         * engines, e.g. "2048.2048-224-224.jni+java".
+         */
+        private String key() {
+            StringBuffer sb = new StringBuffer();
+            sb.append(pBits + "." + pBits + "-" + shortBits(pBits, qBits) 
+                      + "-" + qBits + ".");
+            for(int i = 0; i < engines.length; i++) {
+                if(i > 0)
+                    sb.append("+");
+                sb.append(engines[i].getName());
+            }
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * The exponent length measured for SHORT_EXPONENT.
+     */
+    private static int shortBits(int pBits, int qBits) {
+        return Math.min(qBits, pBits/2);
+    }
+    
+    /**
+     * Returns the calibration file, or null if the results are not saved.
+     */
+    static File getFile() {
+        String name = System.getProperty("p4p.calibrate.file");
+        if(name != null)
+            return name.length() == 0 ? null : new File(name);
+        name = System.getProperty("p4p.params.file");
+        return name == null ? null : new File(name + SUFFIX);
+    }
+    
+    /**
+     * Returns the result of the last calibration, or null if there has 
+     * been none.
+     */
+    public static Result getResult() {
+        return current;
+    }
+    
+    /**
+     * Calibrates for the given group and installs the choices. Only 
+     * {@link ZpGroup}s use modPow; for other groups nothing is done and 
+     * null is returned.
+     */
+    public static Result calibrate(Group g) {
+        if(!(g instanceof ZpGroup))
+            return null;
+        return calibrate(((ZpGroup)g).getModulus(), g.getOrder());
+    }
+    
+    /**
+     * Calibrates for Z_p with exponents in Z_q and installs the choices. 
+     * Does nothing (and returns the current result) if calibration is 
+     * disabled.
+     */
+    public static synchronized Result calibrate(BigInteger p, BigInteger q) {
+        if(!ENABLED)
+            return current;
+        ModPowEngine[] engines = NativeBigInteger.getEngines();
+        Result r = new Result(p.bitLength(), q.bitLength(), engines);
+        String key = r.key();
+        Result cached = cache.get(key);
+        if(cached != null)
+            r = cached;
+        else if(engines.length > 1) {
+            File f = getFile();
+            Result loaded = load(f, r);
+            if(loaded != null)
+                r = loaded;
+            else {
+                r = measure(p, q, BUDGET_MS*1000000L);
+                save(f, r);
+            }
+        }
+        cache.put(key, r);
+        apply(r);
+        P4PParameters.DEBUG(r.toString());
+        return r;
+    }
+    
+    private static void apply(Result r) {
+        NativeBigInteger.setEngine(FULL_EXPONENT, r.chosen[FULL_EXPONENT]);
+        NativeBigInteger.setEngine(SHORT_EXPONENT, r.chosen[SHORT_EXPONENT]);
+        FixedBaseExp.setEnabled(r.useTables);
+        current = r;
+    }
+    
+    /**
+     * Times all the engines. The budget is split evenly among the three 
+     * operation classes.
+     */
+    static Result measure(BigInteger p, BigInteger q, long budget) {
+        ModPowEngine[] engines = NativeBigInteger.getEngines();
+        Result r = new Result(p.bitLength(), q.bitLength(), engines);
+        
+        int[] expBits = {p.bitLength(), 
+                         shortBits(p.bitLength(), q.bitLength())};
+        
+        SecureRandom rand = new SecureRandom();
+        int n = 16;
+        BigInteger[] b = new BigInteger[n];
+        for(int i = 0; i < n; i++)
+            b[i] = new BigInteger(p.bitLength() - 1, rand);
+        
+        for(int c = 0; c < 2; c++) {
+            BigInteger[] e = new BigInteger[n];
+            for(int i = 0; i < n; i++)
+                e[i] = new BigInteger(expBits[c], rand);
+            
+            r.nanos[c] = time(engines, null, b, e, p, budget/3);
+            int best = 0;
+            for(int j = 1; j < engines.length; j++) {
+                if(r.nanos[c][j] < r.nanos[c][best])
+                    best = j;
+            }
+            r.chosen[c] = engines[best];
+        }
+        
+        // The fixed-base tables against the engine chosen for |q|-bit 
+        // exponents. The table isn't shared since it is only needed here.
+        BigInteger[] e = new BigInteger[n];
+        for(int i = 0; i < n; i++)
+            e[i] = new BigInteger(q.bitLength(), rand).mod(q);
+        int c = q.bitLength() > p.bitLength()/2 ? FULL_EXPONENT : SHORT_EXPONENT;
+        FixedBaseExp t = new FixedBaseExp(b[0], p, q.bitLength());
+        long[] ns = time(new ModPowEngine[] {r.chosen[c]}, t, b, e, p, budget/3);
+        r.tableNanos = ns[1];
+        r.tableEngineNanos = ns[0];
+        r.useTables = ns[1] <= ns[0];
+        return r;
+    }
+    
+    /**
+     * Returns the nanoseconds per exponentiation for each engine, and for 
+     * the table (last) if there is one. The engines take turns so that 
+     * none of them is favoured by running later, when the JIT has done more
+     * (the JVM's Montgomery intrinsics only kick in once modPow is 
+     * compiled) or the machine is quieter. The first third of the budget 
+     * is warm-up; of the rounds after that the fastest one counts.
+     */
+    private static long[] time(ModPowEngine[] engines, FixedBaseExp table, 
+                               BigInteger[] b, BigInteger[] e, BigInteger m, 
+                               long budget) {
+        int nCandidates = engines.length + (table == null ? 0 : 1);
+        int nRounds = 4;
+        long chunk = budget/(3*nCandidates);
+        long[] best = new long[nCandidates];
+        java.util.Arrays.fill(best, Long.MAX_VALUE);
+        
+        for(int round = -1; round < nRounds; round++) {
+            for(int j = 0; j < nCandidates; j++) {
+                ModPowEngine engine = j < engines.length ? engines[j] : null;
+                long slice = round < 0 ? chunk : 2*chunk/nRounds;
+                long start = System.nanoTime();
+                long elapsed;
+                int k = 0;
+                do {
+                    BigInteger x = b[k%b.length];
+                    BigInteger y = e[k%e.length];
+                    if(engine == null)
+                        table.pow(y);
+                    else
+                        engine.modPow(x, y, m);
+                    k++;
+                    elapsed = System.nanoTime() - start;
+                } while(k < 2 || elapsed < slice);
+                if(round >= 0)
+                    best[j] = Math.min(best[j], elapsed/k);
+            }
+        }
+        return best;
+    }
+    
+    private static int indexOf(ModPowEngine[] engines, ModPowEngine e) {
+        for(int i = 0; i < engines.length; i++)
+            if(engines[i] == e)
+                return i;
+        return -1;
+    }
+    
+    private static ModPowEngine byName(ModPowEngine[] engines, String name) {
+        for(int i = 0; i < engines.length; i++)
+            if(engines[i].getName().equals(name))
+                return engines[i];
+        return null;
+    }
+    
+    /**
+     * Reads the choices for the key of <code>r</code> from the calibration 
+     * file into r. Returns null if there is no file, no entry, or an engine
+     * named in it isn't available here.
+     */
+    private static Result load(File f, Result r) {
+        if(f == null || !f.exists())
+            return null;
+        Properties props = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                props.load(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(IOException e) {
+            System.err.println("Can't read " + f + ": " + e);
+            return null;
+        }
+        
+        String prefix = r.key() + ".";
+        for(int c = 0; c < 2; c++) {
+            String name = props.getProperty(prefix + CLASS_NAMES[c]);
+            r.chosen[c] = name == null ? null : byName(r.engines, name);
+            if(r.chosen[c] == null)
+                return null;
+        }
+        String fixed = props.getProperty(prefix + CLASS_NAMES[FIXED_BASE]);
+        if(fixed == null)
+            return null;
+        r.useTables = fixed.equals("tables");
+        r.fromFile = f;
+        return r;
+    }
+    
+    private static void save(File f, Result r) {
+        if(f == null)
+            return;
+        Properties props = new Properties();
+        try {
+            if(f.exists()) {
+                FileInputStream in = new FileInputStream(f);
+                try {
+                    props.load(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            String prefix = r.key() + ".";
+            for(int c = 0; c < 2; c++)
+                props.setProperty(prefix + CLASS_NAMES[c], r.chosen[c].getName());
+            props.setProperty(prefix + CLASS_NAMES[FIXED_BASE], 
+                              r.useTables ? "tables" : "engine");
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                props.store(out, "P4P modPow calibration");
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch(IOException e) {
+            System.err.println("Can't write " + f + ": " + e);
+        }
+    }
+    
+    /**
+     * Runs the calibration for a k-bit safe prime (or a Schnorr group with
+     * -q bits) and prints the measurements:
+     *
+     *  ./bin/p4p p4p.crypto.Calibration -k 2048 -q 256 -t 2000
+     */
+    public static void main(String[] args) {
+        int k = 1024;
+        int qBits = 0;
+        long budget = BUDGET_MS;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 1024;
+                    }
+                }
+                else if(arg.equals("-q")) {
+                    try {
+                        qBits = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        qBits = 0;
+                    }
+                }
+                else if(arg.equals("-t")) {
+                    try {
+                        budget = Long.parseLong(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        budget = BUDGET_MS;
+                    }
+                }
+            }
+        }
+        
+        SecureRandom rand = new SecureRandom();
+        BigInteger p = BigInteger.probablePrime(k, rand);
+        BigInteger q = qBits > 0 ? BigInteger.probablePrime(qBits, rand) 
+            : p.shiftRight(1);
+        System.out.println("Engines available: " 
+                           + NativeBigInteger.getEngines().length);
+        Result r = measure(p, q, budget*1000000L);
+        System.out.println(r);
+    }
+}
@@ -57,14 +57,22 @@ public class Commitment extends P4PParameters {
     protected NativeBigInteger h = null;
     
     /**
-     * verify that the parameters are correct.
+     * The shared, validated scheme for g and h. All the arithmetic is done 
+     * by it; this object only remembers the last value and randomness.
+     */
+    protected final CommitmentScheme scheme;
+    
+    /**
+     * verify that the parameters are correct. The constructor only does this
+     * the first time a scheme for g and h is created. See 
+     * {@link CommitmentScheme#getInstance}.
      */
     
     public void sanityCheck() {
-        if(!g.modPow(q, p).equals(BigInteger.ONE))
+        if(!group.isElement(g))
             throw new IllegalArgumentException("g does not have the correct order!");
         
-        if(!h.modPow(q, p).equals(BigInteger.ONE))
+        if(!group.isElement(h))
             throw new IllegalArgumentException("h does not have the correct order!");
     }
     
@@ -85,7 +93,57 @@ public class Commitment extends P4PParameters {
     public Commitment(NativeBigInteger g, NativeBigInteger h) {
         this.g = g;
         this.h = h;
-        sanityCheck();	
+        this.scheme = CommitmentScheme.getInstance(g, h);
+    }
+
+    /**
+     * Returns the shared, thread-safe scheme this commitment uses.
+     */
+    public CommitmentScheme getScheme() {
+        return scheme;
+    }
+
+    /**
+     * Commits to val with fresh randomness. Unlike {@link #commit}, this
+     * does not change the state of this object so it can be called from
+     * several threads at once. Subclasses check that val is allowed.
+     */
+    public CommitmentScheme.Opening open(BigInteger val) {
+        return scheme.open(val);
+    }
+
+    public CommitmentScheme.Opening open(long val) {
+        return open(BigInteger.valueOf(val));
+    }
+
+    /**
+     * Commits to val with the given randomness. See {@link #open(BigInteger)}.
+     */
+    public CommitmentScheme.Opening open(BigInteger val, BigInteger r) {
+        return scheme.open(val, r);
+    }
+
+    /**
+     * Computes g^e using the precomputed table if there is one.
+     */
+    protected final BigInteger gPow(BigInteger e) {
+        return scheme.gPow(e);
+    }
+    
+    /**
+     * Computes h^e using the precomputed table if there is one.
+     */
+    protected final BigInteger hPow(BigInteger e) {
+        return scheme.hPow(e);
+    }
+    
+    /**
+     * Computes b1^e1*b2^e2 in one go. If b1 or b2 is g or h, its table will 
+     * be used. See {@link Group#multiExp}.
+     */
+    protected final BigInteger pow2(BigInteger b1, BigInteger e1,
+                                    BigInteger b2, BigInteger e2) {
+        return scheme.pow2(b1, e1, b2, e2);
     }
 
     /**
@@ -94,19 +152,13 @@ public class Commitment extends P4PParameters {
      */
     protected final BigInteger computeCommitment(BigInteger val, 
                                                  BigInteger r) {
-        //BigInteger rr = r.mod(q);
-        if(val.equals(BigInteger.ONE))
-            return g.multiply(h.modPow(r, p)).mod(p);
-        else if (val.equals(BigInteger.ZERO))
-            return h.modPow(r, p).mod(p);
-
         /**
          * Note: NativeBigInteger seems to be unable to handle negative 
-         * exponents properly. We need to use mod q to make sure the exponents
-         * are all non-negative.
+         * exponents properly. The scheme makes sure the exponents are all
+         * non-negative.
          */
         //return g.modPow(val, p).multiply(h.modPow(r, p)).mod(p);
-        return g.modPow(val.mod(q), p).multiply(h.modPow(r, p)).mod(p);
+        return scheme.commit(val, r);
     }
     
 
@@ -115,7 +167,15 @@ public class Commitment extends P4PParameters {
      */
     
     public BigInteger commit(long val) {
-        return commit(new BigInteger(new Long(val).toString()));
+        return commit(BigInteger.valueOf(val));
+    }
+
+    /**
+     * Commit to a long using the given randomness
+     */
+    
+    public BigInteger commit(long val, BigInteger r) {
+        return commit(BigInteger.valueOf(val), r);
     }
 
     /**
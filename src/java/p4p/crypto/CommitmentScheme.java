@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import p4p.util.Util;
+
+/**
+ * An immutable Pedersen commitment scheme: a group and two generators g and 
+ * h. The parameters are validated once when the scheme is created, and 
+ * {@link #getInstance} shares the schemes so that constructing a 
+ * {@link Commitment} (or a subclass) over the same g and h again costs a 
+ * hash lookup instead of two membership tests. At most 
+ * <code>p4p.commitment.maxSchemes</code> schemes are kept, the least 
+ * recently used is dropped first. Unlike {@link Commitment}, which 
+ * remembers the last value and randomness, a scheme keeps no per-use
+ * state and can be shared freely between threads. {@link #open} returns 
+ * the commitment together with its opening.
+ *
+ * @see Commitment
+ */
+
+public final class CommitmentScheme {
+    private static final int MAX_SCHEMES = 
+        Integer.getInteger("p4p.commitment.maxSchemes", 1024).intValue();
+    
+    // In access order so that the eldest entry is the least recently used.
+    // Guarded by itself.
+    private static final LinkedHashMap<Key, CommitmentScheme> cache = 
+        new LinkedHashMap<Key, CommitmentScheme>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            protected boolean removeEldestEntry(Map.Entry<Key, 
+                                                CommitmentScheme> eldest) {
+                return size() > MAX_SCHEMES;
+            }
+        };
+    
+    private final Group group;
+    private final BigInteger q;
+    private final BigInteger g;
+    private final BigInteger h;
+    private final BigInteger gInverse;
+    
+    /**
+     * Whether the fixed-base tables have been requested. Done lazily since 
+     * some users (e.g. BitVectorCommitment) create commitments over 
+     * generators that are only used once. Racing threads at worst request 
+     * the same (shared) table twice.
+     */
+    private volatile boolean tablesRequested = false;
+    private volatile boolean gInverseRequested = false;
+    
+    /**
+     * A commitment together with the value and randomness that open it.
+     */
+    public static final class Opening {
+        private final BigInteger commitment;
+        private final BigInteger value;
+        private final BigInteger randomness;
+        
+        Opening(BigInteger commitment, BigInteger value, 
+                BigInteger randomness) {
+            this.commitment = commitment;
+            this.value = value;
+            this.randomness = randomness;
+        }
+        
+        public BigInteger getCommitment() {
+            return commitment;
+        }
+        
+        public BigInteger getValue() {
+            return value;
+        }
+        
+        public BigInteger getRandomness() {
+            return randomness;
+        }
+    }
+    
+    /**
+     * Creates and validates a scheme. 
+     *
+     * @throws IllegalArgumentException if g or h is not in the group.
+     */
+    public CommitmentScheme(Group group, BigInteger g, BigInteger h) {
+        if(!group.isElement(g))
+            throw new IllegalArgumentException("g does not have the correct order!");
+        if(!group.isElement(h))
+            throw new IllegalArgumentException("h does not have the correct order!");
+        
+        this.group = group;
+        this.q = group.getOrder();
+        this.g = g;
+        this.h = h;
+        this.gInverse = group.inverse(g);
+    }
+    
+    private void loadTables() {
+        if(!tablesRequested) {
+            group.precompute(g);
+            group.precompute(h);
+            tablesRequested = true;
+        }
+    }
+    
+    private BigInteger gInverse() {
+        if(!gInverseRequested) {
+            // Only the first time a negative value is committed to:
+            group.precompute(gInverse);
+            gInverseRequested = true;
+        }
+        return gInverse;
+    }
+    
+    /**
+     * Returns the shared scheme for g and h in the current system group 
+     * (see {@link p4p.util.P4PParameters#getGroup}), creating and validating
+     * it if necessary. 
+     */
+    public static CommitmentScheme getInstance(BigInteger g, BigInteger h) {
+        return getInstance(p4p.util.P4PParameters.getGroup(), g, h);
+    }
+    
+    public static CommitmentScheme getInstance(Group group, BigInteger g, 
+                                               BigInteger h) {
+        Key key = new Key(group, g, h);
+        CommitmentScheme s;
+        synchronized(cache) {
+            s = cache.get(key);
+        }
+        if(s != null)
+            return s;
+        
+        // Validate outside the lock. Racing threads may both create a 
+        // scheme; the first one cached wins.
+        s = new CommitmentScheme(group, g, h);
+        synchronized(cache) {
+            CommitmentScheme old = cache.get(key);
+            if(old != null)
+                return old;
+            cache.put(key, s);
+        }
+        return s;
+    }
+    
+    public Group getGroup() {
+        return group;
+    }
+    
+    public BigInteger getG() {
+        return g;
+    }
+    
+    public BigInteger getH() {
+        return h;
+    }
+    
+    /**
+     * Computes g^e using the precomputed table if there is one.
+     */
+    public BigInteger gPow(BigInteger e) {
+        loadTables();
+        return group.exp(g, e);
+    }
+    
+    /**
+     * Computes h^e using the precomputed table if there is one.
+     */
+    public BigInteger hPow(BigInteger e) {
+        loadTables();
+        return group.exp(h, e);
+    }
+    
+    /**
+     * Computes b1^e1*b2^e2 in one go. See {@link Group#multiExp}.
+     */
+    public BigInteger pow2(BigInteger b1, BigInteger e1,
+                           BigInteger b2, BigInteger e2) {
+        loadTables();
+        return group.multiExp(new BigInteger[] {b1, b2}, 
+                              new BigInteger[] {e1, e2});
+    }
+    
+    /**
+     * Computes the commitment g^val*h^r. 
+     */
+    public BigInteger commit(BigInteger val, BigInteger r) {
+        if(val.equals(BigInteger.ONE))
+            return group.mul(g, hPow(r));
+        else if (val.equals(BigInteger.ZERO))
+            return hPow(r);
+        
+        // For a small negative val (e.g. a checksum or a modular corrector 
+        // -F) val mod q would be a full length exponent so we use 
+        // g^val = (g^-1)^|val| instead.
+        if(val.signum() < 0 && val.bitLength() < q.bitLength() - 1)
+            return pow2(gInverse(), val.negate(), h, r);
+        return pow2(g, val.mod(q), h, r);
+    }
+    
+    public BigInteger commit(long val, BigInteger r) {
+        return commit(BigInteger.valueOf(val), r);
+    }
+    
+    /**
+     * Computes the commitment to val using the randomness of 
+     * <code>zero</code>, a (precomputed) commitment to 0, i.e. h^r. Only 
+     * g^val is left to do, which is cheap for the small values.
+     */
+    public BigInteger commit(BigInteger val, Opening zero) {
+        if(zero.getValue().signum() != 0)
+            throw new IllegalArgumentException("Not a commitment to 0!");
+        
+        BigInteger c = zero.getCommitment();
+        if(val.equals(BigInteger.ZERO))
+            return c;
+        else if(val.equals(BigInteger.ONE))
+            return group.mul(g, c);
+        
+        loadTables();
+        if(val.signum() < 0 && val.bitLength() < q.bitLength() - 1)
+            return group.mul(group.exp(gInverse(), val.negate()), c);
+        return group.mul(group.exp(g, val.mod(q)), c);
+    }
+    
+    /**
+     * Commits to val with fresh randomness.
+     */
+    public Opening open(BigInteger val) {
+        BigInteger r = Util.randomBigInteger(q);
+        return new Opening(commit(val, r), val, r);
+    }
+    
+    public Opening open(long val) {
+        return open(BigInteger.valueOf(val));
+    }
+    
+    /**
+     * Commits to val with the given randomness.
+     */
+    public Opening open(BigInteger val, BigInteger r) {
+        r = r.mod(q);
+        return new Opening(commit(val, r), val, r);
+    }
+    
+    /**
+     * Commits to val with the randomness of <code>zero</code>, a 
+     * (precomputed) commitment to 0. See {@link #commit(BigInteger, Opening)}.
+     */
+    public Opening open(BigInteger val, Opening zero) {
+        return new Opening(commit(val, zero), val, zero.getRandomness());
+    }
+    
+    /**
+     * @return  true if c = commit(val, r)
+     */
+    public boolean verify(BigInteger c, BigInteger val, BigInteger r) {
+        return commit(val, r).equals(c);
+    }
+    
+    private static final class Key {
+        private final Group group;
+        private final BigInteger g;
+        private final BigInteger h;
+        
+        Key(Group group, BigInteger g, BigInteger h) {
+            this.group = group;
+            this.g = g;
+            this.h = h;
+        }
+        
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return group == k.group && g.equals(k.g) && h.equals(k.h);
+        }
+        
+        public int hashCode() {
+            return System.identityHashCode(group) 
+                + 31*(31*g.hashCode() + h.hashCode());
+        }
+    }
+}
@@ -0,0 +1,707 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import p4p.util.Util;
+
+/**
+ * A prime order elliptic curve group y^2 = x^3 - 3x + b over GF(P), in 
+ * pure Java. The stock curve is NIST P-256 ({@link #getP256()}), which 
+ * offers about the security of 3072-bit Z_p^*:
+ * <p>
+ *    <i>National Institute of Standards and Technology, Digital Signature 
+ *    Standard (DSS), FIPS PUB 186-4, 2013, Appendix D.1.2.3.</i>
+ * <p>
+ * A point (x, y) is represented by the <code>BigInteger</code> x*2^k + y, 
+ * where k is the bit length of P. The point at infinity (the identity) is 
+ * represented by 0. {@link #encode} uses the 33-byte compressed form.
+ * <p>
+ * Internally points are kept in Jacobian coordinates in Montgomery form 
+ * (see {@link MontgomeryContext}) so that point additions need no field 
+ * inversions. The formulas are dbl-2001-b and add-2007-bl from the 
+ * Explicit-Formulas Database:
+ * <p>
+ *    <i>Daniel J. Bernstein and Tanja Lange, Explicit-Formulas Database, 
+ *    http://www.hyperelliptic.org/EFD/g1p/auto-shortw-jacobian-3.html</i>
+ * <p>
+ * Bases passed to {@link #precompute} get a fixed-base window table like
+ * {@link FixedBaseExp}. Multi-exponentiations use Straus' or Pippenger's 
+ * method, chosen with the same cost model as {@link MultiExp}.
+ */
+
+public class ECGroup extends Group {
+    private static final int TABLE_WINDOW = 6;
+    private static final int MAX_TABLES = 
+        Integer.getInteger("p4p.fixedbase.maxTables", 16).intValue();
+    
+    private static ECGroup p256 = null;
+    
+    private final BigInteger P;         // The field prime
+    private final BigInteger b;
+    private final BigInteger n;         // The group order
+    private final BigInteger G;         // The generator, packed
+    private final int k;                // Bit length of P
+    private final BigInteger yMask;
+    
+    private final ThreadLocal<Engine> engines = new ThreadLocal<Engine>() {
+        protected Engine initialValue() {
+            return new Engine();
+        }
+    };
+    
+    private final ConcurrentHashMap<BigInteger, int[][][][]> tables = 
+        new ConcurrentHashMap<BigInteger, int[][][][]>();
+    
+    /**
+     * Creates the group of the curve y^2 = x^3 - 3x + b mod P generated by
+     * (gx, gy), which must have prime order n. The cofactor must be 1.
+     */
+    public ECGroup(BigInteger P, BigInteger b, BigInteger gx, BigInteger gy,
+                   BigInteger n) {
+        if(!P.testBit(0) || !P.testBit(1))
+            throw new IllegalArgumentException("P must be 3 mod 4!");
+        this.P = P;
+        this.b = b;
+        this.n = n;
+        this.k = P.bitLength();
+        this.yMask = BigInteger.ONE.shiftLeft(k).subtract(BigInteger.ONE);
+        this.G = pack(gx, gy);
+        if(!isElement(G))
+            throw new IllegalArgumentException("G is not on the curve!");
+    }
+    
+    /**
+     * Returns the NIST P-256 group.
+     */
+    public static synchronized ECGroup getP256() {
+        if(p256 == null)
+            p256 = new ECGroup(
+                new BigInteger("ffffffff000000010000000000000000"
+                               + "00000000ffffffffffffffffffffffff", 16),
+                new BigInteger("5ac635d8aa3a93e7b3ebbd55769886bc"
+                               + "651d06b0cc53b0f63bce3c3e27d2604b", 16),
+                new BigInteger("6b17d1f2e12c4247f8bce6e563a440f2"
+                               + "77037d812deb33a0f4a13945d898c296", 16),
+                new BigInteger("4fe342e2fe1a7f9b8ee7eb4a7c0f9e16"
+                               + "2bce33576b315ececbb6406837bf51f5", 16),
+                new BigInteger("ffffffff00000000ffffffffffffffff"
+                               + "bce6faada7179e84f3b9cac2fc632551", 16));
+        return p256;
+    }
+    
+    public BigInteger getFieldPrime() {
+        return P;
+    }
+    
+    public int getElementBitLength() {
+        return 2*k;
+    }
+    
+    public BigInteger getOrder() {
+        return n;
+    }
+    
+    public BigInteger getGenerator() {
+        return G;
+    }
+    
+    public BigInteger identity() {
+        return BigInteger.ZERO;
+    }
+    
+    private BigInteger pack(BigInteger x, BigInteger y) {
+        return x.shiftLeft(k).or(y);
+    }
+    
+    private BigInteger x(BigInteger a) {
+        return a.shiftRight(k);
+    }
+    
+    private BigInteger y(BigInteger a) {
+        return a.and(yMask);
+    }
+    
+    public BigInteger mul(BigInteger a, BigInteger b) {
+        OpCounter.mul();
+        if(a.signum() == 0)
+            return b;
+        if(b.signum() == 0)
+            return a;
+        Engine e = engines.get();
+        int[][] r = e.fromElement(a);
+        e.add(r, e.fromElement(b), r);
+        return e.toElement(r);
+    }
+    
+    public BigInteger inverse(BigInteger a) {
+        OpCounter.inverse();
+        if(a.signum() == 0)
+            return a;
+        BigInteger y = y(a);
+        return pack(x(a), y.signum() == 0 ? y : P.subtract(y));
+    }
+    
+    /**
+     * Inverting a point is just negating y so there is nothing to batch.
+     */
+    public BigInteger[] batchInverse(BigInteger[] xs) {
+        BigInteger[] inv = new BigInteger[xs.length];
+        for(int i = 0; i < xs.length; i++)
+            inv[i] = inverse(xs[i]);
+        return inv;
+    }
+    
+    public BigInteger exp(BigInteger a, BigInteger e) {
+        e = e.mod(n);
+        int[][][][] t = tables.get(a);
+        OpCounter.exp(t != null, e.bitLength());
+        if(a.signum() == 0 || e.signum() == 0)
+            return BigInteger.ZERO;
+        Engine eng = engines.get();
+        int[][] r = eng.newPoint();
+        if(t != null)
+            eng.tableMul(t, e, r);
+        else
+            eng.scalarMul(eng.fromElement(a), e, r);
+        return eng.toElement(r);
+    }
+    
+    public void precompute(BigInteger base) {
+        if(base.signum() == 0 || tables.containsKey(base) 
+           || tables.size() >= MAX_TABLES)
+            return;
+        tables.putIfAbsent(base, engines.get().buildTable(base));
+    }
+    
+    public BigInteger multiExp(BigInteger[] bases, BigInteger[] exps) {
+        if(bases.length != exps.length)
+            throw new IllegalArgumentException("Number of bases and exponents" 
+                                               + " do not agree!");
+        Engine eng = engines.get();
+        int[][] r = eng.newPoint();
+        int[][] t = eng.newPoint();
+        
+        OpCounter.multiExp();
+        int nVariable = 0;
+        BigInteger[] e = new BigInteger[exps.length];
+        boolean[] done = new boolean[exps.length];
+        for(int i = 0; i < bases.length; i++) {
+            e[i] = exps[i].mod(n);
+            int[][][][] table = tables.get(bases[i]);
+            OpCounter.exp(table != null, e[i].bitLength());
+            if(e[i].signum() == 0 || bases[i].signum() == 0)
+                done[i] = true;
+            else if(table != null) {
+                eng.tableMul(table, e[i], t);
+                eng.add(r, t, r);
+                done[i] = true;
+            }
+            else
+                nVariable++;
+        }
+        
+        if(nVariable > 0) {
+            int[][][] pts = new int[nVariable][][];
+            BigInteger[] ve = new BigInteger[nVariable];
+            for(int i = 0, j = 0; i < bases.length; i++) {
+                if(done[i])
+                    continue;
+                pts[j] = eng.fromElement(bases[i]);
+                ve[j++] = e[i];
+            }
+            
+            int nBits = n.bitLength();
+            if(nVariable == 1)
+                eng.scalarMul(pts[0], ve[0], t);
+            else if(MultiExp.pippengerCost(nVariable, nBits) 
+                    < MultiExp.strausCost(nVariable, nBits))
+                eng.pippenger(pts, ve, t);
+            else
+                eng.straus(pts, ve, t);
+            eng.add(r, t, r);
+        }
+        
+        return eng.toElement(r);
+    }
+    
+    public BigInteger product(BigInteger[] xs) {
+        OpCounter.mul(xs.length - 1);
+        Engine e = engines.get();
+        int[][] r = e.newPoint();
+        for(int i = 0; i < xs.length; i++) {
+            if(xs[i].signum() != 0)
+                e.add(r, e.fromElement(xs[i]), r);
+        }
+        return e.toElement(r);
+    }
+    
+    public BigInteger radix2Product(BigInteger[] xs) {
+        OpCounter.mul(2*(xs.length - 1));
+        Engine e = engines.get();
+        int[][] r = e.newPoint();
+        for(int i = xs.length - 1; i >= 0; i--) {
+            e.dbl(r, r);
+            if(xs[i].signum() != 0)
+                e.add(r, e.fromElement(xs[i]), r);
+        }
+        return e.toElement(r);
+    }
+    
+    public boolean isElement(BigInteger a) {
+        if(a.signum() == 0)
+            return true;
+        if(a.signum() < 0 || a.bitLength() > 2*k)
+            return false;
+        BigInteger x = x(a);
+        BigInteger y = y(a);
+        if(x.compareTo(P) >= 0 || y.compareTo(P) >= 0)
+            return false;
+        return y.multiply(y).mod(P).equals(rhs(x));
+    }
+    
+    /**
+     * x^3 - 3x + b mod P
+     */
+    private BigInteger rhs(BigInteger x) {
+        return x.multiply(x).subtract(BigInteger.valueOf(3)).multiply(x)
+            .add(b).mod(P);
+    }
+    
+    /**
+     * Square root mod P, which is 3 mod 4. Returns null if there is none.
+     */
+    private BigInteger sqrt(BigInteger a) {
+        BigInteger y = a.modPow(P.add(BigInteger.ONE).shiftRight(2), P);
+        return y.multiply(y).mod(P).equals(a) ? y : null;
+    }
+    
+    /**
+     * The compressed form: 0x02 (y even) or 0x03 (y odd) followed by x, or 
+     * a single 0 byte for the identity.
+     */
+    public byte[] encode(BigInteger a) {
+        if(a.signum() == 0)
+            return new byte[1];
+        int len = (k + 7)/8;
+        byte[] out = new byte[len + 1];
+        out[0] = (byte)(y(a).testBit(0) ? 3 : 2);
+        byte[] xb = x(a).toByteArray();
+        int m = Math.min(xb.length, len);
+        System.arraycopy(xb, xb.length - m, out, len + 1 - m, m);
+        return out;
+    }
+    
+    public BigInteger decode(byte[] bytes) {
+        if(bytes.length == 1 && bytes[0] == 0)
+            return BigInteger.ZERO;
+        int len = (k + 7)/8;
+        if(bytes.length != len + 1 || (bytes[0] != 2 && bytes[0] != 3))
+            throw new IllegalArgumentException("Not a compressed point!");
+        byte[] xb = new byte[len];
+        System.arraycopy(bytes, 1, xb, 0, len);
+        BigInteger x = new BigInteger(1, xb);
+        BigInteger y = x.compareTo(P) < 0 ? sqrt(rhs(x)) : null;
+        if(y == null)
+            throw new IllegalArgumentException("Not a point on the curve!");
+        if(y.testBit(0) != (bytes[0] == 3))
+            y = P.subtract(y);
+        return pack(x, y);
+    }
+    
+    /**
+     * Try-and-increment: x = SHA-256(seed || counter) mod P until 
+     * x^3 - 3x + b is a square. The root with even y is used.
+     */
+    public BigInteger hashToElement(byte[] seed) {
+        OpCounter.hashToGroup();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available!", e);
+        }
+        
+        for(int ctr = 0; ; ctr++) {
+            md.update(seed);
+            md.update(Util.bytesFromInt(ctr));
+            BigInteger x = new BigInteger(1, md.digest()).mod(P);
+            BigInteger y = sqrt(rhs(x));
+            if(y == null)
+                continue;
+            if(y.testBit(0))
+                y = P.subtract(y);
+            BigInteger a = pack(x, y);
+            if(a.signum() != 0)
+                return a;
+        }
+    }
+    
+    /**
+     * Test the group arithmetic and compare the cost of an exponentiation 
+     * with that of a 3072-bit Z_p^* group of (roughly) the same security. 
+     */
+    public static void main(String[] args) {
+        int nLoops = 100;
+        for(int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.equals("-l")) {
+                try {
+                    nLoops = Integer.parseInt(args[i++]);
+                }
+                catch (NumberFormatException e) {
+                    nLoops = 100;
+                }
+            }
+        }
+        
+        ECGroup G = getP256();
+        BigInteger g = G.getGenerator();
+        BigInteger n = G.getOrder();
+        int nFailed = 0;
+        
+        if(!G.exp(g, n).equals(G.identity())) {
+            System.out.println("n*G is not the point at infinity!");
+            nFailed++;
+        }
+        // 2G from the SEC 2 test vectors:
+        if(!G.exp(g, BigInteger.valueOf(2)).shiftRight(G.k).equals(
+               new BigInteger("7cf27b188d034f7e8a52380304b51ac3"
+                              + "c08969e277f21b35a60b48fc47669978", 16))) {
+            System.out.println("2G is wrong!");
+            nFailed++;
+        }
+        
+        for(int i = 0; i < nLoops; i++) {
+            int m = 1 + i%20;
+            BigInteger[] bases = new BigInteger[m];
+            BigInteger[] exps = new BigInteger[m];
+            BigInteger c = G.identity();
+            for(int j = 0; j < m; j++) {
+                bases[j] = G.exp(g, Util.randomBigInteger(n));
+                exps[j] = Util.randomBigInteger(n);
+                c = G.mul(c, G.exp(bases[j], exps[j]));
+            }
+            if(!G.multiExp(bases, exps).equals(c)) {
+                System.out.println("multiExp failed for test " + i);
+                nFailed++;
+            }
+            if(!G.decode(G.encode(bases[0])).equals(bases[0])) {
+                System.out.println("encode/decode failed for test " + i);
+                nFailed++;
+            }
+        }
+        System.out.println("Total failed tests: " + nFailed);
+        
+        BigInteger e = Util.randomBigInteger(n);
+        BigInteger b = G.exp(g, e);
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < nLoops; i++)
+            G.exp(b, e);
+        long end = System.currentTimeMillis();
+        System.out.println("P-256 exp: " + (double)(end-start)/(double)nLoops 
+                           + " ms");
+        
+        BigInteger p = BigInteger.probablePrime(3072, Util.rand);
+        b = Util.randomBigInteger(p);
+        e = new BigInteger(256, Util.rand);
+        start = System.currentTimeMillis();
+        for(int i = 0; i < nLoops; i++)
+            b.modPow(e, p);
+        end = System.currentTimeMillis();
+        System.out.println("3072-bit modPow (256-bit exponent): " 
+                           + (double)(end-start)/(double)nLoops + " ms");
+    }
+    
+    /**
+     * The point arithmetic. Each thread has its own engine because the 
+     * temporaries (and the MontgomeryContext) are reused.
+     */
+    private final class Engine {
+        final MontgomeryContext f = new MontgomeryContext(P);
+        final int[] t0 = f.newElement(), t1 = f.newElement(), 
+            t2 = f.newElement(), t3 = f.newElement(), t4 = f.newElement(),
+            t5 = f.newElement(), t6 = f.newElement(), t7 = f.newElement(),
+            t8 = f.newElement(), t9 = f.newElement(), t10 = f.newElement(),
+            t11 = f.newElement(), t12 = f.newElement();
+        
+        /**
+         * Returns the point at infinity (Z = 0).
+         */
+        int[][] newPoint() {
+            return new int[][] {f.newElement(), f.newElement(), 
+                                f.newElement()};
+        }
+        
+        boolean isInfinity(int[][] a) {
+            return f.isZero(a[2]);
+        }
+        
+        void copy(int[][] a, int[][] out) {
+            if(a == out)
+                return;
+            for(int i = 0; i < 3; i++)
+                System.arraycopy(a[i], 0, out[i], 0, a[i].length);
+        }
+        
+        int[][] fromElement(BigInteger a) {
+            int[][] r = newPoint();
+            if(a.signum() == 0)
+                return r;
+            f.toMontgomery(x(a), r[0]);
+            f.toMontgomery(y(a), r[1]);
+            f.setOne(r[2]);
+            return r;
+        }
+        
+        BigInteger toElement(int[][] a) {
+            if(isInfinity(a))
+                return BigInteger.ZERO;
+            BigInteger zi = f.fromMontgomery(a[2]).modInverse(P);
+            BigInteger zi2 = zi.multiply(zi).mod(P);
+            BigInteger x = f.fromMontgomery(a[0]).multiply(zi2).mod(P);
+            BigInteger y = f.fromMontgomery(a[1]).multiply(zi2).mod(P)
+                .multiply(zi).mod(P);
+            return pack(x, y);
+        }
+        
+        /**
+         * out = 2a. dbl-2001-b (a = -3).
+         */
+        void dbl(int[][] a, int[][] out) {
+            if(isInfinity(a)) {
+                copy(a, out);
+                return;
+            }
+            int[] X = a[0], Y = a[1], Z = a[2];
+            f.sqr(Z, t0);                    // delta = Z^2
+            f.sqr(Y, t1);                    // gamma = Y^2
+            f.mul(X, t1, t2);                // beta = X*gamma
+            f.sub(X, t0, t3);
+            f.add(X, t0, t4);
+            f.mul(t3, t4, t3);
+            f.add(t3, t3, t4);
+            f.add(t4, t3, t3);               // alpha = 3*(X-delta)*(X+delta)
+            f.add(Y, Z, t4);
+            f.sqr(t4, t4);
+            f.sub(t4, t1, t4);
+            f.sub(t4, t0, out[2]);           // Z3 = (Y+Z)^2-gamma-delta
+            f.add(t2, t2, t2);
+            f.add(t2, t2, t2);               // 4*beta
+            f.sqr(t3, t5);
+            f.sub(t5, t2, t5);
+            f.sub(t5, t2, out[0]);           // X3 = alpha^2-8*beta
+            f.sub(t2, out[0], t2);
+            f.mul(t3, t2, t2);               // alpha*(4*beta-X3)
+            f.sqr(t1, t1);
+            f.add(t1, t1, t1);
+            f.add(t1, t1, t1);
+            f.add(t1, t1, t1);               // 8*gamma^2
+            f.sub(t2, t1, out[1]);           // Y3
+        }
+        
+        /**
+         * out = a + b. add-2007-bl. out may be a or b.
+         */
+        void add(int[][] a, int[][] b, int[][] out) {
+            if(isInfinity(a)) {
+                copy(b, out);
+                return;
+            }
+            if(isInfinity(b)) {
+                copy(a, out);
+                return;
+            }
+            f.sqr(a[2], t0);                 // Z1Z1
+            f.sqr(b[2], t1);                 // Z2Z2
+            f.mul(a[0], t1, t2);             // U1 = X1*Z2Z2
+            f.mul(b[0], t0, t3);             // U2 = X2*Z1Z1
+            f.mul(a[1], b[2], t4);
+            f.mul(t4, t1, t4);               // S1 = Y1*Z2*Z2Z2
+            f.mul(b[1], a[2], t5);
+            f.mul(t5, t0, t5);               // S2 = Y2*Z1*Z1Z1
+            f.sub(t3, t2, t6);               // H = U2-U1
+            f.sub(t5, t4, t7);               // S2-S1
+            if(f.isZero(t6)) {
+                if(f.isZero(t7))
+                    dbl(a, out);
+                else
+                    f.setZero(out[2]);       // a = -b
+                return;
+            }
+            f.add(t6, t6, t8);
+            f.sqr(t8, t8);                   // I = (2H)^2
+            f.mul(t6, t8, t9);               // J = H*I
+            f.add(t7, t7, t7);               // r = 2*(S2-S1)
+            f.mul(t2, t8, t10);              // V = U1*I
+            
+            f.add(a[2], b[2], t11);
+            f.sqr(t11, t11);
+            f.sub(t11, t0, t11);
+            f.sub(t11, t1, t11);
+            f.mul(t11, t6, out[2]);          // Z3 = ((Z1+Z2)^2-Z1Z1-Z2Z2)*H
+            
+            f.sqr(t7, t12);
+            f.sub(t12, t9, t12);
+            f.sub(t12, t10, t12);
+            f.sub(t12, t10, t12);            // X3 = r^2-J-2*V
+            f.sub(t10, t12, t10);
+            f.mul(t7, t10, t10);             // r*(V-X3)
+            f.mul(t4, t9, t4);
+            f.add(t4, t4, t4);               // 2*S1*J
+            f.sub(t10, t4, out[1]);          // Y3
+            System.arraycopy(t12, 0, out[0], 0, t12.length);
+        }
+        
+        /**
+         * The odd multiples a, 3a, ..., (2^w - 1)a.
+         */
+        int[][][] oddMultiples(int[][] a, int w) {
+            int[][][] odd = new int[1<<(w-1)][][];
+            odd[0] = newPoint();
+            copy(a, odd[0]);
+            int[][] a2 = newPoint();
+            dbl(a, a2);
+            for(int j = 1; j < odd.length; j++) {
+                odd[j] = newPoint();
+                add(odd[j-1], a2, odd[j]);
+            }
+            return odd;
+        }
+        
+        /**
+         * out = e*a with a sliding window. e must be in [0, n).
+         */
+        void scalarMul(int[][] a, BigInteger e, int[][] out) {
+            straus(new int[][][] {a}, new BigInteger[] {e}, out);
+        }
+        
+        void straus(int[][][] pts, BigInteger[] e, int[][] out) {
+            int nBits = 0;
+            for(int i = 0; i < e.length; i++)
+                nBits = Math.max(nBits, e[i].bitLength());
+            int w = MultiExp.windowSize(nBits);
+            int[][][][] odd = new int[pts.length][][][];
+            int[][] digits = new int[pts.length][];
+            for(int i = 0; i < pts.length; i++) {
+                odd[i] = oddMultiples(pts[i], w);
+                digits[i] = MultiExp.slidingWindow(e[i], w, nBits);
+            }
+            
+            f.setZero(out[2]);
+            for(int j = nBits - 1; j >= 0; j--) {
+                dbl(out, out);
+                for(int i = 0; i < pts.length; i++) {
+                    int d = digits[i][j];
+                    if(d != 0)
+                        add(out, odd[i][d>>1], out);
+                }
+            }
+        }
+        
+        void pippenger(int[][][] pts, BigInteger[] e, int[][] out) {
+            int nBits = 0;
+            for(int i = 0; i < e.length; i++)
+                nBits = Math.max(nBits, e[i].bitLength());
+            int c = MultiExp.pippengerWindow(pts.length, nBits);
+            int nWindows = (nBits + c - 1)/c;
+            int[][][] buckets = new int[1<<c][][];
+            for(int d = 1; d < buckets.length; d++)
+                buckets[d] = newPoint();
+            int[][] running = newPoint();
+            int[][] sum = newPoint();
+            
+            f.setZero(out[2]);
+            for(int w = nWindows - 1; w >= 0; w--) {
+                for(int j = 0; j < c; j++)
+                    dbl(out, out);
+                for(int d = 1; d < buckets.length; d++)
+                    f.setZero(buckets[d][2]);
+                for(int i = 0; i < pts.length; i++) {
+                    int d = digit(e[i], w*c, c);
+                    if(d != 0)
+                        add(buckets[d], pts[i], buckets[d]);
+                }
+                f.setZero(running[2]);
+                f.setZero(sum[2]);
+                for(int d = buckets.length - 1; d > 0; d--) {
+                    add(running, buckets[d], running);
+                    add(sum, running, sum);
+                }
+                add(out, sum, out);
+            }
+        }
+        
+        private int digit(BigInteger e, int from, int c) {
+            int d = 0;
+            for(int j = from + c - 1; j >= from; j--)
+                d = (d<<1) | (e.testBit(j) ? 1 : 0);
+            return d;
+        }
+        
+        /**
+         * table[i][j-1] = j*2^(w*i)*base.
+         */
+        int[][][][] buildTable(BigInteger base) {
+            int w = TABLE_WINDOW;
+            int nWindows = (n.bitLength() + w - 1)/w;
+            int[][][][] table = new int[nWindows][(1<<w) - 1][][];
+            int[][] b = fromElement(base);
+            for(int i = 0; i < nWindows; i++) {
+                table[i][0] = newPoint();
+                copy(b, table[i][0]);
+                for(int j = 1; j < table[i].length; j++) {
+                    table[i][j] = newPoint();
+                    add(table[i][j-1], b, table[i][j]);
+                }
+                for(int j = 0; j < w; j++)
+                    dbl(b, b);
+            }
+            return table;
+        }
+        
+        void tableMul(int[][][][] table, BigInteger e, int[][] out) {
+            int w = TABLE_WINDOW;
+            f.setZero(out[2]);
+            for(int i = 0; i < table.length; i++) {
+                int d = digit(e, i*w, w);
+                if(d != 0)
+                    add(out, table[i][d-1], out);
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fixed-base modular exponentiation with precomputed window tables.
+ * <p>
+ * All the Pedersen commitments in P4P raise the same two generators, g and h,
+ * to different exponents over and over. For a fixed base b we split the 
+ * exponent into w-bit digits e = sum{e_i*2^(i*w)} and precompute 
+ * <p>
+ *     T[i][j] = b^(j*2^(i*w)),   j = 1, ..., 2^w - 1
+ * <p>
+ * so that b^e = prod{T[i][e_i]}. This needs no squaring at all and at most
+ * maxBits/w multiplications, compared to roughly maxBits squarings plus 
+ * maxBits/5 multiplications for a cold <code>modPow</code>. See
+ * <p>
+ *    <i>Ernest F. Brickell, Daniel M. Gordon, Kevin S. McCurley and David B. 
+ *    Wilson, Fast Exponentiation with Precomputation, EUROCRYPT 92, Lecture 
+ *    Notes in Computer Science, Volume 658, 1993, Page 200.</i>
+ * <p>
+ * Tables are immutable once built and are shared by all threads through 
+ * {@link #getInstance}. The cache is keyed by (base, modulus) and bounded 
+ * by the number of tables (system property 
+ * <code>p4p.fixedbase.maxTables</code>, default 16) so that classes which 
+ * create many one-off generators (e.g. <code>BitVectorCommitment</code>) 
+ * can't exhaust the heap. When the cache is full <code>getInstance</code> 
+ * returns null and callers should fall back to <code>modPow</code>.
+ * <p>
+ * With a fast native <code>modPow</code> the tables may not pay off at all 
+ * ({@link Calibration} measures this); {@link #setEnabled} turns them off.
+ */
+
+public final class FixedBaseExp {
+    private static final int MAX_WINDOW = 8;
+    private static final int MIN_WINDOW = 2;
+    
+    private static final int MAX_TABLES = 
+        Integer.getInteger("p4p.fixedbase.maxTables", 16).intValue();
+    private static final long MAX_TABLE_BYTES = 
+        Long.getLong("p4p.fixedbase.maxTableBytes", 16L<<20).longValue();
+    
+    private static final ConcurrentHashMap<Key, FixedBaseExp> cache = 
+        new ConcurrentHashMap<Key, FixedBaseExp>();
+    
+    private static volatile boolean enabled = true;
+    
+    private final BigInteger base;
+    private final BigInteger modulus;
+    private final Barrett barrett;
+    private final int window;
+    private final int maxBits;
+    private final BigInteger[][] table;
+    
+    /**
+     * Builds the table for base^e mod modulus with 0 <= e < 2^maxBits. 
+     * Callers should normally go through {@link #getInstance} which 
+     * shares tables.
+     */
+    public FixedBaseExp(BigInteger base, BigInteger modulus, int maxBits) {
+        this(base, modulus, maxBits, chooseWindow(maxBits, modulus.bitLength()));
+    }
+    
+    public FixedBaseExp(BigInteger base, BigInteger modulus, int maxBits, 
+                        int window) {
+        if(maxBits <= 0 || window < 1 || window > 16)
+            throw new IllegalArgumentException("Bad table parameters: maxBits = "
+                                               + maxBits + ", window = " 
+                                               + window);
+        this.base = base.mod(modulus);
+        this.modulus = modulus;
+        this.barrett = new Barrett(modulus);
+        this.window = window;
+        this.maxBits = maxBits;
+        
+        int nWindows = (maxBits + window - 1)/window;
+        int nDigits = 1<<window;
+        table = new BigInteger[nWindows][nDigits];
+        
+        BigInteger b = this.base;       // base^(2^(i*w))
+        for(int i = 0; i < nWindows; i++) {
+            table[i][0] = BigInteger.ONE;
+            table[i][1] = b;
+            for(int j = 2; j < nDigits; j++)
+                table[i][j] = barrett.mulMod(table[i][j-1], b);
+            b = barrett.mulMod(table[i][nDigits-1], b);
+        }
+    }
+    
+    /**
+     * Picks the largest window whose table fits in the memory budget.
+     */
+    static int chooseWindow(int maxBits, int modulusBits) {
+        long entryBytes = modulusBits/8 + 48;    // Rough BigInteger footprint
+        for(int w = MAX_WINDOW; w > MIN_WINDOW; w--) {
+            long nWindows = (maxBits + w - 1)/w;
+            if(nWindows*(1L<<w)*entryBytes <= MAX_TABLE_BYTES)
+                return w;
+        }
+        return MIN_WINDOW;
+    }
+    
+    public BigInteger getBase() {
+        return base;
+    }
+    
+    public BigInteger getModulus() {
+        return modulus;
+    }
+    
+    public int getMaxBits() {
+        return maxBits;
+    }
+    
+    /**
+     * Computes base^e mod modulus. Exponents that are negative or longer than
+     * the table are handed to <code>modPow</code>.
+     */
+    public BigInteger pow(BigInteger e) {
+        if(e.signum() < 0 || e.bitLength() > maxBits)
+            return base.modPow(e, modulus);
+        
+        BigInteger result = null;
+        int nBits = e.bitLength();
+        int mask = (1<<window) - 1;
+        for(int i = 0, bit = 0; bit < nBits; i++, bit += window) {
+            int digit = digit(e, bit) & mask;
+            if(digit == 0)
+                continue;
+            if(result == null)
+                result = table[i][digit];
+            else
+                result = barrett.mulMod(result, table[i][digit]);
+        }
+        
+        return result == null ? BigInteger.ONE.mod(modulus) : result;
+    }
+    
+    /**
+     * Computes base^e mod modulus for a non-negative long exponent. 
+     */
+    public BigInteger pow(long e) {
+        if(e < 0)
+            throw new IllegalArgumentException("Negative exponent!");
+        if(64 - Long.numberOfLeadingZeros(e) > maxBits)
+            return pow(BigInteger.valueOf(e));
+        
+        BigInteger result = null;
+        int mask = (1<<window) - 1;
+        for(int i = 0; e != 0; i++, e >>>= window) {
+            int digit = (int)e & mask;
+            if(digit == 0)
+                continue;
+            if(result == null)
+                result = table[i][digit];
+            else
+                result = barrett.mulMod(result, table[i][digit]);
+        }
+        
+        return result == null ? BigInteger.ONE.mod(modulus) : result;
+    }
+    
+    /**
+     * Returns the (up to 32) bits of e starting at position bit.
+     */
+    private static int digit(BigInteger e, int bit) {
+        int d = 0;
+        int end = Math.min(bit + 32, e.bitLength());
+        for(int i = end - 1; i >= bit; i--) {
+            d <<= 1;
+            if(e.testBit(i)) d |= 1;
+        }
+        return d;
+    }
+    
+    /**
+     * Returns the shared table for (base, modulus) able to handle exponents
+     * of up to maxBits bits, building it if necessary. Returns null if the 
+     * cache is full.
+     */
+    public static FixedBaseExp getInstance(BigInteger base, BigInteger modulus,
+                                           int maxBits) {
+        if(!enabled)
+            return null;
+        Key key = new Key(base, modulus);
+        FixedBaseExp t = cache.get(key);
+        if(t != null && t.maxBits >= maxBits)
+            return t;
+        if(t == null && cache.size() >= MAX_TABLES)
+            return null;
+        
+        t = new FixedBaseExp(base, modulus, maxBits);
+        cache.put(key, t);
+        // Two threads may race to build the same table. Both tables are 
+        // correct so whichever one wins is fine.
+        return t;
+    }
+    
+    /**
+     * Returns the shared table for (base, modulus) if one has already been 
+     * built, without building one.
+     */
+    public static FixedBaseExp lookup(BigInteger base, BigInteger modulus) {
+        if(!enabled)
+            return null;
+        return cache.get(new Key(base, modulus));
+    }
+    
+    /**
+     * Turns the shared tables on or off. While they are off 
+     * {@link #getInstance} and {@link #lookup} return null, so all callers 
+     * fall back to <code>modPow</code>. Tables already built are kept.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Drops all cached tables, e.g. after the system parameters changed.
+     */
+    public static void clearCache() {
+        cache.clear();
+    }
+    
+    private static final class Key {
+        private final BigInteger base;
+        private final BigInteger modulus;
+        
+        Key(BigInteger base, BigInteger modulus) {
+            this.base = base;
+            this.modulus = modulus;
+        }
+        
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return base.equals(k.base) && modulus.equals(k.modulus);
+        }
+        
+        public int hashCode() {
+            return 31*base.hashCode() + modulus.hashCode();
+        }
+    }
+}
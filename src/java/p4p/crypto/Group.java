@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * A cyclic group of prime order q in which the discrete logarithm problem 
+ * is hard. All commitments and ZKPs in this package run over the group 
+ * returned by {@link p4p.util.P4PParameters#getGroup()}. Two 
+ * implementations are provided:
+ * <ul>
+ * <li> {@link ZpGroup}: the order q subgroup of Z_p^* (the original P4P 
+ *      setting).</li>
+ * <li> {@link ECGroup}: a prime order elliptic curve group. At equal 
+ *      security its elements are much smaller and its exponentiations 
+ *      cheaper than those of Z_p^*.</li>
+ * </ul>
+ * Group elements are represented as <code>BigInteger</code>s so that they 
+ * can be stored in {@link Proof}s and hashed like before. What the number 
+ * means is up to the implementation (a residue mod p, a packed point etc.).
+ * Elements must only be combined with the methods of the group they came 
+ * from. The group is written multiplicatively, i.e. <code>exp(a, e)</code> 
+ * is a^e (or e*A on a curve).
+ * <p>
+ * Implementations must be thread-safe.
+ */
+
+public abstract class Group {
+    /**
+     * Returns the (prime) order q of the group.
+     */
+    public abstract BigInteger getOrder();
+    
+    /**
+     * Returns a fixed generator of the group.
+     */
+    public abstract BigInteger getGenerator();
+    
+    public abstract BigInteger identity();
+    
+    /**
+     * Returns a*b.
+     */
+    public abstract BigInteger mul(BigInteger a, BigInteger b);
+    
+    /**
+     * Returns a^-1.
+     */
+    public abstract BigInteger inverse(BigInteger a);
+    
+    /**
+     * Returns a^e. e can be any integer. It is taken mod q.
+     */
+    public abstract BigInteger exp(BigInteger a, BigInteger e);
+    
+    /**
+     * Checks that a represents an element of the group. Elements received 
+     * from other parties must be checked before they are used.
+     */
+    public abstract boolean isElement(BigInteger a);
+    
+    /**
+     * Returns the maximum bit length of the <code>BigInteger</code> 
+     * representing an element. See {@link Transcript}.
+     */
+    public abstract int getElementBitLength();
+    
+    /**
+     * Returns a canonical byte encoding of a.
+     */
+    public abstract byte[] encode(BigInteger a);
+    
+    /**
+     * Inverse of {@link #encode}. 
+     *
+     * @throws IllegalArgumentException if the bytes do not encode an 
+     *         element.
+     */
+    public abstract BigInteger decode(byte[] bytes);
+    
+    /**
+     * Deterministically maps the seed to a group element whose discrete log 
+     * with respect to any other element is unknown.
+     */
+    public abstract BigInteger hashToElement(byte[] seed);
+    
+    /**
+     * Tells the group that <code>base</code> will be exponentiated many 
+     * times so it may precompute tables for it. The default does nothing.
+     */
+    public void precompute(BigInteger base) {}
+    
+    /**
+     * Returns the inverses of the xs. The default uses Montgomery's trick 
+     * (see {@link p4p.util.Util#batchModInverse}), i.e. a single call to 
+     * {@link #inverse} and 3(n-1) multiplications.
+     */
+    public BigInteger[] batchInverse(BigInteger[] xs) {
+        int n = xs.length;
+        BigInteger[] inv = new BigInteger[n];
+        if(n == 0)
+            return inv;
+        
+        BigInteger[] prefix = new BigInteger[n];
+        prefix[0] = xs[0];
+        for(int i = 1; i < n; i++)
+            prefix[i] = mul(prefix[i-1], xs[i]);
+        
+        BigInteger t = inverse(prefix[n-1]);
+        for(int i = n - 1; i > 0; i--) {
+            inv[i] = mul(t, prefix[i-1]);
+            t = mul(t, xs[i]);
+        }
+        inv[0] = t;
+        return inv;
+    }
+    
+    /**
+     * Returns a/b.
+     */
+    public BigInteger divide(BigInteger a, BigInteger b) {
+        return mul(a, inverse(b));
+    }
+    
+    /**
+     * Returns prod{bases[i]^exps[i]}. Implementations should override this 
+     * with a simultaneous method.
+     */
+    public BigInteger multiExp(BigInteger[] bases, BigInteger[] exps) {
+        if(bases.length != exps.length)
+            throw new IllegalArgumentException("Number of bases and exponents" 
+                                               + " do not agree!");
+        BigInteger r = identity();
+        for(int i = 0; i < bases.length; i++)
+            r = mul(r, exp(bases[i], exps[i]));
+        return r;
+    }
+    
+    /**
+     * Returns prod{xs[i]}.
+     */
+    public BigInteger product(BigInteger[] xs) {
+        BigInteger r = identity();
+        for(int i = 0; i < xs.length; i++)
+            r = mul(r, xs[i]);
+        return r;
+    }
+    
+    /**
+     * Returns prod{xs[i]^(2^i)}, using Horner's rule.
+     */
+    public BigInteger radix2Product(BigInteger[] xs) {
+        if(xs.length == 0)
+            return identity();
+        BigInteger r = xs[xs.length-1];
+        for(int i = xs.length - 2; i >= 0; i--)
+            r = mul(mul(r, r), xs[i]);
+        return r;
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+
+import net.i2p.util.NativeBigInteger;
+
+import p4p.util.Util;
+
+/**
+ * An unbounded sequence of generators derived from a hash: the i-th 
+ * generator is {@link Group#hashToElement}(label || g || i), where g is the
+ * group's generator. Nobody knows the discrete logarithms between them, as
+ * Pedersen vector commitments require, and any party that knows the group 
+ * derives the same generators without communication.
+ * <p>
+ * Generators are only derived when they are first asked for and are then 
+ * kept, so an application pays for as many as the largest dimension it 
+ * commits to. The cache is a list of fixed-size pages that grows on demand.
+ * Readers don't lock: the entries are immutable and racing threads derive 
+ * the same value. Large ranges are derived by several threads, which 
+ * matters for Schnorr groups where hashing into the subgroup costs an 
+ * exponentiation by the (long) cofactor.
+ */
+
+public class HashedGenerators {
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1<<PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    
+    /**
+     * The number of threads deriving a large range of generators, from 
+     * <code>p4p.generators.threads</code> (default: the number of 
+     * processors).
+     */
+    private static final int THREADS = 
+        Math.max(1, Integer.getInteger("p4p.generators.threads", 
+                                       Runtime.getRuntime().availableProcessors()));
+    
+    private final Group group;
+    private final byte[] prefix;            // label || encode(g)
+    private volatile NativeBigInteger[][] pages = new NativeBigInteger[0][];
+    
+    /**
+     * Creates the sequence for the given group. Different labels give 
+     * independent sequences.
+     */
+    public HashedGenerators(Group group, String label) {
+        this.group = group;
+        byte[] l;
+        try {
+            // Not the platform charset: all parties must derive the same 
+            // generators.
+            l = label.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not available", e);
+        }
+        byte[] g = group.encode(group.getGenerator());
+        prefix = new byte[l.length + g.length];
+        System.arraycopy(l, 0, prefix, 0, l.length);
+        System.arraycopy(g, 0, prefix, l.length, g.length);
+    }
+    
+    public Group getGroup() {
+        return group;
+    }
+    
+    /**
+     * Returns the i-th generator.
+     */
+    public NativeBigInteger get(int i) {
+        if(i < 0)
+            throw new IllegalArgumentException("Negative index: " + i);
+        NativeBigInteger[] page = page(i>>>PAGE_BITS);
+        NativeBigInteger x = page[i&PAGE_MASK];
+        if(x == null) {
+            x = derive(i);
+            page[i&PAGE_MASK] = x;
+        }
+        return x;
+    }
+    
+    /**
+     * Returns generators from, from+1, ..., from+n-1.
+     */
+    public NativeBigInteger[] get(final int from, int n) {
+        if(from < 0 || n < 0 || from + n < 0)
+            throw new IllegalArgumentException("Bad range: " + from + ", " + n);
+        final NativeBigInteger[] v = new NativeBigInteger[n];
+        int nThreads = Math.min(THREADS, n/PAGE_SIZE);
+        if(nThreads > 1) {
+            page((from + n - 1)>>>PAGE_BITS);
+            // Stripes of pages so the threads don't share cache lines:
+            final int stride = nThreads;
+            Thread[] threads = new Thread[nThreads - 1];
+            for(int t = 1; t < nThreads; t++) {
+                final int first = t;
+                threads[t-1] = new Thread("HashedGenerators-" + t) {
+                        public void run() {
+                            fill(v, from, first, stride);
+                        }
+                    };
+                threads[t-1].start();
+            }
+            fill(v, from, 0, stride);
+            for(int t = 0; t < threads.length; t++) {
+                try {
+                    threads[t].join();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        // Anything a failed or interrupted thread left out:
+        for(int i = 0; i < n; i++)
+            if(v[i] == null)
+                v[i] = get(from + i);
+        return v;
+    }
+    
+    /**
+     * Sets v[i] = get(from + i) for every stride-th block of PAGE_SIZE 
+     * entries of v, starting with block first.
+     */
+    private void fill(NativeBigInteger[] v, int from, int first, int stride) {
+        for(int b = first*PAGE_SIZE; b < v.length; b += stride*PAGE_SIZE) {
+            int end = Math.min(b + PAGE_SIZE, v.length);
+            for(int i = b; i < end; i++)
+                v[i] = get(from + i);
+        }
+    }
+    
+    /**
+     * Puts g[j] in the cache as generator from + j, e.g. generators read 
+     * from a file. The caller vouches that they are the ones 
+     * {@link #derive} would compute.
+     */
+    public void preload(int from, NativeBigInteger[] g) {
+        for(int j = 0; j < g.length; j++)
+            page((from + j)>>>PAGE_BITS)[(from + j)&PAGE_MASK] = g[j];
+    }
+    
+    /**
+     * Returns n such that generators 0, ..., n-1 are all in the cache.
+     */
+    public int getCachedPrefix() {
+        NativeBigInteger[][] ps = pages;
+        for(int i = 0; i < ps.length; i++)
+            for(int j = 0; j < PAGE_SIZE; j++)
+                if(ps[i][j] == null)
+                    return i*PAGE_SIZE + j;
+        return ps.length*PAGE_SIZE;
+    }
+    
+    /**
+     * Computes the i-th generator without looking at the cache.
+     */
+    public NativeBigInteger derive(int i) {
+        byte[] seed = new byte[prefix.length + 4];
+        System.arraycopy(prefix, 0, seed, 0, prefix.length);
+        Util.bytesFromInt(seed, prefix.length, i);
+        return new NativeBigInteger(group.hashToElement(seed));
+    }
+    
+    /**
+     * Returns the number of generators derived so far (counting those 
+     * derived twice by racing threads once).
+     */
+    public int size() {
+        NativeBigInteger[][] ps = pages;
+        int n = 0;
+        for(int i = 0; i < ps.length; i++)
+            for(int j = 0; j < PAGE_SIZE; j++)
+                if(ps[i][j] != null)
+                    n++;
+        return n;
+    }
+    
+    /**
+     * Checks that two sequences agree, that the generators are distinct 
+     * group elements and times their derivation.
+     */
+    public static void main(String[] args) {
+        int k = 1024;
+        int n = 10000;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 1024;
+                    }
+                }
+                else if(arg.equals("-N")) {
+                    try {
+                        n = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        n = 10000;
+                    }
+                }
+            }
+        }
+        
+        p4p.util.P4PParameters.initialize(k, false);
+        Group group = p4p.util.P4PParameters.getGroup();
+        HashedGenerators a = new HashedGenerators(group, "test");
+        HashedGenerators b = new HashedGenerators(group, "test");
+        
+        long start = System.currentTimeMillis();
+        NativeBigInteger[] g = a.get(0, n);
+        long time = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        a.get(0, n);
+        long cached = System.currentTimeMillis() - start;
+        
+        int nFailed = 0;
+        java.util.HashSet<BigInteger> seen = new java.util.HashSet<BigInteger>();
+        for(int i = 0; i < n; i++) {
+            if(!group.isElement(g[i]) || g[i].equals(group.identity())
+               || !seen.add(g[i]))
+                nFailed++;
+        }
+        for(int i = 0; i < n; i += Math.max(1, n/100)) {
+            if(!b.get(i).equals(g[i]))
+                nFailed++;
+        }
+        if(new HashedGenerators(group, "other").get(0).equals(g[0]))
+            nFailed++;
+        if(a.size() != n)
+            nFailed++;
+        
+        System.out.println(n + " generators took " + time + " ms, " + cached 
+                           + " ms from the cache");
+        System.out.println("Total failed: " + nFailed);
+    }
+    
+    private NativeBigInteger[] page(int k) {
+        NativeBigInteger[][] ps = pages;
+        if(k < ps.length)
+            return ps[k];
+        synchronized(this) {
+            ps = pages;
+            if(k >= ps.length) {
+                NativeBigInteger[][] more = 
+                    new NativeBigInteger[Math.max(k + 1, 2*ps.length)][];
+                System.arraycopy(ps, 0, more, 0, ps.length);
+                for(int i = ps.length; i < more.length; i++)
+                    more[i] = new NativeBigInteger[PAGE_SIZE];
+                pages = more;
+                ps = more;
+            }
+            return ps[k];
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Modular arithmetic for a fixed odd modulus m (our p) in Montgomery form. 
+ * <p>
+ * A residue x is represented by xR mod m where R = 2^(32n) and n is the 
+ * number of 32-bit limbs of m. Values are kept in little-endian 
+ * <code>int[]</code> limb arrays which the caller allocates once (with 
+ * {@link #newElement()}) and reuses, so a chain of multiplications allocates
+ * nothing and never divides. Conversion to and from <code>BigInteger</code> 
+ * only happens at the API boundary. The multiplication is the CIOS method 
+ * from
+ * <p>
+ *    <i>Cetin Kaya Koc, Tolga Acar and Burton S. Kaliski Jr., Analyzing and
+ *    Comparing Montgomery Multiplication Algorithms, IEEE Micro, Volume 16, 
+ *    Number 3, 1996, Page 26.</i>
+ * <p>
+ * Output arrays may be the same as the input arrays.
+ * <p>
+ * Instances keep scratch space and are <b>not</b> thread-safe. They are 
+ * cheap to create so each thread should use its own.
+ */
+
+public final class MontgomeryContext {
+    private static final long MASK = 0xffffffffL;
+    
+    private final BigInteger modulus;
+    private final int n;                 // Number of limbs
+    private final int[] m;               // The modulus
+    private final int mInv;              // -m^-1 mod 2^32
+    private final int[] r2;              // R^2 mod m, i.e. R in Montgomery form
+    private final int[] one;             // The plain number 1
+    
+    private final long[] t;              // Scratch space for mul
+    private final int[][] rPowers = new int[64][];
+    
+    public MontgomeryContext(BigInteger modulus) {
+        if(modulus.signum() <= 0 || !modulus.testBit(0))
+            throw new IllegalArgumentException("Modulus must be odd and " 
+                                               + "positive!");
+        this.modulus = modulus;
+        this.n = (modulus.bitLength() + 31)/32;
+        this.m = toLimbs(modulus);
+        
+        // Newton iteration for m[0]^-1 mod 2^32. Each step doubles the 
+        // number of correct bits:
+        int x = m[0];
+        for(int i = 0; i < 5; i++)
+            x *= 2 - m[0]*x;
+        this.mInv = -x;
+        
+        this.r2 = toLimbs(BigInteger.ONE.shiftLeft(64*n).mod(modulus));
+        this.one = new int[n];
+        this.one[0] = 1;
+        this.t = new long[n+1];
+        this.rPowers[1] = r2;
+    }
+    
+    public BigInteger getModulus() {
+        return modulus;
+    }
+    
+    /**
+     * Allocates an element.
+     */
+    public int[] newElement() {
+        return new int[n];
+    }
+    
+    /**
+     * Converts x into Montgomery form.
+     */
+    public int[] toMontgomery(BigInteger x) {
+        int[] a = toLimbs(x.signum() < 0 || x.compareTo(modulus) >= 0 
+                          ? x.mod(modulus) : x);
+        mul(a, r2, a);
+        return a;
+    }
+    
+    /**
+     * Converts x into Montgomery form, storing the result in out.
+     */
+    public void toMontgomery(BigInteger x, int[] out) {
+        int[] a = toMontgomery(x);
+        System.arraycopy(a, 0, out, 0, n);
+    }
+    
+    /**
+     * Converts a from Montgomery form back to a <code>BigInteger</code>.
+     */
+    public BigInteger fromMontgomery(int[] a) {
+        int[] b = new int[n];
+        mul(a, one, b);
+        return toBigInteger(b);
+    }
+    
+    /**
+     * out = a*b (in Montgomery form, i.e. abR^-1 mod m).
+     */
+    public void mul(int[] a, int[] b, int[] out) {
+        final long[] t = this.t;
+        final int[] m = this.m;
+        final int n = this.n;
+        for(int i = 0; i <= n; i++)
+            t[i] = 0;
+        
+        for(int i = 0; i < n; i++) {
+            // t = (t + a[i]*b + u*m)/2^32, with u chosen so that the low 
+            // limb vanishes. Both products are accumulated in one pass.
+            long ai = a[i] & MASK;
+            long s = t[0] + ai*(b[0] & MASK);
+            long c1 = s >>> 32;
+            long u = ((int)s*mInv) & MASK;
+            long s2 = (s & MASK) + u*(m[0] & MASK);
+            long c2 = s2 >>> 32;
+            for(int j = 1; j < n; j++) {
+                s = t[j] + ai*(b[j] & MASK) + c1;
+                c1 = s >>> 32;
+                s2 = (s & MASK) + u*(m[j] & MASK) + c2;
+                t[j-1] = s2 & MASK;
+                c2 = s2 >>> 32;
+            }
+            s = t[n] + c1 + c2;
+            t[n-1] = s & MASK;
+            t[n] = s >>> 32;
+        }
+        
+        // t < 2m. Subtract m if t >= m:
+        boolean geq = t[n] != 0;
+        if(!geq) {
+            geq = true;
+            for(int j = n - 1; j >= 0; j--) {
+                long mj = m[j] & MASK;
+                if(t[j] != mj) {
+                    geq = t[j] > mj;
+                    break;
+                }
+            }
+        }
+        if(geq) {
+            long borrow = 0;
+            for(int j = 0; j < n; j++) {
+                long s = t[j] - (m[j] & MASK) - borrow;
+                out[j] = (int)s;
+                borrow = (s >>> 63);
+            }
+        }
+        else {
+            for(int j = 0; j < n; j++)
+                out[j] = (int)t[j];
+        }
+    }
+    
+    /**
+     * out = a + b mod m. Works for both plain and Montgomery form.
+     */
+    public void add(int[] a, int[] b, int[] out) {
+        long c = 0;
+        for(int j = 0; j < n; j++) {
+            c += (a[j] & MASK) + (b[j] & MASK);
+            out[j] = (int)c;
+            c >>>= 32;
+        }
+        if(c != 0 || !less(out, m))
+            subtractModulus(out);
+    }
+    
+    /**
+     * out = a - b mod m. Works for both plain and Montgomery form.
+     */
+    public void sub(int[] a, int[] b, int[] out) {
+        long borrow = 0;
+        for(int j = 0; j < n; j++) {
+            long s = (a[j] & MASK) - (b[j] & MASK) - borrow;
+            out[j] = (int)s;
+            borrow = s >>> 63;
+        }
+        if(borrow != 0) {
+            long c = 0;
+            for(int j = 0; j < n; j++) {
+                c += (out[j] & MASK) + (m[j] & MASK);
+                out[j] = (int)c;
+                c >>>= 32;
+            }
+        }
+    }
+    
+    public boolean isZero(int[] a) {
+        for(int j = 0; j < n; j++) {
+            if(a[j] != 0)
+                return false;
+        }
+        return true;
+    }
+    
+    public void setZero(int[] a) {
+        for(int j = 0; j < n; j++)
+            a[j] = 0;
+    }
+    
+    /**
+     * Sets out to 1 in Montgomery form, i.e. R mod m.
+     */
+    public void setOne(int[] out) {
+        mul(one, r2, out);
+    }
+    
+    private static boolean less(int[] a, int[] b) {
+        for(int j = a.length - 1; j >= 0; j--) {
+            if(a[j] != b[j])
+                return (a[j] & MASK) < (b[j] & MASK);
+        }
+        return false;
+    }
+    
+    private void subtractModulus(int[] a) {
+        long borrow = 0;
+        for(int j = 0; j < n; j++) {
+            long s = (a[j] & MASK) - (m[j] & MASK) - borrow;
+            a[j] = (int)s;
+            borrow = s >>> 63;
+        }
+    }
+    
+    /**
+     * out = a^2 (in Montgomery form).
+     */
+    public void sqr(int[] a, int[] out) {
+        mul(a, a, out);
+    }
+    
+    /**
+     * out = a^e (in Montgomery form) using a sliding window. e must be 
+     * non-negative.
+     */
+    public void exp(int[] a, BigInteger e, int[] out) {
+        if(e.signum() < 0)
+            throw new IllegalArgumentException("Negative exponent!");
+        
+        int nBits = e.bitLength();
+        if(nBits == 0) {
+            setOne(out);
+            return;
+        }
+        
+        int w = MultiExp.windowSize(nBits);
+        // Odd powers a, a^3, ..., a^(2^w - 1):
+        int[][] odd = new int[1<<(w-1)][];
+        odd[0] = a.clone();
+        int[] a2 = new int[n];
+        sqr(a, a2);
+        for(int j = 1; j < odd.length; j++) {
+            odd[j] = new int[n];
+            mul(odd[j-1], a2, odd[j]);
+        }
+        
+        int[] d = MultiExp.slidingWindow(e, w, nBits);
+        boolean started = false;
+        for(int k = nBits - 1; k >= 0; k--) {
+            if(started)
+                sqr(out, out);
+            if(d[k] != 0) {
+                if(started)
+                    mul(out, odd[d[k]>>1], out);
+                else {
+                    System.arraycopy(odd[d[k]>>1], 0, out, 0, n);
+                    started = true;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Computes x^e mod m.
+     */
+    public BigInteger modPow(BigInteger x, BigInteger e) {
+        int[] a = toMontgomery(x);
+        exp(a, e, a);
+        return fromMontgomery(a);
+    }
+    
+    /**
+     * Computes prod{xs[i]} mod m. The factors are multiplied without being
+     * converted into Montgomery form, which leaves a factor of R^-(k-1) for 
+     * k factors. It is removed at the end with a single multiplication by 
+     * R^(k-1), which is cached for short chains. All xs[i] should be 
+     * in [0, m).
+     */
+    public BigInteger product(BigInteger[] xs) {
+        int k = xs.length;
+        if(k == 0)
+            return BigInteger.ONE.mod(modulus);
+        
+        int[] acc = toLimbs(reduce(xs[0]));
+        if(k == 1)
+            return toBigInteger(acc);
+        
+        int[] x = new int[n];
+        for(int i = 1; i < k; i++) {
+            toLimbs(reduce(xs[i]), x);
+            mul(acc, x, acc);
+        }
+        
+        mul(acc, rPower(k - 1), acc);
+        return toBigInteger(acc);
+    }
+    
+    /**
+     * R^j in Montgomery form (i.e. R^(j+1) mod m). The small powers, which 
+     * is what short product chains need, are cached.
+     */
+    private int[] rPower(int j) {
+        if(j >= rPowers.length) {
+            int[] c = new int[n];
+            exp(r2, BigInteger.valueOf(j), c);
+            return c;
+        }
+        if(rPowers[j] == null) {
+            int[] c = new int[n];
+            mul(rPower(j - 1), r2, c);
+            rPowers[j] = c;
+        }
+        return rPowers[j];
+    }
+    
+    /**
+     * Computes a*b mod m.
+     */
+    public BigInteger mulMod(BigInteger a, BigInteger b) {
+        int[] x = toLimbs(reduce(a));
+        int[] y = toLimbs(reduce(b));
+        mul(x, y, x);           // abR^-1
+        mul(x, r2, x);          // ab
+        return toBigInteger(x);
+    }
+    
+    private BigInteger reduce(BigInteger x) {
+        return x.signum() < 0 || x.compareTo(modulus) >= 0 
+            ? x.mod(modulus) : x;
+    }
+    
+    /**
+     * The limbs of x, which must be non-negative and fit in n limbs.
+     */
+    private int[] toLimbs(BigInteger x) {
+        int[] a = new int[n];
+        toLimbs(x, a);
+        return a;
+    }
+    
+    private void toLimbs(BigInteger x, int[] a) {
+        byte[] bytes = x.toByteArray();       // Big-endian
+        for(int j = 0; j < n; j++)
+            a[j] = 0;
+        for(int i = 0; i < bytes.length && i < 4*n; i++) {
+            int b = bytes[bytes.length - 1 - i] & 0xff;
+            a[i>>2] |= b << (8*(i & 3));
+        }
+    }
+    
+    private BigInteger toBigInteger(int[] a) {
+        byte[] bytes = new byte[4*n + 1];     // Leading 0 for the sign
+        for(int j = 0; j < n; j++) {
+            int v = a[j];
+            int off = 4*n - 4*j;
+            bytes[off]   = (byte)v;
+            bytes[off-1] = (byte)(v >>> 8);
+            bytes[off-2] = (byte)(v >>> 16);
+            bytes[off-3] = (byte)(v >>> 24);
+        }
+        return new BigInteger(bytes);
+    }
+    
+    /**
+     * Checks the arithmetic against <code>BigInteger</code> and times a 
+     * chain of multiplications.
+     */
+    public static void main(String[] args) {
+        int k = 1024;
+        int nLoops = 1000;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 1024;
+                    }
+                }
+                else if(arg.equals("-l")) {
+                    try {
+                        nLoops = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        nLoops = 1000;
+                    }
+                }
+            }
+        }
+        
+        java.util.Random rand = new java.util.Random();
+        BigInteger m = new BigInteger(k, rand).setBit(k-1).setBit(0);
+        MontgomeryContext mc = new MontgomeryContext(m);
+        
+        BigInteger[] x = new BigInteger[nLoops];
+        for(int i = 0; i < nLoops; i++)
+            x[i] = new BigInteger(k, rand).mod(m);
+        BigInteger e = new BigInteger(k, rand);
+        
+        int nfails = 0;
+        if(!mc.modPow(x[0], e).equals(x[0].modPow(e, m)))
+            nfails++;
+        if(!mc.mulMod(x[1], x[2]).equals(x[1].multiply(x[2]).mod(m)))
+            nfails++;
+        if(!mc.mulMod(m.subtract(BigInteger.ONE), m.subtract(BigInteger.ONE))
+           .equals(BigInteger.ONE))
+            nfails++;
+        
+        long start = System.nanoTime();
+        BigInteger prod = BigInteger.ONE;
+        for(int i = 0; i < nLoops; i++)
+            prod = prod.multiply(x[i]).mod(m);
+        long t1 = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        if(!mc.product(x).equals(prod))
+            nfails++;
+        long t2 = System.nanoTime() - start;
+        
+        System.out.println("Total failed tests: " + nfails);
+        System.out.println("Product of " + nLoops + " numbers: multiply/mod " 
+                           + (double)t1/1000000.0 + " ms, Montgomery " 
+                           + (double)t2/1000000.0 + " ms");
+    }
+}
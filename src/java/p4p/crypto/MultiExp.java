@@ -0,0 +1,568 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import net.i2p.util.NativeBigInteger;
+
+import p4p.util.Util;
+
+/**
+ * Simultaneous multi-base exponentiation, i.e. computing 
+ * <p>
+ *     b_1^e_1 * b_2^e_2 * ... * b_n^e_n mod m
+ * <p>
+ * as one operation. The Pedersen-style products g^a*h^r, A^x*h^rb etc. are
+ * the most frequent operations in both the prover and the verifiers. 
+ * <p>
+ * Each base is routed to the cheapest engine available for it:
+ * <ul>
+ * <li> Bases that already have a shared {@link FixedBaseExp} table (g and h)
+ *      use the table, which needs no squarings at all.</li>
+ * <li> The remaining (variable) bases are exponentiated together with 
+ *      Straus' interleaving method (a.k.a. Shamir's trick), which shares
+ *      one chain of squarings among all of them:
+ *      <p>
+ *      <i>E. G. Straus, Addition chains of vectors (problem 5125), American
+ *      Mathematical Monthly, Volume 71, 1964, Page 806.</i>
+ *      <p>
+ *      Note that <code>BigInteger.modPow</code> runs on the JVM's Montgomery
+ *      multiplication intrinsics, which are about three times faster than
+ *      anything we can do with <code>BigInteger.multiply</code> in Java. So 
+ *      with only a few variable bases, separate <code>modPow</code> calls 
+ *      are still faster and are used instead. The cut-over is 
+ *      {@link #getStrausThreshold()} variable bases (system property
+ *      <code>p4p.multiexp.strausThreshold</code>).</li>
+ * <li> For large sets of bases (vector commitments over thousands of 
+ *      generators) the bucket method is used instead, which needs about
+ *      bits/c multiplications per base instead of Straus' bits/(w+1) + 
+ *      2^(w-1):
+ *      <p>
+ *      <i>Nicholas Pippenger, On the evaluation of powers and monomials, 
+ *      SIAM Journal on Computing, Volume 9, Number 2, 1980, Page 230.</i>
+ *      <p>
+ *      The choice between the two is made by comparing their estimated
+ *      number of multiplications.</li>
+ * </ul>
+ * If the modPow engine chosen for the exponents' length can take a whole 
+ * batch in one native call (see {@link NativeBigInteger#isNativeBatch(int)}),
+ * all the variable bases are instead handed to GMP at once.
+ * <p>
+ * {@link #radix2Product} handles the special case prod{b_i^(2^i)} that 
+ * appears when recombining bit commitments.
+ * All methods are static and thread-safe.
+ */
+
+public final class MultiExp {
+    private static volatile int strausThreshold = 
+        Integer.getInteger("p4p.multiexp.strausThreshold", 6).intValue();
+    
+    private MultiExp() {}
+    
+    public static int getStrausThreshold() {
+        return strausThreshold;
+    }
+    
+    /**
+     * Sets the minimum number of variable bases for which Straus' method is 
+     * used instead of separate <code>modPow</code> calls.
+     */
+    public static void setStrausThreshold(int n) {
+        strausThreshold = Math.max(n, 2);
+    }
+    
+    /**
+     * Computes b1^e1 * b2^e2 mod m.
+     */
+    public static BigInteger pow2(BigInteger b1, BigInteger e1, 
+                                  BigInteger b2, BigInteger e2, BigInteger m) {
+        return simultaneous(new BigInteger[] {b1, b2}, 
+                            new BigInteger[] {e1, e2}, m);
+    }
+
+    /**
+     * Computes prod{bases[i]^exps[i]} mod m.
+     */
+    public static BigInteger simultaneous(BigInteger[] bases, BigInteger[] exps,
+                                          BigInteger m) {
+        if(bases.length != exps.length)
+            throw new IllegalArgumentException("Number of bases and exponents" 
+                                               + " do not agree!");
+        BigInteger result = null;
+        
+        // First the bases with precomputed tables:
+        boolean[] done = new boolean[bases.length];
+        int nVariable = 0;
+        BigInteger longest = BigInteger.ZERO;
+        for(int i = 0; i < bases.length; i++) {
+            if(exps[i].signum() == 0) {
+                done[i] = true;
+                continue;
+            }
+            FixedBaseExp t = FixedBaseExp.lookup(bases[i], m);
+            if(t != null && exps[i].signum() > 0 
+               && exps[i].bitLength() <= t.getMaxBits()) {
+                result = multiply(result, t.pow(exps[i]), m);
+                done[i] = true;
+            }
+            else {
+                nVariable++;
+                if(exps[i].bitLength() > longest.bitLength())
+                    longest = exps[i];
+            }
+        }
+        
+        if(nVariable == 0)
+            return result == null ? BigInteger.ONE.mod(m) : result;
+
+        // Then the rest:
+        if(NativeBigInteger.isNativeBatch(
+               NativeBigInteger.operationClass(longest, m))) {
+            // GMP is faster than anything we can do in Java (unless the 
+            // calibration said otherwise) and the whole batch is a single 
+            // native call:
+            BigInteger[] b = new BigInteger[nVariable];
+            BigInteger[] e = new BigInteger[nVariable];
+            for(int i = 0, j = 0; i < bases.length; i++) {
+                if(!done[i]) {
+                    b[j] = bases[i];
+                    e[j++] = exps[i];
+                }
+            }
+            return multiply(result, NativeBigInteger.multiExp(b, e, m), m);
+        }
+        
+        if(nVariable < strausThreshold) {
+            for(int i = 0; i < bases.length; i++) {
+                if(!done[i])
+                    result = multiply(result, bases[i].modPow(exps[i], m), m);
+            }
+            return result;
+        }
+        
+        BigInteger[] b = new BigInteger[nVariable];
+        BigInteger[] e = new BigInteger[nVariable];
+        int nNegative = 0;
+        for(int i = 0, j = 0; i < bases.length; i++) {
+            if(done[i])
+                continue;
+            b[j] = bases[i].mod(m);
+            e[j++] = exps[i];
+            if(exps[i].signum() < 0)
+                nNegative++;
+        }
+        if(nNegative > 0) {
+            // b^-e = (b^-1)^e. Invert all the bases at once:
+            BigInteger[] neg = new BigInteger[nNegative];
+            for(int j = 0, k = 0; j < nVariable; j++) {
+                if(e[j].signum() < 0)
+                    neg[k++] = b[j];
+            }
+            neg = Util.batchModInverse(neg, m);
+            for(int j = 0, k = 0; j < nVariable; j++) {
+                if(e[j].signum() < 0) {
+                    b[j] = neg[k++];
+                    e[j] = e[j].negate();
+                }
+            }
+        }
+        
+        BigInteger prod;
+        int nBits = maxBits(e);
+        if(pippengerCost(nVariable, nBits) < strausCost(nVariable, nBits))
+            prod = pippenger(b, e, new Barrett(m));
+        else
+            prod = straus(b, e, new Barrett(m));
+        return multiply(result, prod, m);
+    }
+    
+    /**
+     * Computes prod{bases[i]^(2^i)} mod m using Horner's rule, i.e. 
+     * (...((b_(n-1))^2*b_(n-2))^2...)^2*b_0. This takes n-1 squarings and 
+     * n-1 multiplications whereas computing each term separately takes 
+     * n*(n-1)/2 squarings.
+     */
+    public static BigInteger radix2Product(BigInteger[] bases, BigInteger m) {
+        if(bases.length == 0)
+            return BigInteger.ONE.mod(m);
+        
+        Barrett barrett = new Barrett(m);
+        BigInteger acc = bases[bases.length-1].mod(m);
+        for(int i = bases.length - 2; i >= 0; i--)
+            acc = barrett.mulMod(barrett.squareMod(acc), bases[i].mod(m));
+        return acc;
+    }
+    
+    private static BigInteger multiply(BigInteger a, BigInteger b, 
+                                       BigInteger m) {
+        return a == null ? b : a.multiply(b).mod(m);
+    }
+    
+    /**
+     * Straus' interleaved sliding-window exponentiation. All bases must be 
+     * in [0, m) and all exponents non-negative.
+     */
+    public static BigInteger straus(BigInteger[] bases, BigInteger[] exps, 
+                                    Barrett barrett) {
+        int n = bases.length;
+        int maxBits = maxBits(exps);
+        if(maxBits == 0)
+            return BigInteger.ONE.mod(barrett.getModulus());
+        
+        int w = windowSize(maxBits);
+        
+        // Odd powers b, b^3, b^5, ..., b^(2^w - 1) of each base:
+        BigInteger[][] odd = new BigInteger[n][1<<(w-1)];
+        for(int i = 0; i < n; i++) {
+            odd[i][0] = bases[i];
+            BigInteger b2 = barrett.squareMod(bases[i]);
+            for(int j = 1; j < odd[i].length; j++)
+                odd[i][j] = barrett.mulMod(odd[i][j-1], b2);
+        }
+        
+        // digits[i][k] != 0 iff a window of exps[i] ends (LSB) at bit k:
+        int[][] digits = new int[n][];
+        for(int i = 0; i < n; i++)
+            digits[i] = slidingWindow(exps[i], w, maxBits);
+        
+        BigInteger acc = null;
+        for(int k = maxBits - 1; k >= 0; k--) {
+            if(acc != null)
+                acc = barrett.squareMod(acc);
+            for(int i = 0; i < n; i++) {
+                int d = digits[i][k];
+                if(d == 0)
+                    continue;
+                BigInteger t = odd[i][d>>1];
+                acc = acc == null ? t : barrett.mulMod(acc, t);
+            }
+        }
+        
+        return acc == null ? BigInteger.ONE.mod(barrett.getModulus()) : acc;
+    }
+    
+    /**
+     * Pippenger's bucket method. All bases must be in [0, m) and all 
+     * exponents non-negative.
+     */
+    public static BigInteger pippenger(BigInteger[] bases, BigInteger[] exps,
+                                       Barrett barrett) {
+        int n = bases.length;
+        int nBits = maxBits(exps);
+        if(nBits == 0)
+            return BigInteger.ONE.mod(barrett.getModulus());
+        
+        int c = pippengerWindow(n, nBits);
+        int nWindows = (nBits + c - 1)/c;
+        BigInteger[] buckets = new BigInteger[1<<c];
+        
+        BigInteger acc = null;
+        for(int w = nWindows - 1; w >= 0; w--) {
+            if(acc != null) {
+                for(int j = 0; j < c; j++)
+                    acc = barrett.squareMod(acc);
+            }
+            
+            // Sort the bases into buckets by their digits in this window:
+            Arrays.fill(buckets, null);
+            for(int i = 0; i < n; i++) {
+                int d = digit(exps[i], w*c, c);
+                if(d == 0)
+                    continue;
+                buckets[d] = buckets[d] == null ? bases[i] 
+                    : barrett.mulMod(buckets[d], bases[i]);
+            }
+            
+            // prod{buckets[d]^d} with running products:
+            BigInteger running = null;
+            BigInteger sum = null;
+            for(int d = buckets.length - 1; d > 0; d--) {
+                if(buckets[d] != null)
+                    running = running == null ? buckets[d] 
+                        : barrett.mulMod(running, buckets[d]);
+                if(running != null)
+                    sum = sum == null ? running : barrett.mulMod(sum, running);
+            }
+            
+            if(sum != null)
+                acc = acc == null ? sum : barrett.mulMod(acc, sum);
+        }
+        
+        return acc == null ? BigInteger.ONE.mod(barrett.getModulus()) : acc;
+    }
+    
+    /**
+     * Bits [from, from+c) of e.
+     */
+    private static int digit(BigInteger e, int from, int c) {
+        int d = 0;
+        for(int k = from + c - 1; k >= from; k--)
+            d = (d<<1) | (e.testBit(k) ? 1 : 0);
+        return d;
+    }
+    
+    private static int maxBits(BigInteger[] exps) {
+        int maxBits = 0;
+        for(int i = 0; i < exps.length; i++)
+            maxBits = Math.max(maxBits, exps[i].bitLength());
+        return maxBits;
+    }
+    
+    /**
+     * Estimated number of modular multiplications.
+     */
+    static long strausCost(int n, int nBits) {
+        int w = windowSize(nBits);
+        return nBits + (long)n*((1<<(w-1)) + nBits/(w+1));
+    }
+    
+    static long pippengerCost(int n, int nBits) {
+        int c = pippengerWindow(n, nBits);
+        return pippengerCost(n, nBits, c);
+    }
+    
+    private static long pippengerCost(int n, int nBits, int c) {
+        long nWindows = (nBits + c - 1)/c;
+        return nWindows*(c + n + (2L<<c));
+    }
+    
+    static int pippengerWindow(int n, int nBits) {
+        int best = 1;
+        for(int c = 2; c <= 16; c++) {
+            if(pippengerCost(n, nBits, c) < pippengerCost(n, nBits, best))
+                best = c;
+        }
+        return best;
+    }
+    
+    /**
+     * Recodes e into odd digits of at most w bits. Returns an array d such
+     * that e = sum{d[k]*2^k} and each non-zero d[k] is odd and less than 2^w.
+     */
+    static int[] slidingWindow(BigInteger e, int w, int nBits) {
+        int[] d = new int[nBits];
+        int j = e.bitLength() - 1;
+        while(j >= 0) {
+            if(!e.testBit(j)) {
+                j--;
+                continue;
+            }
+            int lo = Math.max(j - w + 1, 0);
+            while(!e.testBit(lo))
+                lo++;
+            int digit = 0;
+            for(int k = j; k >= lo; k--)
+                digit = (digit<<1) | (e.testBit(k) ? 1 : 0);
+            d[lo] = digit;
+            j = lo - 1;
+        }
+        return d;
+    }
+    
+    static int windowSize(int bits) {
+        if(bits <= 64)   return 3;
+        if(bits <= 256)  return 4;
+        if(bits <= 1024) return 5;
+        return 6;
+    }
+    
+    /**
+     * Checks {@link #simultaneous}, {@link #straus}, {@link #pippenger} and
+     * {@link #radix2Product} against separate modPow calls for the numbers
+     * of terms and exponent lengths where the methods and their window 
+     * sizes change. About a quarter of the exponents are zero and, for 
+     * simultaneous, another quarter negative. Returns the number of 
+     * failures.
+     */
+    private static int check(BigInteger m, java.util.Random rand) {
+        int nFailed = 0;
+        int[] bitLengths = {1, 64, 65, 256, 257, 1024, 1025};
+        for(int bits : bitLengths) {
+            // The first number of terms for which pippenger is chosen:
+            int crossover = 2;
+            while(crossover < 4096 
+                  && pippengerCost(crossover, bits) >= strausCost(crossover, 
+                                                                 bits))
+                crossover++;
+            int[] counts = {0, 1, 2, strausThreshold - 1, strausThreshold, 
+                            strausThreshold + 1, crossover - 1, crossover, 
+                            crossover + 1};
+            for(int n : counts) {
+                if(n < 0 || n > 600)
+                    continue;
+                BigInteger[] b = new BigInteger[n];
+                BigInteger[] e = new BigInteger[n];
+                BigInteger[] abs = new BigInteger[n];
+                BigInteger expected = BigInteger.ONE.mod(m);
+                BigInteger expectedAbs = expected;
+                for(int i = 0; i < n; i++) {
+                    b[i] = new BigInteger(m.bitLength() + 8, rand).mod(m);
+                    if(b[i].signum() == 0)
+                        b[i] = BigInteger.ONE;
+                    int kind = rand.nextInt(4);
+                    abs[i] = kind == 0 ? BigInteger.ZERO 
+                        : new BigInteger(bits, rand).setBit(bits - 1);
+                    e[i] = kind == 1 ? abs[i].negate() : abs[i];
+                    expected = expected.multiply(b[i].modPow(e[i], m)).mod(m);
+                    expectedAbs = 
+                        expectedAbs.multiply(b[i].modPow(abs[i], m)).mod(m);
+                }
+                
+                if(!simultaneous(b, e, m).equals(expected)) {
+                    System.out.println("simultaneous failed for n = " + n 
+                                       + ", " + bits + " bit exponents");
+                    nFailed++;
+                }
+                if(!straus(b, abs, new Barrett(m)).equals(expectedAbs)) {
+                    System.out.println("straus failed for n = " + n 
+                                       + ", " + bits + " bit exponents");
+                    nFailed++;
+                }
+                if(!pippenger(b, abs, new Barrett(m)).equals(expectedAbs)) {
+                    System.out.println("pippenger failed for n = " + n 
+                                       + ", " + bits + " bit exponents");
+                    nFailed++;
+                }
+            }
+        }
+        
+        int[] lengths = {0, 1, 2, 3, 64};
+        for(int n : lengths) {
+            BigInteger[] z = new BigInteger[n];
+            BigInteger r = BigInteger.ONE.mod(m);
+            for(int i = 0; i < n; i++) {
+                z[i] = new BigInteger(m.bitLength(), rand).mod(m);
+                r = r.multiply(z[i].modPow(BigInteger.ZERO.setBit(i), m))
+                    .mod(m);
+            }
+            if(!radix2Product(z, m).equals(r)) {
+                System.out.println("radix2Product failed for n = " + n);
+                nFailed++;
+            }
+        }
+        return nFailed;
+    }
+    
+    /**
+     * Checks the interleaved exponentiation against separate modPow calls
+     * and times both. 
+     */
+    public static void main(String[] args) {
+        int k = 1024;
+        int nLoops = 20;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 1024;
+                    }
+                }
+                else if(arg.equals("-l")) {
+                    try {
+                        nLoops = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        nLoops = 20;
+                    }
+                }
+            }
+        }
+        
+        java.util.Random rand = new java.util.Random();
+        BigInteger m = new BigInteger(k, rand).setBit(k-1).setBit(0);
+        
+        // A prime modulus so that the bases with negative exponents are 
+        // invertible:
+        int nFailed = check(BigInteger.probablePrime(k, rand), rand);
+        System.out.println("MultiExp: Total failed tests: " + nFailed);
+        
+        for(int n = 1; n <= 4096; n *= 4) {
+            BigInteger[] b = new BigInteger[n];
+            BigInteger[] e = new BigInteger[n];
+            long tStraus = 0;
+            long tPippenger = 0;
+            long tModPow = 0;
+            for(int l = 0; l < nLoops; l++) {
+                for(int i = 0; i < n; i++) {
+                    b[i] = new BigInteger(k, rand).mod(m);
+                    e[i] = new BigInteger(k, rand);
+                }
+                
+                long start = System.nanoTime();
+                BigInteger r1 = straus(b, e, new Barrett(m));
+                tStraus += System.nanoTime() - start;
+                
+                start = System.nanoTime();
+                BigInteger r3 = pippenger(b, e, new Barrett(m));
+                tPippenger += System.nanoTime() - start;
+                
+                start = System.nanoTime();
+                BigInteger r2 = BigInteger.ONE;
+                for(int i = 0; i < n; i++)
+                    r2 = r2.multiply(b[i].modPow(e[i], m)).mod(m);
+                tModPow += System.nanoTime() - start;
+                
+                if(!r1.equals(r2) || !r3.equals(r2)) {
+                    System.out.println("Test failed for n = " + n);
+                    nFailed++;
+                }
+            }
+            System.out.println("n = " + n + ": straus " 
+                               + (double)tStraus/nLoops/1000000.0 
+                               + " ms, pippenger " 
+                               + (double)tPippenger/nLoops/1000000.0 
+                               + " ms, modPow " 
+                               + (double)tModPow/nLoops/1000000.0 + " ms");
+            if(n > 16)
+                nLoops = Math.max(nLoops/4, 1);
+        }
+        
+        BigInteger[] z = new BigInteger[64];
+        BigInteger r = BigInteger.ONE;
+        for(int i = 0; i < z.length; i++) {
+            z[i] = new BigInteger(k, rand).mod(m);
+            r = r.multiply(z[i].modPow(BigInteger.ZERO.setBit(i), m)).mod(m);
+        }
+        if(!radix2Product(z, m).equals(r)) {
+            System.out.println("radix2Product test failed");
+            nFailed++;
+        }
+        System.out.println("Total failed tests: " + nFailed);
+    }
+}
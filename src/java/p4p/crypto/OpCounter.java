@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Counts the group operations done by the {@link Group} implementations and
+ * the Fiat-Shamir hashes done by {@link Transcript}, so that a change that 
+ * adds exponentiations shows up in the counts even when the JIT or the 
+ * native library hide it in the timings. Everything in P4P that computes 
+ * with group elements (the commitments, the proofs, the user vectors and 
+ * the server) goes through a <code>Group</code>, so the counts are 
+ * complete and deterministic for a given input.
+ * <p>
+ * Exponentiations are split by whether the group had a fixed-base table 
+ * for the base (see {@link Group#precompute}) and by the bit length of the 
+ * exponent. A multi-exponentiation with n terms counts once as such and n 
+ * times as an exponentiation. Multiplications include those in 
+ * {@link Group#product}, {@link Group#radix2Product} and the default 
+ * {@link Group#batchInverse}.
+ * <p>
+ * Each thread counts into its own array, so counting is a plain increment.
+ * {@link #get} adds up all the threads. Callers that want the cost of some
+ * work take the difference of two snapshots, which includes whatever other 
+ * threads did at the same time. Set <code>p4p.count=false</code> to turn 
+ * counting off.
+ */
+
+public final class OpCounter {
+    public static final int EXP_FIXED = 0;
+    public static final int EXP_VARIABLE = 1;
+    public static final int MULTI_EXP = 2;
+    public static final int MUL = 3;
+    public static final int INVERSE = 4;
+    public static final int HASH = 5;
+    public static final int HASH_TO_GROUP = 6;
+    private static final int N_KINDS = 7;
+    
+    /**
+     * Exponent lengths are counted in buckets (2^(b-1), 2^b] bits.
+     */
+    private static final int N_BUCKETS = 32;
+    private static final int FIXED_BUCKETS = N_KINDS;
+    private static final int VARIABLE_BUCKETS = N_KINDS + N_BUCKETS;
+    private static final int SIZE = N_KINDS + 2*N_BUCKETS;
+    
+    private static volatile boolean enabled = 
+        !"false".equals(System.getProperty("p4p.count"));
+    
+    private static final class Cell {
+        final long[] counts = new long[SIZE];
+        final WeakReference<Thread> owner = 
+            new WeakReference<Thread>(Thread.currentThread());
+    }
+    
+    /**
+     * The cells of the threads that have counted. The counts of finished 
+     * threads are moved to <code>retired</code>. Both are guarded by 
+     * <code>cells</code>.
+     */
+    private static final ArrayList<Cell> cells = new ArrayList<Cell>();
+    private static final long[] retired = new long[SIZE];
+    
+    private static final ThreadLocal<Cell> cell = new ThreadLocal<Cell>() {
+        protected Cell initialValue() {
+            Cell c = new Cell();
+            synchronized(cells) {
+                cells.add(c);
+            }
+            return c;
+        }
+    };
+    
+    private OpCounter() {}
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+    
+    /**
+     * Counts an exponentiation with an exponent of the given length.
+     */
+    public static void exp(boolean fixedBase, int bits) {
+        if(!enabled)
+            return;
+        long[] c = cell.get().counts;
+        c[fixedBase ? EXP_FIXED : EXP_VARIABLE]++;
+        c[(fixedBase ? FIXED_BUCKETS : VARIABLE_BUCKETS) + bucket(bits)]++;
+    }
+    
+    /**
+     * Counts a multi-exponentiation. Its terms must be counted with 
+     * {@link #exp}.
+     */
+    public static void multiExp() {
+        if(enabled)
+            cell.get().counts[MULTI_EXP]++;
+    }
+    
+    public static void mul() {
+        if(enabled)
+            cell.get().counts[MUL]++;
+    }
+    
+    public static void mul(int n) {
+        if(enabled && n > 0)
+            cell.get().counts[MUL] += n;
+    }
+    
+    public static void inverse() {
+        if(enabled)
+            cell.get().counts[INVERSE]++;
+    }
+    
+    public static void hash() {
+        if(enabled)
+            cell.get().counts[HASH]++;
+    }
+    
+    public static void hashToGroup() {
+        if(enabled)
+            cell.get().counts[HASH_TO_GROUP]++;
+    }
+    
+    private static int bucket(int bits) {
+        return bits <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(bits - 1);
+    }
+    
+    /**
+     * Returns the counts of all threads so far.
+     */
+    public static Counts get() {
+        long[] sum = new long[SIZE];
+        synchronized(cells) {
+            for(Iterator<Cell> it = cells.iterator(); it.hasNext(); ) {
+                Cell c = it.next();
+                Thread t = c.owner.get();
+                boolean dead = t == null || !t.isAlive();
+                for(int i = 0; i < SIZE; i++) {
+                    if(dead)
+                        retired[i] += c.counts[i];
+                    else
+                        sum[i] += c.counts[i];
+                }
+                if(dead)
+                    it.remove();
+            }
+            for(int i = 0; i < SIZE; i++)
+                sum[i] += retired[i];
+        }
+        return new Counts(sum);
+    }
+    
+    /**
+     * A snapshot of the counters, or the difference of two.
+     */
+    public static final class Counts {
+        private final long[] counts;
+        
+        private Counts(long[] counts) {
+            this.counts = counts;
+        }
+        
+        /**
+         * Returns the count of one kind, e.g. {@link OpCounter#MUL}.
+         */
+        public long get(int kind) {
+            if(kind < 0 || kind >= N_KINDS)
+                throw new IllegalArgumentException("Unknown kind: " + kind);
+            return counts[kind];
+        }
+        
+        /**
+         * Returns the number of exponentiations with fixed or variable 
+         * bases whose exponents have more than minBits and at most maxBits
+         * bits. The bounds are rounded to powers of two.
+         */
+        public long getExponentiations(boolean fixedBase, int minBits, 
+                                       int maxBits) {
+            int offset = fixedBase ? FIXED_BUCKETS : VARIABLE_BUCKETS;
+            long n = 0;
+            for(int b = bucket(minBits + 1); b <= bucket(maxBits); b++)
+                n += counts[offset + b];
+            return n;
+        }
+        
+        /**
+         * Returns this - c.
+         */
+        public Counts minus(Counts c) {
+            long[] d = new long[SIZE];
+            for(int i = 0; i < SIZE; i++)
+                d[i] = counts[i] - c.counts[i];
+            return new Counts(d);
+        }
+        
+        /**
+         * Returns this + c.
+         */
+        public Counts plus(Counts c) {
+            long[] d = new long[SIZE];
+            for(int i = 0; i < SIZE; i++)
+                d[i] = counts[i] + c.counts[i];
+            return new Counts(d);
+        }
+        
+        public boolean equals(Object o) {
+            return o instanceof Counts 
+                && java.util.Arrays.equals(counts, ((Counts)o).counts);
+        }
+        
+        public int hashCode() {
+            return java.util.Arrays.hashCode(counts);
+        }
+        
+        /**
+         * E.g. "exp 40 fixed (256b: 40) + 12 variable (256b: 10, 2048b: 2), 
+         * 3 multi-exp, 105 mul, 1 inv, 5 hash, 0 hash-to-group". The 
+         * buckets are labelled with their upper bounds.
+         */
+        public String toString() {
+            StringBuffer sb = new StringBuffer("exp ");
+            sb.append(counts[EXP_FIXED]).append(" fixed");
+            buckets(sb, FIXED_BUCKETS);
+            sb.append(" + ").append(counts[EXP_VARIABLE]).append(" variable");
+            buckets(sb, VARIABLE_BUCKETS);
+            sb.append(", ").append(counts[MULTI_EXP]).append(" multi-exp, ");
+            sb.append(counts[MUL]).append(" mul, ");
+            sb.append(counts[INVERSE]).append(" inv, ");
+            sb.append(counts[HASH]).append(" hash, ");
+            sb.append(counts[HASH_TO_GROUP]).append(" hash-to-group");
+            return sb.toString();
+        }
+        
+        private void buckets(StringBuffer sb, int offset) {
+            String sep = " (";
+            for(int b = 0; b < N_BUCKETS; b++) {
+                if(counts[offset + b] == 0)
+                    continue;
+                sb.append(sep).append(1L<<b).append("b: ")
+                    .append(counts[offset + b]);
+                sep = ", ";
+            }
+            if(sep.equals(", "))
+                sb.append(")");
+        }
+    }
+}
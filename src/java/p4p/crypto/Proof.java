@@ -68,6 +68,12 @@ public abstract class Proof extends P4PParameters {
     /**
      * The third message in the proof.
      */
+    
+    /**
+     * The group operations {@link #construct} used, for proofs that record
+     * them. See {@link OpCounter}.
+     */
+    protected OpCounter.Counts constructionCost = null;
 
     public Proof() {}
 
@@ -82,6 +88,12 @@ public abstract class Proof extends P4PParameters {
     public BigInteger[] getChallenge() { return challenge; }
     public BigInteger[] getResponse() { return response; }
     
+    /**
+     * Returns the group operations used to construct this proof, or null if
+     * it wasn't constructed here or doesn't record them.
+     */
+    public OpCounter.Counts getConstructionCost() { return constructionCost; }
+    
     /**
      * Construct the proof. This should be overriden by subclasses.
      */
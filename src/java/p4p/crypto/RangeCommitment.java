@@ -0,0 +1,665 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.i2p.util.NativeBigInteger;
+
+import p4p.util.Util;
+import p4p.util.StopWatch;
+import p4p.util.P4PParameters;
+
+/**
+ * A commitment to a number in [0, 2^n) with a ZKP, of O(log n) size, that 
+ * the number is in range. The proof is the range proof of
+ * <p>
+ *   <i>Benedikt B&uuml;nz, Jonathan Bootle, Dan Boneh, Andrew Poelstra, 
+ *   Pieter Wuille and Greg Maxwell, Bulletproofs: Short Proofs for 
+ *   Confidential Transactions and More, IEEE Symposium on Security and 
+ *   Privacy, 2018.</i>
+ * <p>
+ * made non-interactive by hashing. It replaces the n {@link BitCommitment}
+ * proofs (3 group elements and 5 numbers each) with 2*log(n) + 4 group 
+ * elements and 5 numbers, and its verification reduces to two 
+ * multi-exponentiations which can be added to a {@link BatchVerifier}. The 
+ * generators G_i, H_i and u of the inner product argument are derived from g
+ * and h with {@link Group#hashToElement} so that nobody knows their 
+ * discrete logs. n is rounded up to a power of 2 for the inner product 
+ * argument; the extra coordinates are 0.
+ * <p>
+ * The commitment itself is an ordinary {@link Commitment} g^v*h^r. 
+ * Committing to a number out of range is allowed but the proof will not 
+ * verify.
+ */
+
+public class RangeCommitment extends Commitment {
+    private final int n;            // The number of bits
+    private final int nPadded;      // n rounded up to a power of 2
+    private final int nRounds;      // log(nPadded)
+    private final BigInteger[] G;
+    private final BigInteger[] H;
+    private final BigInteger u;
+    
+    private static final ConcurrentHashMap<String, BigInteger[]> 
+        generators = new ConcurrentHashMap<String, BigInteger[]>();
+    
+    public RangeCommitment(NativeBigInteger g, NativeBigInteger h, int n) {
+        super(g, h);
+        if(n <= 0)
+            throw new IllegalArgumentException("Non-positive number of bits!");
+        this.n = n;
+        int k = 0;
+        while((1<<k) < n)
+            k++;
+        this.nRounds = k;
+        this.nPadded = 1<<k;
+        this.G = getGenerators("G", nPadded);
+        this.H = getGenerators("H", nPadded);
+        this.u = getGenerators("u", 1)[0];
+    }
+    
+    /**
+     * Returns the first <code>count</code> generators with the given label,
+     * i.e. hashToElement(g || h || label || i). They are cached.
+     */
+    private BigInteger[] getGenerators(String label, int count) {
+        String key = System.identityHashCode(group) + ":" + g + ":" + h 
+            + ":" + label;
+        BigInteger[] gens = generators.get(key);
+        if(gens != null && gens.length >= count)
+            return gens;
+        
+        BigInteger[] more = new BigInteger[count];
+        byte[] gBytes = group.encode(g);
+        byte[] hBytes = group.encode(h);
+        byte[] lBytes = label.getBytes();
+        for(int i = 0; i < count; i++) {
+            if(gens != null && i < gens.length) {
+                more[i] = gens[i];
+                continue;
+            }
+            byte[] seed = new byte[gBytes.length + hBytes.length 
+                                   + lBytes.length + 4];
+            System.arraycopy(gBytes, 0, seed, 0, gBytes.length);
+            System.arraycopy(hBytes, 0, seed, gBytes.length, hBytes.length);
+            System.arraycopy(lBytes, 0, seed, gBytes.length + hBytes.length, 
+                             lBytes.length);
+            Util.bytesFromInt(seed, seed.length - 4, i);
+            more[i] = group.hashToElement(seed);
+        }
+        generators.put(key, more);
+        return more;
+    }
+    
+    public int getNumberOfBits() {
+        return n;
+    }
+    
+    /**
+     * Computes the Fiat-Shamir challenge for the given messages.
+     */
+    private BigInteger challenge(BigInteger[] msg) {
+        return Transcript.hash(Transcript.RANGE, msg, q);
+    }
+    
+    private BigInteger innerProduct(BigInteger[] a, int aOff, 
+                                    BigInteger[] b, int bOff, int len) {
+        BigInteger s = BigInteger.ZERO;
+        for(int i = 0; i < len; i++)
+            s = s.add(a[aOff+i].multiply(b[bOff+i]));
+        return s.mod(q);
+    }
+    
+    public Proof getProof() {
+        RangeCommitmentProof proof = new RangeCommitmentProof();
+        proof.construct();
+        return proof;
+    }
+    
+    /**
+     * The range proof. The commitment consists of 
+     * <p>
+     *    V, A, S, T1, T2, L_0, ..., L_{k-1}, R_0, ..., R_{k-1}
+     * <p>
+     * where V is the commitment to the number and k = log(n). The challenges 
+     * are y, z, x, w, x_0, ..., x_{k-1} and the response is 
+     * (tau_x, mu, t, a, b).
+     */
+    public class RangeCommitmentProof extends Proof {
+        public RangeCommitmentProof() { super(); }
+        
+        public void construct() {
+            if(val == null)
+                throw new RuntimeException("Must commit to a value first" 
+                                           + "before constructing the proof!");
+            
+            commitment = new BigInteger[5 + 2*nRounds];
+            challenge = new BigInteger[4 + nRounds];
+            response = new BigInteger[5];
+            
+            BigInteger V = computeCommitment(val, r);
+            commitment[0] = V;
+            
+            // aL are the bits of val, aR = aL - 1:
+            BigInteger[] aL = new BigInteger[n];
+            BigInteger[] aR = new BigInteger[n];
+            BigInteger[] sL = new BigInteger[n];
+            BigInteger[] sR = new BigInteger[n];
+            for(int i = 0; i < n; i++) {
+                aL[i] = val.testBit(i) ? BigInteger.ONE : BigInteger.ZERO;
+                aR[i] = aL[i].subtract(BigInteger.ONE).mod(q);
+                sL[i] = Util.randomBigInteger(q);
+                sR[i] = Util.randomBigInteger(q);
+            }
+            
+            BigInteger alpha = Util.randomBigInteger(q);
+            BigInteger rho = Util.randomBigInteger(q);
+            BigInteger[] bases = new BigInteger[2*n + 1];
+            BigInteger[] exps = new BigInteger[2*n + 1];
+            bases[0] = h;
+            System.arraycopy(G, 0, bases, 1, n);
+            System.arraycopy(H, 0, bases, n + 1, n);
+            exps[0] = alpha;
+            System.arraycopy(aL, 0, exps, 1, n);
+            System.arraycopy(aR, 0, exps, n + 1, n);
+            BigInteger A = group.multiExp(bases, exps);
+            exps[0] = rho;
+            System.arraycopy(sL, 0, exps, 1, n);
+            System.arraycopy(sR, 0, exps, n + 1, n);
+            BigInteger S = group.multiExp(bases, exps);
+            commitment[1] = A;
+            commitment[2] = S;
+            
+            BigInteger y = challenge(new BigInteger[] {
+                    g, h, BigInteger.valueOf(n), V, A, S});
+            BigInteger z = challenge(new BigInteger[] {V, A, S, y});
+            BigInteger z2 = z.multiply(z).mod(q);
+            
+            // l(X) = l0 + l1*X, r(X) = r0 + r1*X:
+            //    l0 = aL - z, l1 = sL,
+            //    r0 = y^i*(aR + z) + z^2*2^i, r1 = y^i*sR
+            BigInteger[] l0 = new BigInteger[n];
+            BigInteger[] r0 = new BigInteger[n];
+            BigInteger[] r1 = new BigInteger[n];
+            BigInteger yi = BigInteger.ONE;
+            BigInteger twoi = BigInteger.ONE;
+            for(int i = 0; i < n; i++) {
+                l0[i] = aL[i].subtract(z).mod(q);
+                r0[i] = yi.multiply(aR[i].add(z)).add(z2.multiply(twoi)).mod(q);
+                r1[i] = yi.multiply(sR[i]).mod(q);
+                yi = yi.multiply(y).mod(q);
+                twoi = twoi.shiftLeft(1).mod(q);
+            }
+            BigInteger t1 = innerProduct(l0, 0, r1, 0, n)
+                .add(innerProduct(sL, 0, r0, 0, n)).mod(q);
+            BigInteger t2 = innerProduct(sL, 0, r1, 0, n);
+            BigInteger tau1 = Util.randomBigInteger(q);
+            BigInteger tau2 = Util.randomBigInteger(q);
+            BigInteger T1 = pow2(g, t1, h, tau1);
+            BigInteger T2 = pow2(g, t2, h, tau2);
+            commitment[3] = T1;
+            commitment[4] = T2;
+            
+            BigInteger x = challenge(new BigInteger[] {y, z, T1, T2});
+            
+            BigInteger[] a = new BigInteger[nPadded];
+            BigInteger[] b = new BigInteger[nPadded];
+            for(int i = 0; i < nPadded; i++) {
+                if(i < n) {
+                    a[i] = l0[i].add(sL[i].multiply(x)).mod(q);
+                    b[i] = r0[i].add(r1[i].multiply(x)).mod(q);
+                }
+                else {
+                    a[i] = BigInteger.ZERO;
+                    b[i] = BigInteger.ZERO;
+                }
+            }
+            BigInteger t = innerProduct(a, 0, b, 0, nPadded);
+            BigInteger taux = tau2.multiply(x).add(tau1).multiply(x)
+                .add(z2.multiply(r)).mod(q);
+            BigInteger mu = alpha.add(rho.multiply(x)).mod(q);
+            
+            BigInteger w = challenge(new BigInteger[] {x, taux, mu, t});
+            BigInteger U = group.exp(u, w);
+            challenge[0] = y;
+            challenge[1] = z;
+            challenge[2] = x;
+            challenge[3] = w;
+            
+            // The inner product argument for <a, b> = t with the generators
+            // G and H' = H_i^(y^-i). The scaling of H is folded into the 
+            // first round.
+            BigInteger[] Gs = G.clone();
+            BigInteger[] Hs = H.clone();
+            BigInteger[] hScale = new BigInteger[nPadded];
+            BigInteger yInv = y.modInverse(q);
+            hScale[0] = BigInteger.ONE;
+            for(int i = 1; i < nPadded; i++)
+                hScale[i] = hScale[i-1].multiply(yInv).mod(q);
+            
+            BigInteger prev = w;
+            int m = nPadded;
+            for(int j = 0; j < nRounds; j++) {
+                int half = m/2;
+                BigInteger cL = innerProduct(a, 0, b, half, half);
+                BigInteger cR = innerProduct(a, half, b, 0, half);
+                
+                BigInteger[] lb = new BigInteger[2*half + 1];
+                BigInteger[] le = new BigInteger[2*half + 1];
+                BigInteger[] rb = new BigInteger[2*half + 1];
+                BigInteger[] re = new BigInteger[2*half + 1];
+                for(int i = 0; i < half; i++) {
+                    lb[i] = Gs[half + i];
+                    le[i] = a[i];
+                    lb[half + i] = Hs[i];
+                    le[half + i] = b[half + i].multiply(hScale[i]).mod(q);
+                    rb[i] = Gs[i];
+                    re[i] = a[half + i];
+                    rb[half + i] = Hs[half + i];
+                    re[half + i] = b[i].multiply(hScale[half + i]).mod(q);
+                }
+                lb[2*half] = U;
+                le[2*half] = cL;
+                rb[2*half] = U;
+                re[2*half] = cR;
+                BigInteger L = group.multiExp(lb, le);
+                BigInteger R = group.multiExp(rb, re);
+                commitment[5 + j] = L;
+                commitment[5 + nRounds + j] = R;
+                
+                BigInteger xj = challenge(new BigInteger[] {prev, L, R});
+                if(xj.signum() == 0)
+                    throw new RuntimeException("Zero challenge!");
+                BigInteger xjInv = xj.modInverse(q);
+                challenge[4 + j] = xj;
+                prev = xj;
+                
+                for(int i = 0; i < half; i++) {
+                    Gs[i] = group.multiExp(
+                        new BigInteger[] {Gs[i], Gs[half + i]},
+                        new BigInteger[] {xjInv, xj});
+                    Hs[i] = group.multiExp(
+                        new BigInteger[] {Hs[i], Hs[half + i]},
+                        new BigInteger[] {xj.multiply(hScale[i]).mod(q), 
+                                          xjInv.multiply(hScale[half + i])
+                                          .mod(q)});
+                    hScale[i] = BigInteger.ONE;
+                    a[i] = a[i].multiply(xj)
+                        .add(a[half + i].multiply(xjInv)).mod(q);
+                    b[i] = b[i].multiply(xjInv)
+                        .add(b[half + i].multiply(xj)).mod(q);
+                }
+                m = half;
+            }
+            
+            response[0] = taux;
+            response[1] = mu;
+            response[2] = t;
+            response[3] = a[0];
+            response[4] = b[0];
+        }
+    }
+    
+    /**
+     * Verifies the given proof using our own parameters.
+     */
+    public boolean verify(Proof proof) {
+        BigInteger[][] eqs = equations(proof, null);
+        if(eqs == null)
+            return false;
+        
+        return group.multiExp(eqs[0], eqs[1]).equals(group.identity()) 
+            && group.multiExp(eqs[2], eqs[3]).equals(group.identity());
+    }
+    
+    /**
+     * Like {@link #verify(Proof)} but the two verification equations are 
+     * added to <code>batch</code>. 
+     *
+     * @return <code>false</code> if the proof is already known to be invalid.
+     */
+    public boolean batchVerify(Proof proof, BatchVerifier batch) {
+        BigInteger[][] eqs = equations(proof, batch);
+        if(eqs == null)
+            return false;
+        
+        BigInteger[] none = new BigInteger[0];
+        batch.addEquation(eqs[0], eqs[1], none, none);
+        batch.addEquation(eqs[2], eqs[3], none, none);
+        return true;
+    }
+    
+    /**
+     * Checks the challenges and returns the two equations (bases and 
+     * exponents, each of the form prod{base^exponent} = 1) the proof must 
+     * satisfy:
+     * <p>
+     *    g^(t-delta(y,z))*h^tau_x = V^(z^2)*T1^x*T2^(x^2)
+     * <p>
+     * and the inner product argument with the generators unrolled:
+     * <p>
+     *    A*S^x*h^(-mu)*G^(-z-a*s_i)*H^(z+(z^2*2^i-b/s_i)*y^-i)
+     *       *u^(w*(t-ab))*prod{L_j^(x_j^2)*R_j^(x_j^-2)} = 1
+     * <p>
+     * where s_i = prod{x_j^(+/-1)} with the sign given by the bits of i. 
+     * Returns <code>null</code> if the proof is malformed or the challenges
+     * are wrong. The caller should make sure V is the commitment the proof 
+     * is about.
+     * <p>
+     * Everything the prover sent is checked before it is hashed: the 
+     * commitments must be group elements (using the cache of 
+     * <code>batch</code> if it is not <code>null</code>) and the responses
+     * must be in [0, q). Otherwise a malicious prover could make the 
+     * transcript throw instead of the proof being rejected.
+     */
+    private BigInteger[][] equations(Proof proof, BatchVerifier batch) {
+        BigInteger[] c = proof.getCommitment();
+        BigInteger[] s = proof.getChallenge();
+        BigInteger[] r = proof.getResponse();
+        
+        if(c == null || s == null || r == null || c.length != 5 + 2*nRounds 
+           || s.length != 4 + nRounds || r.length != 5)
+            return null;
+        
+        for(int i = 0; i < c.length; i++) {
+            if(c[i] == null || !(batch == null ? group.isElement(c[i]) 
+                                 : batch.isGroupElement(c[i]))) {
+                System.out.println("Commitment is not a group element!");
+                return null;
+            }
+        }
+        for(int i = 0; i < r.length; i++) {
+            if(r[i] == null || r[i].signum() < 0 || r[i].compareTo(q) >= 0) {
+                System.out.println("Response out of range!");
+                return null;
+            }
+        }
+        
+        BigInteger V = c[0], A = c[1], S = c[2], T1 = c[3], T2 = c[4];
+        BigInteger taux = r[0], mu = r[1], t = r[2], a = r[3], b = r[4];
+        
+        BigInteger y = challenge(new BigInteger[] {
+                g, h, BigInteger.valueOf(n), V, A, S});
+        BigInteger z = challenge(new BigInteger[] {V, A, S, y});
+        BigInteger x = challenge(new BigInteger[] {y, z, T1, T2});
+        BigInteger w = challenge(new BigInteger[] {x, taux, mu, t});
+        if(!y.equals(s[0]) || !z.equals(s[1]) || !x.equals(s[2]) 
+           || !w.equals(s[3]) || y.signum() == 0) {
+            System.out.println("Challenge doesn't match!");
+            return null;
+        }
+        BigInteger[] xs = new BigInteger[nRounds + 1];
+        BigInteger prev = w;
+        for(int j = 0; j < nRounds; j++) {
+            xs[j] = challenge(new BigInteger[] {prev, c[5 + j], 
+                                                c[5 + nRounds + j]});
+            if(!xs[j].equals(s[4 + j]) || xs[j].signum() == 0) {
+                System.out.println("Challenge doesn't match!");
+                return null;
+            }
+            prev = xs[j];
+        }
+        // Invert the x_j and y at once:
+        xs[nRounds] = y;
+        BigInteger[] xsInv = Util.batchModInverse(xs, q);
+        BigInteger yInv = xsInv[nRounds];
+        
+        // The first equation:
+        BigInteger z2 = z.multiply(z).mod(q);
+        BigInteger sumY = BigInteger.ZERO;     // sum{y^i}, i < n
+        BigInteger yi = BigInteger.ONE;
+        for(int i = 0; i < n; i++) {
+            sumY = sumY.add(yi);
+            yi = yi.multiply(y).mod(q);
+        }
+        BigInteger delta = z.subtract(z2).multiply(sumY)
+            .subtract(z2.multiply(z).multiply(BigInteger.ONE.shiftLeft(n)
+                                              .subtract(BigInteger.ONE)));
+        BigInteger[] b1 = new BigInteger[] {g, h, V, T1, T2};
+        BigInteger[] e1 = new BigInteger[] {
+            t.subtract(delta).mod(q), taux, z2.negate().mod(q), 
+            x.negate().mod(q), x.multiply(x).negate().mod(q)};
+        
+        // The second one:
+        int nb = 2*nPadded + 2*nRounds + 4;
+        BigInteger[] b2 = new BigInteger[nb];
+        BigInteger[] e2 = new BigInteger[nb];
+        
+        // s_i and 1/s_i:
+        BigInteger[] si = new BigInteger[nPadded];
+        BigInteger[] siInv = new BigInteger[nPadded];
+        for(int i = 0; i < nPadded; i++) {
+            BigInteger v = BigInteger.ONE;
+            BigInteger vInv = BigInteger.ONE;
+            for(int j = 0; j < nRounds; j++) {
+                if(((i >> (nRounds - 1 - j)) & 1) == 1) {
+                    v = v.multiply(xs[j]);
+                    vInv = vInv.multiply(xsInv[j]);
+                }
+                else {
+                    v = v.multiply(xsInv[j]);
+                    vInv = vInv.multiply(xs[j]);
+                }
+            }
+            si[i] = v.mod(q);
+            siInv[i] = vInv.mod(q);
+        }
+        
+        BigInteger yiInv = BigInteger.ONE;
+        BigInteger twoi = BigInteger.ONE;
+        for(int i = 0; i < nPadded; i++) {
+            b2[i] = G[i];
+            b2[nPadded + i] = H[i];
+            BigInteger eg = a.multiply(si[i]).negate();
+            BigInteger eh = b.multiply(siInv[i]).negate();
+            if(i < n) {
+                eg = eg.subtract(z);
+                eh = eh.add(z2.multiply(twoi));
+                twoi = twoi.shiftLeft(1);
+            }
+            e2[i] = eg.mod(q);
+            e2[nPadded + i] = eh.multiply(yiInv).add(i < n ? z : BigInteger.ZERO)
+                .mod(q);
+            yiInv = yiInv.multiply(yInv).mod(q);
+        }
+        int k = 2*nPadded;
+        for(int j = 0; j < nRounds; j++) {
+            b2[k] = c[5 + j];
+            e2[k++] = xs[j].multiply(xs[j]).mod(q);
+            b2[k] = c[5 + nRounds + j];
+            e2[k++] = xsInv[j].multiply(xsInv[j]).mod(q);
+        }
+        b2[k] = A;
+        e2[k++] = BigInteger.ONE;
+        b2[k] = S;
+        e2[k++] = x;
+        b2[k] = h;
+        e2[k++] = mu.negate().mod(q);
+        b2[k] = u;
+        e2[k++] = w.multiply(t.subtract(a.multiply(b))).mod(q);
+        
+        return new BigInteger[][] {b1, e1, b2, e2};
+    }
+    
+
+    /**
+     * Test the RangeCommitment and the ZKP, and compare it with proving 
+     * each bit with a {@link BitCommitment}.
+     */
+    public static void main(String[] args) {
+        int k = 512;
+        int n = 40;
+        int nLoops = 10;
+        boolean useEC = false;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 512;
+                    }
+                }
+                else if(arg.equals("-n")) {
+                    try {
+                        n = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        n = 40;
+                    }
+                }
+                else if(arg.equals("-l")) {
+                    try {
+                        nLoops = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        nLoops = 10;
+                    }
+                }
+                else if(arg.equals("-ec")) {
+                    useEC = true;   // Use NIST P-256 instead of Z_p^*
+                }
+            }
+        }
+        
+        // Setup the parameters:
+        if(useEC)
+            P4PParameters.initialize(ECGroup.getP256());
+        else
+            P4PParameters.initialize(k, false);
+        NativeBigInteger g =  P4PParameters.getGenerator();
+        NativeBigInteger h =  P4PParameters.getFreshGenerator();
+        
+        RangeCommitment rc = new RangeCommitment(g, h, n);
+        RangeCommitment verifier = new RangeCommitment(g, h, n);
+        
+        System.out.println("Testing RangeCommitment with n = " + n + " for " 
+                           + nLoops + " loops .");
+        StopWatch proverWatch = new StopWatch();
+        StopWatch verifierWatch = new StopWatch();
+        int nFailed = 0;
+        for(int j = 0; j < nLoops; j++) {
+            BigInteger val = new BigInteger(n, Util.rand);
+            rc.commit(val);
+            
+            System.out.print("Testing range ZKP ...");
+            proverWatch.start();
+            Proof proof = rc.getProof();
+            proverWatch.pause();
+            
+            verifierWatch.start();
+            boolean passed = verifier.verify(proof);
+            verifierWatch.pause();
+            if(!passed) {
+                System.out.println("ZKP failed for test " + j 
+                                   + ". Should have passed.");
+                nFailed++;
+            }
+            else
+                System.out.println(" passed");
+            
+            BatchVerifier batch = new BatchVerifier();
+            if(!verifier.batchVerify(proof, batch) || !batch.verify()) {
+                System.out.println("Batch verification failed for test " + j 
+                                   + ". Should have passed.");
+                nFailed++;
+            }
+            
+            // Out of range. Should fail:
+            rc.commit(val.setBit(n + j%3));
+            if(verifier.verify(rc.getProof())) {
+                System.out.println("ZKP passed for test " + j 
+                                   + ". Should have failed (out of range).");
+                nFailed++;
+            }
+            
+            // Tampered response. Should fail:
+            proof.getResponse()[3] = proof.getResponse()[3].add(BigInteger.ONE);
+            batch = new BatchVerifier();
+            if(verifier.verify(proof) 
+               || (verifier.batchVerify(proof, batch) && batch.verify())) {
+                System.out.println("ZKP passed for test " + j 
+                                   + ". Should have failed (tampered).");
+                nFailed++;
+            }
+            
+            // Oversized response and commitment. Should fail, not throw:
+            BigInteger huge = BigInteger.ONE.shiftLeft(4000);
+            for(int t = 0; t < 2; t++) {
+                BigInteger[] v = t == 0 ? proof.getResponse() 
+                    : proof.getCommitment();
+                BigInteger v0 = v[t];
+                v[t] = huge;
+                batch = new BatchVerifier();
+                if(verifier.verify(proof) 
+                   || (verifier.batchVerify(proof, batch) && batch.verify())) {
+                    System.out.println("ZKP passed for test " + j 
+                                       + ". Should have failed (oversized).");
+                    nFailed++;
+                }
+                v[t] = v0;
+            }
+        }
+        verifierWatch.stop();
+        proverWatch.stop();
+        
+        // The same bound with one bit commitment per bit:
+        BitCommitment bc = new BitCommitment(g, h);
+        StopWatch bitWatch = new StopWatch();
+        bitWatch.start();
+        for(int i = 0; i < n; i++) {
+            bc.commit(i%2);
+            bc.verify(bc.getProof());
+        }
+        bitWatch.stop();
+        
+        System.out.println("Range ZKP: " + nLoops + " loops. ms per loop:");
+        System.out.println("\n  Prover time         Verifier time        Bit proofs");
+        System.out.println("===================================================");
+        System.out.println("    " 
+                           + (double)proverWatch.getElapsedTime()/(double)nLoops 
+                           + "                 "
+                           + (double)verifierWatch.getElapsedTime()/(double)nLoops 
+                           + "              " 
+                           + bitWatch.getElapsedTime());
+        int k2 = verifier.nRounds;
+        System.out.println("Proof size: " + (5 + 2*k2) + " group elements and 5 " 
+                           + "numbers vs " + 3*n + " group elements and " 
+                           + 5*n + " numbers with bit proofs.");
+        System.out.println("Total failed: " + nFailed);
+    }
+}
@@ -96,6 +96,36 @@ public class SquareCommitment extends Commitment {
     private NativeBigInteger B = null;    
     private BigInteger sa = null;
     private BigInteger sb = null;
+    private Precomputed pre = null;   // For the next proof only
+    
+    /**
+     * The data independent part of one square commitment and its proof: 
+     * h^sa, h^sb, Ca = g^x*h^ra and h^rb. These can be computed offline 
+     * (see {@link #precompute}) so that {@link #commit(BigInteger, Precomputed)}
+     * and the proof only need g^a, g^b and A^x. Each instance must only be 
+     * used once.
+     */
+    public static final class Precomputed {
+        private final CommitmentScheme.Opening A0;    // h^sa
+        private final CommitmentScheme.Opening B0;    // h^sb
+        private final CommitmentScheme.Opening Ca;    // g^x*h^ra
+        private final CommitmentScheme.Opening Cb0;   // h^rb
+        
+        Precomputed(CommitmentScheme.Opening A0, CommitmentScheme.Opening B0,
+                    CommitmentScheme.Opening Ca, CommitmentScheme.Opening Cb0) {
+            this.A0 = A0;
+            this.B0 = B0;
+            this.Ca = Ca;
+            this.Cb0 = Cb0;
+        }
+        
+        /**
+         * Returns sa, the randomness A will be committed with.
+         */
+        public BigInteger getRandomness() {
+            return A0.getRandomness();
+        }
+    }
     
     public SquareCommitment(NativeBigInteger g, NativeBigInteger h) {
         super(g, h);
@@ -109,6 +139,7 @@ public class SquareCommitment extends Commitment {
      * @return A
      */
     public BigInteger commit(BigInteger val) {
+        pre = null;
         a = val;    // Must take mod q
         A = new NativeBigInteger(super.commit(a));
         sa = getRandomness();
@@ -128,6 +159,7 @@ public class SquareCommitment extends Commitment {
      * @return A
      */
     public BigInteger commit(BigInteger val, BigInteger r) {
+        pre = null;
         a = val;
         A = new NativeBigInteger(computeCommitment(a, r));
         if(debug) {
@@ -147,6 +179,62 @@ public class SquareCommitment extends Commitment {
         return A;
     }
 
+    /**
+     * Computes the data independent part of a commitment and its proof. 
+     */
+    public Precomputed precompute() {
+        return new Precomputed(scheme.open(BigInteger.ZERO), 
+                               scheme.open(BigInteger.ZERO),
+                               scheme.open(Util.randomBigInteger(q)),
+                               scheme.open(BigInteger.ZERO));
+    }
+    
+    /**
+     * Commits to <code>val</code> using precomputed randomness. sa will be 
+     * <code>pre.getRandomness()</code>. The next proof will also use 
+     * <code>pre</code>.
+     */
+    public BigInteger commit(BigInteger val, Precomputed pre) {
+        a = val;
+        A = new NativeBigInteger(scheme.commit(a, pre.A0));
+        sa = pre.A0.getRandomness();
+        b = a.multiply(a).mod(q);
+        B = new NativeBigInteger(scheme.commit(b, pre.B0));
+        sb = pre.B0.getRandomness();
+        this.pre = pre;
+        
+        return A;
+    }
+
+    /**
+     * Commits to <code>val</code> using precomputed randomness without 
+     * changing the state of this object. The proof must then be constructed
+     * with {@link #getProof(CommitmentScheme.Opening, CommitmentScheme.Opening,
+     * Precomputed)} and the same <code>pre</code>.
+     */
+    public CommitmentScheme.Opening open(BigInteger val, Precomputed pre) {
+        return scheme.open(val, pre.A0);
+    }
+    
+    /**
+     * Commits to the square of the value of <code>A</code> with fresh 
+     * randomness, i.e. produces B.
+     */
+    public CommitmentScheme.Opening openSquare(CommitmentScheme.Opening A) {
+        BigInteger a = A.getValue();
+        return scheme.open(a.multiply(a).mod(q));
+    }
+    
+    /**
+     * Commits to the square of the value of <code>A</code> using 
+     * precomputed randomness.
+     */
+    public CommitmentScheme.Opening openSquare(CommitmentScheme.Opening A,
+                                               Precomputed pre) {
+        BigInteger a = A.getValue();
+        return scheme.open(a.multiply(a).mod(q), pre.B0);
+    }
+    
     /**
      * Gets the commitments
      */
@@ -178,6 +266,30 @@ public class SquareCommitment extends Commitment {
         return proof;
     }
     
+    /**
+     * Constructs the proof that <code>B</code> contains the square of the 
+     * value of <code>A</code>. This only reads the parameters of this 
+     * commitment so several threads can use the same object.
+     */
+    public SquareCommitmentProof getProof(CommitmentScheme.Opening A,
+                                          CommitmentScheme.Opening B) {
+        return getProof(A, B, null);
+    }
+    
+    /**
+     * Like {@link #getProof(CommitmentScheme.Opening, 
+     * CommitmentScheme.Opening)} for commitments made with 
+     * <code>pre</code>, which may be <code>null</code>.
+     */
+    public SquareCommitmentProof getProof(CommitmentScheme.Opening A,
+                                          CommitmentScheme.Opening B,
+                                          Precomputed pre) {
+        SquareCommitmentProof proof = new SquareCommitmentProof();
+        proof.construct(A.getValue(), A.getCommitment(), A.getRandomness(),
+                        B.getCommitment(), B.getRandomness(), pre);
+        return proof;
+    }
+    
 
     /**
      * A zero-knowledge proof that two commitments contain a number and its 
@@ -195,30 +307,42 @@ public class SquareCommitment extends Commitment {
             if(A == null || B == null)
                 throw new RuntimeException("Must commit to the numbers before"
                                            + " constructing the proof!");
+            Precomputed p = pre;
+            pre = null;
+            construct(a, A, sa, B, sb, p);
+        }
+        
+        void construct(BigInteger a, BigInteger A, BigInteger sa, 
+                       BigInteger B, BigInteger sb, Precomputed pre) {
             commitment = new BigInteger[4];
             commitment[0] = A; 
             commitment[1] = B;
-            BigInteger x = Util.randomBigInteger(q);
-            BigInteger ra = Util.randomBigInteger(q);
-            BigInteger rb = Util.randomBigInteger(q);
-            
-            commitment[2] = g.modPow(x, p).multiply(h.modPow(ra, p)).mod(p);  // Ca
-            commitment[3] = A.modPow(x, p).multiply(h.modPow(rb, p)).mod(p);  // Cb
+            BigInteger x, ra, rb;
+            if(pre == null) {
+                x = Util.randomBigInteger(q);
+                ra = Util.randomBigInteger(q);
+                rb = Util.randomBigInteger(q);
+                
+                commitment[2] = pow2(g, x, h, ra);  // Ca
+                commitment[3] = pow2(A, x, h, rb);  // Cb
+            }
+            else {
+                x = pre.Ca.getValue();
+                ra = pre.Ca.getRandomness();
+                rb = pre.Cb0.getRandomness();
+                
+                commitment[2] = pre.Ca.getCommitment();
+                commitment[3] = group.mul(group.exp(A, x), 
+                                          pre.Cb0.getCommitment());
+            }
             // The first two elements are the commitments to a and b.
             // The next two elements are Ca and Cb
             
             challenge = new BigInteger[1];
             
             // Get the challenge which should be a hash of the commitment:
-            BigInteger c = null;
-            try {
-                c = Util.secureHash(commitment, q);
-                challenge[0] = c;
-            }
-            catch(GeneralSecurityException e) {
-                System.err.println("Can't compute hash!");
-                e.printStackTrace();
-            }
+            BigInteger c = Transcript.hash(Transcript.SQUARE, commitment, q);
+            challenge[0] = c;
             
             response = new BigInteger[3];
             
@@ -251,12 +375,45 @@ public class SquareCommitment extends Commitment {
         if(c.length != 4 || s.length != 1 || r.length != 3)
             return false;
         
+        for(int i = 0; i < c.length; i++) {
+            if(!group.isElement(c[i])) {
+                System.out.println("Commitment " + i 
+                                   + " is not a group element!");
+                return false;
+            }
+        }
+        
         return verify(c[0], c[1], c[2], c[3], s[0], r[0], r[1], r[2]);
     }
     
     private boolean verify(BigInteger A, BigInteger B, BigInteger Ca, 
                            BigInteger Cb, BigInteger c, BigInteger v, 
                            BigInteger za, BigInteger zb) {
+        if(!verifyChallenge(A, B, Ca, Cb, c))
+            return false;
+
+        // Pass 1: g^v*h^za = A^c*Ca mod p?
+        if(!pow2(g, v, h, za)
+           .equals(group.mul(group.exp(A, c), Ca))) {
+            System.out.println("Pass 1: g^v*h^za = A^c*Ca mod p failed.");
+            return false;
+        }
+	
+        // Pass 2: A^v*h^zb = B^c*Cb mod p?
+        BigInteger vv = group.mul(Cb, group.exp(B, c)); 
+        if(!vv.equals(pow2(A, v, h, zb))) {
+            System.out.println("Pass 2: A^v*h^zb = B^c*Cb mod p failed.");
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Checks that the challenge is the hash of the commitments.
+     */
+    private boolean verifyChallenge(BigInteger A, BigInteger B, BigInteger Ca, 
+                                    BigInteger Cb, BigInteger c) {
         // Also need to verify the hash
         BigInteger[] msg = new BigInteger[4];
         msg[0] = A;
@@ -264,34 +421,61 @@ public class SquareCommitment extends Commitment {
         msg[2] = Ca;
         msg[3] = Cb;
         
+        // The callers check that the commitments are group elements. In case
+        // one of them is still too wide for the transcript, reject the proof
+        // rather than throwing at the verifier:
+        BigInteger hash;
         try {
-            if(!c.equals(Util.secureHash(msg, q))) {
-                System.out.println("Challenge is not equal to the hash!");
-                return false;
-            }
+            hash = Transcript.hash(Transcript.SQUARE, msg, q);
         }
-        catch(GeneralSecurityException e) {
-            System.out.println("GeneralSecurityException!");
-            e.printStackTrace();
+        catch(IllegalArgumentException e) {
+            System.out.println("Bad message: " + e.getMessage());
+            return false;
+        }
+        if(!c.equals(hash)) {
+            System.out.println("Challenge is not equal to the hash!");
             return false;
         }
         
+        return true;
+    }
+    
+    /**
+     * Like {@link #verify(Proof)} but only checks the hash. The two 
+     * verification equations are added to <code>batch</code> and will be 
+     * checked when the batch is verified.
+     *
+     * @return <code>false</code> if the proof is already known to be invalid.
+     */
+    public boolean batchVerify(Proof proof, BatchVerifier batch) {
+        BigInteger[] c = proof.getCommitment();
+        BigInteger[] s = proof.getChallenge();
+        BigInteger[] r = proof.getResponse();
         
-
-        // Pass 1: g^v*h^za = A^c*Ca mod p?
-        if(!g.modPow(v, p).multiply(h.modPow(za, p)).mod(p)
-           .equals(A.modPow(c, p).multiply(Ca).mod(p))) {
-            System.out.println("Pass 1: g^v*h^za = A^c*Ca mod p failed.");
+        if(c.length != 4 || s.length != 1 || r.length != 3)
             return false;
+        
+        for(int i = 0; i < c.length; i++) {
+            if(!batch.isGroupElement(c[i])) {
+                System.out.println("Commitment " + i 
+                                   + " is not a group element!");
+                return false;
+            }
         }
-	
-        // Pass 2: A^v*h^zb = B^c*Cb mod p?
-        BigInteger vv = Cb.multiply(B.modPow(c, p)).mod(p); 
-        if(!vv.equals(A.modPow(v, p).multiply(h.modPow(zb, p)).mod(p))) {
-            System.out.println("Pass 2: A^v*h^zb = B^c*Cb mod p failed.");
+        
+        if(!verifyChallenge(c[0], c[1], c[2], c[3], s[0]))
             return false;
-        }
         
+        // Pass 1: g^v*h^za = A^c*Ca mod p
+        batch.addEquation(new BigInteger[] {g, h}, 
+                          new BigInteger[] {r[0], r[1]}, 
+                          new BigInteger[] {c[0], c[2]}, 
+                          new BigInteger[] {s[0], BigInteger.ONE});
+        // Pass 2: A^v*h^zb = B^c*Cb mod p
+        batch.addEquation(new BigInteger[] {c[0], h}, 
+                          new BigInteger[] {r[0], r[2]}, 
+                          new BigInteger[] {c[1], c[3]}, 
+                          new BigInteger[] {s[0], BigInteger.ONE});
         return true;
     }
     
@@ -362,6 +546,19 @@ public class SquareCommitment extends Commitment {
             else
                 System.out.println(" passed");
             verifierWatch.pause();
+            
+            // A commitment too wide for the transcript must be rejected, 
+            // not throw:
+            BigInteger[] cs = proof.getCommitment();
+            BigInteger c2 = cs[2];
+            cs[2] = BigInteger.ONE.shiftLeft(4000);
+            BatchVerifier batch = new BatchVerifier();
+            if(sc.verify(proof) 
+               || (sc.batchVerify(proof, batch) && batch.verify()))
+                System.out.println("ZKP passed for test " + j 
+                                   + " with an oversized commitment. " 
+                                   + "Should have failed.");
+            cs[2] = c2;
         }
         verifierWatch.stop();
         proverWatch.stop();
@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import p4p.util.P4PParameters;
+import p4p.util.Util;
+
+/**
+ * Products of subsets of a fixed set of generators, for committing to bit 
+ * vectors. A bit vector commitment h^r*prod{g_i : b_i = 1} costs one 
+ * multiplication per 1 bit. Splitting the generators into windows of w and
+ * precomputing the products of all 2^w subsets of each window 
+ * <p>
+ *     T[k][mask] = prod{g_(kw+j) : bit j of mask is set}
+ * <p>
+ * turns the up to w multiplications of a window into one lookup and one 
+ * multiplication. This is the fixed-base comb idea of {@link FixedBaseExp} 
+ * with the generators playing the role of the powers of one base.
+ * <p>
+ * The entries are filled in lazily: a missing entry is computed from the 
+ * entry without its lowest bit, so the first commitments cost no more than
+ * without a table and later ones converge to one multiplication per 
+ * window. Entries are immutable once set and racing threads at worst 
+ * compute the same entry twice, so tables are shared by all threads 
+ * through {@link #getInstance}.
+ * <p>
+ * The memory is bounded: the widest window whose full table fits in 
+ * <code>p4p.subsetTable.maxBytes</code> (default 64 MB) is used, and if 
+ * not even w = 2 fits there is no table. The cache holds at most 
+ * <code>p4p.subsetTable.maxTables</code> (default 4) tables. Tables are 
+ * not saved: checking a stored entry costs as much as computing it (one 
+ * multiplication), and checking it is a group element costs far more.
+ */
+
+public final class SubsetProductTable {
+    private static final int MAX_WINDOW = 8;
+    private static final int MIN_WINDOW = 2;
+    
+    private static final long MAX_TABLE_BYTES = 
+        Long.getLong("p4p.subsetTable.maxBytes", 64L<<20).longValue();
+    private static final int MAX_TABLES = 
+        Integer.getInteger("p4p.subsetTable.maxTables", 4).intValue();
+    
+    private static final ConcurrentHashMap<Key, SubsetProductTable> cache = 
+        new ConcurrentHashMap<Key, SubsetProductTable>();
+    
+    private final Group group;
+    private final BigInteger[] g;
+    private final int window;
+    private final BigInteger[][] table;
+    
+    /**
+     * Creates an empty table over the generators with the given window.
+     * Callers should normally go through {@link #getInstance}.
+     */
+    public SubsetProductTable(Group group, BigInteger[] g, int window) {
+        if(window < 1 || window > 16)
+            throw new IllegalArgumentException("Bad window: " + window);
+        this.group = group;
+        this.g = g.clone();
+        this.window = window;
+        int nWindows = (g.length + window - 1)/window;
+        table = new BigInteger[nWindows][];
+        for(int k = 0; k < nWindows; k++) {
+            int width = Math.min(window, g.length - k*window);
+            table[k] = new BigInteger[1<<width];
+            table[k][0] = group.identity();
+            for(int j = 0; j < width; j++)
+                table[k][1<<j] = this.g[k*window + j];
+        }
+    }
+    
+    /**
+     * Picks the widest window whose full table fits in the memory budget,
+     * or returns 0 if none does.
+     */
+    static int chooseWindow(int n, int elementBits) {
+        long entryBytes = elementBits/8 + 48;    // Rough BigInteger footprint
+        for(int w = MAX_WINDOW; w >= MIN_WINDOW; w--) {
+            long nWindows = (n + w - 1)/w;
+            if(nWindows*(1L<<w)*(entryBytes + 8) <= MAX_TABLE_BYTES)
+                return w;
+        }
+        return 0;
+    }
+    
+    public int getWindow() {
+        return window;
+    }
+    
+    public int getDimension() {
+        return g.length;
+    }
+    
+    /**
+     * Returns the product of the generators of window k selected by mask.
+     */
+    public BigInteger get(int k, int mask) {
+        BigInteger[] t = table[k];
+        BigInteger p = t[mask];
+        if(p == null) {
+            int low = mask & -mask;
+            p = group.mul(get(k, mask ^ low), t[low]);
+            t[mask] = p;
+        }
+        return p;
+    }
+    
+    /**
+     * Returns prod{g_i : bits[i]}, or the identity.
+     */
+    public BigInteger product(boolean[] bits) {
+        if(bits.length != g.length)
+            throw new IllegalArgumentException("Incorrect dimension!");
+        BigInteger c = null;
+        for(int k = 0, i = 0; k < table.length; k++) {
+            int mask = 0;
+            for(int j = 0; j < window && i < bits.length; j++, i++) {
+                if(bits[i])
+                    mask |= 1<<j;
+            }
+            if(mask != 0)
+                c = c == null ? get(k, mask) : group.mul(c, get(k, mask));
+        }
+        return c == null ? group.identity() : c;
+    }
+    
+    /**
+     * Returns prod{g_i : bit i%64 of plane[i/64] is set}, or the identity.
+     * See {@link p4p.util.Util#bitPlanes}.
+     */
+    public BigInteger product(long[] plane) {
+        BigInteger c = null;
+        int wmask = (1<<window) - 1;
+        for(int k = 0; k < table.length; k++) {
+            int i = k*window;
+            long word = plane[i >>> 6] >>> (i & 63);
+            int over = (i & 63) + window - 64;
+            if(over > 0 && (i >>> 6) + 1 < plane.length)
+                word |= plane[(i >>> 6) + 1] << (window - over);
+            int mask = (int)word & wmask;
+            if(mask != 0)
+                c = c == null ? get(k, mask) : group.mul(c, get(k, mask));
+        }
+        return c == null ? group.identity() : c;
+    }
+    
+    /**
+     * Fills in all the entries.
+     */
+    public void fill() {
+        for(int k = 0; k < table.length; k++)
+            for(int mask = 1; mask < table[k].length; mask++)
+                get(k, mask);
+    }
+    
+    /**
+     * Returns the shared table for the generators, or null if a table 
+     * wouldn't fit in the memory budget or the cache is full.
+     */
+    public static SubsetProductTable getInstance(Group group, BigInteger[] g) {
+        Key key = new Key(group, g);
+        SubsetProductTable t = cache.get(key);
+        if(t != null)
+            return t;
+        if(cache.size() >= MAX_TABLES)
+            return null;
+        int w = chooseWindow(g.length, group.getElementBitLength());
+        if(w == 0)
+            return null;
+        
+        t = new SubsetProductTable(group, g, w);
+        SubsetProductTable old = cache.putIfAbsent(key, t);
+        return old != null ? old : t;
+    }
+    
+    /**
+     * Drops all cached tables, e.g. after the system parameters changed.
+     */
+    public static void clearCache() {
+        cache.clear();
+    }
+    
+    /**
+     * Checks the products against plain multiplication for all window 
+     * widths and both product methods, then times a commitment-sized 
+     * product with and without the table.
+     */
+    public static void main(String[] args) {
+        int k = 512;
+        int n = 1000;
+        int nLoops = 20;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 512;
+                    }
+                }
+                else if(arg.equals("-N")) {
+                    try {
+                        n = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        n = 1000;
+                    }
+                }
+                else if(arg.equals("-l")) {
+                    try {
+                        nLoops = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        nLoops = 20;
+                    }
+                }
+            }
+        }
+        
+        P4PParameters.initialize(k, false);
+        Group group = P4PParameters.getGroup();
+        BigInteger[] g = new BigInteger[n];
+        BigInteger x = group.getGenerator();
+        for(int i = 0; i < n; i++) {
+            x = group.mul(x, group.getGenerator());
+            g[i] = x;
+        }
+        
+        Random rand = new Random();
+        int nFailed = 0;
+        for(int w = 1; w <= MAX_WINDOW; w++) {
+            SubsetProductTable t = new SubsetProductTable(group, g, w);
+            for(int loop = 0; loop < 5; loop++) {
+                boolean[] bits = new boolean[n];
+                long[] vals = new long[n];
+                BigInteger expected = group.identity();
+                for(int i = 0; i < n; i++) {
+                    bits[i] = rand.nextBoolean();
+                    vals[i] = bits[i] ? 1 : 0;
+                    if(bits[i])
+                        expected = group.mul(expected, g[i]);
+                }
+                if(!t.product(bits).equals(expected) 
+                   || !t.product(Util.bitPlanes(vals, 1)[0]).equals(expected)) {
+                    System.out.println("Wrong product for w = " + w);
+                    nFailed++;
+                }
+            }
+        }
+        
+        SubsetProductTable t = new SubsetProductTable(group, g, chooseWindow(n, group.getElementBitLength()));
+        boolean[][] bits = new boolean[nLoops][n];
+        for(int l = 0; l < nLoops; l++)
+            for(int i = 0; i < n; i++)
+                bits[l][i] = rand.nextBoolean();
+        long start = System.currentTimeMillis();
+        for(int l = 0; l < nLoops; l++)
+            t.product(bits[l]);
+        long tableTime = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        for(int l = 0; l < nLoops; l++) {
+            BigInteger c = group.identity();
+            for(int i = 0; i < n; i++)
+                if(bits[l][i])
+                    c = group.mul(c, g[i]);
+        }
+        long plainTime = System.currentTimeMillis() - start;
+        
+        System.out.println("w = " + t.getWindow() + ": " + nLoops 
+                           + " products of " + n + " generators took " 
+                           + tableTime + " ms with the table (filled lazily),"
+                           + " " + plainTime + " ms without");
+        System.out.println("Total failed: " + nFailed);
+    }
+    
+    private static final class Key {
+        private final Group group;
+        private final BigInteger[] g;
+        private final int hash;
+        
+        Key(Group group, BigInteger[] g) {
+            this.group = group;
+            this.g = g.clone();
+            this.hash = System.identityHashCode(group) + 31*Arrays.hashCode(g);
+        }
+        
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return group == k.group && Arrays.equals(g, k.g);
+        }
+        
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
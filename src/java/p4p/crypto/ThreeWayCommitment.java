@@ -64,17 +64,28 @@ import p4p.util.P4PParameters;
 
 public class ThreeWayCommitment extends Commitment {
     public final NativeBigInteger CONST;    // The public constant
+    private BigInteger constInverse = null; // 1/CONST mod q
+    private final BitCommitment bc;         // For the bit proofs
     
     public ThreeWayCommitment(NativeBigInteger g, NativeBigInteger h,
                               BigInteger c) {
         super(g, h);
         this.CONST = new NativeBigInteger(c.abs());
+        this.bc = new BitCommitment(g, h);
     }
 
     public ThreeWayCommitment(NativeBigInteger g, NativeBigInteger h,
                               long c) {
         super(g, h);
-        this.CONST = new NativeBigInteger(new BigInteger(String.valueOf(c)).abs());
+        this.CONST = new NativeBigInteger(BigInteger.valueOf(c).abs());
+        this.bc = new BitCommitment(g, h);
+    }
+    
+    // Racing threads at worst compute the same (immutable) inverse twice.
+    private BigInteger constInverse() {
+        if(constInverse == null)
+            constInverse = CONST.modInverse(q);
+        return constInverse;
     }
     
     /**
@@ -97,7 +108,7 @@ public class ThreeWayCommitment extends Commitment {
             throw new RuntimeException("ThreeWayCommitment.commit can only" 
                                        + "be invoked with 0 or +/-" + c);
         
-        return super.commit(new BigInteger(String.valueOf(val)));
+        return super.commit(BigInteger.valueOf(val));
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
@@ -108,12 +119,33 @@ public class ThreeWayCommitment extends Commitment {
             throw new RuntimeException("ThreeWayCommitment.commit can only" 
                                        + "be invoked with 0 or +/-" + c);
         
-        return super.commit(new BigInteger(String.valueOf(val)), r);
+        return super.commit(BigInteger.valueOf(val), r);
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
     
     
+    /**
+     * Commits to 0 or +/-CONST without changing the state of this object. 
+     * See {@link Commitment#open(BigInteger)}.
+     */
+    public CommitmentScheme.Opening open(BigInteger val) {
+        checkValue(val);
+        return super.open(val);
+    }
+    
+    public CommitmentScheme.Opening open(BigInteger val, BigInteger r) {
+        checkValue(val);
+        return super.open(val, r);
+    }
+    
+    private void checkValue(BigInteger val) {
+        if(!val.equals(BigInteger.ZERO) && !val.equals(CONST)
+           && !val.equals(CONST.negate()))
+           throw new RuntimeException("ThreeWayCommitment.open can only" 
+                                      + "be invoked with 0 or +/-" + CONST);
+    }
+    
     // The verifier:
     /**
      * Verify if the given bit <code>val</code> is contained in the commitment
@@ -134,6 +166,17 @@ public class ThreeWayCommitment extends Commitment {
         return proof;
     }
     
+    /**
+     * Constructs the proof for the given opening. This only reads the 
+     * parameters of this commitment so several threads can use the same 
+     * object.
+     */
+    public ThreeWayCommitmentProof getProof(CommitmentScheme.Opening opening) {
+        ThreeWayCommitmentProof proof = new ThreeWayCommitmentProof();
+        proof.construct(opening.getValue(), opening.getRandomness());
+        return proof;
+    }
+    
     /**
      * A zero-knowledge proof that the commitment contains 0,or +/-c. The protocol 
      * is based on
@@ -164,54 +207,53 @@ public class ThreeWayCommitment extends Commitment {
             if(val == null)
                 throw new RuntimeException("Must commit to a value first" 
                                            + "before constructing the proof!");
-            
+            construct(val, r);
+        }
+        
+        // Construct the ZKP that the commitment to val with randomness r 
+        // contains 0,or +/-c
+        void construct(BigInteger val, BigInteger r) {
             // We do need to store this commitment:
             commitment = new BigInteger[1];
+            commitment[0] = computeCommitment(val, r);
+            // Note: We must use the same randomness so that the proof 
+            // contains the same commitment.
 
-            if(val != null) 
-                commitment[0] = commit(val, r);
-            else
-                commitment[0] = commit(val);
-            // Note: If this ThreeWayCommitment has been used to commit to a 
-            // value (indicated by val != null), we should use the same 
-            // randomness so that the proof contains the same commitment.
-
-            BitCommitment bc1 = new BitCommitment(g, h);
-            BitCommitment bc2 = new BitCommitment(g, h);
             /**
-             * We need to make sure that the random numbers in bc1 and bc2 sum 
-             * to the random number used in this commitment. So we generate 
-             * only 1 random number. Note that since the commitment should be
-             * C1^{c}/C2^c no matter what val is, the random numbers associated 
-             * with C1, C2, and this commitment should satisfy 
+             * We need to make sure that the random numbers in the bit 
+             * commitments C1 and C2 sum to the random number used in this 
+             * commitment. So we generate only 1 random number. Note that 
+             * since the commitment should be C1^{c}/C2^c no matter what val 
+             * is, the random numbers associated with C1, C2, and this 
+             * commitment should satisfy 
              *
              *    r = (r1 - r2)*c
              *
              */
-            BigInteger rc = r.multiply(CONST.modInverse(q)).mod(q);
+            BigInteger rc = r.multiply(constInverse()).mod(q);
             // r/c
+            CommitmentScheme.Opening o1, o2;
             if(val.equals(BigInteger.ZERO)) {
-                bc2.commit(0);
-                bc1.commit(0, rc.add(bc2.getRandomness()).mod(q));
+                o2 = bc.open(false);
+                o1 = bc.open(false, rc.add(o2.getRandomness()));
             }
             else if(val.equals(CONST)) {
-                bc2.commit(0);
-                bc1.commit(1, rc.add(bc2.getRandomness()).mod(q));
+                o2 = bc.open(false);
+                o1 = bc.open(true, rc.add(o2.getRandomness()));
             }
             else if(val.equals(CONST.negate())) {
-                bc2.commit(1);
-                bc1.commit(0, rc.add(bc2.getRandomness()).mod(q));
+                o2 = bc.open(true);
+                o1 = bc.open(false, rc.add(o2.getRandomness()));
             }
+            else
+                throw new RuntimeException("Not a 3-way commitment!");
             
             /**
              * The first element in the BitCommitmentProof is the commitment 
              * itself so we don't need to store the bit commitment.
              */
-            bcp1 = (BitCommitment.BitCommitmentProof)bc1.getProof();
-            bcp2 = (BitCommitment.BitCommitmentProof)bc2.getProof();
-
-            BigInteger C1 = bcp1.getCommitment()[0];
-            BigInteger C2 = bcp2.getCommitment()[0];
+            bcp1 = bc.getProof(o1, Transcript.THREE_WAY);
+            bcp2 = bc.getProof(o2, Transcript.THREE_WAY);
         }
 
         /**
@@ -243,17 +285,22 @@ public class ThreeWayCommitment extends Commitment {
         BitCommitment.BitCommitmentProof bcp2 = proof.getDenominatorProof();
 
         // Check the bit commitments
-        BitCommitment bc = new BitCommitment(g, h);        
-        if(!bc.verify(bcp1) || !bc.verify(bcp2)) {
+        if(!bc.verify(bcp1, Transcript.THREE_WAY) 
+           || !bc.verify(bcp2, Transcript.THREE_WAY)) {
             System.out.println("BitCommitment verification failed!");
             return false;
         }
         
         // This commitment
         BigInteger C = proof.getCommitment()[0];
+        if(!group.isElement(C)) {
+            System.out.println("Commitment is not a group element!");
+            return false;
+        }
         BigInteger C1 = bcp1.getCommitment()[0];
         BigInteger C2 = bcp2.getCommitment()[0];
-        if(!C1.multiply(C2.modInverse(p)).mod(p).modPow(CONST, p).equals(C)) {
+        // (C1/C2)^c = C, cross-multiplied:
+        if(!group.exp(C1, CONST).equals(group.mul(C, group.exp(C2, CONST)))) {
             System.out.println("Commitment was not computed correctly.");
             System.out.println("C1: " + C1 + ", C2: " + C2);
             return false;
@@ -263,6 +310,41 @@ public class ThreeWayCommitment extends Commitment {
     }
     
 
+    /**
+     * Like {@link #verify(ThreeWayCommitmentProof)} but only performs the 
+     * checks that need no exponentiation. The exponentiation equations of
+     * the two bit commitment proofs and C1^c = C*C2^c mod p are added to 
+     * <code>batch</code> and will be checked when the batch is verified.
+     *
+     * @return <code>false</code> if the proof is already known to be invalid.
+     */
+    public boolean batchVerify(ThreeWayCommitmentProof proof, 
+                               BatchVerifier batch) {
+        BitCommitment.BitCommitmentProof bcp1 = proof.getNumeratorProof();
+        BitCommitment.BitCommitmentProof bcp2 = proof.getDenominatorProof();
+
+        // Check the bit commitments
+        if(!bc.batchVerify(bcp1, batch, Transcript.THREE_WAY) 
+           || !bc.batchVerify(bcp2, batch, Transcript.THREE_WAY)) {
+            System.out.println("BitCommitment verification failed!");
+            return false;
+        }
+        
+        // This commitment
+        BigInteger C = proof.getCommitment()[0];
+        if(!batch.isGroupElement(C)) {
+            System.out.println("Commitment is not a group element!");
+            return false;
+        }
+        BigInteger C1 = bcp1.getCommitment()[0];
+        BigInteger C2 = bcp2.getCommitment()[0];
+        batch.addEquation(new BigInteger[] {C1}, new BigInteger[] {CONST},
+                          new BigInteger[] {C, C2}, 
+                          new BigInteger[] {BigInteger.ONE, CONST});
+        return true;
+    }
+    
+
     /**
      * Test the ThreeCommitment and the ZKP
      */
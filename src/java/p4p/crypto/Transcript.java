@@ -0,0 +1,445 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import p4p.util.Util;
+import p4p.util.P4PParameters;
+
+/**
+ * A Fiat-Shamir transcript. The messages (group elements or numbers) are 
+ * appended in a fixed-width, big-endian two's complement encoding to a 
+ * buffer which is hashed when a challenge is requested. Since every message
+ * takes the same number of bytes the encoding is unambiguous without length
+ * prefixes. A proof starts its transcript with a {@link #label} naming the
+ * proof type (e.g. {@link #BIT}) so that a challenge computed for one kind
+ * of proof can never be reused in another.
+ * <p>
+ * The challenge has 64 bits more than q and is reduced mod q so that it is
+ * statistically close to uniform. If the hash is too short, it is expanded
+ * with a one-byte counter: short transcripts are hashed once per counter 
+ * value, long ones are hashed once and the digest is expanded.
+ * <p>
+ * The hash function can be any <code>MessageDigest</code> algorithm. The 
+ * default is SHA-512 and can be changed with the system property 
+ * <code>p4p.transcript.hash</code>. The prover and the verifier must of 
+ * course use the same one. The digests are cached per thread so 
+ * <code>MessageDigest.getInstance</code> is only called once per thread and
+ * algorithm.
+ * <p>
+ * A transcript is not thread-safe. {@link #hash} uses a per-thread 
+ * transcript and can be called from any thread.
+ * <p>
+ * This replaces {@link p4p.util.Util#secureHash} in the proofs. The 
+ * challenges are not the same as the ones it computes.
+ */
+
+public class Transcript extends P4PParameters {
+    public static final String DEFAULT_HASH = 
+        System.getProperty("p4p.transcript.hash", "SHA-512");
+    
+    /**
+     * Extra bits of hash output, beyond the length of q, so that the 
+     * challenge is close to uniform in Z_q.
+     */
+    private static final int EXTRA_BITS = 64;
+    
+    /**
+     * The domain separation labels of the proofs.
+     */
+    public static final String BIT = "p4p.bit";
+    public static final String SQUARE = "p4p.square";
+    public static final String THREE_WAY = "p4p.three-way";
+    public static final String RANGE = "p4p.range";
+    
+    private static final ThreadLocal<HashMap<String, MessageDigest>> digests = 
+        new ThreadLocal<HashMap<String, MessageDigest>>() {
+            protected HashMap<String, MessageDigest> initialValue() {
+                return new HashMap<String, MessageDigest>();
+            }
+        };
+    
+    private static final ThreadLocal<Transcript> transcripts = 
+        new ThreadLocal<Transcript>();
+    
+    private final String algorithm;
+    private final int width;        // Bytes per message
+    private byte[] buffer;
+    private int length = 0;
+    private byte[] out = null;      // Hash output, reused
+    private byte[] seed = null;
+    private byte[] bytes = null;    // The part of out we use
+    
+    /**
+     * Creates a transcript for messages of up to <code>bits</code> bits 
+     * (not counting the sign) using the default hash.
+     */
+    public Transcript(int bits) {
+        this(bits, DEFAULT_HASH);
+    }
+    
+    public Transcript(int bits, String algorithm) {
+        if(bits <= 0)
+            throw new IllegalArgumentException("Non-positive message length!");
+        this.algorithm = algorithm;
+        this.width = bits/8 + 1;
+        this.buffer = new byte[8*width];
+        digest(algorithm);    // Fail early if the algorithm doesn't exist
+    }
+    
+    /**
+     * Creates a transcript for the given group, i.e. its elements and the
+     * numbers mod its order.
+     */
+    public Transcript(Group group) {
+        this(group, DEFAULT_HASH);
+    }
+    
+    public Transcript(Group group, String algorithm) {
+        this(Math.max(group.getElementBitLength(), 
+                      group.getOrder().bitLength()), algorithm);
+    }
+    
+    private static MessageDigest digest(String algorithm) {
+        HashMap<String, MessageDigest> mds = digests.get();
+        MessageDigest md = mds.get(algorithm);
+        if(md == null) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            }
+            catch(NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("No such hash algorithm: " 
+                                                   + algorithm, e);
+            }
+            mds.put(algorithm, md);
+        }
+        return md;
+    }
+    
+    public String getAlgorithm() {
+        return algorithm;
+    }
+    
+    /**
+     * Clears the transcript.
+     */
+    public Transcript reset() {
+        length = 0;
+        return this;
+    }
+    
+    private void ensureCapacity() {
+        if(length + width > buffer.length) {
+            byte[] bigger = new byte[2*buffer.length];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+    
+    /**
+     * Appends a domain separation label. It takes one message: a length 
+     * byte followed by the ASCII characters of the label, padded with 0.
+     *
+     * @throws IllegalArgumentException if the label doesn't fit in the 
+     *         message width.
+     */
+    public Transcript label(String label) {
+        int n = label.length();
+        if(n + 1 > width || n > 255)
+            throw new IllegalArgumentException("Label too long: " + label);
+        ensureCapacity();
+        buffer[length] = (byte)n;
+        for(int i = 0; i < n; i++)
+            buffer[length + 1 + i] = (byte)label.charAt(i);
+        for(int i = n + 1; i < width; i++)
+            buffer[length + i] = 0;
+        length += width;
+        return this;
+    }
+    
+    /**
+     * Appends x to the transcript. 
+     *
+     * @throws IllegalArgumentException if x doesn't fit in the message 
+     *         width.
+     */
+    public Transcript append(BigInteger x) {
+        int bits = x.bitLength();
+        // The two's complement needs bits + 1 bits:
+        int n = bits/8 + 1;
+        if(n > width)
+            throw new IllegalArgumentException("Message too long: " 
+                                               + bits + " bits!");
+        ensureCapacity();
+        int end = length + width;
+        if(bits < 64) {
+            // Small numbers (e.g. the sums) are written directly. 
+            // longValue() is already sign extended to 8 bytes.
+            long v = x.longValue();
+            int m = Math.min(8, width);
+            byte fill = (byte)(v >> 63);
+            for(int i = length; i < end - m; i++)
+                buffer[i] = fill;
+            for(int i = 1; i <= m; i++) {
+                buffer[end - i] = (byte)v;
+                v >>= 8;
+            }
+        }
+        else {
+            // BigInteger has no other way to get at the magnitude. 
+            // toByteArray() returns exactly n bytes.
+            byte fill = (byte)(x.signum() < 0 ? 0xFF : 0);
+            for(int i = length; i < end - n; i++)
+                buffer[i] = fill;
+            System.arraycopy(x.toByteArray(), 0, buffer, end - n, n);
+        }
+        length = end;
+        return this;
+    }
+    
+    public Transcript append(BigInteger[] xs) {
+        for(int i = 0; i < xs.length; i++)
+            append(xs[i]);
+        return this;
+    }
+    
+    /**
+     * Returns a challenge in Z_q derived from everything appended so far. 
+     * The transcript is not cleared.
+     */
+    public BigInteger challenge(BigInteger q) {
+        OpCounter.hash();
+        MessageDigest md = digest(algorithm);
+        int hashLength = md.getDigestLength();
+        int nBytes = (q.bitLength() + EXTRA_BITS + 7)/8;
+        int nRounds = (nBytes + hashLength - 1)/hashLength;
+        if(nRounds > 256)
+            throw new IllegalArgumentException("q is too large for " 
+                                               + algorithm);
+        if(out == null || out.length != nRounds*hashLength)
+            out = new byte[nRounds*hashLength];
+        if(bytes == null || bytes.length != nBytes)
+            bytes = new byte[nBytes];
+        
+        try {
+            md.reset();
+            if((nRounds - 1)*length <= nRounds*hashLength) {
+                // Short transcript. Just hash it with each counter:
+                for(int i = 0; i < nRounds; i++) {
+                    md.update(buffer, 0, length);
+                    md.update((byte)i);
+                    md.digest(out, i*hashLength, hashLength);
+                }
+            }
+            else {
+                // Hash the transcript once and expand the digest:
+                md.update(buffer, 0, length);
+                if(seed == null || seed.length != hashLength)
+                    seed = new byte[hashLength];
+                md.digest(seed, 0, hashLength);
+                for(int i = 0; i < nRounds; i++) {
+                    md.update(seed);
+                    md.update((byte)i);
+                    md.digest(out, i*hashLength, hashLength);
+                }
+            }
+        }
+        catch(DigestException e) {
+            throw new RuntimeException("Can't compute hash!", e);
+        }
+        
+        // Only use the bits we need so that the reduction is cheap:
+        System.arraycopy(out, 0, bytes, 0, nBytes);
+        return new BigInteger(1, bytes).mod(q);
+    }
+    
+    /**
+     * Returns the challenge in Z_q for the given messages of a proof of type
+     * <code>label</code>, using the current thread's transcript for the 
+     * current group and the default hash.
+     */
+    public static BigInteger hash(String label, BigInteger[] msg, 
+                                  BigInteger q) {
+        Transcript t = transcripts.get();
+        if(t == null || t.owner != group) {
+            t = new Transcript(group);
+            t.owner = group;
+            transcripts.set(t);
+        }
+        return t.reset().label(label).append(msg).challenge(q);
+    }
+    
+    /**
+     * The group the per-thread transcript was created for.
+     */
+    private Group owner = null;
+    
+    /**
+     * Checks that the transcript is deterministic and sensitive to its 
+     * input and compares its speed with {@link p4p.util.Util#secureHash}.
+     */
+    public static void main(String[] args) 
+        throws GeneralSecurityException {
+        int k = 512;
+        int nLoops = 10000;
+        int qBits = 0;      // 0 means safe prime
+        String algorithm = DEFAULT_HASH;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 512;
+                    }
+                }
+                else if(arg.equals("-l")) {
+                    try {
+                        nLoops = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        nLoops = 10000;
+                    }
+                }
+                else if(arg.equals("-q")) {
+                    try {
+                        qBits = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        qBits = 256;
+                    }
+                }
+                else if(arg.equals("-a")) {
+                    algorithm = args[i++];
+                }
+            }
+        }
+        
+        if(qBits > 0)
+            P4PParameters.initialize(k, qBits, false);
+        else
+            P4PParameters.initialize(k, false);
+        BigInteger[] msg = new BigInteger[4];
+        for(int i = 0; i < msg.length; i++)
+            msg[i] = group.exp(group.getGenerator(), 
+                               Util.randomBigInteger(q));
+        
+        int nFailed = 0;
+        Transcript t = new Transcript(group, algorithm);
+        BigInteger c = t.append(msg).challenge(q);
+        if(!c.equals(t.reset().append(msg).challenge(q))) {
+            System.out.println("Challenge is not deterministic!");
+            nFailed++;
+        }
+        if(c.signum() < 0 || c.compareTo(q) >= 0) {
+            System.out.println("Challenge is not in Z_q!");
+            nFailed++;
+        }
+        BigInteger[] msg2 = msg.clone();
+        msg2[3] = msg2[3].add(BigInteger.ONE);
+        if(c.equals(t.reset().append(msg2).challenge(q))) {
+            System.out.println("Challenge does not depend on the messages!");
+            nFailed++;
+        }
+        // Fixed width: moving bytes between messages must change the hash.
+        if(t.reset().append(BigInteger.valueOf(256)).append(BigInteger.ONE)
+           .challenge(q).equals(t.reset().append(BigInteger.ONE)
+                                .append(BigInteger.valueOf(256)).challenge(q))) {
+            System.out.println("Encoding is ambiguous!");
+            nFailed++;
+        }
+        if(algorithm.equals(DEFAULT_HASH) 
+           && !t.reset().label(BIT).append(msg).challenge(q)
+           .equals(hash(BIT, msg, q))) {
+            System.out.println("hash() doesn't agree with the transcript!");
+            nFailed++;
+        }
+        if(hash(BIT, msg, q).equals(hash(SQUARE, msg, q))) {
+            System.out.println("Challenge does not depend on the label!");
+            nFailed++;
+        }
+        // The encoding must not depend on the size of the number:
+        long[] xs = {0, 1, -1, 127, 128, -128, -129, Long.MAX_VALUE, 
+                     Long.MIN_VALUE};
+        for(int i = 0; i < xs.length; i++) {
+            for(int j = -1; j <= 1; j++) {
+                BigInteger x = BigInteger.valueOf(xs[i]).add(BigInteger
+                                                             .valueOf(j));
+                byte[] b = x.toByteArray();
+                byte[] expected = new byte[t.width];
+                java.util.Arrays.fill(expected, 
+                                      (byte)(x.signum() < 0 ? 0xFF : 0));
+                System.arraycopy(b, 0, expected, t.width - b.length, 
+                                 b.length);
+                t.reset().append(x);
+                if(!java.util.Arrays.equals(expected, 
+                                            java.util.Arrays
+                                            .copyOf(t.buffer, t.width))) {
+                    System.out.println("Wrong encoding of " + x);
+                    nFailed++;
+                }
+            }
+        }
+        
+        // Warm up both:
+        for(int i = 0; i < nLoops; i++) {
+            t.reset().append(msg).challenge(q);
+            Util.secureHash(msg, q);
+        }
+        
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < nLoops; i++)
+            t.reset().append(msg).challenge(q);
+        long end = System.currentTimeMillis();
+        System.out.println("Transcript (" + algorithm + "): " 
+                           + (double)(end-start)*1000/(double)nLoops 
+                           + " us per challenge.");
+        
+        start = System.currentTimeMillis();
+        for(int i = 0; i < nLoops; i++)
+            Util.secureHash(msg, q);
+        end = System.currentTimeMillis();
+        System.out.println("Util.secureHash: " 
+                           + (double)(end-start)*1000/(double)nLoops 
+                           + " us per challenge.");
+        System.out.println("Total failed: " + nFailed);
+    }
+}
@@ -72,16 +72,16 @@ public class VectorCommitment extends P4PParameters {
     public void sanityCheck() {
         super.sanityCheck();
         
-        if(!h.modPow(q, p).equals(BigInteger.ONE))
+        if(!group.isElement(h))
             throw new IllegalArgumentException("h does not have the correct order!");
         
         if(N <= 0)
             throw new IllegalArgumentException("Non-positive dimension!");
         
         for(int i = 0; i < N; i++) {
-            if(g[i].equals(BigInteger.ONE))
+            if(g[i].equals(group.identity()))
                 throw new IllegalArgumentException("g[" + i + "] is ONE!");
-            if(!g[i].modPow(q, p).equals(BigInteger.ONE))
+            if(!group.isElement(g[i]))
                 throw new IllegalArgumentException("g[" + i + "] does not have the correct order!");
         }
         
@@ -96,19 +96,53 @@ public class VectorCommitment extends P4PParameters {
         if(vals.length != N) 
             throw new IllegalArgumentException("Incorrect dimension!");
         
-        BigInteger c = h.modPow(r, p);
+        BigInteger c = hPow(r);
+        BigInteger[] bases = new BigInteger[N];
+        BigInteger[] exps = new BigInteger[N];
+        int n = 0;
         for(int i = 0; i < N; i++) {
             if(vals[i].equals(BigInteger.ZERO))
                 continue;
             else if(vals[i].equals(BigInteger.ONE))
-                c = c.multiply(g[i]).mod(p);
-            else
-                c = c.multiply(g[i].modPow(vals[i].mod(q), p)).mod(p);
+                c = group.mul(c, g[i]);
+            else {
+                bases[n] = g[i];
+                exps[n++] = vals[i];
+            }
+        }
+        
+        if(n > 0) {
+            // One multi-exponentiation for all the g[i]^vals[i]:
+            if(n < N) {
+                BigInteger[] t = new BigInteger[n];
+                System.arraycopy(bases, 0, t, 0, n);
+                bases = t;
+                t = new BigInteger[n];
+                System.arraycopy(exps, 0, t, 0, n);
+                exps = t;
+            }
+            c = group.mul(c, group.multiExp(bases, exps));
         }
         
         return c;
     }
 
+    /**
+     * The group h's table was requested from. See {@link Group#precompute}.
+     */
+    private Group tablesGroup = null;
+    
+    /**
+     * Computes h^e using the precomputed table if there is one.
+     */
+    protected final BigInteger hPow(BigInteger e) {
+        if(tablesGroup != group) {
+            group.precompute(h);
+            tablesGroup = group;
+        }
+        return group.exp(h, e);
+    }
+
     // The committer:
     /** 
      * The values to be committed to.
@@ -312,7 +346,7 @@ public class VectorCommitment extends P4PParameters {
             BigInteger dr = vc.getRandomness();
             
             // c*dc = commit(sum, r+dr)
-            if(!c.multiply(dc).mod(p).equals(vc.commit(sum, r.add(dr)).mod(p)))
+            if(!group.mul(c, dc).equals(vc.commit(sum, r.add(dr))))
                 System.out.println(" failed. Homomorphism doesn't hold.");
             else
                 System.out.println(" passed. Homomorphism holds.");
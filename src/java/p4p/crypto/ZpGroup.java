@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.crypto;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.i2p.util.NativeBigInteger;
+
+import p4p.util.Util;
+
+/**
+ * The subgroup G_q of order q of Z_p^*, where q | p - 1. Elements are the
+ * residues themselves. Exponentiations of bases passed to 
+ * {@link #precompute} use the shared {@link FixedBaseExp} tables, 
+ * multi-exponentiations use {@link MultiExp} and products use 
+ * {@link MontgomeryContext}.
+ */
+
+public class ZpGroup extends Group {
+    private final BigInteger p;
+    private final BigInteger q;
+    private final BigInteger generator;
+    private final BigInteger cofactor;      // (p-1)/q
+    private final boolean safePrime;        // p = 2q + 1
+    private final int elementLength;        // Bytes
+    
+    private final ThreadLocal<MontgomeryContext> montgomery = 
+        new ThreadLocal<MontgomeryContext>() {
+        protected MontgomeryContext initialValue() {
+            return new MontgomeryContext(p);
+        }
+    };
+    
+    public ZpGroup(BigInteger p, BigInteger q, BigInteger generator) {
+        if(!p.subtract(BigInteger.ONE).mod(q).equals(BigInteger.ZERO))
+            throw new IllegalArgumentException("q does not divide p-1!");
+        this.p = p;
+        this.q = q;
+        this.generator = generator;
+        this.cofactor = p.subtract(BigInteger.ONE).divide(q);
+        this.safePrime = cofactor.equals(BigInteger.valueOf(2));
+        this.elementLength = (p.bitLength() + 7)/8;
+    }
+    
+    public BigInteger getModulus() {
+        return p;
+    }
+    
+    public int getElementBitLength() {
+        return p.bitLength();
+    }
+    
+    public BigInteger getOrder() {
+        return q;
+    }
+    
+    public BigInteger getGenerator() {
+        return generator;
+    }
+    
+    public BigInteger identity() {
+        return BigInteger.ONE;
+    }
+    
+    public BigInteger mul(BigInteger a, BigInteger b) {
+        OpCounter.mul();
+        return a.multiply(b).mod(p);
+    }
+    
+    public BigInteger inverse(BigInteger a) {
+        OpCounter.inverse();
+        return a.modInverse(p);
+    }
+    
+    public BigInteger exp(BigInteger a, BigInteger e) {
+        if(e.signum() < 0)
+            e = e.mod(q);
+        FixedBaseExp t = FixedBaseExp.lookup(a, p);
+        OpCounter.exp(t != null, e.bitLength());
+        if(t != null)
+            return t.pow(e);
+        // Use GMP if it is available:
+        if(!(a instanceof NativeBigInteger))
+            a = new NativeBigInteger(a);
+        return a.modPow(e, p);
+    }
+    
+    public void precompute(BigInteger base) {
+        FixedBaseExp.getInstance(base, p, q.bitLength());
+    }
+    
+    public BigInteger multiExp(BigInteger[] bases, BigInteger[] exps) {
+        BigInteger[] e = exps;
+        for(int i = 0; i < exps.length; i++) {
+            if(exps[i].signum() < 0) {
+                if(e == exps)
+                    e = exps.clone();
+                e[i] = exps[i].mod(q);
+            }
+        }
+        if(OpCounter.isEnabled()) {
+            OpCounter.multiExp();
+            for(int i = 0; i < bases.length; i++)
+                OpCounter.exp(FixedBaseExp.lookup(bases[i], p) != null, 
+                              e[i].bitLength());
+        }
+        return MultiExp.simultaneous(bases, e, p);
+    }
+    
+    public BigInteger product(BigInteger[] xs) {
+        OpCounter.mul(xs.length - 1);
+        return montgomery.get().product(xs);
+    }
+    
+    public BigInteger radix2Product(BigInteger[] xs) {
+        OpCounter.mul(2*(xs.length - 1));
+        return MultiExp.radix2Product(xs, p);
+    }
+    
+    /**
+     * For a safe prime p = 2q + 1, G_q is the subgroup of quadratic residues
+     * and a Jacobi symbol suffices. Otherwise a^q = 1 is checked.
+     */
+    public boolean isElement(BigInteger a) {
+        if(a.signum() <= 0 || a.compareTo(p) >= 0)
+            return false;
+        if(safePrime)
+            return Util.jacobi(a, p) == 1;
+        OpCounter.exp(false, q.bitLength());
+        return a.modPow(q, p).equals(BigInteger.ONE);
+    }
+    
+    /**
+     * Big-endian, padded to the length of p.
+     */
+    public byte[] encode(BigInteger a) {
+        byte[] b = a.toByteArray();
+        byte[] out = new byte[elementLength];
+        int n = Math.min(b.length, elementLength);
+        System.arraycopy(b, b.length - n, out, elementLength - n, n);
+        return out;
+    }
+    
+    public BigInteger decode(byte[] bytes) {
+        if(bytes.length != elementLength)
+            throw new IllegalArgumentException("Wrong encoding length!");
+        BigInteger a = new BigInteger(1, bytes);
+        if(!isElement(a))
+            throw new IllegalArgumentException("Not a group element!");
+        return a;
+    }
+    
+    /**
+     * Hashes the seed to a number in Z_p^* (with SHA-512 in counter mode and 
+     * 64 extra bits, so the bias is negligible) and raises it to the 
+     * cofactor (p-1)/q.
+     */
+    public BigInteger hashToElement(byte[] seed) {
+        OpCounter.hashToGroup();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-512");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-512 is not available!", e);
+        }
+        
+        int nBlocks = (p.bitLength() + 64 + 511)/512;
+        for(int ctr = 0; ; ctr++) {
+            byte[] buf = new byte[64*nBlocks];
+            for(int i = 0; i < nBlocks; i++) {
+                md.update(seed);
+                md.update(Util.bytesFromInt(ctr));
+                md.update(Util.bytesFromInt(i));
+                System.arraycopy(md.digest(), 0, buf, 64*i, 64);
+            }
+            BigInteger x = new BigInteger(1, buf).mod(p);
+            if(x.signum() == 0)
+                continue;
+            x = x.modPow(cofactor, p);
+            if(!x.equals(BigInteger.ONE))
+                return x;
+        }
+    }
+}
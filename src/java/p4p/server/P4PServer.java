@@ -40,6 +40,8 @@ import net.i2p.util.NativeBigInteger;
 import p4p.util.Util;
 import p4p.util.StopWatch;
 import p4p.util.P4PParameters;
+import p4p.crypto.BatchVerifier;
+import p4p.crypto.OpCounter;
 import p4p.user.UserVector2;
 
 /**
@@ -91,6 +93,7 @@ public class P4PServer extends P4PParameters {
         // The L2 norm bound proof. Should be passed to us by the user.
         private BigInteger[] Y_commitments_to_peer_share_of_checksum_Ser = null;
         // The commitments to the peer's share of the checksums.
+        private OpCounter.Counts verificationCost = null;
 
         public UserInfo(int user, long[] v) {
             ID = user;
@@ -144,6 +147,25 @@ public class P4PServer extends P4PParameters {
         public BigInteger[] getY() {
             return Y_commitments_to_peer_share_of_checksum_Ser;
         }
+        
+        /**
+         * @return the group operations of the last verification of this 
+         * user's proof, not counting the batch verification shared with the
+         * other users. See {@link OpCounter}.
+         */
+        public OpCounter.Counts getVerificationCost() {
+            return verificationCost;
+        }
+    }
+    
+    private OpCounter.Counts roundCost = null;
+    
+    /**
+     * Returns the group operations of the last {@link #compute}, i.e. of 
+     * verifying all the users of the round. See {@link OpCounter}.
+     */
+    public OpCounter.Counts getRoundCost() {
+        return roundCost;
     }
     
     private Hashtable<Integer, UserInfo> usersMap = 
@@ -167,6 +189,24 @@ public class P4PServer extends P4PParameters {
         init();
     }
 
+    /**
+     * Whether the users prove the bound on their sum of squares with a 
+     * single range proof. See {@link UserVector2#setRangeProof}.
+     */
+    private boolean rangeProof = false;
+    
+    /**
+     * Selects the proof the users must use for the sum of squares in this 
+     * round. All users must be told the same.
+     */
+    public void setRangeProof(boolean rangeProof) {
+        this.rangeProof = rangeProof;
+    }
+    
+    public boolean isRangeProof() {
+        return rangeProof;
+    }
+
     /**
      */
     public void init() {
@@ -380,17 +420,28 @@ public class P4PServer extends P4PParameters {
     /**
      * The server have received data and their proofs from enough users.
      * This fucntion is then called to compute the sum of the valid vectors.
+     * <p>
+     * The proofs are verified in two passes. The first pass performs the 
+     * checks that need no exponentiation and collects the exponentiation 
+     * equations of each user in a {@link BatchVerifier}. The second pass 
+     * verifies all the batches at once and, if that fails, bisects the set
+     * of users to find the ones whose proofs are invalid.
      */
 
     // 使用Challeng Vector
     public void compute() {
+        OpCounter.Counts roundStart = OpCounter.get();
         Object[] users = usersMap.entrySet().toArray();
         
         UserVector2 uv2_P4Pserver = new UserVector2(dimension_Ser, group_order_F_Server, max_bits_2_norm_user_vector_l, g_server, h_server);
+        uv2_P4Pserver.setRangeProof(rangeProof);
         System.out.println("Server:: computing. There are potentially " + usersMap.size() 
                            + " users.");
         int disqualified = 0;
         System.out.println("users.length: "+users.length);
+        UserInfo[] candidates = new UserInfo[users.length];
+        BatchVerifier[] batches = new BatchVerifier[users.length];
+        int nCandidates = 0;
         for(int i = 0; i < users.length; i++) {
             Map.Entry<Integer, UserInfo> userEntry = 
                 (Map.Entry<Integer, UserInfo>)users[i];
@@ -407,11 +458,14 @@ public class P4PServer extends P4PParameters {
             uv2_P4Pserver.setY_UV2(Y_U2);
             UserVector2.L2NormBoundProof2 proof = user.getProof();
 
-            if(uv2_P4Pserver.verify2(proof)){
-                System.out.println("User " + user.ID
-                        + "'s vector succeed the verification.");
-            }
-            if(!uv2_P4Pserver.verify2(proof)) {
+            BatchVerifier batch = new BatchVerifier();
+            OpCounter.Counts start = OpCounter.get();
+            boolean verified = uv2_P4Pserver.verify2(proof, batch);
+            user.verificationCost = OpCounter.get().minus(start);
+            if(OpCounter.isEnabled())
+                System.out.println("User " + user.ID + "'s verification used " 
+                                   + user.verificationCost);
+            if(!verified) {
                 System.out.println("User " + user.ID 
                                    + "'s vector failed the verification.");
                 disqualifyUser(user.ID);
@@ -420,10 +474,60 @@ public class P4PServer extends P4PParameters {
                 disqualified++;
                 continue;
             }
-            Util.vectorAdd(acc_vector_sum_Server, u_userVector_compute, acc_vector_sum_Server, group_order_F_Server);
+            candidates[nCandidates] = user;
+            batches[nCandidates++] = batch;
+        }
+        
+        boolean[] failed = new boolean[nCandidates];
+        findInvalid(batches, 0, nCandidates, failed);
+        for(int i = 0; i < nCandidates; i++) {
+            UserInfo user = candidates[i];
+            if(failed[i]) {
+                System.out.println("User " + user.ID 
+                                   + "'s vector failed the verification.");
+                disqualifyUser(user.ID);
+                disqualified++;
+                continue;
+            }
+            System.out.println("User " + user.ID
+                               + "'s vector succeed the verification.");
+            Util.vectorAdd(acc_vector_sum_Server, user.getVector(), acc_vector_sum_Server, group_order_F_Server);
         }
         Util.vectorAdd(acc_vector_sum_Server, peerSum, acc_vector_sum_Server, group_order_F_Server);
         System.out.println("Server:: done computing. " + disqualified + " users disqualified.");
+        roundCost = OpCounter.get().minus(roundStart);
+        if(OpCounter.isEnabled())
+            System.out.println("Server:: the round used " + roundCost);
+    }
+    
+    /**
+     * Verifies batches[from..to) together and, if that fails, each half 
+     * separately until the invalid ones are found. Their entries in 
+     * <code>failed</code> are set to <code>true</code>.
+     */
+    private void findInvalid(BatchVerifier[] batches, int from, int to,
+                             boolean[] failed) {
+        if(from >= to)
+            return;
+        
+        BatchVerifier batch;
+        if(to - from == 1)
+            batch = batches[from];
+        else {
+            batch = new BatchVerifier();
+            for(int i = from; i < to; i++)
+                batch.add(batches[i]);
+        }
+        if(batch.verify())
+            return;
+        
+        if(to - from == 1) {
+            failed[from] = true;
+            return;
+        }
+        int mid = (from + to)/2;
+        findInvalid(batches, from, mid, failed);
+        findInvalid(batches, mid, to, failed);
     }
     
     /**
@@ -431,5 +535,105 @@ public class P4PServer extends P4PParameters {
     public long[] getVectorSum() {
         return acc_vector_sum_Server;
     }
+
+    /**
+     * Tests the two-pass verification in {@link #compute}. In each round 
+     * one user's proof is tampered with after it was built, which only 
+     * breaks its exponentiation equations, so it passes the first pass and
+     * must be found by bisecting the batch. The round checks that exactly 
+     * that user is disqualified and that the sum is the sum of the others'
+     * vectors. Round 0 has no tampered proof.
+     */
+    public static void main(String[] args) {
+        int k = 512;
+        int m = 20;
+        int N = 8;
+        int l = 20;
+        int nUsers = 6;
+        int nLoops = 4;
+
+        for(int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.equals("-k"))
+                k = Integer.parseInt(args[i++]);
+            else if(arg.equals("-m"))
+                m = Integer.parseInt(args[i++]);
+            else if(arg.equals("-N"))
+                N = Integer.parseInt(args[i++]);
+            else if(arg.equals("-n"))
+                nUsers = Integer.parseInt(args[i++]);
+            else if(arg.equals("-o"))
+                nLoops = Integer.parseInt(args[i++]);
+        }
+
+        P4PParameters.initialize(k, false);
+        NativeBigInteger[] gh = P4PParameters.getGenerators(2);
+        long F = BigInteger.probablePrime(50, Util.rand).longValue();
+        long L = ((long)1)<<(l - 1);
+        int nFailed = 0;
+
+        for(int loop = 0; loop < nLoops; loop++) {
+            int bad = loop == 0 ? -1 : Util.rand.nextInt(nUsers);
+            P4PServer server = new P4PServer(m, F, l, N, gh[0], gh[1]);
+            server.generateChallengeVectors();
+            long[] peerSum = new long[m];
+            long[] expected = new long[m];
+
+            for(int u = 0; u < nUsers; u++) {
+                long[] data = Util.randVector(m, F, 0.3*L);
+                UserVector2 uv = new UserVector2(data, F, l, gh[0], gh[1]);
+                uv.generateShares();
+                uv.setChecksumCoefficientVectors(server.getChallengeVectors());
+                UserVector2.L2NormBoundProof2 peerProof = 
+                    (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(false);
+                UserVector2.L2NormBoundProof2 serverProof = 
+                    (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(true);
+                if(u == bad) {
+                    // Alternate between a bit proof and a square proof:
+                    BigInteger[] r = loop%2 == 0 
+                        ? serverProof.getBitCommitmentProofs()[1].getResponse()
+                        : serverProof.getSquareCommitmentProofs()[0]
+                        .getResponse();
+                    r[r.length-1] = r[r.length-1].add(BigInteger.ONE);
+                }
+
+                // The peer computes Y from its share:
+                UserVector2 peer = new UserVector2(m, F, l, gh[0], gh[1]);
+                peer.setPeerV(uv.getV());
+                peer.setChecksumCoefficientVectors(server.getChallengeVectors());
+                peer.verify2(peerProof);
+
+                server.setUserVector(u, uv.getU());
+                server.setProof(u, serverProof);
+                server.setY_server(u, peer.getY_UV2());
+                if(u != bad) {
+                    // The peer only adds up the qualified users' shares
+                    Util.vectorAdd(peerSum, uv.getV(), peerSum, F);
+                    Util.vectorAdd(expected, uv.getUserData(), expected, F);
+                }
+            }
+            server.setPeerSum(peerSum);
+            server.compute();
+
+            boolean ok = server.getNQulaifiedUsers() 
+                == (bad < 0 ? nUsers : nUsers - 1);
+            for(int u = 0; u < nUsers; u++)
+                ok &= server.usersMap.containsKey(u) == (u != bad);
+            long[] sum = server.getVectorSum();
+            for(int j = 0; j < m; j++)
+                ok &= Util.mod(sum[j], F) == Util.mod(expected[j], F);
+
+            if(ok)
+                System.out.println("Test No. " + loop + " passed. Tampered "
+                                   + "user: " + bad);
+            else {
+                nFailed++;
+                System.out.println("Test No. " + loop + " failed. Tampered "
+                                   + "user: " + bad + ", qualified users: "
+                                   + server.usersMap.keySet());
+            }
+        }
+        System.out.println("P4PServer: Total failed tests: " + nFailed);
+    }
 }
 
@@ -44,6 +44,8 @@ import p4p.util.P4PParameters;
 //import p4p.crypto.Proof;
 //import p4p.crypto.BitCommitment;
 //import p4p.crypto.Commitment;
+import p4p.crypto.ECGroup;
+import p4p.crypto.OpCounter;
 import p4p.user.UserVector2;
 import p4p.server.P4PServer;
 
@@ -73,6 +75,9 @@ public class P4PSim extends P4PParameters {
         int nLoops = 1;
         boolean doBench = false;
         boolean worstcase = false;
+        boolean useEC = false;
+        boolean useRangeProof = false;
+        int subgroupBits = 0;   // 0 means safe prime
         /**
          * Test the worst case cost. i.e. every vector should pass. This is 
          * when the verifier spends longest time.
@@ -150,6 +155,20 @@ public class P4PSim extends P4PParameters {
                 else if(arg.equals("-bench")) {
                     doBench = true;
                 }
+                else if(arg.equals("-q")) {
+                    try {
+                        subgroupBits = Integer.parseInt(args[i++]);
+                    }
+                    catch (NumberFormatException e) {
+                        subgroupBits = 256;
+                    }
+                }
+                else if(arg.equals("-ec")) {
+                    useEC = true;   // Use NIST P-256 instead of Z_p^*
+                }
+                else if(arg.equals("-rp")) {
+                    useRangeProof = true;   // One range proof, not bit proofs
+                }
             }
         }
 
@@ -159,7 +178,13 @@ public class P4PSim extends P4PParameters {
         System.out.println("nLoops = " + nLoops);
 
         // Setup the parameters:
-        P4PParameters.initialize(security_parameter_Sim, false);
+        if(useEC)
+            P4PParameters.initialize(ECGroup.getP256());
+        else if(subgroupBits > 0)
+            P4PParameters.initialize(security_parameter_Sim, subgroupBits, 
+                                     false);
+        else
+            P4PParameters.initialize(security_parameter_Sim, false);
         SecureRandom rand = null;
         try {
             rand = SecureRandom.getInstance("SHA1PRNG");
@@ -194,6 +219,7 @@ public class P4PSim extends P4PParameters {
 
 /////////////////////////////////           P4PServer            /////////////////////////////////////////////////////
         P4PServer server = new P4PServer(dimension, FieldSize_larger_than_bitLength_Sim, bitLength, zkpIterations, g, h);
+        server.setRangeProof(useRangeProof);
         ////////////////////////////////////////////////////////////////////////
 
 
@@ -239,6 +265,7 @@ public class P4PSim extends P4PParameters {
                 //I🌟 【 data_long = Util.randVector(dim, F, l2norm) 】
 
                 UserVector2 uv2 = new UserVector2(data_long_1arr, FieldSize_larger_than_bitLength_Sim, bitLength, g, h);
+                uv2.setRangeProof(useRangeProof);
 
 
 
@@ -262,6 +289,9 @@ public class P4PSim extends P4PParameters {
                 UserVector2.L2NormBoundProof2 serverProof =
                         (UserVector2.L2NormBoundProof2)uv2.getL2NormBoundProof2(true);
                 proverWatch.pause();
+                if(OpCounter.isEnabled())
+                    System.out.println("User " + user_id + "'s proofs used " 
+                                       + serverProof.getConstructionCost());
 
 
 
@@ -283,8 +313,13 @@ public class P4PSim extends P4PParameters {
 
 
 // 7. peerPassed verify2(peerProof); disqualifyUser(user_id);  setY(uid, Y)
+                OpCounter.Counts peerStart = OpCounter.get();
                 boolean peerPassed = pv.verify2(peerProof);
                 verifierWatch.pause();
+                if(OpCounter.isEnabled())
+                    System.out.println("Peer's verification of user " + user_id 
+                                       + " used " 
+                                       + OpCounter.get().minus(peerStart));
                 System.out.println("here");
                 if(!peerPassed){
                     System.out.println("!peerPassed");
@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.user;
+
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import net.i2p.util.NativeBigInteger;
+
+import p4p.util.P4PParameters;
+import p4p.crypto.Proof;
+import p4p.crypto.BitCommitment;
+import p4p.crypto.CommitmentScheme;
+import p4p.crypto.SquareCommitment;
+import p4p.crypto.ThreeWayCommitment;
+
+/**
+ * The offline phase of the {@link UserVector2.L2NormBoundProof2} prover. 
+ * Most of the proof does not depend on the user data: the 3-way proofs for 
+ * the modular correctors (which can only be 0 or +/-F), the bit proofs for 
+ * the sum of the squares and the randomness of the square commitments. A 
+ * pool computes these ahead of time, either in the background 
+ * ({@link #start}) or on demand ({@link #fill}), and keeps up to the number 
+ * needed for a given number of proofs. A {@link UserVector2} given a pool 
+ * (see {@link UserVector2#setPrecomputationPool}) takes from it when it 
+ * constructs the proof, leaving mostly the inner products and a few cheap 
+ * combinations for the online phase. If a pool runs dry the values are 
+ * computed inline.
+ * <p>
+ * Since we don't know in advance which corrector or bit values the data 
+ * will need, proofs for each value are kept. Every precomputed value is 
+ * used at most once.
+ */
+
+public class PrecomputationPool extends P4PParameters implements Runnable {
+    /**
+     * A precomputed proof together with the randomness of its commitment.
+     */
+    public static final class Entry {
+        private final Proof proof;
+        private final BigInteger randomness;
+        
+        Entry(Proof proof, BigInteger randomness) {
+            this.proof = proof;
+            this.randomness = randomness;
+        }
+        
+        public Proof getProof() {
+            return proof;
+        }
+        
+        /**
+         * The randomness used in the commitment, i.e. 
+         * <code>getProof().getCommitment()[0]</code>.
+         */
+        public BigInteger getRandomness() {
+            return randomness;
+        }
+    }
+    
+    private final NativeBigInteger g;
+    private final NativeBigInteger h;
+    private final long F;
+    
+    private final ArrayBlockingQueue<SquareCommitment.Precomputed> squares;
+    private final ArrayBlockingQueue<Entry>[] correctors;   // 0, F, -F
+    private final ArrayBlockingQueue<Entry>[] bits;         // 0, 1
+    
+    private final SquareCommitment sc;
+    private final ThreeWayCommitment tc;
+    private final BitCommitment bc;
+    
+    private volatile boolean running = false;
+    private Thread worker = null;
+    
+    /**
+     * Creates a pool for the proofs of a UserVector2 with the given 
+     * parameters.
+     *
+     * @param g         the first generator used in commitment
+     * @param h         the second generator used in commitment
+     * @param F         the size of the small field
+     * @param l         the max allowed number of bits of the L2 norm of user
+     *                  vector
+     * @param nChecksums the number of checksums (challenge vectors)
+     * @param nProofs   the number of proofs to keep precomputed values for
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PrecomputationPool(NativeBigInteger g, NativeBigInteger h, long F,
+                              int l, int nChecksums, int nProofs) {
+        this.g = g;
+        this.h = h;
+        this.F = F;
+        
+        // The number of bits in the sum of the squares. Must agree with 
+        // UserVector2.L2NormBoundProof2.construct. The last bit is not 
+        // precomputed since its randomness is determined by the others.
+        int nBits = Integer.toBinaryString(nChecksums).length() + 2*l;
+        squares = 
+            new ArrayBlockingQueue<SquareCommitment.Precomputed>(nChecksums*nProofs);
+        correctors = new ArrayBlockingQueue[3];
+        for(int i = 0; i < correctors.length; i++)
+            correctors[i] = new ArrayBlockingQueue<Entry>(nChecksums*nProofs);
+        bits = new ArrayBlockingQueue[2];
+        for(int i = 0; i < bits.length; i++)
+            bits[i] = new ArrayBlockingQueue<Entry>((nBits - 1)*nProofs);
+        
+        sc = new SquareCommitment(g, h);
+        tc = new ThreeWayCommitment(g, h, F);
+        bc = new BitCommitment(g, h);
+    }
+    
+    /**
+     * Returns true if this pool can be used for proofs with the given 
+     * parameters.
+     */
+    public boolean matches(NativeBigInteger g, NativeBigInteger h, long F) {
+        return this.g.equals(g) && this.h.equals(h) && this.F == F;
+    }
+    
+    /**
+     * Starts filling the pool in a background (daemon) thread.
+     */
+    public synchronized void start() {
+        if(running)
+            return;
+        running = true;
+        worker = new Thread(this, "PrecomputationPool");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+    
+    /**
+     * Stops the background thread. The values already computed stay in the
+     * pool.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+    
+    /**
+     * Fills the pool in the calling thread.
+     */
+    public void fill() {
+        while(produce())
+            ;
+    }
+    
+    public void run() {
+        while(running) {
+            if(produce())
+                continue;
+            synchronized(this) {
+                while(running && isFull()) {
+                    try {
+                        wait();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns true if the pool is full.
+     */
+    public boolean isFull() {
+        if(squares.remainingCapacity() > 0)
+            return false;
+        for(int i = 0; i < correctors.length; i++)
+            if(correctors[i].remainingCapacity() > 0)
+                return false;
+        for(int i = 0; i < bits.length; i++)
+            if(bits[i].remainingCapacity() > 0)
+                return false;
+        return true;
+    }
+    
+    private static double fillRatio(ArrayBlockingQueue<?> queue) {
+        return (double)queue.size()/(queue.size() + queue.remainingCapacity());
+    }
+    
+    /**
+     * Computes one value for the emptiest queue. Returns false if the pool 
+     * is full. 
+     */
+    private boolean produce() {
+        // The commitment objects are shared, so several threads may fill 
+        // the pool at once. A value computed for a queue that another 
+        // thread has just filled is dropped.
+        ArrayBlockingQueue<?> emptiest = squares;
+        double fill = fillRatio(squares);
+        for(int i = 0; i < correctors.length; i++) {
+            if(fillRatio(correctors[i]) < fill) {
+                fill = fillRatio(correctors[i]);
+                emptiest = correctors[i];
+            }
+        }
+        for(int i = 0; i < bits.length; i++) {
+            if(fillRatio(bits[i]) < fill) {
+                fill = fillRatio(bits[i]);
+                emptiest = bits[i];
+            }
+        }
+        if(fill >= 1.0)
+            return false;
+        
+        if(emptiest == squares)
+            squares.offer(sc.precompute());
+        else if(emptiest == correctors[0])
+            correctors[0].offer(newCorrector(0));
+        else if(emptiest == correctors[1])
+            correctors[1].offer(newCorrector(F));
+        else if(emptiest == correctors[2])
+            correctors[2].offer(newCorrector(-F));
+        else if(emptiest == bits[0])
+            bits[0].offer(newBit(false));
+        else
+            bits[1].offer(newBit(true));
+        return true;
+    }
+    
+    private Entry newCorrector(long b) {
+        CommitmentScheme.Opening o = tc.open(b);
+        return new Entry(tc.getProof(o), o.getRandomness());
+    }
+    
+    private Entry newBit(boolean bit) {
+        CommitmentScheme.Opening o = bc.open(bit);
+        return new Entry(bc.getProof(o), o.getRandomness());
+    }
+    
+    private synchronized void consumed() {
+        notifyAll();
+    }
+    
+    /**
+     * Takes the precomputed part of a square commitment. 
+     */
+    public SquareCommitment.Precomputed takeSquare() {
+        SquareCommitment.Precomputed pre = squares.poll();
+        if(pre == null)
+            return sc.precompute();
+        consumed();
+        return pre;
+    }
+    
+    /**
+     * Takes a 3-way commitment proof for the modular corrector b which must 
+     * be 0 or +/-F.
+     */
+    public Entry takeCorrector(long b) {
+        int index;
+        if(b == 0)
+            index = 0;
+        else if(b == F)
+            index = 1;
+        else if(b == -F)
+            index = 2;
+        else
+            throw new IllegalArgumentException("Modular reduction corrector "
+                                               + "can only be 0 or +/-" + F);
+        Entry e = correctors[index].poll();
+        if(e == null)
+            return newCorrector(b);
+        consumed();
+        return e;
+    }
+    
+    /**
+     * Takes a bit commitment proof for the given bit.
+     */
+    public Entry takeBit(boolean bit) {
+        Entry e = bits[bit ? 1 : 0].poll();
+        if(e == null)
+            return newBit(bit);
+        consumed();
+        return e;
+    }
+}
@@ -0,0 +1,519 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.user;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.i2p.util.NativeBigInteger;
+
+import p4p.util.Util;
+import p4p.util.P4PParameters;
+
+/**
+ * A prover for user vectors too large to keep in memory. The vector is 
+ * read from a memory-mapped file one chunk at a time. For each chunk the 
+ * shares are generated and written out, and the chunk's contributions to 
+ * the N checksums are added up. The proof is then built from the checksums
+ * alone (see {@link UserVector2.L2NormBoundProof2}), so the prover needs 
+ * O(N * chunk) memory whatever the dimension. 
+ * <p>
+ * Vectors, both the data and the shares, are stored as big endian 64-bit 
+ * integers, as written by <code>DataOutputStream.writeLong</code> (see 
+ * {@link #writeVector} and {@link #readVector}). The checksum coefficient
+ * vectors are also taken a chunk at a time from a {@link Challenges}. With 
+ * {@link Challenges#seeded} the server only needs to broadcast a seed 
+ * rather than N*m coefficients.
+ */
+
+public class StreamingProver extends P4PParameters {
+    /**
+     * The number of dimensions processed at a time, from 
+     * <code>p4p.stream.chunk</code>.
+     */
+    private static final int CHUNK = 
+        Math.max(1024, Integer.getInteger("p4p.stream.chunk", 1<<16)
+                 .intValue());
+    
+    /**
+     * The data file is mapped in windows of (about) this many bytes.
+     */
+    private static final long MAP_BYTES = 1L<<27;
+    
+    /**
+     * The checksum coefficient vectors c_1, c_2, ..., c_N.
+     */
+    public static abstract class Challenges {
+        /**
+         * Returns N, the number of vectors.
+         */
+        public abstract int size();
+        
+        /**
+         * Sets c[i][j-from] to the j-th coefficient of the i-th vector, for 
+         * i = 0, ..., N-1 and j = from, ..., to-1.
+         */
+        public abstract void get(int from, int to, int[][] c);
+        
+        /**
+         * Returns the vectors as arrays of dimension m, e.g. for 
+         * {@link UserVector#setChecksumCoefficientVectors}.
+         */
+        public int[][] toArray(int m) {
+            int[][] c = new int[size()][m];
+            get(0, m, c);
+            return c;
+        }
+        
+        /**
+         * Returns the given vectors.
+         */
+        public static Challenges of(final int[][] c) {
+            return new Challenges() {
+                public int size() {
+                    return c.length;
+                }
+                
+                public void get(int from, int to, int[][] cc) {
+                    for(int i = 0; i < c.length; i++)
+                        System.arraycopy(c[i], from, cc[i], 0, to - from);
+                }
+            };
+        }
+        
+        /**
+         * Returns n vectors derived from the seed with SHA-256. Each 
+         * coefficient is 0 with probability 1/2 and 1 or -1 with 
+         * probability 1/4, as the ones {@link p4p.server.P4PServer} 
+         * generates. Coefficients j of vector i take two bits of 
+         * SHA-256(seed || i || j/128), so any range is derived without the
+         * ones before it.
+         */
+        public static Challenges seeded(byte[] seed, final int n) {
+            final byte[] input = new byte[seed.length + 8];
+            System.arraycopy(seed, 0, input, 0, seed.length);
+            final int off = seed.length;
+            return new Challenges() {
+                public int size() {
+                    return n;
+                }
+                
+                public void get(int from, int to, int[][] c) {
+                    MessageDigest md;
+                    try {
+                        md = MessageDigest.getInstance("SHA-256");
+                    }
+                    catch(NoSuchAlgorithmException e) {
+                        throw new RuntimeException(e);
+                    }
+                    byte[] in = input.clone();
+                    for(int i = 0; i < n; i++) {
+                        int[] ci = c[i];
+                        byte[] hash = null;
+                        int block = -1;
+                        for(int j = from; j < to; j++) {
+                            if(j>>7 != block) {
+                                block = j>>7;
+                                putInt(in, off, i);
+                                putInt(in, off + 4, block);
+                                hash = md.digest(in);
+                            }
+                            int t = 2*(j & 127);
+                            int bits = hash[t>>3]>>(t & 7);
+                            ci[j - from] = 
+                                (bits & 1) == 0 ? 0 : ((bits & 2) == 0 ? 1 : -1);
+                        }
+                    }
+                }
+            };
+        }
+        
+        private static void putInt(byte[] b, int off, int v) {
+            b[off] = (byte)(v>>>24);
+            b[off + 1] = (byte)(v>>>16);
+            b[off + 2] = (byte)(v>>>8);
+            b[off + 3] = (byte)v;
+        }
+    }
+    
+    private final long F;
+    private final int l;
+    private final NativeBigInteger g;
+    private final NativeBigInteger h;
+    
+    private ExecutorService executor = null;
+    private PrecomputationPool pool = null;
+    private boolean rangeProof = false;
+    
+    /**
+     * Creates a prover. The arguments are the same as those of 
+     * {@link UserVector2#UserVector2(long[], long, int, NativeBigInteger, 
+     * NativeBigInteger)}.
+     */
+    public StreamingProver(long F, int l, NativeBigInteger g, 
+                           NativeBigInteger h) {
+        this.F = F;
+        this.l = l;
+        this.g = g;
+        this.h = h;
+    }
+    
+    /**
+     * See {@link UserVector2#setExecutor}. The checksums of each chunk are 
+     * also split over the executor.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * See {@link UserVector2#setPrecomputationPool}.
+     */
+    public void setPrecomputationPool(PrecomputationPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * See {@link UserVector2#setRangeProof}.
+     */
+    public void setRangeProof(boolean rangeProof) {
+        this.rangeProof = rangeProof;
+    }
+    
+    /**
+     * Shares the vector in the given file and proves that its L2 norm is 
+     * bounded, writing the server's share to u and the peer's share to v.
+     *
+     * @return  the proof, see {@link UserVector2.L2NormBoundProof2#getServerProof} 
+     *          and {@link UserVector2.L2NormBoundProof2#getPeerProof}.
+     */
+    public UserVector2.L2NormBoundProof2 prove(File data, Challenges c, 
+                                               WritableByteChannel u, 
+                                               WritableByteChannel v) 
+        throws IOException {
+        FileChannel in = new FileInputStream(data).getChannel();
+        try {
+            long size = in.size();
+            if(size%8 != 0 || size/8 > Integer.MAX_VALUE)
+                throw new IllegalArgumentException(data + " is not a vector "
+                                                   + "of longs.");
+            int m = (int)(size/8);
+            int n = c.size();
+            long[] serverSums = new long[n];
+            long[] peerSums = new long[n];
+            
+            long[] d = new long[CHUNK];
+            long[] uc = new long[CHUNK];
+            long[] vc = new long[CHUNK];
+            int[][] cc = new int[n][CHUNK];
+            ByteBuffer buffer = ByteBuffer.allocate(8*CHUNK);
+            long window = Math.max(1, MAP_BYTES/8/CHUNK)*CHUNK;
+            // A multiple of the chunk size so chunks are never split
+            LongBuffer mapped = null;
+            
+            long halfF = F/2;
+            for(int from = 0; from < m; from += CHUNK) {
+                int len = Math.min(CHUNK, m - from);
+                if(from%window == 0)
+                    mapped = in.map(FileChannel.MapMode.READ_ONLY, 8L*from, 
+                                    8L*Math.min(window, m - from))
+                        .asLongBuffer();
+                if(len < CHUNK) {
+                    // The last one. The kernel wants exact lengths.
+                    d = new long[len];
+                    uc = new long[len];
+                    vc = new long[len];
+                    cc = new int[n][len];
+                }
+                mapped.get(d, 0, len);
+                
+                // Same as UserVector2.generateShares:
+                for(int j = 0; j < len; j++) {
+                    uc[j] = randomLong(F) - halfF;
+                    vc[j] = Util.mod(Util.mod(d[j], F) - uc[j], F);
+                }
+                write(u, uc, len, buffer);
+                write(v, vc, len, buffer);
+                
+                c.get(from, from + len, cc);
+                long[][] sums = 
+                    Util.innerProducts(cc, new long[][] {uc, vc}, executor);
+                for(int i = 0; i < n; i++) {
+                    serverSums[i] += sums[0][i];
+                    peerSums[i] += sums[1][i];
+                }
+            }
+            
+            UserVector2 uv = new UserVector2(m, F, l, g, h);
+            uv.setExecutor(executor);
+            uv.setPrecomputationPool(pool);
+            uv.setRangeProof(rangeProof);
+            return uv.getL2NormBoundProof2(serverSums, peerSums);
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Same as {@link #prove(File, Challenges, WritableByteChannel, 
+     * WritableByteChannel)} with the shares written to files.
+     */
+    public UserVector2.L2NormBoundProof2 prove(File data, Challenges c, 
+                                               File u, File v) 
+        throws IOException {
+        FileOutputStream uOut = new FileOutputStream(u);
+        FileOutputStream vOut = null;
+        try {
+            vOut = new FileOutputStream(v);
+            return prove(data, c, uOut.getChannel(), vOut.getChannel());
+        }
+        finally {
+            uOut.close();
+            if(vOut != null)
+                vOut.close();
+        }
+    }
+    
+    /**
+     * Returns a uniformly random long in [0, n).
+     */
+    private static long randomLong(long n) {
+        long limit = Long.MAX_VALUE - Long.MAX_VALUE%n;
+        long r;
+        do {
+            r = Util.rand.nextLong()>>>1;
+        } while(r >= limit);
+        return r%n;
+    }
+    
+    private static void write(WritableByteChannel out, long[] x, int len, 
+                              ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.asLongBuffer().put(x, 0, len);
+        buffer.limit(8*len);
+        while(buffer.hasRemaining())
+            out.write(buffer);
+    }
+    
+    /**
+     * Writes a vector in the format the prover reads.
+     */
+    public static void writeVector(File f, long[] x) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8*CHUNK);
+            for(int from = 0; from < x.length; from += CHUNK) {
+                int len = Math.min(CHUNK, x.length - from);
+                buffer.clear();
+                buffer.asLongBuffer().put(x, from, len);
+                buffer.limit(8*len);
+                while(buffer.hasRemaining())
+                    out.getChannel().write(buffer);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Reads a vector written by {@link #writeVector} or a share written by
+     * the prover.
+     */
+    public static long[] readVector(File f) throws IOException {
+        FileChannel in = new FileInputStream(f).getChannel();
+        try {
+            long size = in.size();
+            if(size%8 != 0 || size/8 > Integer.MAX_VALUE)
+                throw new IllegalArgumentException(f + " is not a vector "
+                                                   + "of longs.");
+            long[] x = new long[(int)(size/8)];
+            ByteBuffer buffer = ByteBuffer.allocate(8*CHUNK);
+            for(int from = 0; from < x.length; ) {
+                buffer.clear();
+                buffer.limit(8*Math.min(CHUNK, x.length - from));
+                while(buffer.hasRemaining())
+                    if(in.read(buffer) < 0)
+                        throw new IOException("Unexpected end of " + f);
+                buffer.flip();
+                int len = buffer.remaining()/8;
+                buffer.asLongBuffer().get(x, from, len);
+                from += len;
+            }
+            return x;
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Tests the streaming prover: proves a vector with a small and one with 
+     * a large L2 norm and verifies the proofs with the shares read back.
+     */
+    public static void main(String[] args) throws IOException {
+        int k = 512;
+        int m = 100000;
+        int N = 50;
+        int l = 40;
+        int nThreads = 1;
+        
+        for(int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.equals("-k"))
+                k = Integer.parseInt(args[i++]);
+            else if(arg.equals("-m"))
+                m = Integer.parseInt(args[i++]);
+            else if(arg.equals("-N"))
+                N = Integer.parseInt(args[i++]);
+            else if(arg.equals("-l"))
+                l = Integer.parseInt(args[i++]);
+            else if(arg.equals("-t"))
+                nThreads = Integer.parseInt(args[i++]);
+            else if(arg.equals("-d"))
+                debug = true;
+        }
+        
+        System.out.println("k = " + k + ", m = " + m + ", N = " + N 
+                           + ", l = " + l + ", threads = " + nThreads
+                           + ", chunk = " + CHUNK);
+        P4PParameters.initialize(k, false);
+        NativeBigInteger[] gh = P4PParameters.getGenerators(2);
+        long F = NativeBigInteger.probablePrime(62, Util.rand).longValue();
+        long L = ((long)1)<<(l - 1);
+        ExecutorService executor = 
+            nThreads > 1 ? Executors.newFixedThreadPool(nThreads - 1) : null;
+        
+        StreamingProver prover = new StreamingProver(F, l, gh[0], gh[1]);
+        prover.setExecutor(executor);
+        byte[] seed = new byte[32];
+        Util.rand.nextBytes(seed);
+        Challenges c = Challenges.seeded(seed, N);
+        
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        File data = File.createTempFile("p4p-data", ".bin", dir);
+        File uFile = File.createTempFile("p4p-u", ".bin", dir);
+        File vFile = File.createTempFile("p4p-v", ".bin", dir);
+        data.deleteOnExit();
+        uFile.deleteOnExit();
+        vFile.deleteOnExit();
+        
+        int nfails = 0;
+        Random rand = new Random();
+        try {
+            for(int loop = 0; loop < 2; loop++) {
+                boolean shouldPass = loop == 0;
+                // A vector with L2 norm L/2 or 4L. The bound the proof 
+                // checks is not tight, see UserVector2.
+                double norm = L*(shouldPass ? 0.5 : 4.0);
+                double[] r = new double[m];
+                double ss = 0;
+                for(int j = 0; j < m; j++) {
+                    r[j] = rand.nextGaussian();
+                    ss += r[j]*r[j];
+                }
+                long[] x = new long[m];
+                for(int j = 0; j < m; j++)
+                    x[j] = Math.round(r[j]*norm/Math.sqrt(ss));
+                r = null;
+                writeVector(data, x);
+                x = null;
+                
+                Runtime rt = Runtime.getRuntime();
+                rt.gc();
+                long heap = rt.totalMemory() - rt.freeMemory();
+                long t0 = System.currentTimeMillis();
+                UserVector2.L2NormBoundProof2 proof = 
+                    prover.prove(data, c, uFile, vFile);
+                long t1 = System.currentTimeMillis();
+                System.out.println("Streaming prover: " + (t1 - t0) 
+                                   + " ms, heap in use before: " 
+                                   + heap/(1<<20) + " MB, after: " 
+                                   + (rt.totalMemory() - rt.freeMemory())
+                                   /(1<<20) + " MB");
+                
+                // The verifiers hold the shares in memory as usual:
+                long[] u = readVector(uFile);
+                long[] v = readVector(vFile);
+                long[] y = readVector(data);
+                for(int j = 0; j < m; j++) {
+                    if(Util.mod(u[j] + v[j], F) != Util.mod(y[j], F))
+                        throw new RuntimeException("Shares don't add up to "
+                                                   + "the data at " + j);
+                }
+                y = null;
+                
+                UserVector2 verifier = new UserVector2(m, F, l, gh[0], gh[1]);
+                verifier.setU(u);
+                verifier.setPeerV(v);
+                verifier.setChecksumCoefficientVectors(c.toArray(m));
+                verifier.setExecutor(executor);
+                boolean didPass = verifier.verify2(proof.getPeerProof())
+                    && verifier.verify2(proof.getServerProof());
+                long t2 = System.currentTimeMillis();
+                System.out.println("Verification: " + (t2 - t1) + " ms");
+                
+                if(didPass != shouldPass) {
+                    nfails++;
+                    System.out.println("Test No. " + loop + " failed. "
+                                       + "shouldPass = " + shouldPass 
+                                       + ", result = " + didPass);
+                }
+                else
+                    System.out.println("Test No. " + loop + " passed. "
+                                       + "shouldPass = didPass = " 
+                                       + shouldPass);
+            }
+        }
+        finally {
+            if(executor != null)
+                executor.shutdown();
+            data.delete();
+            uFile.delete();
+            vFile.delete();
+        }
+        System.out.println("StreamingProver: failed " + nfails + " of 2 "
+                           + "tests.");
+    }
+}
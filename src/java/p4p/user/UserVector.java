@@ -234,8 +234,11 @@ public class UserVector extends P4PParameters {
             commitment[l_UV] = BigInteger.ONE;
             // The commitment to the vector. To be calculated by multiplying all the bit vector commitments
 
+            // Commit to all the bit columns in one pass:
+            BigInteger[] columns = bvc.commitColumns(checksums, l_UV);
+            BigInteger[] columnRandomness = bvc.getColumnRandomness();
             for (int i = 0; i < l_UV; i++) {
-                commitment[i] = bvc.commit(checksums, i);
+                commitment[i] = columns[i];
 
 
                 NativeBigInteger c = new NativeBigInteger(commitment[i]);
@@ -244,12 +247,12 @@ public class UserVector extends P4PParameters {
                 // 2^j
                 commitment[l_UV] = commitment[l_UV].multiply(c.modPow(e, p)).mod(p);
 
-                BigInteger r = bvc.getRandomness();
+                BigInteger r = columnRandomness[i];
                 sRandomness = sRandomness.add(r.multiply(new BigInteger(new Long(((long) 1) << i).toString())));
                 // += r[i]*2^i
 
                 // We also need to append the bit vector commitment proofs:
-                bitVecProofs[i] = (BitVectorCommitment.BitVectorCommitmentProof) bvc.getProof();
+                bitVecProofs[i] = (BitVectorCommitment.BitVectorCommitmentProof) bvc.getColumnProof(i);
             }
 
             // Now commit to the vector s
@@ -35,6 +35,9 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 
 import net.i2p.util.NativeBigInteger;
@@ -42,11 +45,16 @@ import net.i2p.util.NativeBigInteger;
 import p4p.util.Util;
 import p4p.util.StopWatch;
 import p4p.util.P4PParameters;
+import p4p.util.Parallel;
 import p4p.crypto.SquareCommitment;
 import p4p.crypto.Proof;
 import p4p.crypto.BitCommitment;
+import p4p.crypto.RangeCommitment;
 import p4p.crypto.ThreeWayCommitment;
 import p4p.crypto.Commitment;
+import p4p.crypto.CommitmentScheme;
+import p4p.crypto.BatchVerifier;
+import p4p.crypto.OpCounter;
 
 /**
  * Changes:
@@ -115,6 +123,87 @@ public class UserVector2 extends UserVector {
         //sc = new SquareCommitment(g, h);
     }
 
+    /**
+     * Precomputed, data independent parts of the proof. See 
+     * {@link PrecomputationPool}.
+     */
+    private PrecomputationPool pool = null;
+    
+    /**
+     * Sets the pool the proof construction should take the precomputed 
+     * values from. <code>null</code> means everything is computed online.
+     */
+    public void setPrecomputationPool(PrecomputationPool pool) {
+        if(pool != null && !pool.matches(g_UV2, h_UV2, F_UV))
+            throw new IllegalArgumentException("The pool was created with " 
+                                               + "different parameters!");
+        this.pool = pool;
+    }
+
+    /**
+     * The executor the proof construction runs its checksum and bit proofs
+     * on, and the checksums are computed on (by the verifiers too). 
+     * <code>null</code> means everything is done in the calling thread.
+     */
+    private ExecutorService executor = null;
+    
+    /**
+     * Lets the proof construction build the N checksum proofs and the bit
+     * proofs concurrently on the given executor (the calling thread takes 
+     * part too). The sub-proofs are combined in index order so the proof 
+     * is the same as the sequential one given the same randomness. The
+     * verifiers use it to compute the checksums over large vectors (see
+     * {@link Util#innerProducts}). <code>null</code>, the default, builds everything sequentially. The
+     * executor is not shut down by this class.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * The number of checksums the pipelined prover computes per pass over
+     * the shares, and the number of checksums that may wait for their 
+     * proofs. See {@link #setPipelined}.
+     */
+    private static final int PIPELINE_ROWS = 
+        Math.max(1, Integer.getInteger("p4p.pipeline.rows", 4).intValue());
+    private static final int PIPELINE_DEPTH = 
+        Math.max(1, Integer.getInteger("p4p.pipeline.depth", 16).intValue());
+    
+    private boolean pipelined = false;
+    
+    /**
+     * Selects the pipelined prover. Instead of computing all the checksums
+     * first, the calling thread computes them a few at a time (see 
+     * <code>p4p.pipeline.rows</code>) and hands them to the executor's 
+     * threads which build the square and 3-way proofs while it moves on to
+     * the next ones. The memory bound inner products and the CPU bound 
+     * exponentiations then overlap, which helps for large vectors. Has no 
+     * effect without an executor.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Whether the bound on the sum of squares is proved with one 
+     * {@link RangeCommitment} proof instead of one {@link BitCommitment} 
+     * proof per bit. The prover and the verifier must agree on this.
+     */
+    private boolean rangeProof = false;
+    
+    /**
+     * Selects the range proof for the sum of squares. See 
+     * {@link RangeCommitment}.
+     */
+    public void setRangeProof(boolean rangeProof) {
+        this.rangeProof = rangeProof;
+    }
+    
+    public boolean isRangeProof() {
+        return rangeProof;
+    }
+
     /**
      */
     public void setData(long[] data_UV2_P) {
@@ -272,6 +361,8 @@ public class UserVector2 extends UserVector {
      *      Sk = Xk*Yk*Bk, in additional to the square statement.</li>
      * <li> BitCommitment.BitCommitmentProof[] bcProofs contains the bit proofs
      *      for Z. They are only sent to the server.</li>
+     * <li> RangeCommitment.RangeCommitmentProof rangeProof replaces the bit 
+     *      proofs if {@link #setRangeProof} was set. Server only.</li>
      * </ul>
      * <p>
      * Note that in this basic set up, the privacy peer only verifies the
@@ -295,13 +386,12 @@ public class UserVector2 extends UserVector {
         // The square proofs
         private BitCommitment.BitCommitmentProof[] bcProofs = null;
         // The bit proof for the sum of the squares
+        private RangeCommitment.RangeCommitmentProof rangeProof = null;
+        // Or the range proof for it
         private boolean forServer = false;
         private L2NormBoundProof2 serverProof = null;
         private L2NormBoundProof2 peerProof = null;
 
-        ThreeWayCommitment tc = new ThreeWayCommitment(g_UV2, h_UV2, F_UV);
-        // Used to prepare the ZKP. Can be computed offline.
-
         /**
          * Constructs a proof.
          * @param	forServer       will build a server proof if true. Otherise
@@ -318,25 +408,38 @@ public class UserVector2 extends UserVector {
         /**
          * Construct the ZKP that the L2 norm of user vector is small. Note
          * that this method constructs two proofs together. One for the server,
-         * the other for the privacy peer.
+         * the other for the privacy peer. Both report the group operations 
+         * of the whole construction as their 
+         * {@link Proof#getConstructionCost}.
          */
         public void construct() {
-            if(checkCoVector == null || serverUserVector_UV2 == null)
+            OpCounter.Counts start = OpCounter.get();
+            constructProofs();
+            constructionCost = OpCounter.get().minus(start);
+            serverProof.constructionCost = constructionCost;
+            peerProof.constructionCost = constructionCost;
+        }
+        
+        private void constructProofs() {
+            if(streamedChecksums == null 
+               && (checkCoVector == null || serverUserVector_UV2 == null))
                 throw new RuntimeException("Checksum vector not set or shares"
                                            + " not generated yet.");
+            final int nChecksums = streamedChecksums != null 
+                ? streamedChecksums[0].length : checkCoVector.length;
 
             serverProof = new L2NormBoundProof2(true);
             peerProof = new L2NormBoundProof2(false);
 
             /** For the server: */
-            serverProof.checksums = new long[checkCoVector.length];
-            serverProof.checksumRandomness = new BigInteger[checkCoVector.length];
+            serverProof.checksums = new long[nChecksums];
+            serverProof.checksumRandomness = new BigInteger[nChecksums];
             serverProof.scProofs =
-                new SquareCommitment.SquareCommitmentProof[checkCoVector.length];
+                new SquareCommitment.SquareCommitmentProof[nChecksums];
             serverProof.tcProofs =
-                new ThreeWayCommitment.ThreeWayCommitmentProof[checkCoVector.length];
+                new ThreeWayCommitment.ThreeWayCommitmentProof[nChecksums];
 
-            serverProof.mdCorrector = new BigInteger[checkCoVector.length];
+            serverProof.mdCorrector = new BigInteger[nChecksums];
             BigInteger squareSum = BigInteger.ZERO;
             // Sum of the squares
             BigInteger squareSumCommitment = BigInteger.ONE;
@@ -344,96 +447,59 @@ public class UserVector2 extends UserVector {
             BigInteger sRandomness = BigInteger.ZERO;
 
             /** For the peer: */
-            peerProof.checksums = new long[checkCoVector.length];
-            peerProof.checksumRandomness = new BigInteger[checkCoVector.length];
+            peerProof.checksums = new long[nChecksums];
+            peerProof.checksumRandomness = new BigInteger[nChecksums];
 
             Commitment cm = new Commitment(g_UV2, h_UV2);
-            SquareCommitment sc = new SquareCommitment(g_UV2, h_UV2);
-            for(int i = 0; i < checkCoVector.length; i++) {
-                serverProof.checksums[i] = Util.mod(Util.innerProduct(checkCoVector[i], serverUserVector_UV2), F_UV);
-                peerProof.checksums[i] = Util.mod(Util.innerProduct(checkCoVector[i], peerVector_UV2), F_UV);
-
-                /**
-                 * Note that although all the normal compuations are done in
-                 * a small finite field, we don't restrict the size of the
-                 * checksum here (i.e. no mod operation). We allow s to grow
-                 * to check the L2 norm of the user vector.
-                 */
-                 peerProof.checksumRandomness[i] = Util.randomBigInteger(q);
-                // We don't need to really compute the commitment here
-                serverProof.checksumRandomness[i] = Util.randomBigInteger(q);
-
-                // The peer should be done. The following are for the server:
-                long s = Util.mod(serverProof.checksums[i]
-                                  + peerProof.checksums[i], F_UV);
-                long b = s - (serverProof.checksums[i]+peerProof.checksums[i]);
-                if(!(b == 0 || b == -F_UV || b == F_UV))
-                    throw new RuntimeException("Modular reduction corrector "
-                                               + "wrong. F_UV = " + F_UV + ", b = "
-                                               + b);
-                serverProof.mdCorrector[i] = tc.commit(b);
-                serverProof.tcProofs[i] =
-                    (ThreeWayCommitment.ThreeWayCommitmentProof)tc.getProof();
-
-                // check
-                if(!serverProof.mdCorrector[i].equals(serverProof.tcProofs[i]
-                                                      .getCommitment()[0]))
-                    throw new RuntimeException("Modular corrector " + i
-                                               + " was not computed correctly.");
-                // NOTE: Constructing and verifying the 3-way commitment proofs
-                // are independent of user data so they can be done offline.
-                // The performance reported in the paper did not include this
-                // cost which is a few seconds for m = 10^6.
-
-                BigInteger rr =
-                    peerProof.checksumRandomness[i]
-                    .add(serverProof.checksumRandomness[i])
-                    .add(tc.getRandomness()).mod(q);
-
-                //BigInteger cs = new BigInteger(new Long(Math.abs(s)).toString());
-                BigInteger cs = new BigInteger(new Long(s).toString());
-                sc.commit(cs, rr);
-                serverProof.scProofs[i]
-                    = (SquareCommitment.SquareCommitmentProof)sc.getProof();
-                DEBUG("checksum: " + cs);
-
-                if(debug) {
-                    // lets check here:
-                    if(!sc.verify(serverProof.scProofs[i])) {
-                        throw new RuntimeException("Square commitment proof or"
-                                                   + " verification is not "
-                                                   + "working properly. i = "
-                                                   + 1);
+            // Shared by all the threads. Only their stateless methods are 
+            // used.
+            final ThreeWayCommitment tc = 
+                new ThreeWayCommitment(g_UV2, h_UV2, F_UV);
+            final SquareCommitment sc = new SquareCommitment(g_UV2, h_UV2);
+            final BitCommitment bc = new BitCommitment(g_UV2, h_UV2);
+            final BigInteger[] Bs = new BigInteger[nChecksums];
+            // The commitments to the squares
+            final BigInteger[] squares = new BigInteger[nChecksums];
+            final BigInteger[] sbs = new BigInteger[nChecksums];
+            // and the randomness used to commit to them
+            Parallel.Range proofs = new Parallel.Range() {
+                    public void run(int from, int to) {
+                        constructChecksumProofs(from, to, tc, sc, Bs, squares,
+                                                sbs);
                     }
-                    if(!rr.equals(sc.getSa()))
-                        throw new RuntimeException("Square commitment uses "
-                                                   + "the wrong randomness. "
-                                                   + "i = " + 1);
-
-                    BigInteger Y =
-                        cm.commit(new BigInteger(new
-                                                 Long(peerProof.checksums[i])
-                                                 .toString()).mod(q),
-                                  peerProof.checksumRandomness[i].mod(q));
-
-                    BigInteger X =
-                        cm.commit(new BigInteger(new
-                                                 Long(serverProof.checksums[i])
-                                                 .toString()).mod(q),
-                                  serverProof.checksumRandomness[i].mod(q));
-                    if(!serverProof.scProofs[i].getCommitment()[0]
-                       .equals(X.multiply(Y).multiply(serverProof
-                                                      .mdCorrector[i]).mod(p)))
-                        throw new RuntimeException("S != X*Y*B. i = " + 1);
+                };
+            if(streamedChecksums != null) {
+                // Computed by a StreamingProver
+                for(int i = 0; i < nChecksums; i++) {
+                    serverProof.checksums[i] = 
+                        Util.mod(streamedChecksums[0][i], F_UV);
+                    peerProof.checksums[i] = 
+                        Util.mod(streamedChecksums[1][i], F_UV);
                 }
-
+                Parallel.forRange(executor, nChecksums, 1, proofs);
+            }
+            else if(pipelined && executor != null) {
+                Parallel.pipeline(executor, nChecksums, 
+                                  PIPELINE_ROWS, PIPELINE_DEPTH, 
+                                  new Parallel.Range() {
+                        public void run(int from, int to) {
+                            computeChecksums(from, to, null);
+                        }
+                    }, proofs);
+            }
+            else {
+                // All the checksums of both shares in one pass over them:
+                computeChecksums(0, nChecksums, executor);
+                Parallel.forRange(executor, nChecksums, 1, proofs);
+            }
+            // Combine in index order so the result doesn't depend on the
+            // scheduling:
+            for(int i = 0; i < nChecksums; i++) {
                 //squareSum = squareSum.add(cs.multiply(cs).mod(q)).mod(q);
-                squareSum = squareSum.add(cs.multiply(cs));
-                squareSumCommitment =
-                    squareSumCommitment.multiply(sc.getB()).mod(p);
-                // Now get the randomness used to commit to the square:
-                sRandomness = sRandomness.add(sc.getSb()).mod(q);
+                squareSum = squareSum.add(squares[i]);
+                sRandomness = sRandomness.add(sbs[i]).mod(q);
             }
+            squareSumCommitment = group.product(Bs);
 
             if(debug) {
                 // Lets verify if we compute the commitment to the sum of
@@ -456,7 +522,7 @@ public class UserVector2 extends UserVector {
             squareSum = squareSum.add(squareSum);             // 2x
             sRandomness = sRandomness.add(sRandomness).mod(q);
             squareSumCommitment =
-                squareSumCommitment.multiply(squareSumCommitment).mod(p);   // 2x
+                group.mul(squareSumCommitment, squareSumCommitment);   // 2x
 
             /**
              * Note on computing the checksums:
@@ -481,31 +547,48 @@ public class UserVector2 extends UserVector {
 
             int numBits =
                 Math.max(squareSum.bitLength(),
-                         Integer.toBinaryString(checkCoVector.length).length()+2*l_UV);
+                         Integer.toBinaryString(nChecksums).length()+2*l_UV);
             // Even for small squares we must do all the commitments
             // otherwise leak info.
             DEBUG("squareSum has " + numBits + " bits. The limit is "
-                  + (Integer.toBinaryString(checkCoVector.length).length()+2*l_UV));
+                  + (Integer.toBinaryString(nChecksums).length()+2*l_UV));
+
+            if(UserVector2.this.rangeProof) {
+                // A single proof for the whole bound. If squareSum is too 
+                // big the proof will simply not verify.
+                RangeCommitment rc = 
+                    new RangeCommitment(g_UV2, h_UV2, 
+                                        Integer.toBinaryString(nChecksums)
+                                        .length()
+                                        +2*l_UV);
+                rc.commit(squareSum, sRandomness);
+                serverProof.rangeProof = 
+                    (RangeCommitment.RangeCommitmentProof)rc.getProof();
+                
+                if(debug) {
+                    if(!serverProof.rangeProof.getCommitment()[0]
+                       .equals(squareSumCommitment))
+                        throw new RuntimeException("Range proof is for the "
+                                                   + "wrong commitment!");
+                }
+                return;
+            }
 
             serverProof.bcProofs =
                 new BitCommitment.BitCommitmentProof[numBits];
-            BitCommitment bc = new BitCommitment(g_UV2, h_UV2);
+            final BigInteger[] rs = new BigInteger[numBits - 1];
+            // The randomness of the bit commitments
+            final BigInteger bits = squareSum;
+            Parallel.forRange(executor, numBits - 1, 1, new Parallel.Range() {
+                    public void run(int from, int to) {
+                        constructBitProofs(from, to, bc, bits, rs);
+                    }
+                });
             for(int i = 0; i < numBits - 1; i++) {
-                BigInteger cc = bc.commit(squareSum.testBit(i));
-                serverProof.bcProofs[i] =
-                    (BitCommitment.BitCommitmentProof)bc.getProof();
-
-                if(debug) {
-                    if(!cc.equals(serverProof.bcProofs[i].getCommitment()[0]))
-                        throw new RuntimeException("Bit commitment wasn't "
-                                                   + "computed correctly!");
-                }
-
-                BigInteger r = bc.getRandomness();
                 BigInteger e = BigInteger.ZERO.setBit(i);    // 2^i
                 // Note that we can't use ((long)1)<<i because long doesn't
                 // have enough bits!
-                sRandomness = sRandomness.subtract(r.multiply(e)).mod(q);
+                sRandomness = sRandomness.subtract(rs[i].multiply(e)).mod(q);
                 // -= r[i]*2^i
             }
 
@@ -515,15 +598,15 @@ public class UserVector2 extends UserVector {
             BigInteger e = BigInteger.ZERO.setBit(numBits-1);  // 2^l
             e = e.modInverse(q);
             sRandomness = sRandomness.multiply(e).mod(q);      // divide by 2^l
-            bc.commit(squareSum.testBit(numBits-1), sRandomness);
             serverProof.bcProofs[numBits-1] =
-                (BitCommitment.BitCommitmentProof)bc.getProof();
+                bc.getProof(bc.open(squareSum.testBit(numBits-1), 
+                                    sRandomness));
 
             // Lets check it here:
             if(debug) {
                 System.out.print("Checking homomorphism ...");
-                BigInteger ZZ = BigInteger.ONE;
                 BigInteger z = BigInteger.ZERO;
+                BigInteger[] Zs = new BigInteger[numBits];
 
                 for(int i = 0; i < numBits; i++) {
                     //BigInteger e = new BigInteger(new Long(((long)1)<<i).toString());  // 2^i
@@ -534,11 +617,10 @@ public class UserVector2 extends UserVector {
                     if(squareSum.testBit(i))
                         z = z.add(e);
 
-                    NativeBigInteger Z =
-                        (NativeBigInteger)serverProof.bcProofs[i].getCommitment()[0];
-
-                    ZZ = ZZ.multiply(Z.modPow(e, p)).mod(p);
+                    Zs[i] = serverProof.bcProofs[i].getCommitment()[0];
                 }
+                // ZZ = prod{Z_i^(2^i)}:
+                BigInteger ZZ = group.radix2Product(Zs);
 
                 if(!z.equals(squareSum)) {
                     System.out.println("z = " + z);
@@ -553,6 +635,172 @@ public class UserVector2 extends UserVector {
             }
         }
 
+        /**
+         * Computes the server's and the peer's checksums [from, to).
+         */
+        private void computeChecksums(int from, int to, 
+                                      ExecutorService executor) {
+            int[][] c = new int[to - from][];
+            System.arraycopy(checkCoVector, from, c, 0, c.length);
+            long[][] sums = 
+                Util.innerProducts(c, new long[][] {serverUserVector_UV2, 
+                                                    peerVector_UV2}, executor);
+            for(int i = from; i < to; i++) {
+                serverProof.checksums[i] = Util.mod(sums[0][i - from], F_UV);
+                peerProof.checksums[i] = Util.mod(sums[1][i - from], F_UV);
+            }
+        }
+
+        /**
+         * Builds the modular reduction correctors and the square proofs for
+         * checksums [from, to). Bs[i], squares[i] and 
+         * sbs[i] receive the commitment to the i-th square, the square and 
+         * the randomness of the commitment. 
+         */
+        private void constructChecksumProofs(int from, int to, 
+                                             ThreeWayCommitment tc,
+                                             SquareCommitment sc,
+                                             BigInteger[] Bs,
+                                             BigInteger[] squares,
+                                             BigInteger[] sbs) {
+            CommitmentScheme cm = sc.getScheme();
+            for(int i = from; i < to; i++) {
+                /**
+                 * Note that although all the normal compuations are done in
+                 * a small finite field, we don't restrict the size of the
+                 * checksum here (i.e. no mod operation). We allow s to grow
+                 * to check the L2 norm of the user vector.
+                 */
+                 peerProof.checksumRandomness[i] = Util.randomBigInteger(q);
+                // We don't need to really compute the commitment here
+
+                // The peer should be done. The following are for the server:
+                long s = Util.mod(serverProof.checksums[i]
+                                  + peerProof.checksums[i], F_UV);
+                long b = s - (serverProof.checksums[i]+peerProof.checksums[i]);
+                if(!(b == 0 || b == -F_UV || b == F_UV))
+                    throw new RuntimeException("Modular reduction corrector "
+                                               + "wrong. F_UV = " + F_UV + ", b = "
+                                               + b);
+                BigInteger tcRandomness;
+                if(pool == null) {
+                    CommitmentScheme.Opening o = tc.open(b);
+                    serverProof.mdCorrector[i] = o.getCommitment();
+                    serverProof.tcProofs[i] = tc.getProof(o);
+                    tcRandomness = o.getRandomness();
+                }
+                else {
+                    PrecomputationPool.Entry e = pool.takeCorrector(b);
+                    serverProof.tcProofs[i] =
+                        (ThreeWayCommitment.ThreeWayCommitmentProof)e.getProof();
+                    serverProof.mdCorrector[i] =
+                        serverProof.tcProofs[i].getCommitment()[0];
+                    tcRandomness = e.getRandomness();
+                }
+
+                // check
+                if(!serverProof.mdCorrector[i].equals(serverProof.tcProofs[i]
+                                                      .getCommitment()[0]))
+                    throw new RuntimeException("Modular corrector " + i
+                                               + " was not computed correctly.");
+                // NOTE: Constructing and verifying the 3-way commitment proofs
+                // are independent of user data so they can be done offline. See
+                // PrecomputationPool.
+                // The performance reported in the paper did not include this
+                // cost which is a few seconds for m = 10^6.
+
+                //BigInteger cs = new BigInteger(new Long(Math.abs(s)).toString());
+                BigInteger cs = BigInteger.valueOf(s);
+                BigInteger rr;
+                CommitmentScheme.Opening A, B;
+                SquareCommitment.Precomputed pre = null;
+                if(pool == null) {
+                    serverProof.checksumRandomness[i] = Util.randomBigInteger(q);
+                    rr = peerProof.checksumRandomness[i]
+                        .add(serverProof.checksumRandomness[i])
+                        .add(tcRandomness).mod(q);
+                    A = sc.open(cs, rr);
+                    B = sc.openSquare(A);
+                }
+                else {
+                    // The square commitment's randomness was chosen offline
+                    // so the server's checksum randomness must make up for
+                    // it. It is still uniformly random.
+                    pre = pool.takeSquare();
+                    rr = pre.getRandomness();
+                    serverProof.checksumRandomness[i] =
+                        rr.subtract(peerProof.checksumRandomness[i])
+                        .subtract(tcRandomness).mod(q);
+                    A = sc.open(cs, pre);
+                    B = sc.openSquare(A, pre);
+                }
+                serverProof.scProofs[i] = sc.getProof(A, B, pre);
+                DEBUG("checksum: " + cs);
+
+                if(debug) {
+                    // lets check here:
+                    if(!sc.verify(serverProof.scProofs[i])) {
+                        throw new RuntimeException("Square commitment proof or"
+                                                   + " verification is not "
+                                                   + "working properly. i = "
+                                                   + 1);
+                    }
+                    if(!rr.equals(A.getRandomness()))
+                        throw new RuntimeException("Square commitment uses "
+                                                   + "the wrong randomness. "
+                                                   + "i = " + 1);
+
+                    BigInteger Y =
+                        cm.commit(peerProof.checksums[i],
+                                  peerProof.checksumRandomness[i].mod(q));
+
+                    BigInteger X =
+                        cm.commit(serverProof.checksums[i],
+                                  serverProof.checksumRandomness[i].mod(q));
+                    if(!serverProof.scProofs[i].getCommitment()[0]
+                       .equals(group.product(new BigInteger[] {X, Y, serverProof
+                                                               .mdCorrector[i]})))
+                        throw new RuntimeException("S != X*Y*B. i = " + 1);
+                }
+
+                squares[i] = cs.multiply(cs);
+                Bs[i] = B.getCommitment();
+                // Now get the randomness used to commit to the square:
+                sbs[i] = B.getRandomness();
+            }
+        }
+
+        /**
+         * Builds the commitments and proofs for bits [from, to) of squareSum.
+         * rs[i] receives the randomness of the i-th commitment.
+         */
+        private void constructBitProofs(int from, int to, BitCommitment bc,
+                                        BigInteger squareSum, BigInteger[] rs) {
+            for(int i = from; i < to; i++) {
+                BigInteger cc;
+                if(pool == null) {
+                    CommitmentScheme.Opening o = bc.open(squareSum.testBit(i));
+                    cc = o.getCommitment();
+                    serverProof.bcProofs[i] = bc.getProof(o);
+                    rs[i] = o.getRandomness();
+                }
+                else {
+                    PrecomputationPool.Entry e =
+                        pool.takeBit(squareSum.testBit(i));
+                    serverProof.bcProofs[i] =
+                        (BitCommitment.BitCommitmentProof)e.getProof();
+                    cc = serverProof.bcProofs[i].getCommitment()[0];
+                    rs[i] = e.getRandomness();
+                }
+
+                if(debug) {
+                    if(!cc.equals(serverProof.bcProofs[i].getCommitment()[0]))
+                        throw new RuntimeException("Bit commitment wasn't "
+                                                   + "computed correctly!");
+                }
+            }
+        }
+
         /**
          * Returns the server part of the proof
          */
@@ -576,6 +824,10 @@ public class UserVector2 extends UserVector {
             return bcProofs;
         }
 
+        public RangeCommitment.RangeCommitmentProof getRangeProof() {
+            return rangeProof;
+        }
+
         public ThreeWayCommitment.ThreeWayCommitmentProof[] getThreeWayCommitmentProofs() {
             return tcProofs;
         }
@@ -596,6 +848,29 @@ public class UserVector2 extends UserVector {
 
     private L2NormBoundProof2 proof = null;
 
+    /**
+     * The raw inner products of the checksum coefficient vectors with the 
+     * server's and the peer's shares when they were computed by a 
+     * {@link StreamingProver} rather than from shares held here.
+     */
+    private long[][] streamedChecksums = null;
+
+    /**
+     * Builds the proof for shares this object doesn't hold, given their 
+     * inner products with the N checksum coefficient vectors. Used by 
+     * {@link StreamingProver}.
+     */
+    L2NormBoundProof2 getL2NormBoundProof2(long[] serverSums, 
+                                           long[] peerSums) {
+        if(serverSums.length != peerSums.length)
+            throw new IllegalArgumentException("Numbers of checksums do not "
+                                               + "agree!");
+        streamedChecksums = new long[][] {serverSums, peerSums};
+        proof = new L2NormBoundProof2(false);
+        proof.construct();
+        return proof;
+    }
+
     public Proof getL2NormBoundProof2(boolean server) {
         if(proof == null) {
             proof = new L2NormBoundProof2(server);
@@ -632,6 +907,22 @@ public class UserVector2 extends UserVector {
             return peerVerify_uv2(l2Proof);
     }
 
+    /**
+     * Like {@link #verify2(Proof)} but the exponentiation equations of the
+     * server proof are added to <code>batch</code> instead of being checked
+     * right away. The proof is valid iff this method returns 
+     * <code>true</code> and <code>batch.verify()</code> succeeds. This allows
+     * the server to verify the proofs of many users at once. See 
+     * {@link BatchVerifier}.
+     */
+    public boolean verify2(Proof proof, BatchVerifier batch) {
+        L2NormBoundProof2 l2Proof = (L2NormBoundProof2)proof;
+        if(l2Proof.isForServer())
+            return serverVerify_uv2(l2Proof, Y_peerUV2, batch);
+        else
+            return peerVerify_uv2(l2Proof);
+    }
+
     /**
      * Call this method to set the commitments to the y's, which should be
      * verified by the peer and passed to the server.
@@ -654,10 +945,13 @@ public class UserVector2 extends UserVector {
 
         // Peer just computes the commitments to the checksums
         Commitment cm = new Commitment(g_UV2, h_UV2);
+        long[] sums = Util.innerProducts(checkCoVector, 
+                                         new long[][] {peerVector_UV2},
+                                         executor)[0];
         for(int i = 0; i < y_checksums_l2Proof.length; i++) {
-            y_checksums_l2Proof[i] = Util.mod(Util.innerProduct(checkCoVector[i], peerVector_UV2), F_UV);
+            y_checksums_l2Proof[i] = Util.mod(sums[i], F_UV);
             Y_peerUV2[i] =
-                cm.commit(new BigInteger(new Long(y_checksums_l2Proof[i]).toString()),
+                cm.commit(y_checksums_l2Proof[i],
                           // The checksum
                           r[i]);       // The randomness
         }
@@ -667,6 +961,18 @@ public class UserVector2 extends UserVector {
 
 
     public boolean serverVerify_uv2(L2NormBoundProof2 l2Proof, BigInteger[] Y_UV2_serverV_P) {
+        return serverVerify_uv2(l2Proof, Y_UV2_serverV_P, null);
+    }
+
+    /**
+     * Verifies the server proof. If <code>batch</code> is not 
+     * <code>null</code>, the exponentiation equations of the 3-way, square
+     * and bit (or range) commitment proofs are added to it instead of being 
+     * checked here. The proof must use the bit or range proof as selected by
+     * {@link #setRangeProof}.
+     */
+    public boolean serverVerify_uv2(L2NormBoundProof2 l2Proof, BigInteger[] Y_UV2_serverV_P,
+                                    BatchVerifier batch) {
         System.out.println("serverVerify_uv2: "+ Arrays.toString(Y_UV2_serverV_P));
         if(Y_UV2_serverV_P == null)
             throw new RuntimeException("Must perform peer verification first!");
@@ -691,10 +997,13 @@ public class UserVector2 extends UserVector {
         // Check the checksums and their commitments:
         Commitment cm = new Commitment(g_UV2, h_UV2);
         ThreeWayCommitment tc = new ThreeWayCommitment(g_UV2, h_UV2, F_UV);
+        long[] sums = Util.innerProducts(checkCoVector, 
+                                         new long[][] {serverUserVector_UV2},
+                                         executor)[0];
         for(int i = 0; i < x.length; i++) {
             // First make sure the checksums are computed correctly:
             //if(s[i] != Math.abs(Util.innerProduct(c[i], data))) {
-            if(x[i] != Util.mod(Util.innerProduct(checkCoVector[i], serverUserVector_UV2), F_UV)) {
+            if(x[i] != Util.mod(sums[i], F_UV)) {
                 // We are doing server
                 System.out.println("Checksum " + i
                                    + " not computed correctly!");
@@ -709,21 +1018,31 @@ public class UserVector2 extends UserVector {
             }
 
             // Check the 3-way proofs
-            if(!tc.verify(tcProofs[i])) {
+            if(batch == null ? !tc.verify(tcProofs[i])
+               : !tc.batchVerify(tcProofs[i], batch)) {
                 System.out.println("3-Way proof " + i
                                    + " not computed correctly!");
                 return false;
             }
 
             X_checksums[i] =
-                cm.commit(new BigInteger(new Long(x[i]).toString()).mod(q),
+                cm.commit(x[i],
                           // The checksum
                         r_checksum_randomness_l2Proof[i]);            // The randomness
-            S_checksums[i] = X_checksums[i].multiply(B_MdCorrector_l2Proof[i]).mod(p).multiply(Y_UV2_serverV_P[i]).mod(p);
+            S_checksums[i] = group.product(new BigInteger[] {X_checksums[i], B_MdCorrector_l2Proof[i],
+                                                          Y_UV2_serverV_P[i]});
         }
 
+        if(rangeProof ? l2Proof.getRangeProof() == null : bcProofs == null) {
+            System.out.println("Sum of squares is not proved with the " 
+                               + (rangeProof ? "range" : "bit") 
+                               + " proof.");
+            return false;
+        }
+        
         // Next check that the sum of squares does not have excessive bits:
-        if(bcProofs.length > Integer.toBinaryString(checkCoVector.length).length()+2*l_UV) {
+        if(!rangeProof 
+           && bcProofs.length > Integer.toBinaryString(checkCoVector.length).length()+2*l_UV) {
             System.out.println("Sum of squares has too many bits: "
                                + bcProofs.length
                                + ", the limit is "
@@ -741,7 +1060,8 @@ public class UserVector2 extends UserVector {
                 return false;
             }
 
-            if(!sc.verify(scProofs[i])) {
+            if(batch == null ? !sc.verify(scProofs[i])
+               : !sc.batchVerify(scProofs[i], batch)) {
                 System.out.println("Square verification " + i + " failed.");
                 return false;
             }
@@ -749,11 +1069,12 @@ public class UserVector2 extends UserVector {
 
         // Now the bit commitment for the sum. First check if the commitment is
         // computed correctly:
-        BigInteger z = BigInteger.ONE;
+        BigInteger[] Bs = new BigInteger[scProofs.length];
         for(int i = 0; i < scProofs.length; i++) {
-            z = z.multiply(scProofs[i].getCommitment()[1]).mod(p);   // *= B
+            Bs[i] = scProofs[i].getCommitment()[1];
         }
-        z = z.multiply(z).mod(p);    // commitment[0] actually stores 2X
+        BigInteger z = group.product(Bs);   // prod{B}
+        z = group.mul(z, z);    // commitment[0] actually stores 2X
 
         if(!l2Proof.getCommitment()[0].equals(z)) {
             System.out.println("Commitment to square sum wasn't computed "
@@ -761,29 +1082,43 @@ public class UserVector2 extends UserVector {
             return false;
         }
 
+        if(rangeProof) {
+            RangeCommitment.RangeCommitmentProof rp = l2Proof.getRangeProof();
+            if(!rp.getCommitment()[0].equals(z)) {
+                System.out.println("Range proof is not for the square sum.");
+                return false;
+            }
+            RangeCommitment rc = 
+                new RangeCommitment(g_UV2, h_UV2, 
+                                    Integer.toBinaryString(checkCoVector
+                                                           .length).length()
+                                    +2*l_UV);
+            if(batch == null ? !rc.verify(rp) : !rc.batchVerify(rp, batch)) {
+                System.out.println("Range proof verification failed.");
+                return false;
+            }
+            return true;
+        }
+
         // Then check each bits
         BitCommitment bc = new BitCommitment(g_UV2, h_UV2);
         BigInteger zz = BigInteger.ONE;
 
         DEBUG("Checking  " + bcProofs.length + " bit commitments");
 
-        BigInteger ZZ = BigInteger.ONE;
+        BigInteger[] Zs = new BigInteger[bcProofs.length];
         for(int i = 0; i < bcProofs.length; i++) {
-            if(!bc.verify(bcProofs[i])) {
+            if(batch == null ? !bc.verify(bcProofs[i])
+               : !bc.batchVerify(bcProofs[i], batch)) {
                 System.out.println("Bit commitment verification " + i
                                    + " failed.");
                 return false;
             }
 
-            //BigInteger e = new BigInteger(new Long(((long)1)<<i).toString());  // 2^i
-            BigInteger e = BigInteger.ZERO.setBit(i);
-            // Note that we can't use ((long)1)<<i because long doesn't have
-            // enough bits!
-
-            NativeBigInteger Z =
-                (NativeBigInteger)bcProofs[i].getCommitment()[0];
-            ZZ = ZZ.multiply(Z.modPow(e, p)).mod(p);
+            Zs[i] = bcProofs[i].getCommitment()[0];
         }
+        // ZZ = prod{Z_i^(2^i)}, computed with Horner's rule:
+        BigInteger ZZ = group.radix2Product(Zs);
 
         if(!ZZ.equals(z)) {
             System.out.println("Homomorphism does not hold.");
@@ -802,6 +1137,8 @@ public class UserVector2 extends UserVector {
         int m = 10;
         int nLoops = 10;
         int l = 40;
+        int nThreads = 1;
+        boolean pipelined = false;
         boolean doBench = false;
         boolean worstcase = false;
         // test the worst case cost. i.e. every vector should pass. this is
@@ -873,12 +1210,37 @@ public class UserVector2 extends UserVector {
                 else if(arg.equals("-bench")) {
                     doBench = true;
                 }
+                else if(arg.equals("-p")) {
+                    pipelined = true;
+                }
+                else if(arg.equals("-t")) {
+                    try {
+                        nThreads = Integer.parseInt(args[i++]);
+                    }
+                    catch (NumberFormatException e) {
+                        nThreads = 1;
+                    }
+                }
             }
         }
 
         System.out.println("k = " + k);
         System.out.println("m = " + m);
         System.out.println("nLoops = " + nLoops);
+        System.out.println("threads = " + nThreads
+                           + (pipelined ? " (pipelined)" : ""));
+
+        // The prover's own thread works too:
+        ExecutorService executor = null;
+        if(nThreads > 1)
+            executor = Executors.newFixedThreadPool(nThreads - 1, 
+                                                    new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "prover");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
 
         // Setup the parameters:
         P4PParameters.initialize(k, false);
@@ -986,6 +1348,8 @@ public class UserVector2 extends UserVector {
             data_uv2_main = uv.getUserData();
             uv.generateShares();
             uv.setChecksumCoefficientVectors(c);
+            uv.setExecutor(executor);
+            uv.setPipelined(pipelined);
             proverWatch.start();
             L2NormBoundProof2 peerProof =
                 (L2NormBoundProof2)uv.getL2NormBoundProof2(false);
@@ -1016,6 +1380,8 @@ public class UserVector2 extends UserVector {
         verifierWatch.stop();
         proverWatch.stop();
         long end = System.currentTimeMillis();
+        if(executor != null)
+            executor.shutdown();
 
         System.out.println("UserVector L2 norm ZKP: " + nLoops
                            + " loops. Failed " + nfails + " times. ms per loop:");
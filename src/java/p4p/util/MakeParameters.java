@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import p4p.crypto.ECGroup;
+
+/**
+ * Writes a parameter file (see {@link P4PParameters#save}) that servers and 
+ * peers can share through {@link P4PParameters#load} or the 
+ * <code>p4p.params.file</code> property, so that only one process ever 
+ * searches for primes or derives the stock generators.
+ */
+
+public class MakeParameters {
+    /**
+     * Usage:
+     * <pre>
+     *   MakeParameters [-k pBits] [-q qBits | -ec] [-f] [-N generators] -o file
+     * </pre>
+     * -f generates new parameters even if there are stock ones. With -i 
+     * file instead of -o the file is read and checked.
+     */
+    public static void main(String[] args) {
+        int k = 1024;
+        int qBits = -1;
+        int nGenerators = 0;
+        boolean useEC = false;
+        boolean force = false;
+        String out = null;
+        String in = null;
+        
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.length() > 0 && arg.charAt(0) == '-') {
+                if (arg.equals("-k")) {
+                    try {
+                        k = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        k = 1024;
+                    }
+                }
+                else if(arg.equals("-q")) {
+                    try {
+                        qBits = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        qBits = 256;
+                    }
+                }
+                else if(arg.equals("-N")) {
+                    try {
+                        nGenerators = Integer.parseInt(args[i++]);
+                    } 
+                    catch (NumberFormatException e) {
+                        nGenerators = 0;
+                    }
+                }
+                else if(arg.equals("-ec")) {
+                    useEC = true;
+                }
+                else if(arg.equals("-f")) {
+                    force = true;
+                }
+                else if(arg.equals("-o")) {
+                    out = args[i++];
+                }
+                else if(arg.equals("-i")) {
+                    in = args[i++];
+                }
+            }
+        }
+        
+        try {
+            writeOrCheck(k, qBits, useEC, force, nGenerators, out, in);
+        }
+        catch(IOException e) {
+            System.err.println(e);
+        }
+    }
+    
+    private static void writeOrCheck(int k, int qBits, boolean useEC, 
+                                     boolean force, int nGenerators, 
+                                     String out, String in) 
+        throws IOException {
+        long start = System.currentTimeMillis();
+        if(in != null) {
+            P4PParameters.load(new File(in));
+            long time = System.currentTimeMillis() - start;
+            new P4PParameters().sanityCheck();
+            System.out.println("Read " + in + " in " + time 
+                               + " ms. Parameters are OK.");
+            return;
+        }
+        if(out == null) {
+            System.out.println("Usage: MakeParameters [-k pBits] [-q qBits | -ec]"
+                               + " [-f] [-N generators] -o file | -i file");
+            return;
+        }
+        
+        if(useEC)
+            P4PParameters.initialize(ECGroup.getP256());
+        else if(qBits > 0)
+            P4PParameters.initialize(k, qBits, force);
+        else
+            P4PParameters.initialize(k, force);
+        long time = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        P4PParameters.save(new File(out), nGenerators);
+        System.out.println("Parameters took " + time + " ms. Writing them and " 
+                           + nGenerators + " generators to " + out + " took " 
+                           + (System.currentTimeMillis() - start) + " ms.");
+    }
+}
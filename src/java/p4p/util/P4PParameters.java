@@ -31,11 +31,26 @@
 
 package p4p.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.i2p.util.NativeBigInteger;
 
+import p4p.crypto.Calibration;
+import p4p.crypto.ECGroup;
+import p4p.crypto.Group;
+import p4p.crypto.HashedGenerators;
+import p4p.crypto.ZpGroup;
+
 /**
  * P4P's system parameters. All other classes should extend this class 
  * for convenience.
@@ -84,6 +99,89 @@ public class P4PParameters {
                        + "697716598109957523803954852010747480678586"
                        + "824330573713");
 
+    /**
+     * Stock safe primes p = 2q + 1 for larger security parameters: the 
+     * 2048 and 3072-bit MODP groups of RFC 3526. 2 is a quadratic residue 
+     * mod these p, so it generates G_q.
+     */
+    private static final String[] stockSafePrimes = {
+            "ffffffffffffffffc90fdaa22168c234c4c6628b80dc1cd129024e088a67cc74"
+            + "020bbea63b139b22514a08798e3404ddef9519b3cd3a431b302b0a6df25f1437"
+            + "4fe1356d6d51c245e485b576625e7ec6f44c42e9a637ed6b0bff5cb6f406b7ed"
+            + "ee386bfb5a899fa5ae9f24117c4b1fe649286651ece45b3dc2007cb8a163bf05"
+            + "98da48361c55d39a69163fa8fd24cf5f83655d23dca3ad961c62f356208552bb"
+            + "9ed529077096966d670c354e4abc9804f1746c08ca18217c32905e462e36ce3b"
+            + "e39e772c180e86039b2783a2ec07a28fb5c55df06f4c52c9de2bcbf695581718"
+            + "3995497cea956ae515d2261898fa051015728e5a8aacaa68ffffffffffffffff",
+            "ffffffffffffffffc90fdaa22168c234c4c6628b80dc1cd129024e088a67cc74"
+            + "020bbea63b139b22514a08798e3404ddef9519b3cd3a431b302b0a6df25f1437"
+            + "4fe1356d6d51c245e485b576625e7ec6f44c42e9a637ed6b0bff5cb6f406b7ed"
+            + "ee386bfb5a899fa5ae9f24117c4b1fe649286651ece45b3dc2007cb8a163bf05"
+            + "98da48361c55d39a69163fa8fd24cf5f83655d23dca3ad961c62f356208552bb"
+            + "9ed529077096966d670c354e4abc9804f1746c08ca18217c32905e462e36ce3b"
+            + "e39e772c180e86039b2783a2ec07a28fb5c55df06f4c52c9de2bcbf695581718"
+            + "3995497cea956ae515d2261898fa051015728e5a8aaac42dad33170d04507a33"
+            + "a85521abdf1cba64ecfb850458dbef0a8aea71575d060c7db3970f85a6e1e4c7"
+            + "abf5ae8cdb0933d71e8c94e04a25619dcee3d2261ad2ee6bf12ffa06d98a0864"
+            + "d87602733ec86a64521f2b18177b200cbbe117577a615d6c770988c0bad946e2"
+            + "08e24fa074e5ab3143db5bfce0fd108e4b82d120a93ad2caffffffffffffffff"
+    };
+    private static final BigInteger stockSafeGenerator = BigInteger.valueOf(2);
+    
+    /**
+     * Stock Schnorr groups (see {@link #initialize(int, int, boolean)}): 
+     * {p, q, generator} in hex, with a 256-bit q dividing p - 1.
+     */
+    private static final int STOCK_SUBGROUP_LENGTH = 256;
+    private static final String[][] stockSchnorr = {
+        { // 2048-bit p
+            "e42f2a7ba2deef7f11dabd5eb47cc92162cbcf51b7ec1f3a281ffd071f09a750"
+            + "82cf6d1343d133c03b8e4a0ae4de4084c01a77ad0f62be1c44e253e0094caf1f"
+            + "e438cde1acb44c4e3649df40b2c7cf3938205f68a0dece354c52d5d0450ed068"
+            + "77fdb4db9ec31f748a91f6ea5ec9957214e96edb0f0c5228fa2e69189034ed05"
+            + "882b7641bb197d81332aca1d33977cd04a0461b7babae55fd74658855013ef55"
+            + "99699312fbe5dbd06656bf364177c2d8d75107111f9e7d41806fc630e6b483a3"
+            + "85d1e0c723f2b6f686ebc18ae8907ddc590e30ae1425d6df95c53b53e8435144"
+            + "240c1dbd2b6214e1b66b1e4d4d4e9f6daf594f55b7641de902e3d3bc857eb165",
+            "f1be984256b2231f4f472c5d385f8a138ab9dc5cf30e8ce61c84aa06da1795ed",
+            "ba6d0dbef531fc743cc07899f871602a3578542f7068dff368df03fbcf4d8e30"
+            + "7c7c19ded858c877a9f720aaf4fc8a3a2a72959b1205ffb48327989c444f84d1"
+            + "bb31886a50aada19cf08711cda83f012d61d56e76fc8a48eb5b80fe1cc20aeb3"
+            + "dafb35c83a2fe94faddf13ae76163d02a4d87187e8fcf14ca2c113ecce450f08"
+            + "8eddfbf7fd043510a1eaaec2e469decc5c501acf5e640a94fa496664cd66c871"
+            + "2be3f917a508e016f0a8fb2643c4197258c24dc9dfe228a82fa06e99c9db03c8"
+            + "99f8be1d39e5e9408d13e9b4c291b99142f7bba4b549a31aa7145b006fe8f207"
+            + "f21034b1299ecbb487df8cc1f2ee5cf97e7b2adf2a3a3975d9666ac5cf90503a"
+        },
+        { // 3072-bit p
+            "c7670cc138c204b879d29cd91de2551147a90668d049c92b352a396a2ca82e38"
+            + "9bb3fedc8cc977d9ae919d370479b50652f09d0040f853c27b180f50ecff03d2"
+            + "517513918a5a12f341329f8a417df0876ecac4ed3fb5ccfc1eb9bd3b1f668afd"
+            + "8a86ffd4e41c032339dd87dda68bd71149bf37b13bb4741efdc0e80d655bf0c5"
+            + "b39f4d5710dabb09d6df4ea4f7d4717eace95a11510bd210857978efa62fb30d"
+            + "cf7ba1b4f56d6f8f3e12c551c6dea296e292384d6e7aa597153a2c1571d9eabc"
+            + "1afaa43558bed1a468b53efc86bbeffe6ce2335e7801140eefa4f34e577f4ba4"
+            + "5bdefa99d5f64b7a51e32807cd2177c7349d0bd961d2af51d83abb495b00fa5b"
+            + "f7b98c4c3ffe5d0b273159d9b0c8233a2b8892e9459f61fe3207f8c00e09a08d"
+            + "7381de595914b4e033230401d207454621f6a0af907618e4467ae7baac0259e7"
+            + "80b2ac7caf8aba8b670258120355d29697fa57fdf88a0c27a1ac7a876a01536d"
+            + "b3ec4fe06b6ed94b7bad27286c467ff829d5757d89eb86bc38870941f67c2265",
+            "bd8257d1b8cc75673a0698a2db07ab681a73ad1f94a58524ea3a20041dc90915",
+            "3d8ab54324411490149af623f80dec5d0acc5010ee717d312d7e40875c0b4e73"
+            + "592a761f1256d872c31afc78e38e54072e608fb1e75a8d24276465132c3e11c1"
+            + "a24a7000c1175cf6887a436b73c527687c33ac500fb9039a30488cf80c4d0a33"
+            + "ffaa56e263f4c5a2cacad68f811bdb34af1e40fd6509352b1f6d7ba4c17c6658"
+            + "d2406c79534c6c3cfd2a0234124bac2815b909e90b32c2895b060b4112edafa7"
+            + "524b50535ef5da9973f056baadf9b4aea8f21ae6121cf2c718cb1186afc6bf7b"
+            + "360ac6938d73d30e32c9a1fddd025979ad1b50c05a6628e5215fc4143363c38c"
+            + "019a9e71da922f0889ca604ffc1f58dc109c7432d99a7e3459d2d6639e1f9d53"
+            + "e61e526488fb330c6b2f3389ee7a2d2e33ca84402e85d54e3123374849a9152c"
+            + "577ea69aa20bac9af075991dda9780cefbc4371c9ae651ae7398d94349089937"
+            + "7c0352b133e4c1d1f764709a1c0524cc2096ba8102faffcc9f1b5ee7d2c989d3"
+            + "9d6f5f766e7a45d4c374da5a841538be882722e0e145dcc0df7364050aa4767c"
+        }
+    };
+
     private static SecureRandom rand = null;
     
     // Warming up:
@@ -101,15 +199,22 @@ public class P4PParameters {
     }
     
     /** 
-     * The modulus. Should be at least 1024 bit.
+     * The modulus. Should be at least 1024 bit. Only meaningful when the 
+     * group is Z_p^* (a {@link ZpGroup}). It is <code>null</code> otherwise.
      */
     protected static BigInteger p;    
     
     /**
-     * A large prime such that q | p -1. Typically p = 2q + 1 
+     * A large prime such that q | p -1. Typically p = 2q + 1. In general, 
+     * the order of the group.
      */
     protected static BigInteger q;
     
+    /**
+     * The group all the commitments are computed in. See {@link Group}.
+     */
+    protected static Group group;
+    
     /**
      * A generator in G_q, the subgroup of order q of Z^*_p.
      * For security reasons we should always work in G_q. This
@@ -117,8 +222,13 @@ public class P4PParameters {
      * generators the system may use. 
      */
     private static NativeBigInteger generator;
-    private static NativeBigInteger[] generators;
-    private static int MAX_GENERATORS = 100;
+    
+    /**
+     * The stock generators for vector commitments, derived from the group on
+     * demand (see {@link #getGenerators}).
+     */
+    private static HashedGenerators generators;
+    private static final String GENERATOR_LABEL = "P4P vector generators";
     
     /**
      * The security parameter. We must guarantee |p| >= security_parameters
@@ -128,12 +238,13 @@ public class P4PParameters {
     
     /**
      * Initialize the system parameters with the given security parameter.
+     * Stock parameters are used for 1024, 2048 and 3072 bits unless 
+     * <code>force</code> is set. Otherwise a safe prime is searched for by 
+     * several threads (see {@link #generateSafePrime}). If the system 
+     * property <code>p4p.params.file</code> names a parameter file (see 
+     * {@link #save}) with a p of this size, the parameters are read from it 
+     * instead, and newly generated ones are written to it.
      */
-    
-    // FIXME: there should also be a method so that the parameters
-    // can be read from config file. This way we only distribute the
-    // public keys to the users.
-    
     public static void initialize(int security_parameters, boolean force) {
         if(initialized && !force) {
             System.out.println("System parameters already initialized.");
@@ -142,87 +253,500 @@ public class P4PParameters {
         }
         
         assert(security_parameters>0);
+        if(!force && loadParameterFile(security_parameters, -1))
+            return;
         securityParameter = security_parameters;
         
         System.out.println("securityParameter = " + securityParameter);
         System.out.print("Setting up system paramenters. This may take a while,"
                          + " depending on the security parameter used ...");
-        int isProbablePrime_counter= 0;
-        if(force || security_parameters != STOCK_KEYLENGTH) {
-            while(true) {
-                System.out.print(".");
-                q = BigInteger.probablePrime(securityParameter - 1, rand);
-                p = (q.add(q)).add(BigInteger.ONE);     // 2*q + 1
-                isProbablePrime_counter++;
-                if(p.isProbablePrime(100)){
-                    break;
-                }
-            }
+        BigInteger stock = force ? null : stockSafePrime(security_parameters);
+        if(stock == null) {
+            p = generateSafePrime(securityParameter);
+            q = p.shiftRight(1);                    // (p - 1)/2
         }
         else { 
             System.out.println("\nUsing stock p and q.");
-            p = stockP;
-            q = stockQ;
+            p = stock;
+            q = stock == stockP ? stockQ : p.shiftRight(1);
         }
 
-                //	p = new NativeBigInteger(pp);
-        //	q = new NativeBigInteger(qq);
-        
         System.out.println("\np = " + p + "\nq = " + q);	
         
-        // Now lets find a generator of G_Q: cbxndsjmq
-        System.out.print("Finding th`bhgyhng x  h22   ni)_≤≠ ikalenerator .");
-        if(force || security_parameters != STOCK_KEYLENGTH) {
-            int cnt_mod_1000 = 0;   
-            while(true) {
-                cnt_mod_1000++;
-                if(cnt_mod_1000%1000 ==0){
-                    System.out.print("cnt_mod_1000%1000 ==0");
-                }
-                generator = new NativeBigInteger(Util.randomBigInteger(q));
-                if(!BigInteger.ONE.equals(generator) && 
-                   BigInteger.ONE.equals(generator.modPow(q, p))) {
-                    System.out.println("generator = " + generator);
-                    break;
-                }
-            }
-            
-            System.out.println("done");
+        // Now lets find a generator of G_Q:
+        if(stock == null) {
+            // G_q is the subgroup of quadratic residues, so any square other
+            // than 1 generates it:
+            BigInteger r;
+            do {
+                r = Util.randomBigInteger(p);
+            } while(r.compareTo(BigInteger.ONE) <= 0 
+                    || r.equals(p.subtract(BigInteger.ONE)));
+            generator = new NativeBigInteger(r.multiply(r).mod(p));
+            System.out.println("generator = " + generator);
         }
         else {
-            System.out.println("\nUsing stock generator.");
-            generator = stockGenerator;
+            System.out.println("Using stock generator.");
+            generator = stock == stockP ? stockGenerator 
+                : new NativeBigInteger(stockSafeGenerator);
         }
         
         
-        // Generate a lot of generators for use with vector commitment:
-        // FIXME: many applications may not need the following.
-        generators = new  NativeBigInteger[MAX_GENERATORS];
-        int counter_r = 0;
-        for(int i = 0; i < MAX_GENERATORS; i++) {
-            BigInteger r = Util.randomBigInteger(q);
-
-            while(r.equals(BigInteger.ZERO)){
-                r = Util.randomBigInteger(q);
-
-            }
-
-            // r can't be 0
-            
-            generators[i] = new NativeBigInteger(generator.modPow(r, p));
-            counter_r++;
-        }
+        // Pick the fastest modPow for this |p| before we use it:
+        Calibration.calibrate(p, q);
         
         System.out.println("Length of p: " + p.bitLength());
         System.out.println("Length of q: " + q.bitLength());
         
         if(p.bitLength() < security_parameters)
             throw new RuntimeException("p is too small!");
-        int p_bitlength = p.bitLength();
+        group = new ZpGroup(p, q, generator);
+        generators = new HashedGenerators(group, GENERATOR_LABEL);
         initialized = true;
+        saveParameterFile();
+    }
+    
+    /**
+     * Returns the stock safe prime of the given length, or null if there is
+     * none.
+     */
+    private static BigInteger stockSafePrime(int bits) {
+        if(bits == STOCK_KEYLENGTH)
+            return stockP;
+        for(int i = 0; i < stockSafePrimes.length; i++) {
+            BigInteger pp = new BigInteger(stockSafePrimes[i], 16);
+            if(pp.bitLength() == bits)
+                return pp;
+        }
+        return null;
+    }
+    
+    /**
+     * Initialize the system parameters with a Schnorr group: p is a pBits-bit
+     * prime and q a qBits-bit prime dividing p - 1, so that all the exponents
+     * (randomness, challenges and responses) are only qBits long instead of 
+     * |p|. qBits = 256 gives about the same security as a 3072-bit p. Stock 
+     * parameters are used for 2048 and 3072-bit p with 256-bit q unless 
+     * <code>force</code> is set. If qBits >= pBits - 1 this is the same as
+     * {@link #initialize(int, boolean)}, i.e. a safe prime is used.
+     */
+    public static void initialize(int pBits, int qBits, boolean force) {
+        if(initialized && !force) {
+            System.out.println("System parameters already initialized.");
+            dump();
+            return;
+        }
+        if(qBits >= pBits - 1) {
+            initialize(pBits, force);
+            return;
+        }
+        if(!force && loadParameterFile(pBits, qBits))
+            return;
+        
+        BigInteger[] params = null;
+        if(!force && qBits == STOCK_SUBGROUP_LENGTH) {
+            for(int i = 0; i < stockSchnorr.length; i++) {
+                BigInteger pp = new BigInteger(stockSchnorr[i][0], 16);
+                if(pp.bitLength() == pBits) {
+                    System.out.println("Using stock p, q and generator.");
+                    params = new BigInteger[] {
+                        pp, new BigInteger(stockSchnorr[i][1], 16),
+                        new BigInteger(stockSchnorr[i][2], 16) };
+                    break;
+                }
+            }
+        }
+        if(params == null) {
+            System.out.print("Setting up a " + pBits + "-bit Schnorr group "
+                             + "with a " + qBits + "-bit subgroup ...");
+            params = generateSchnorrGroup(pBits, qBits);
+            System.out.println(" done");
+        }
+        
+        initialize(new ZpGroup(params[0], params[1], 
+                               new NativeBigInteger(params[2])));
+        System.out.println("Length of p: " + p.bitLength());
+        System.out.println("Length of q: " + q.bitLength());
+        saveParameterFile();
+    }
+    
+    /**
+     * Returns {p, q, g} where q is a random qBits-bit prime, p = kq + 1 a 
+     * pBits-bit prime and g = h^k != 1 for a random h, i.e. g has order q.
+     */
+    private static BigInteger[] generateSchnorrGroup(final int pBits, 
+                                                     int qBits) {
+        final BigInteger qq = BigInteger.probablePrime(qBits, rand);
+        final BigInteger q2 = qq.shiftLeft(1);
+        BigInteger pp = search(new Search() {
+                BigInteger attempt() {
+                    // A random pBits-bit number that is 1 mod 2q:
+                    BigInteger x = new BigInteger(pBits, rand).setBit(pBits - 1);
+                    BigInteger pp = x.subtract(x.mod(q2)).add(BigInteger.ONE);
+                    if(pp.bitLength() == pBits && pp.isProbablePrime(100))
+                        return pp;
+                    return null;
+                }
+            });
+        
+        BigInteger k = pp.subtract(BigInteger.ONE).divide(qq);
+        BigInteger g;
+        do {
+            g = Util.randomBigInteger(pp).modPow(k, pp);
+        } while(g.compareTo(BigInteger.ONE) <= 0);
+        return new BigInteger[] {pp, qq, g};
+    }
+    
+    /**
+     * The number of threads searching for primes, from 
+     * <code>p4p.params.threads</code> (default: the number of processors).
+     */
+    private static final int SEARCH_THREADS = 
+        Math.max(1, Integer.getInteger("p4p.params.threads", 
+                                       Runtime.getRuntime().availableProcessors()));
+    
+    /**
+     * A randomized search, see {@link #search}.
+     */
+    private static abstract class Search {
+        /**
+         * Set once a result is found. Long attempts should check it.
+         */
+        volatile boolean done = false;
+        
+        /**
+         * Makes one attempt and returns the result, or null if it failed.
+         */
+        abstract BigInteger attempt();
+    }
+    
+    /**
+     * Repeats the attempts of s on SEARCH_THREADS threads and returns the 
+     * first result.
+     */
+    private static BigInteger search(final Search s) {
+        final AtomicReference<BigInteger> found = 
+            new AtomicReference<BigInteger>();
+        Runnable r = new Runnable() {
+                public void run() {
+                    while(!s.done) {
+                        BigInteger x = s.attempt();
+                        if(x != null) {
+                            found.compareAndSet(null, x);
+                            s.done = true;
+                        }
+                    }
+                }
+            };
+        
+        Thread[] threads = new Thread[SEARCH_THREADS - 1];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(r, "P4PParameters-" + (i+1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        r.run();
+        for(int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return found.get();
+    }
+    
+    private static final int SIEVE_LENGTH = 1<<14;
+    private static final int[] SMALL_PRIMES = Util.smallPrimes(1<<12);
+    
+    /**
+     * Returns a random bits-bit safe prime p = 2q + 1. Each attempt takes 
+     * a random odd q0 and sieves q0, q0 + 2, ... so that neither q nor 
+     * 2q + 1 has an odd factor below 2^12. Only the survivors get a Fermat
+     * test of p and then the full primality tests of both. The attempts 
+     * run on several threads (see {@link #search}).
+     */
+    public static BigInteger generateSafePrime(final int bits) {
+        return search(new Search() {
+                BigInteger attempt() {
+                    BigInteger q0 = new BigInteger(bits - 1, rand)
+                        .setBit(bits - 2).setBit(0);
+                    boolean[] composite = new boolean[SIEVE_LENGTH];
+                    for(int i = 0; i < SMALL_PRIMES.length; i++) {
+                        int sp = SMALL_PRIMES[i];
+                        long r = q0.mod(BigInteger.valueOf(sp)).longValue();
+                        long half = (sp + 1)/2;             // 1/2 mod sp
+                        // q0 + 2t = 0 mod sp:
+                        for(int t = (int)((sp - r)*half%sp); t < SIEVE_LENGTH; 
+                            t += sp)
+                            composite[t] = true;
+                        // 2(q0 + 2t) + 1 = 0, i.e. q0 + 2t = -1/2 mod sp:
+                        for(int t = (int)((2*sp - half - r)%sp*half%sp); 
+                            t < SIEVE_LENGTH; t += sp)
+                            composite[t] = true;
+                    }
+                    
+                    BigInteger two = BigInteger.valueOf(2);
+                    for(int t = 0; t < SIEVE_LENGTH && !done; t++) {
+                        if(composite[t])
+                            continue;
+                        BigInteger qq = q0.add(BigInteger.valueOf(2*t));
+                        if(qq.bitLength() != bits - 1)
+                            return null;
+                        BigInteger pp = qq.shiftLeft(1).add(BigInteger.ONE);
+                        if(!two.modPow(qq.shiftLeft(1), pp).equals(BigInteger.ONE))
+                            continue;
+                        if(qq.isProbablePrime(100) && pp.isProbablePrime(100))
+                            return pp;
+                    }
+                    return null;
+                }
+            });
+    }
+    
+    /**
+     * Initialize the system parameters to use the given group, e.g. an 
+     * {@link p4p.crypto.ECGroup}. q becomes the order of the group.
+     */
+    public static void initialize(Group g) {
+        group = g;
+        q = g.getOrder();
+        p = g instanceof ZpGroup ? ((ZpGroup)g).getModulus() : null;
+        securityParameter = p != null ? p.bitLength() : q.bitLength();
+        System.out.println("Using group " + g.getClass().getName() 
+                           + " of order " + q);
+        Calibration.calibrate(g);
+        
+        generator = new NativeBigInteger(g.getGenerator());
+        generators = new HashedGenerators(g, GENERATOR_LABEL);
+        initialized = true;
+    }
+    
+    /**
+     * Returns the group all the commitments are computed in.
+     */
+    public static Group getGroup() {
+        return group;
     }
     
 
+    private static final int PARAMS_MAGIC = 0x50345050;     // "P4PP"
+    private static final int PARAMS_VERSION = 1;
+    private static final int PARAMS_ZP = 0;                 // p, q, generator
+    private static final int PARAMS_P256 = 1;               // ECGroup.getP256()
+    
+    /**
+     * Writes the system parameters to a parameter file: the group (p, q and
+     * the generator of a {@link ZpGroup}, or the stock curve) followed by 
+     * the first nGenerators stock generators (see {@link #getGenerators}), 
+     * which are derived now if necessary. Saving the generators spares 
+     * every reader deriving them, which costs an exponentiation each in a 
+     * Schnorr group. The file is written under a temporary name and then 
+     * renamed, so readers never see a partial file.
+     */
+    public static void save(File f, int nGenerators) throws IOException {
+        if(!initialized)
+            throw new RuntimeException("System parameters haven't been "
+                                       + "setup yet!");
+        NativeBigInteger[] gens = getGenerators(nGenerators);
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(PARAMS_MAGIC);
+            out.writeInt(PARAMS_VERSION);
+            if(group instanceof ZpGroup) {
+                out.writeInt(PARAMS_ZP);
+                writeBigInteger(out, p);
+                writeBigInteger(out, q);
+                writeBigInteger(out, group.getGenerator());
+            }
+            else if(group == ECGroup.getP256())
+                out.writeInt(PARAMS_P256);
+            else
+                throw new IllegalArgumentException("Can't save a " 
+                                                   + group.getClass().getName());
+            out.writeInt(gens.length);
+            for(int i = 0; i < gens.length; i++) {
+                byte[] b = group.encode(gens[i]);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        }
+        finally {
+            out.close();
+        }
+        if(!tmp.renameTo(f)) {
+            f.delete();
+            if(!tmp.renameTo(f))
+                throw new IOException("Can't rename " + tmp + " to " + f);
+        }
+    }
+    
+    /**
+     * Writes the system parameters and the stock generators derived so far
+     * (see {@link #save(File, int)}).
+     */
+    public static void save(File f) throws IOException {
+        save(f, generators.getCachedPrefix());
+    }
+    
+    /**
+     * Initialize the system parameters from a parameter file written by 
+     * {@link #save}. Only cheap checks are done here: q divides p - 1, the
+     * generator is in G_q and a few of the saved generators, including the
+     * first and the last, are the ones {@link HashedGenerators} derives. 
+     * The file is trusted like the parameters themselves; 
+     * {@link #sanityCheck} still tests p and q for primality.
+     */
+    public static void load(File f) throws IOException {
+        Object[] params = read(f);
+        install((Group)params[0], (NativeBigInteger[])params[1]);
+    }
+    
+    /**
+     * Returns {group, generators} read from a parameter file.
+     */
+    private static Object[] read(File f) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if(in.readInt() != PARAMS_MAGIC)
+                throw new IOException(f + " is not a parameter file");
+            if(in.readInt() != PARAMS_VERSION)
+                throw new IOException(f + " has an unknown version");
+            
+            Group g;
+            int type = in.readInt();
+            if(type == PARAMS_ZP) {
+                BigInteger pp = readBigInteger(in);
+                BigInteger qq = readBigInteger(in);
+                BigInteger gg = readBigInteger(in);
+                try {
+                    g = new ZpGroup(pp, qq, new NativeBigInteger(gg));
+                }
+                catch(IllegalArgumentException e) {
+                    throw new IOException(f + ": " + e.getMessage());
+                }
+                if(!g.isElement(gg) || gg.equals(BigInteger.ONE))
+                    throw new IOException(f + ": the generator is not in G_q");
+            }
+            else if(type == PARAMS_P256)
+                g = ECGroup.getP256();
+            else
+                throw new IOException(f + " has an unknown group type");
+            
+            int n = in.readInt();
+            if(n < 0)
+                throw new IOException(f + " is corrupt");
+            NativeBigInteger[] gens = new NativeBigInteger[n];
+            for(int i = 0; i < n; i++) {
+                int len = in.readInt();
+                if(len < 0 || len > 1<<16)
+                    throw new IOException(f + " is corrupt");
+                byte[] b = new byte[len];
+                in.readFully(b);
+                gens[i] = new NativeBigInteger(1, b);
+                // A membership test costs an exponentiation in a Schnorr 
+                // group, about as much as deriving the generator:
+                if(g instanceof ZpGroup ? gens[i].signum() == 0 
+                   || gens[i].compareTo(((ZpGroup)g).getModulus()) >= 0
+                   : !g.isElement(gens[i]))
+                    throw new IOException(f + ": generator " + i 
+                                          + " is not a group element");
+            }
+            if(n > 0) {
+                HashedGenerators h = new HashedGenerators(g, GENERATOR_LABEL);
+                int[] check = {0, n - 1, rand.nextInt(n), rand.nextInt(n)};
+                for(int i = 0; i < check.length; i++)
+                    if(!h.derive(check[i]).equals(gens[check[i]]))
+                        throw new IOException(f + ": the generators don't "
+                                              + "match the group");
+            }
+            return new Object[] {g, gens};
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    private static void install(Group g, NativeBigInteger[] gens) {
+        initialize(g);
+        generators.preload(0, gens);
+        if(p != null) {
+            System.out.println("Length of p: " + p.bitLength());
+            System.out.println("Length of q: " + q.bitLength());
+        }
+    }
+    
+    /**
+     * Initialize from <code>p4p.params.file</code> if it is set and the file
+     * holds a Z_p^* group with a pBits-bit p and a qBits-bit q, or a safe 
+     * prime if qBits is negative.
+     */
+    private static boolean loadParameterFile(int pBits, int qBits) {
+        String name = System.getProperty("p4p.params.file");
+        if(name == null || !new File(name).exists())
+            return false;
+        try {
+            Object[] params = read(new File(name));
+            if(params[0] instanceof ZpGroup) {
+                ZpGroup g = (ZpGroup)params[0];
+                BigInteger pp = g.getModulus();
+                BigInteger qq = g.getOrder();
+                if(pp.bitLength() == pBits 
+                   && (qBits < 0 ? qq.equals(pp.shiftRight(1)) 
+                       : qq.bitLength() == qBits)) {
+                    System.out.println("Reading system parameters from " 
+                                       + name);
+                    install(g, (NativeBigInteger[])params[1]);
+                    return true;
+                }
+            }
+            System.out.println(name + " holds other parameters. Not used.");
+        }
+        catch(IOException e) {
+            System.err.println("Can't read " + name + ": " + e);
+        }
+        return false;
+    }
+    
+    /**
+     * Writes the new parameters to <code>p4p.params.file</code> if it is set
+     * and doesn't exist yet.
+     */
+    private static void saveParameterFile() {
+        String name = System.getProperty("p4p.params.file");
+        if(name == null || new File(name).exists())
+            return;
+        try {
+            save(new File(name));
+            System.out.println("Saved system parameters to " + name);
+        }
+        catch(IOException e) {
+            System.err.println("Can't save " + name + ": " + e);
+        }
+    }
+    
+    private static void writeBigInteger(DataOutputStream out, BigInteger x) 
+        throws IOException {
+        byte[] b = x.toByteArray();
+        out.writeInt(b.length);
+        out.write(b);
+    }
+    
+    private static BigInteger readBigInteger(DataInputStream in) 
+        throws IOException {
+        int len = in.readInt();
+        if(len <= 0 || len > 1<<16)
+            throw new IOException("Bad number length: " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new BigInteger(b);
+    }
+    
     /**
      * Print out the system parameters.
      */
@@ -230,7 +754,8 @@ public class P4PParameters {
         System.out.println("securityParameter = " + securityParameter);
         System.out.println("\np = " + p + "\nq = " + q);
         System.out.println("generator = " + generator);
-        System.out.println("Length of p: " + p.bitLength());
+        if(p != null)
+            System.out.println("Length of p: " + p.bitLength());
         System.out.println("Length of q: " + q.bitLength());
     }
     
@@ -243,22 +768,31 @@ public class P4PParameters {
 
     /**
      * Get the first N stock generators in G_q. This maybe useful for vector 
-     * commitment.
+     * commitment. The generators are hashed from the group (see 
+     * {@link HashedGenerators}), so every party with the same parameters 
+     * gets the same ones, and are derived the first time they are asked for.
+     * There is no limit on N.
      */
     public static NativeBigInteger[] getGenerators(int N) {
+        return getGenerators(0, N);
+    }
+    
+    /**
+     * Get the stock generators from, from+1, ..., from+N-1. See 
+     * {@link #getGenerators(int)}.
+     */
+    public static NativeBigInteger[] getGenerators(int from, int N) {
         if(!initialized)
             throw new RuntimeException("System parameters haven't been "
                                        + "setup yet!");
-        NativeBigInteger[] v = new  NativeBigInteger[N];
-        
-        for(int i = 0; i < N; i++) {
-            v[i] = generators[i];
-        }
-        return v;
+        return generators.get(from, N);
     }
 
     /**
-     * Get N fresh generators in G_q. This maybe useful for vector commitment.
+     * Get N fresh generators in G_q. They are random powers of the 
+     * generator and differ from party to party, so they are only useful 
+     * when one party both commits and verifies. Use {@link #getGenerators}
+     * for generators that others must agree on.
      */
     public static NativeBigInteger[] getFreshGenerators(int N) {
         if(!initialized)
@@ -273,7 +807,7 @@ public class P4PParameters {
                 r = Util.randomBigInteger(q);
             // r can't be 0
             
-            v[i] = new NativeBigInteger(generator.modPow(r, p));
+            v[i] = new NativeBigInteger(group.exp(generator, r));
         }
         return v;
     }
@@ -299,25 +833,35 @@ public class P4PParameters {
         BigInteger r = Util.randomBigInteger(q);
         while(r.equals(BigInteger.ZERO))
             r = Util.randomBigInteger(q);
-        return new NativeBigInteger(generator.modPow(r, p));
+        return new NativeBigInteger(group.exp(generator, r));
     }
 
     /**
-     * Make sure the parameters have the right properties.
+     * The group the last successful {@link #sanityCheck} was done for.
+     */
+    private static volatile Group checkedGroup = null;
+    
+    /**
+     * Make sure the parameters have the right properties. The primality 
+     * tests are only done once per group.
      */
     public void sanityCheck() {
         if(!initialized)
             throw new RuntimeException("System parameters haven't been "
                                        + "setup yet!");
+        if(checkedGroup == group)
+            return;
         
-        if(!p.isProbablePrime(100)) 
+        if(p != null && !p.isProbablePrime(100)) 
             throw new RuntimeException("p is not prime!");
         if(!q.isProbablePrime(100)) 
             throw new RuntimeException("q is not prime!");
         
-        if(!generator.modPow(q, p).equals(BigInteger.ONE))
+        if(!group.isElement(generator) 
+           || generator.equals(group.identity()))
             throw new RuntimeException("generator does not have the "
                                        + " correct order!");
+        checkedGroup = group;
     }
 
 
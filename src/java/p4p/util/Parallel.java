@@ -0,0 +1,269 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package p4p.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the iterations of a loop in chunks on a caller-supplied executor, or
+ * as a producer/consumer pipeline. The calling thread works on the chunks 
+ * too, and helpers that haven't started by the time all chunks are taken 
+ * are cancelled, so nested loops on a small (or busy) pool never deadlock:
+ * at worst the caller does everything itself. Helpers never wait for work,
+ * so they don't hold pool threads that nested loops could use. Results 
+ * should be written to per-index slots and combined by the caller 
+ * afterwards, so the outcome doesn't depend on the scheduling.
+ */
+
+public final class Parallel {
+    /**
+     * The body of a loop over [from, to). Each chunk is run by one thread, 
+     * so a body can keep per-chunk state such as scratch buffers.
+     */
+    public static abstract class Range {
+        public abstract void run(int from, int to);
+    }
+    
+    private static final int CHUNKS_PER_THREAD = 4;
+    
+    private Parallel() {}
+    
+    /**
+     * Runs body over [0, n) in chunks of at least minChunk iterations. If 
+     * executor is null or there is only one chunk, body.run(0, n) is called
+     * in this thread. The first exception thrown by a chunk is rethrown 
+     * after all the started chunks have finished; chunks that haven't 
+     * started by then are skipped.
+     */
+    public static void forRange(ExecutorService executor, final int n, 
+                                int minChunk, final Range body) {
+        int nChunks = Math.min(Math.max(1, n/Math.max(1, minChunk)), 
+                               CHUNKS_PER_THREAD
+                               *Runtime.getRuntime().availableProcessors());
+        if(executor == null || nChunks <= 1) {
+            if(n > 0)
+                body.run(0, n);
+            return;
+        }
+        
+        final int chunks = nChunks;
+        final AtomicInteger next = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(chunks);
+        final AtomicReference<Throwable> failure = 
+            new AtomicReference<Throwable>();
+        Runnable worker = new Runnable() {
+                public void run() {
+                    int c;
+                    while((c = next.getAndIncrement()) < chunks) {
+                        try {
+                            // After a failure the rest are just counted
+                            if(failure.get() == null)
+                                body.run((int)((long)n*c/chunks), 
+                                         (int)((long)n*(c + 1)/chunks));
+                        }
+                        catch(Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                        finally {
+                            done.countDown();
+                        }
+                    }
+                }
+            };
+        
+        Future<?>[] helpers = new Future<?>[nChunks - 1];
+        for(int i = 0; i < helpers.length; i++)
+            helpers[i] = executor.submit(worker);
+        worker.run();
+        
+        // All chunks are taken. Wait for the ones other threads are running
+        // and drop the helpers that never got to start.
+        boolean interrupted = false;
+        while(true) {
+            try {
+                done.await();
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for(int i = 0; i < helpers.length; i++)
+            helpers[i].cancel(false);
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        
+        rethrow(failure.get());
+    }
+    
+    /**
+     * Runs a two stage pipeline over [0, n). The producer runs in the 
+     * calling thread, in order, on [0, step), [step, 2*step), ... After 
+     * each of these, its indices are handed to the consumer one at a time 
+     * (<code>consumer.run(i, i+1)</code>) through a queue of at most depth
+     * entries. So while the producer works on the next step, the consumers
+     * work on the previous ones. Up to min(depth, number of processors) 
+     * helpers on the executor take from the queue; a helper returns its 
+     * thread as soon as it finds the queue empty and the producer starts 
+     * another one when it queues more work. When the queue is full the 
+     * calling thread runs a consumer itself, which also means a busy 
+     * executor can't stall the pipeline. If executor is null the producer
+     * and the consumer simply alternate step by step in this thread. 
+     * Failures are handled as in {@link #forRange}.
+     */
+    public static void pipeline(ExecutorService executor, int n, int step, 
+                                int depth, Range producer, 
+                                final Range consumer) {
+        step = Math.max(1, step);
+        if(executor == null || n <= step) {
+            for(int from = 0; from < n; from += step) {
+                int to = Math.min(n, from + step);
+                producer.run(from, to);
+                consumer.run(from, to);
+            }
+            return;
+        }
+        
+        depth = Math.max(1, depth);
+        final ArrayBlockingQueue<Integer> queue = 
+            new ArrayBlockingQueue<Integer>(depth);
+        final Semaphore consumed = new Semaphore(0);
+        final AtomicReference<Throwable> failure = 
+            new AtomicReference<Throwable>();
+        final int maxHelpers = Math.min(depth, Runtime.getRuntime()
+                                        .availableProcessors());
+        // Helpers submitted and not yet returned
+        final AtomicInteger active = new AtomicInteger(0);
+        Runnable worker = new Runnable() {
+                public void run() {
+                    while(true) {
+                        Integer i = queue.poll();
+                        if(i != null) {
+                            consume(consumer, i, failure, consumed);
+                            continue;
+                        }
+                        active.decrementAndGet();
+                        // An index queued just before the decrement may 
+                        // have found all helpers still active.
+                        if(queue.isEmpty() || !reserve(active, maxHelpers))
+                            return;
+                    }
+                }
+            };
+        
+        ArrayList<Future<?>> helpers = new ArrayList<Future<?>>();
+        int queued = 0;
+        try {
+            for(int from = 0; from < n && failure.get() == null; 
+                from += step) {
+                int to = Math.min(n, from + step);
+                producer.run(from, to);
+                for(int i = from; i < to; i++) {
+                    while(!queue.offer(i)) {
+                        // The consumers are behind (or not running at all)
+                        Integer j = queue.poll();
+                        if(j != null)
+                            consume(consumer, j, failure, consumed);
+                    }
+                    queued++;
+                    if(reserve(active, maxHelpers)) {
+                        if(helpers.size() >= 2*maxHelpers)
+                            prune(helpers);
+                        helpers.add(executor.submit(worker));
+                    }
+                }
+            }
+        }
+        catch(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+        
+        Integer j;
+        while((j = queue.poll()) != null)
+            consume(consumer, j, failure, consumed);
+        consumed.acquireUninterruptibly(queued);
+        for(int i = 0; i < helpers.size(); i++)
+            helpers.get(i).cancel(false);
+        
+        rethrow(failure.get());
+    }
+    
+    /**
+     * Counts one more helper if there are fewer than max.
+     */
+    private static boolean reserve(AtomicInteger active, int max) {
+        while(true) {
+            int a = active.get();
+            if(a >= max)
+                return false;
+            if(active.compareAndSet(a, a + 1))
+                return true;
+        }
+    }
+    
+    private static void prune(ArrayList<Future<?>> helpers) {
+        for(int i = helpers.size() - 1; i >= 0; i--)
+            if(helpers.get(i).isDone())
+                helpers.remove(i);
+    }
+    
+    private static void consume(Range consumer, int i, 
+                                AtomicReference<Throwable> failure, 
+                                Semaphore consumed) {
+        try {
+            if(failure.get() == null)
+                consumer.run(i, i + 1);
+        }
+        catch(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+        finally {
+            consumed.release();
+        }
+    }
+    
+    private static void rethrow(Throwable t) {
+        if(t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if(t instanceof Error)
+            throw (Error)t;
+        if(t != null)
+            throw new RuntimeException(t);
+    }
+}
@@ -36,6 +36,8 @@ import java.security.SecureRandom;
 import java.security.MessageDigest;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 import net.i2p.util.NativeBigInteger;
 
@@ -77,6 +79,9 @@ public class Util extends P4PParameters {
      * A hash function mapping the message to an element in Z_q. We just 
      * compute SHA-512 hash of the messages and catenate them until we have 
      * enough bits.
+     * <p>
+     * The proofs now use {@link p4p.crypto.Transcript}, which reuses its 
+     * digests and encodes the messages unambiguously.
      *
      * @param	msg	the array of messages
      * @param	q	the size of the set
@@ -328,6 +333,53 @@ public class Util extends P4PParameters {
         return ((bits & flag) != 0);
     }
 
+    /**
+     * Transposes an array of longs into bit planes: bit <tt>i%64</tt> of
+     * <tt>planes[col][i/64]</tt> is bit <tt>col</tt> of <tt>vals[i]</tt>
+     * (bit 0 being the LSB). Blocks of 64 values are transposed as 64x64
+     * bit matrices with word operations, so this costs a few operations per
+     * word instead of one test per bit.
+     *
+     * @param	vals	the values.
+     * @param	nBits	the number of planes, starting from the LSB,
+     *                  0 &lt;= nBits &lt;= 64.
+     * @return	nBits planes of <tt>divRoundUp(vals.length, 64)</tt> words each.
+     */
+    public static long[][] bitPlanes(long[] vals, int nBits) {
+        if(nBits < 0 || nBits > 64)
+            throw new IllegalArgumentException("nBits must be in [0, 64]!");
+        int nWords = divRoundUp(vals.length, 64);
+        long[][] planes = new long[nBits][nWords];
+        long[] block = new long[64];
+        for(int w = 0; w < nWords; w++) {
+            int n = Math.min(64, vals.length - w*64);
+            System.arraycopy(vals, w*64, block, 0, n);
+            java.util.Arrays.fill(block, n, 64, 0L);
+            transpose64(block);
+            for(int col = 0; col < nBits; col++)
+                planes[col][w] = block[col];
+        }
+        return planes;
+    }
+
+    /**
+     * Transposes a 64x64 bit matrix in place, so that bit i of a[j] becomes
+     * bit j of a[i]. The recursive block swap from
+     * <p>
+     *    <i>Henry S. Warren, Hacker's Delight, Addison-Wesley, 2002,
+     *    Section 7-3.</i>
+     */
+    private static void transpose64(long[] a) {
+        long m = 0x00000000FFFFFFFFL;
+        for(int j = 32; j != 0; j >>= 1, m ^= (m << j)) {
+            for(int k = 0; k < 64; k = ((k | j) + 1) & ~j) {
+                long t = ((a[k] >>> j) ^ a[k | j]) & m;
+                a[k | j] ^= t;
+                a[k] ^= t << j;
+            }
+        }
+    }
+
     /**
      * Creates a padded upper-case string representation of the integer
      * argument in base 16.
@@ -408,6 +460,101 @@ public class Util extends P4PParameters {
         return s;
     }
 
+    /**
+     * The number of dimensions {@link #innerProducts} processes per block. 
+     * The default keeps a block of two long vectors (128KB) in a typical L2
+     * cache while the rows of the coefficient matrix stream past it.
+     */
+    private static final int CHECKSUM_BLOCK = 
+        Math.max(64, Integer.getInteger("p4p.checksum.block", 8192)
+                 .intValue());
+
+    /**
+     * Computes all the inner products of the rows of <code>c</code> with 
+     * each of the vectors in <code>vs</code>, i.e. 
+     * <code>result[k][i] = innerProduct(c[i], vs[k])</code>. This is what 
+     * the provers and verifiers need for the N checksums of one or two 
+     * shares of a user vector. Instead of streaming the (large) vectors 
+     * from memory once per row, they are walked once in cache-sized 
+     * blocks and every row's accumulator is updated for each block. The 
+     * blocks can be split over an executor (see {@link Parallel}); 
+     * <code>null</code> computes everything in the calling thread. The 
+     * sums wrap around the same way as {@link #innerProduct(int[], long[])}
+     * so the results are identical to it.
+     *
+     * @throws  RuntimeException if the dimesionalities of the vectors do 
+     *          not match.
+     */
+    public static long[][] innerProducts(final int[][] c, final long[][] vs,
+                                         ExecutorService executor) {
+        final int m = vs[0].length;
+        for(int k = 0; k < vs.length; k++)
+            if(vs[k].length != m)
+                throw new RuntimeException("dimesionalities do not match!");
+        for(int i = 0; i < c.length; i++)
+            if(c[i].length != m)
+                throw new RuntimeException("dimesionalities do not match!");
+        
+        int nBlocks = (m + CHECKSUM_BLOCK - 1)/CHECKSUM_BLOCK;
+        // Each chunk of blocks adds up into its own partial sums. Adding 
+        // longs wraps around the same way in any order so these can be 
+        // added together as they come:
+        final Vector<long[][]> partials = new Vector<long[][]>();
+        Parallel.forRange(executor, nBlocks, 4, new Parallel.Range() {
+                public void run(int from, int to) {
+                    long[][] acc = new long[vs.length][c.length];
+                    innerProducts(c, vs, from*CHECKSUM_BLOCK, 
+                                  Math.min(m, to*CHECKSUM_BLOCK), acc);
+                    partials.add(acc);
+                }
+            });
+        
+        long[][] result = new long[vs.length][c.length];
+        for(long[][] acc : partials)
+            for(int k = 0; k < vs.length; k++)
+                for(int i = 0; i < c.length; i++)
+                    result[k][i] += acc[k][i];
+        return result;
+    }
+    
+    /**
+     * Adds the inner products over dimensions [from, to) to acc, one 
+     * block at a time.
+     */
+    private static void innerProducts(int[][] c, long[][] vs, int from, 
+                                      int to, long[][] acc) {
+        for(int b0 = from; b0 < to; b0 += CHECKSUM_BLOCK) {
+            int b1 = Math.min(to, b0 + CHECKSUM_BLOCK);
+            if(vs.length == 2) {
+                // The common case: the server's and the peer's shares. 
+                // Each coefficient is loaded once for both.
+                long[] u = vs[0];
+                long[] v = vs[1];
+                for(int i = 0; i < c.length; i++) {
+                    int[] ci = c[i];
+                    long su = 0, sv = 0;
+                    for(int j = b0; j < b1; j++) {
+                        su += ci[j]*u[j];
+                        sv += ci[j]*v[j];
+                    }
+                    acc[0][i] += su;
+                    acc[1][i] += sv;
+                }
+                continue;
+            }
+            for(int k = 0; k < vs.length; k++) {
+                long[] v = vs[k];
+                for(int i = 0; i < c.length; i++) {
+                    int[] ci = c[i];
+                    long s = 0;
+                    for(int j = b0; j < b1; j++)
+                        s += ci[j]*v[j];
+                    acc[k][i] += s;
+                }
+            }
+        }
+    }
+
 
     /**
      * Computes the inner product of two doulbe arraies
@@ -478,6 +625,92 @@ public class Util extends P4PParameters {
         return mod_result_long;
     }
 
+    
+    /**
+     * Returns the odd primes below n (sieve of Eratosthenes).
+     */
+    public static int[] smallPrimes(int n) {
+        boolean[] composite = new boolean[n];
+        int count = 0;
+        for(int i = 3; i < n; i += 2) {
+            if(composite[i])
+                continue;
+            count++;
+            for(long j = (long)i*i; j < n; j += 2*i)
+                composite[(int)j] = true;
+        }
+        
+        int[] primes = new int[count];
+        count = 0;
+        for(int i = 3; i < n; i += 2)
+            if(!composite[i])
+                primes[count++] = i;
+        return primes;
+    }
+    
+    
+    /**
+     * Computes the Jacobi symbol (a/n) for an odd positive n. For a prime n 
+     * this is the Legendre symbol, i.e. 1 if a is a non-zero quadratic 
+     * residue mod n, -1 if it is a non-residue and 0 if n | a. See 
+     * 
+     *   Henri Cohen, A Course in Computational Algebraic Number Theory, 
+     *   Algorithm 1.4.10.
+     */
+    public static int jacobi(BigInteger a, BigInteger n) {
+        if(n.signum() <= 0 || !n.testBit(0))
+            throw new IllegalArgumentException("n must be odd and positive.");
+        
+        a = a.mod(n);
+        int t = 1;
+        while(a.signum() != 0) {
+            int v = a.getLowestSetBit();
+            a = a.shiftRight(v);
+            int n8 = n.intValue() & 7;       // n mod 8
+            if((v & 1) == 1 && (n8 == 3 || n8 == 5))
+                t = -t;
+            // Quadratic reciprocity:
+            if((a.intValue() & 3) == 3 && (n8 & 3) == 3)
+                t = -t;
+            BigInteger r = n.mod(a);
+            n = a;
+            a = r;
+        }
+        return n.equals(BigInteger.ONE) ? t : 0;
+    }
+
+    
+    /**
+     * Computes a[i]^-1 mod m for all i with a single modular inversion and 
+     * 3(n-1) multiplications, using Montgomery's trick:
+     * 
+     *   Peter L. Montgomery, Speeding the Pollard and Elliptic Curve Methods
+     *   of Factorization, Mathematics of Computation, Vol. 48, No. 177, 
+     *   1987, pp 260.
+     *
+     * @throws ArithmeticException if some a[i] is not invertible mod m.
+     */
+    public static BigInteger[] batchModInverse(BigInteger[] a, BigInteger m) {
+        int n = a.length;
+        BigInteger[] inv = new BigInteger[n];
+        if(n == 0)
+            return inv;
+        
+        // prefix[i] = a[0]*...*a[i]:
+        BigInteger[] prefix = new BigInteger[n];
+        prefix[0] = a[0].mod(m);
+        for(int i = 1; i < n; i++)
+            prefix[i] = prefix[i-1].multiply(a[i]).mod(m);
+        
+        BigInteger t = prefix[n-1].modInverse(m);  // (a[0]*...*a[i])^-1
+        for(int i = n - 1; i > 0; i--) {
+            inv[i] = t.multiply(prefix[i-1]).mod(m);
+            t = t.multiply(a[i]).mod(m);
+        }
+        inv[0] = t;
+        return inv;
+    }
+
 
     /**
      * Converts the integers in the given array <code>data</code> into double 
@@ -0,0 +1,382 @@
+package net.i2p.util;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Optional;
+
+/**
+ * <p>A {@link ModPowEngine} that calls GMP's <code>mpz_powm</code> through the
+ * Foreign Function &amp; Memory API instead of jbigi's JNI wrapper. The JNI
+ * call copies base, exponent and modulus into fresh byte arrays, converts
+ * all three to GMP integers and allocates a new byte array (and BigInteger)
+ * for the result on every call. Here the operands are limbs in off-heap
+ * {@link MemorySegment}s that GMP reads directly: the modulus stays resident
+ * in a {@link Context} and the result is written into a segment supplied by
+ * the caller.</p>
+ *
+ * <p>GMP is looked up in libjbigi first (the I2P builds link it statically),
+ * then in the system libgmp. This class needs JDK 22 or later, or JDK 21 
+ * with --enable-preview (the API it uses is the same), and lives in its own
+ * source tree; {@link NativeBigInteger} finds it by reflection and
+ * keeps the JNI and pure Java paths when it is missing. It is disabled by
+ * setting <b>jbigi.enable</b> or <b>jbigi.foreign</b> to "false".</p>
+ *
+ * <p>The mpz structure is written by hand: <code>{int alloc; int size;
+ * mp_limb_t *d}</code>. This layout has not changed since GMP 3, and only
+ * 64-bit limbs are supported.</p>
+ */
+public final class ForeignBigInteger implements ModPowEngine {
+    /** sizeof(__mpz_struct) and the offsets of its fields */
+    private static final long MPZ_SIZE = 16;
+    private static final long MPZ_ALLOC = 0;
+    private static final long MPZ_SIZE_FIELD = 4;
+    private static final long MPZ_D = 8;
+    private static final int LIMB_BYTES = 8;
+
+    private static final ForeignBigInteger _instance = load();
+
+    /** void mpz_powm(mpz_ptr r, mpz_srcptr b, mpz_srcptr e, mpz_srcptr m) */
+    private final MethodHandle _powm;
+    private final String _library;
+
+    /** per thread context for the BigInteger methods. Replaced when the modulus changes. */
+    private final ThreadLocal<Context> _contexts = new ThreadLocal<Context>();
+
+    private ForeignBigInteger(MethodHandle powm, String library) {
+        _powm = powm;
+        _library = library;
+    }
+
+    /**
+     * @return the engine, or null if GMP could not be found or does not use
+     *         64-bit limbs
+     */
+    public static ForeignBigInteger getInstance() {
+        return _instance;
+    }
+
+    private static ForeignBigInteger load() {
+        if (!"true".equalsIgnoreCase(System.getProperty("jbigi.enable", "true"))
+            || !"true".equalsIgnoreCase(System.getProperty("jbigi.foreign", "true")))
+            return null;
+        if (ValueLayout.ADDRESS.byteSize() != 8)
+            return null;
+
+        String jbigi = System.mapLibraryName("jbigi");
+        String path = System.getProperty("java.library.path", "");
+        String[] dirs = path.split(File.pathSeparator);
+        for (int i = 0; i < dirs.length; i++) {
+            File f = new File(dirs[i], jbigi);
+            if (f.isFile()) {
+                ForeignBigInteger engine = bind(f.getAbsolutePath());
+                if (engine != null)
+                    return engine;
+            }
+        }
+        String[] names = {"libgmp.so.10", "libgmp.so", "libgmp.10.dylib", "libgmp.dylib", "gmp.dll"};
+        for (int i = 0; i < names.length; i++) {
+            ForeignBigInteger engine = bind(names[i]);
+            if (engine != null)
+                return engine;
+        }
+        return null;
+    }
+
+    private static ForeignBigInteger bind(String library) {
+        SymbolLookup lookup;
+        try {
+            lookup = SymbolLookup.libraryLookup(library, Arena.global());
+        } catch (IllegalArgumentException iae) {
+            return null;    // not found or not loadable
+        }
+        Optional<MemorySegment> powm = lookup.find("__gmpz_powm");
+        Optional<MemorySegment> bits = lookup.find("__gmp_bits_per_limb");
+        if (powm.isEmpty() || bits.isEmpty())
+            return null;
+        if (bits.get().reinterpret(4).get(ValueLayout.JAVA_INT, 0) != 64)
+            return null;
+
+        MethodHandle mh = Linker.nativeLinker().downcallHandle(powm.get(),
+            FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+                                      ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+        ForeignBigInteger engine = new ForeignBigInteger(mh, library);
+        // 2^3 % 11 = 8
+        if (engine.modPow(BigInteger.TWO, BigInteger.valueOf(3), BigInteger.valueOf(11)).intValue() != 8)
+            return null;
+        return engine;
+    }
+
+    public String getName() {
+        return "ffm";
+    }
+
+    /**
+     * @return the library GMP was found in
+     */
+    public String getLibrary() {
+        return _library;
+    }
+
+    /**
+     * Opens a context for the odd modulus m. The context and the segments it
+     * allocates may only be used by the calling thread and are freed by
+     * {@link Context#close}.
+     */
+    public Context open(BigInteger m) {
+        return new Context(m, Arena.ofConfined());
+    }
+
+    private Context context(BigInteger m) {
+        Context ctx = _contexts.get();
+        if (ctx == null || !ctx._modulus.equals(m)) {
+            // GMP never owns memory in a context, so the GC can free it
+            ctx = new Context(m, Arena.ofAuto());
+            _contexts.set(ctx);
+        }
+        return ctx;
+    }
+
+    public BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger m) {
+        Context ctx = context(m);
+        return ctx.modPow(base, exponent);
+    }
+
+    public BigInteger[] modPow(BigInteger[] bases, BigInteger[] exponents, BigInteger m) {
+        Context ctx = context(m);
+        BigInteger[] r = new BigInteger[bases.length];
+        for (int i = 0; i < bases.length; i++)
+            r[i] = ctx.modPow(bases[i], exponents[i]);
+        return r;
+    }
+
+    /**
+     * @return the number of 64-bit limbs needed for x &gt;= 0
+     */
+    public static int limbs(BigInteger x) {
+        return (x.bitLength() + 63) >>> 6;
+    }
+
+    /**
+     * Writes x &gt;= 0 into dst as little endian limbs and returns the number
+     * of limbs written.
+     */
+    public static int toLimbs(BigInteger x, MemorySegment dst) {
+        byte[] ba = x.toByteArray();
+        int n = limbs(x);
+        int pos = ba.length;
+        for (int i = 0; i < n; i++) {
+            long limb = 0;
+            for (int j = 0; j < 64 && pos > 0; j += 8)
+                limb |= (ba[--pos] & 0xffL) << j;
+            dst.setAtIndex(ValueLayout.JAVA_LONG, i, limb);
+        }
+        return n;
+    }
+
+    /**
+     * Reads n little endian limbs from src.
+     */
+    public static BigInteger fromLimbs(MemorySegment src, int n) {
+        byte[] ba = new byte[n * LIMB_BYTES];
+        int pos = ba.length;
+        for (int i = 0; i < n; i++) {
+            long limb = src.getAtIndex(ValueLayout.JAVA_LONG, i);
+            for (int j = 0; j < 64; j += 8)
+                ba[--pos] = (byte)(limb >>> j);
+        }
+        return new BigInteger(1, ba);
+    }
+
+    /**
+     * The resident modulus and the scratch mpz structures for one thread.
+     * Operands are passed as limb segments; see {@link #modPow(MemorySegment,
+     * MemorySegment, int, MemorySegment, int)}.
+     */
+    public final class Context implements AutoCloseable {
+        private final Arena _arena;
+        private final BigInteger _modulus;
+        private final int _n;
+        private final MemorySegment _m;
+        private final MemorySegment _b;
+        private final MemorySegment _e;
+        private final MemorySegment _r;
+
+        /** operand buffers for the BigInteger methods */
+        private final MemorySegment _baseLimbs;
+        private final MemorySegment _resultLimbs;
+        private MemorySegment _expLimbs;
+
+        private Context(BigInteger m, Arena arena) {
+            if (m.signum() <= 0 || !m.testBit(0))
+                throw new IllegalArgumentException("The modulus must be positive and odd!");
+            _arena = arena;
+            _modulus = m;
+            _n = ForeignBigInteger.limbs(m);
+
+            MemorySegment mLimbs = allocate(_n);
+            toLimbs(m, mLimbs);
+            _m = arena.allocate(MPZ_SIZE, 8);
+            setMpz(_m, mLimbs, _n, _n);
+            _b = arena.allocate(MPZ_SIZE, 8);
+            _e = arena.allocate(MPZ_SIZE, 8);
+            _r = arena.allocate(MPZ_SIZE, 8);
+
+            _baseLimbs = allocate(_n);
+            _resultLimbs = allocate(_n);
+            _expLimbs = allocate(_n);
+        }
+
+        /**
+         * @return the number of limbs in the modulus, which is also the size
+         *         of a result
+         */
+        public int limbs() {
+            return _n;
+        }
+
+        public BigInteger getModulus() {
+            return _modulus;
+        }
+
+        /**
+         * Allocates a zeroed segment of the given number of limbs that lives
+         * as long as this context.
+         */
+        public MemorySegment allocate(int limbs) {
+            return _arena.allocate((long)Math.max(limbs, 1) * LIMB_BYTES, LIMB_BYTES);
+        }
+
+        /**
+         * Computes (b ^ e) % m into r, which must hold at least {@link #limbs}
+         * limbs. b has bn limbs and must be less than m; e has en limbs. The
+         * result is zero-padded to {@link #limbs} limbs. None of the
+         * segments are copied.
+         */
+        public void modPow(MemorySegment r, MemorySegment b, int bn,
+                           MemorySegment e, int en) {
+            if (r.byteSize() < (long)_n * LIMB_BYTES)
+                throw new IllegalArgumentException("Result segment is too small!");
+            setMpz(_b, b, bn, bn);
+            setMpz(_e, e, en, en);
+            // GMP writes into r directly as long as alloc >= n
+            _r.set(ValueLayout.JAVA_INT, MPZ_ALLOC, _n);
+            _r.set(ValueLayout.JAVA_INT, MPZ_SIZE_FIELD, 0);
+            _r.set(ValueLayout.ADDRESS, MPZ_D, r);
+            try {
+                _powm.invokeExact(_r, _b, _e, _m);
+            } catch (Throwable t) {
+                throw new RuntimeException("mpz_powm failed", t);
+            }
+            if (!_r.get(ValueLayout.ADDRESS, MPZ_D).equals(r))
+                throw new IllegalStateException("GMP reallocated the result!");
+            int size = _r.get(ValueLayout.JAVA_INT, MPZ_SIZE_FIELD);
+            if (size < _n)
+                r.asSlice((long)size * LIMB_BYTES, (long)(_n - size) * LIMB_BYTES).fill((byte)0);
+        }
+
+        /**
+         * calculate (base ^ exponent) % m using this context's buffers.
+         */
+        public BigInteger modPow(BigInteger base, BigInteger exponent) {
+            if (exponent.signum() < 0) {
+                base = base.modInverse(_modulus);
+                exponent = exponent.negate();
+            } else if (base.signum() < 0 || base.compareTo(_modulus) >= 0)
+                base = base.mod(_modulus);
+            int en = ForeignBigInteger.limbs(exponent);
+            if (_expLimbs.byteSize() < (long)en * LIMB_BYTES)
+                _expLimbs = allocate(en);
+            int bn = toLimbs(base, _baseLimbs);
+            toLimbs(exponent, _expLimbs);
+            modPow(_resultLimbs, _baseLimbs, bn, _expLimbs, en);
+            return fromLimbs(_resultLimbs, _n);
+        }
+
+        /**
+         * Closes the arena. Contexts handed out by {@link ForeignBigInteger#open}
+         * must be closed; the ones used internally are left to the GC.
+         */
+        public void close() {
+            if (_arena.scope().isAlive())
+                _arena.close();
+        }
+
+        /** fills in an mpz over the given limbs, normalizing the size */
+        private void setMpz(MemorySegment z, MemorySegment limbs, int n, int alloc) {
+            while (n > 0 && limbs.getAtIndex(ValueLayout.JAVA_LONG, n - 1) == 0)
+                n--;
+            z.set(ValueLayout.JAVA_INT, MPZ_ALLOC, alloc);
+            z.set(ValueLayout.JAVA_INT, MPZ_SIZE_FIELD, n);
+            z.set(ValueLayout.ADDRESS, MPZ_D, limbs);
+        }
+    }
+
+    /**
+     * Compares the engine against BigInteger.modPow and the JNI path with
+     * 1024- and 2048-bit moduli.
+     */
+    public static void main(String[] args) {
+        ForeignBigInteger engine = getInstance();
+        if (engine == null) {
+            System.out.println("GMP not found; the FFM engine is not available.");
+            return;
+        }
+        System.out.println("GMP found in " + engine.getLibrary());
+
+        SecureRandom rand = new SecureRandom();
+        int nRuns = 200;
+        int[] sizes = {1024, 2048};
+        int errors = 0;
+        for (int s = 0; s < sizes.length; s++) {
+            BigInteger m = new BigInteger(sizes[s], rand).setBit(sizes[s] - 1).setBit(0);
+            BigInteger[] b = new BigInteger[nRuns];
+            BigInteger[] e = new BigInteger[nRuns];
+            for (int i = 0; i < nRuns; i++) {
+                b[i] = new BigInteger(sizes[s] - 1, rand);
+                e[i] = new BigInteger(sizes[s], rand);
+            }
+            // warm up all three
+            for (int i = 0; i < nRuns; i++) {
+                engine.modPow(b[i], e[i], m);
+                b[i].modPow(e[i], m);
+                new NativeBigInteger(b[i]).modPow(e[i], m);
+            }
+
+            long start = System.nanoTime();
+            BigInteger[] r = new BigInteger[nRuns];
+            try (Context ctx = engine.open(m)) {
+                for (int i = 0; i < nRuns; i++)
+                    r[i] = ctx.modPow(b[i], e[i]);
+            }
+            long ffmTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < nRuns; i++) {
+                if (!b[i].modPow(e[i], m).equals(r[i]))
+                    errors++;
+            }
+            long javaTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            if (NativeBigInteger.isNative()) {
+                for (int i = 0; i < nRuns; i++)
+                    NativeBigInteger.nativeModPow(b[i].toByteArray(), e[i].toByteArray(), m.toByteArray());
+            }
+            long jniTime = System.nanoTime() - start;
+
+            System.out.println(sizes[s] + " bits: ffm " + ffmTime / 1000 / nRuns + " us, java "
+                               + javaTime / 1000 / nRuns + " us"
+                               + (NativeBigInteger.isNative() ? ", jni " + jniTime / 1000 / nRuns + " us" : "")
+                               + " per modPow");
+        }
+        System.out.println("Total failed: " + errors);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Batch entry points for the jbigi library (net.i2p.util.NativeBigInteger).
+ *
+ * jbigi's nativeModPow converts the base, exponent and modulus between Java
+ * byte arrays and GMP integers on every call. The functions here take whole
+ * arrays of bases and exponents with one modulus, so the JNI transition and
+ * the conversion of the modulus happen once per batch.
+ *
+ * Build this file into libjbigi together with I2P's jbigi.c (see INSTALL),
+ * e.g.
+ *
+ *   gcc -shared -fPIC -O3 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux \
+ *       -o libjbigi.so jbigi.c jbigi_batch.c -lgmp
+ *
+ * NativeBigInteger checks for these symbols when it loads the library and
+ * falls back to one nativeModPow call per base if they are missing.
+ *
+ * All numbers are big endian two's complement byte arrays, as produced by
+ * BigInteger.toByteArray(), and must be non-negative.
+ */
+
+#include <stdlib.h>
+#include <jni.h>
+#include <gmp.h>
+
+static void batch_j2mp(JNIEnv *env, jbyteArray jvalue, mpz_t value)
+{
+    jsize size = (*env)->GetArrayLength(env, jvalue);
+    jbyte *bytes = (*env)->GetByteArrayElements(env, jvalue, NULL);
+
+    mpz_init2(value, sizeof(jbyte) * 8 * size);
+    mpz_import(value, size, 1, sizeof(jbyte), 1, 0, (void *)bytes);
+    (*env)->ReleaseByteArrayElements(env, jvalue, bytes, JNI_ABORT);
+}
+
+static jbyteArray batch_mp2j(JNIEnv *env, mpz_t value)
+{
+    /* One extra byte so that the sign bit is always 0. */
+    jsize size = (mpz_sizeinbase(value, 2) + 7) / 8 + 1;
+    jbyteArray jvalue = (*env)->NewByteArray(env, size);
+    jbyte *buffer;
+    size_t count;
+
+    if (jvalue == NULL)
+        return NULL;    /* OutOfMemoryError is pending */
+    if (mpz_sgn(value) == 0)
+        return jvalue;  /* NewByteArray zeroes it */
+
+    buffer = (*env)->GetByteArrayElements(env, jvalue, NULL);
+    buffer[0] = 0;
+    mpz_export(buffer + 1, &count, 1, sizeof(jbyte), 1, 0, value);
+    (*env)->ReleaseByteArrayElements(env, jvalue, buffer, 0);
+    return jvalue;
+}
+
+/*
+ * Converts bases[i] and exponents[i]. Returns 0 if the arrays are null or of
+ * different lengths, with an exception pending.
+ */
+static int batch_check(JNIEnv *env, jobjectArray jbases, jobjectArray jexps,
+                       jsize *n)
+{
+    if (jbases == NULL || jexps == NULL) {
+        jclass npe = (*env)->FindClass(env, "java/lang/NullPointerException");
+        if (npe != NULL)
+            (*env)->ThrowNew(env, npe, "bases or exponents is null");
+        return 0;
+    }
+    *n = (*env)->GetArrayLength(env, jbases);
+    if ((*env)->GetArrayLength(env, jexps) != *n) {
+        jclass iae = (*env)->FindClass(env,
+                                       "java/lang/IllegalArgumentException");
+        if (iae != NULL)
+            (*env)->ThrowNew(env, iae,
+                             "Number of bases and exponents do not agree!");
+        return 0;
+    }
+    return 1;
+}
+
+static void batch_element(JNIEnv *env, jobjectArray array, jsize i, mpz_t v)
+{
+    jbyteArray ja = (jbyteArray)(*env)->GetObjectArrayElement(env, array, i);
+    batch_j2mp(env, ja, v);
+    (*env)->DeleteLocalRef(env, ja);
+}
+
+/*
+ * Class:     net_i2p_util_NativeBigInteger
+ * Method:    nativeModPowBatch
+ * Signature: ([[B[[B[B)[[B
+ *
+ * Returns the array of (bases[i] ^ exponents[i]) % modulus.
+ */
+JNIEXPORT jobjectArray JNICALL
+Java_net_i2p_util_NativeBigInteger_nativeModPowBatch(JNIEnv *env,
+                                                     jclass cls,
+                                                     jobjectArray jbases,
+                                                     jobjectArray jexps,
+                                                     jbyteArray jmodulus)
+{
+    mpz_t m, b, e, r;
+    jsize n, i;
+    jclass byteArray;
+    jobjectArray jresult;
+
+    if (!batch_check(env, jbases, jexps, &n))
+        return NULL;
+    byteArray = (*env)->FindClass(env, "[B");
+    if (byteArray == NULL)
+        return NULL;
+    jresult = (*env)->NewObjectArray(env, n, byteArray, NULL);
+    if (jresult == NULL)
+        return NULL;
+
+    batch_j2mp(env, jmodulus, m);
+    mpz_init(r);
+    for (i = 0; i < n; i++) {
+        jbyteArray jr;
+
+        batch_element(env, jbases, i, b);
+        batch_element(env, jexps, i, e);
+        mpz_powm(r, b, e, m);
+        mpz_clear(b);
+        mpz_clear(e);
+
+        jr = batch_mp2j(env, r);
+        if (jr == NULL)
+            break;
+        (*env)->SetObjectArrayElement(env, jresult, i, jr);
+        (*env)->DeleteLocalRef(env, jr);
+    }
+    mpz_clear(r);
+    mpz_clear(m);
+    return jresult;
+}
+
+/*
+ * The number of terms from which batch_straus is used. For one or two terms
+ * mpz_powm, which uses Montgomery multiplication internally, is as fast.
+ */
+#define STRAUS_MIN 3
+
+/*
+ * The window of batch_straus for n exponents of up to bits bits: the one
+ * with the fewest multiplications for the tables (n * (2^w - 2)) and the
+ * main loop (n * bits / w). The squarings don't depend on it.
+ */
+static int batch_window(size_t bits, jsize n)
+{
+    int w, best = 1;
+    double cost, min = (double)n * bits;
+
+    for (w = 2; w <= 7; w++) {
+        cost = (double)n * ((1 << w) - 2) + (double)n * bits / w;
+        if (cost < min) {
+            min = cost;
+            best = w;
+        }
+    }
+    return best;
+}
+
+/*
+ * Sets r to prod{b[i] ^ e[i]} % m using Straus' interleaved method: the
+ * exponents are scanned together, w bits at a time from the top, so the
+ * squarings are shared by all the terms and each term only costs one
+ * multiplication per window. Separate mpz_powm calls would do n times as
+ * many squarings. Returns 0, leaving r alone, if the tables can't be
+ * allocated.
+ */
+static int batch_straus(mpz_t r, mpz_t *b, mpz_t *e, jsize n, mpz_t m)
+{
+    size_t bits = 0, s, pos, j;
+    jsize i;
+    int w, size, k, d;
+    mpz_t *table;
+
+    for (i = 0; i < n; i++) {
+        s = mpz_sgn(e[i]) == 0 ? 0 : mpz_sizeinbase(e[i], 2);
+        if (s > bits)
+            bits = s;
+    }
+    w = batch_window(bits, n);
+    size = (1 << w) - 1;
+
+    /* table[i*size + k - 1] = b[i]^k % m for k = 1, ..., 2^w - 1 */
+    table = malloc((size_t)n * size * sizeof(mpz_t));
+    if (table == NULL)
+        return 0;
+    for (i = 0; i < n; i++) {
+        mpz_t *t = table + (size_t)i * size;
+
+        mpz_init(t[0]);
+        mpz_mod(t[0], b[i], m);
+        for (k = 1; k < size; k++) {
+            mpz_init(t[k]);
+            mpz_mul(t[k], t[k - 1], t[0]);
+            mpz_mod(t[k], t[k], m);
+        }
+    }
+
+    mpz_set_ui(r, 1);
+    mpz_mod(r, r, m);
+    for (pos = (bits + w - 1) / w * w; pos > 0; ) {
+        pos -= w;
+        if (mpz_cmp_ui(r, 1) != 0) {
+            for (k = 0; k < w; k++) {
+                mpz_mul(r, r, r);
+                mpz_mod(r, r, m);
+            }
+        }
+        for (i = 0; i < n; i++) {
+            d = 0;
+            for (k = w - 1; k >= 0; k--)
+                d = (d << 1) | mpz_tstbit(e[i], pos + k);
+            if (d != 0) {
+                mpz_mul(r, r, table[(size_t)i * size + d - 1]);
+                mpz_mod(r, r, m);
+            }
+        }
+    }
+
+    for (j = 0; j < (size_t)n * size; j++)
+        mpz_clear(table[j]);
+    free(table);
+    return 1;
+}
+
+/*
+ * Class:     net_i2p_util_NativeBigInteger
+ * Method:    nativeMultiExp
+ * Signature: ([[B[[B[B)[B
+ *
+ * Returns prod{bases[i] ^ exponents[i]} % modulus, computed in one
+ * interleaved pass by batch_straus. For fewer than STRAUS_MIN terms, or if
+ * the tables can't be allocated, the terms are computed separately with
+ * mpz_powm and multiplied.
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_net_i2p_util_NativeBigInteger_nativeMultiExp(JNIEnv *env,
+                                                  jclass cls,
+                                                  jobjectArray jbases,
+                                                  jobjectArray jexps,
+                                                  jbyteArray jmodulus)
+{
+    mpz_t m, r, prod;
+    mpz_t *b, *e;
+    jsize n, i;
+    jbyteArray jresult;
+
+    if (!batch_check(env, jbases, jexps, &n))
+        return NULL;
+
+    b = malloc((n > 0 ? n : 1) * sizeof(mpz_t));
+    e = malloc((n > 0 ? n : 1) * sizeof(mpz_t));
+    if (b == NULL || e == NULL) {
+        jclass oom = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+        free(b);
+        free(e);
+        if (oom != NULL)
+            (*env)->ThrowNew(env, oom, "nativeMultiExp");
+        return NULL;
+    }
+    batch_j2mp(env, jmodulus, m);
+    for (i = 0; i < n; i++) {
+        batch_element(env, jbases, i, b[i]);
+        batch_element(env, jexps, i, e[i]);
+    }
+
+    mpz_init(prod);
+    if (n < STRAUS_MIN || !batch_straus(prod, b, e, n, m)) {
+        mpz_init(r);
+        mpz_set_ui(prod, 1);
+        mpz_mod(prod, prod, m);
+        for (i = 0; i < n; i++) {
+            mpz_powm(r, b[i], e[i], m);
+            mpz_mul(prod, prod, r);
+            mpz_mod(prod, prod, m);
+        }
+        mpz_clear(r);
+    }
+
+    jresult = batch_mp2j(env, prod);
+    for (i = 0; i < n; i++) {
+        mpz_clear(b[i]);
+        mpz_clear(e[i]);
+    }
+    free(b);
+    free(e);
+    mpz_clear(prod);
+    mpz_clear(m);
+    return jresult;
+}